@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.agent.model.AsyncQueryData;
+import org.glowroot.agent.model.AsyncTimerImpl;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.agent.util.Tickers;
+
+// models a netty based http gateway, where the async http client calls of a single transaction are
+// started and completed on several event loop threads (one jmh thread per event loop)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+public class AsyncComponentsBenchmark {
+
+    private static final Ticker ticker = Tickers.getTicker();
+
+    private static final TimerNameImpl TIMER_NAME =
+            ImmutableTimerNameImpl.of("http client request", false);
+
+    private AsyncComponents asyncComponents;
+
+    @Setup
+    public void setup() {
+        asyncComponents = new AsyncComponents(500, 500, ticker);
+    }
+
+    // ticks are synthetic so that this measures the agent bookkeeping instead of System.nanoTime()
+    @Benchmark
+    public void asyncServiceCall(EventLoop eventLoop) {
+        long startTick = eventLoop.tick++;
+        AsyncTimerImpl asyncTimer = asyncComponents.startAsyncTimer(TIMER_NAME, startTick);
+        AsyncQueryData serviceCallData = asyncComponents.getOrCreateAsyncServiceCallData("HTTP",
+                "GET http://backend/api", false);
+        serviceCallData.start(startTick, 1);
+        long endTick = eventLoop.tick++;
+        serviceCallData.end(endTick);
+        asyncTimer.end(endTick);
+    }
+
+    @State(Scope.Thread)
+    public static class EventLoop {
+        private long tick;
+    }
+}
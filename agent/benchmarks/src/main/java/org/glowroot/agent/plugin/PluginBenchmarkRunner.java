@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin;
+
+import java.io.File;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// runs the plugin benchmarks (those under org.glowroot.agent.plugin) with the shaded agent
+// attached and with the gc profiler, and writes the results in json format so that the per plugin
+// time and allocation can be compared across runs, e.g.
+//
+// java -cp benchmarks.jar org.glowroot.agent.plugin.PluginBenchmarkRunner path/to/glowroot.jar
+//
+// any additional arguments are regexes which further restrict which benchmarks are run
+public class PluginBenchmarkRunner {
+
+    private static final String RESULTS_FILE_PROPERTY = "glowroot.benchmark.results";
+
+    private PluginBenchmarkRunner() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: PluginBenchmarkRunner <path to glowroot.jar> [regex...]");
+            System.exit(1);
+        }
+        File agentJarFile = new File(args[0]);
+        if (!agentJarFile.exists()) {
+            System.err.println("agent jar file not found: " + agentJarFile.getAbsolutePath());
+            System.exit(1);
+        }
+        String resultsFile = System.getProperty(RESULTS_FILE_PROPERTY, "plugin-benchmarks.json");
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .jvmArgsAppend("-javaagent:" + agentJarFile.getAbsolutePath())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultsFile);
+        if (args.length == 1) {
+            options.include(PluginBenchmarkRunner.class.getPackage().getName() + "\\..*");
+        } else {
+            for (int i = 1; i < args.length; i++) {
+                options.include(args[i]);
+            }
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.cassandra;
+
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.plugin.cassandra.support.MockSession;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SessionBenchmark extends TransactionWorthy {
+
+    @Param
+    private ExecuteType executeType;
+
+    private Session session;
+    private Statement statement;
+
+    @Setup
+    public void setup() {
+        session = new MockSession();
+        statement = new SimpleStatement("SELECT * FROM test.users WHERE id = 1");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() {
+        switch (executeType) {
+            case SYNC:
+                for (int i = 0; i < 1000; i++) {
+                    session.execute(statement);
+                }
+                break;
+            case ASYNC:
+                for (int i = 0; i < 1000; i++) {
+                    session.executeAsync(statement).getUninterruptibly();
+                }
+                break;
+        }
+    }
+
+    public enum ExecuteType {
+        SYNC, ASYNC
+    }
+}
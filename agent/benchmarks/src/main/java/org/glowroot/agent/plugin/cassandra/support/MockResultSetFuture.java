@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.cassandra.support;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+
+// this is always already completed, similar to a very fast response
+public class MockResultSetFuture implements ResultSetFuture {
+
+    private final ResultSet resultSet;
+
+    public MockResultSetFuture(ResultSet resultSet) {
+        this.resultSet = resultSet;
+    }
+
+    @Override
+    public ResultSet getUninterruptibly() {
+        return resultSet;
+    }
+
+    @Override
+    public ResultSet getUninterruptibly(long timeout, TimeUnit unit) {
+        return resultSet;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return true;
+    }
+
+    @Override
+    public ResultSet get() {
+        return resultSet;
+    }
+
+    @Override
+    public ResultSet get(long timeout, TimeUnit unit) {
+        return resultSet;
+    }
+
+    @Override
+    public void addListener(Runnable listener, Executor executor) {
+        executor.execute(listener);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.cassandra.support;
+
+import java.util.Map;
+
+import com.datastax.driver.core.CloseFuture;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class MockSession implements Session {
+
+    @Override
+    public String getLoggedKeyspace() {
+        return "mock";
+    }
+
+    @Override
+    public Session init() {
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<Session> initAsync() {
+        return null;
+    }
+
+    @Override
+    public ResultSet execute(String query) {
+        return execute(new SimpleStatement(query));
+    }
+
+    @Override
+    public ResultSet execute(String query, Object... values) {
+        return execute(new SimpleStatement(query, values));
+    }
+
+    @Override
+    public ResultSet execute(String query, Map<String, Object> values) {
+        return execute(new SimpleStatement(query, values));
+    }
+
+    @Override
+    public ResultSet execute(Statement statement) {
+        return new MockResultSet();
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String query) {
+        return executeAsync(new SimpleStatement(query));
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String query, Object... values) {
+        return executeAsync(new SimpleStatement(query, values));
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String query, Map<String, Object> values) {
+        return executeAsync(new SimpleStatement(query, values));
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(Statement statement) {
+        return new MockResultSetFuture(new MockResultSet());
+    }
+
+    @Override
+    public PreparedStatement prepare(String query) {
+        return null;
+    }
+
+    @Override
+    public PreparedStatement prepare(RegularStatement statement) {
+        return null;
+    }
+
+    @Override
+    public ListenableFuture<PreparedStatement> prepareAsync(String query) {
+        return null;
+    }
+
+    @Override
+    public ListenableFuture<PreparedStatement> prepareAsync(RegularStatement statement) {
+        return null;
+    }
+
+    @Override
+    public CloseFuture closeAsync() {
+        return null;
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public Cluster getCluster() {
+        return null;
+    }
+
+    @Override
+    public State getState() {
+        return null;
+    }
+}
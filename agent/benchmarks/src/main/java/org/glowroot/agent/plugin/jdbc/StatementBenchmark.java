@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.plugin.jdbc.support.MockConnection;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class StatementBenchmark extends TransactionWorthy {
+
+    @Param
+    private StatementType statementType;
+
+    private Connection connection;
+    private Statement statement;
+    private PreparedStatement preparedStatement;
+
+    @Setup
+    public void setup() throws SQLException {
+        connection = new MockConnection();
+        statement = connection.createStatement();
+        preparedStatement = connection.prepareStatement("select * from mock where id = ?");
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        preparedStatement.close();
+        statement.close();
+        connection.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws SQLException {
+        switch (statementType) {
+            case STATEMENT:
+                for (int i = 0; i < 1000; i++) {
+                    statement.execute("select * from mock where id = 1");
+                }
+                break;
+            case PREPARED_STATEMENT:
+                for (int i = 0; i < 1000; i++) {
+                    preparedStatement.setInt(1, i);
+                    preparedStatement.execute();
+                }
+                break;
+        }
+    }
+
+    public enum StatementType {
+        STATEMENT, PREPARED_STATEMENT
+    }
+}
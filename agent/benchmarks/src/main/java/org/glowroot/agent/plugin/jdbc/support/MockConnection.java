@@ -48,7 +48,7 @@ public class MockConnection implements Connection {
 
     @Override
     public Statement createStatement() throws SQLException {
-        return null;
+        return new MockStatement();
     }
 
     @Override
@@ -128,7 +128,7 @@ public class MockConnection implements Connection {
     @Override
     public Statement createStatement(int resultSetType, int resultSetConcurrency)
             throws SQLException {
-        return null;
+        return new MockStatement();
     }
 
     @Override
@@ -178,7 +178,7 @@ public class MockConnection implements Connection {
     @Override
     public Statement createStatement(int resultSetType, int resultSetConcurrency,
             int resultSetHoldability) throws SQLException {
-        return null;
+        return new MockStatement();
     }
 
     @Override
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// the logger has no handlers, so this measures the plugin overhead on top of creating the log
+// record, and not the cost of formatting and writing the log message
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class JavaLoggingBenchmark extends TransactionWorthy {
+
+    @Param
+    private LogLevel logLevel;
+
+    private Logger logger;
+    private Exception exception;
+
+    @Setup
+    public void setup() {
+        logger = Logger.getLogger(JavaLoggingBenchmark.class.getName());
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.INFO);
+        exception = new Exception();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() {
+        switch (logLevel) {
+            case INFO:
+                for (int i = 0; i < 1000; i++) {
+                    logger.info("abc");
+                }
+                break;
+            case WARNING_WITH_THROWABLE:
+                for (int i = 0; i < 1000; i++) {
+                    logger.log(Level.WARNING, "abc", exception);
+                }
+                break;
+        }
+    }
+
+    public enum LogLevel {
+        INFO, WARNING_WITH_THROWABLE
+    }
+}
@@ -30,8 +30,10 @@ import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 
 import org.glowroot.agent.plugin.servlet.support.MockHttpRequest;
+import org.glowroot.agent.plugin.servlet.support.MockHttpRequestWithDetail;
 import org.glowroot.agent.plugin.servlet.support.MockHttpResponse;
 import org.glowroot.agent.plugin.servlet.support.MockHttpServlet;
+import org.glowroot.agent.plugin.servlet.support.MockParameterReadingHttpServlet;
 
 @BenchmarkMode(Mode.AverageTime)
 @OutputTimeUnit(TimeUnit.MICROSECONDS)
@@ -42,15 +44,28 @@ public class ServletBenchmark {
     private HttpServletRequest request;
     private HttpServletResponse response;
 
+    private HttpServlet parameterReadingServlet;
+    private HttpServletRequest requestWithDetail;
+
     @Setup
     public void setup() {
         servlet = new MockHttpServlet();
         request = new MockHttpRequest();
         response = new MockHttpResponse();
+        parameterReadingServlet = new MockParameterReadingHttpServlet();
+        requestWithDetail = new MockHttpRequestWithDetail();
     }
 
     @Benchmark
     public void service() throws Exception {
         servlet.service(request, response);
     }
+
+    // request parameters are captured and masked (using the default captureRequestParameters and
+    // maskRequestParameters), request headers are only captured if captureRequestHeaders is
+    // configured
+    @Benchmark
+    public void serviceWithDetail() throws Exception {
+        parameterReadingServlet.service(requestWithDetail, response);
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet.support;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// request with a realistic number of parameters and headers, for benchmarking detail capture
+public class MockHttpRequestWithDetail extends MockHttpRequest {
+
+    private final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+    private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+    public MockHttpRequestWithDetail() {
+        for (int i = 0; i < 18; i++) {
+            parameters.put("param" + i, new String[] {"value" + i});
+        }
+        parameters.put("userPassword", new String[] {"secret"});
+        parameters.put("tags", new String[] {"a", "b", "c"});
+        headers.put("Host", "localhost:8080");
+        headers.put("User-Agent", "Mozilla/5.0");
+        headers.put("Accept", "text/html,application/xhtml+xml");
+        headers.put("Accept-Language", "en-US,en;q=0.5");
+        headers.put("Accept-Encoding", "gzip, deflate");
+        headers.put("Connection", "keep-alive");
+        for (int i = headers.size(); i < 50; i++) {
+            headers.put("X-Custom-Header-" + i, "value" + i);
+        }
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = parameters.get(name);
+        return values == null ? null : values[0];
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(parameters.keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        return parameters.get(name);
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return parameters;
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+        String value = headers.get(name);
+        if (value == null) {
+            return Collections.enumeration(Collections.<String>emptyList());
+        }
+        return Collections.enumeration(Collections.singletonList(value));
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(headers.keySet());
+    }
+}
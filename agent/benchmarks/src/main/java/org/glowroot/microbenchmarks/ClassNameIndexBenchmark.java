@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.StandardSystemProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.live.ClassNameIndex;
+
+// compares class name auto completion using ClassNameIndex against scanning all class names (which
+// is what ClasspathCache did prior to the index)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ClassNameIndexBenchmark {
+
+    private static final int LIMIT = 10;
+
+    @Param({"200000"})
+    private int classNameCount;
+
+    @Param({"c", "str", "ImmutableMap", "google.common.base.str"})
+    private String partialClassName;
+
+    private List<String> classNames;
+    private ClassNameIndex classNameIndex;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> realClassNames = getClassNamesFromClassPath();
+        Set<String> classNames = new LinkedHashSet<String>(realClassNames);
+        // pad with copies of the real class names under different packages to simulate a large
+        // application server
+        int copy = 0;
+        while (classNames.size() < classNameCount) {
+            for (String className : realClassNames) {
+                classNames.add("com.example.app" + copy + "." + className);
+                if (classNames.size() == classNameCount) {
+                    break;
+                }
+            }
+            copy++;
+        }
+        this.classNames = new ArrayList<String>(classNames);
+        Collections.sort(this.classNames);
+        classNameIndex = new ClassNameIndex(Long.MAX_VALUE);
+        classNameIndex.addAll(this.classNames);
+    }
+
+    @Benchmark
+    public List<String> index() {
+        return classNameIndex.getMatchingClassNames(partialClassName, LIMIT);
+    }
+
+    @Benchmark
+    public List<String> scan() {
+        String partialClassNameUpper = partialClassName.toUpperCase(Locale.ENGLISH);
+        String prefixedPartialClassNameUpper1 = '.' + partialClassNameUpper;
+        String prefixedPartialClassNameUpper2 = '$' + partialClassNameUpper;
+        List<String> fullMatchingClassNames = new ArrayList<String>();
+        List<String> matchingClassNames = new ArrayList<String>();
+        for (String className : classNames) {
+            String classNameUpper = className.toUpperCase(Locale.ENGLISH);
+            boolean potentialFullMatch = classNameUpper.equals(partialClassNameUpper)
+                    || classNameUpper.endsWith(prefixedPartialClassNameUpper1)
+                    || classNameUpper.endsWith(prefixedPartialClassNameUpper2);
+            if (matchingClassNames.size() == LIMIT && !potentialFullMatch) {
+                continue;
+            }
+            if (fullMatchingClassNames.size() == LIMIT) {
+                break;
+            }
+            if (classNameUpper.startsWith(partialClassNameUpper)
+                    || classNameUpper.contains(prefixedPartialClassNameUpper1)
+                    || classNameUpper.contains(prefixedPartialClassNameUpper2)) {
+                if (potentialFullMatch) {
+                    fullMatchingClassNames.add(className);
+                } else {
+                    matchingClassNames.add(className);
+                }
+            }
+        }
+        fullMatchingClassNames.addAll(matchingClassNames);
+        return fullMatchingClassNames;
+    }
+
+    private static List<String> getClassNamesFromClassPath() throws IOException {
+        List<String> paths = new ArrayList<String>();
+        paths.addAll(getPaths(StandardSystemProperty.JAVA_CLASS_PATH.value()));
+        paths.addAll(getPaths(System.getProperty("sun.boot.class.path")));
+        List<String> classNames = new ArrayList<String>();
+        for (String path : paths) {
+            if (!path.endsWith(".jar") || !new File(path).exists()) {
+                continue;
+            }
+            JarFile jarFile = new JarFile(path);
+            try {
+                Enumeration<JarEntry> e = jarFile.entries();
+                while (e.hasMoreElements()) {
+                    String name = e.nextElement().getName();
+                    if (name.endsWith(".class")) {
+                        name = name.replace('/', '.');
+                        classNames.add(name.substring(0, name.length() - ".class".length()));
+                    }
+                }
+            } finally {
+                jarFile.close();
+            }
+        }
+        return classNames;
+    }
+
+    private static List<String> getPaths(String classPath) {
+        if (classPath == null) {
+            return new ArrayList<String>();
+        }
+        return Splitter.on(StandardSystemProperty.PATH_SEPARATOR.value()).splitToList(classPath);
+    }
+}
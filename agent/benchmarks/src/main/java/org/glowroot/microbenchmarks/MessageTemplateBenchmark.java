@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.weaving.Beans;
+import org.glowroot.agent.weaving.GenericMessageSupplier;
+import org.glowroot.agent.weaving.MessageTemplateImpl;
+
+// compares rendering a custom instrumentation message template (which uses generated accessors)
+// against resolving the same paths via Beans (which uses reflection)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageTemplateBenchmark {
+
+    private static final List<String> RECEIVER_CLASS_NAME_PATH = ImmutableList.of("class", "name");
+    private static final List<String> ARG_NAME_PATH = ImmutableList.of("name");
+    private static final List<String> ARG_ID_PATH = ImmutableList.of("id");
+
+    private MessageTemplateImpl template;
+
+    private Receiver receiver;
+    private Arg arg;
+
+    @Setup
+    public void setup() throws Exception {
+        template = MessageTemplateImpl.create(
+                "{{this.class.name}}.{{methodName}}(): {{0.name}} / {{0.id}}",
+                Receiver.class.getMethod("execute", Arg.class));
+        receiver = new Receiver();
+        arg = new Arg();
+    }
+
+    @Benchmark
+    public String template() {
+        return GenericMessageSupplier.create(template, receiver, "execute", arg)
+                .getMessageText();
+    }
+
+    // this is the only cost for trace entries that are never captured in a slow trace, since the
+    // message text is only rendered when it is needed
+    @Benchmark
+    public GenericMessageSupplier templateCapture() {
+        return GenericMessageSupplier.create(template, receiver, "execute", arg);
+    }
+
+    @Benchmark
+    public String beans() throws Exception {
+        return Beans.value(receiver, RECEIVER_CLASS_NAME_PATH) + ".execute(): "
+                + Beans.value(arg, ARG_NAME_PATH) + " / " + Beans.value(arg, ARG_ID_PATH);
+    }
+
+    public static class Receiver {
+        public void execute(@SuppressWarnings("unused") Arg arg) {}
+    }
+
+    public static class Arg {
+
+        public String getName() {
+            return "the name";
+        }
+
+        public long getId() {
+            return 123;
+        }
+    }
+}
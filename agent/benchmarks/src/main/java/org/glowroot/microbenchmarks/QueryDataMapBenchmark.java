@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.model.QueryDataMap;
+import org.glowroot.agent.model.SyncQueryData;
+
+// simulates the query data lookups of a single transaction (see
+// ThreadContextImpl.getOrCreateQueryData()), which executes 100 queries spread across a number of
+// distinct query texts
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class QueryDataMapBenchmark {
+
+    private static final int EXECUTIONS_PER_TRANSACTION = 100;
+
+    @Param({"1", "10", "100"})
+    private int distinctQueries;
+
+    // the same string instances on every execution (e.g. prepared statements)
+    private String[] sameInstanceQueryTexts;
+    // equal but different string instances on every execution (e.g. sql built dynamically)
+    private String[] equalInstanceQueryTexts;
+
+    @Setup
+    public void setup() {
+        String[] queryTexts = new String[distinctQueries];
+        for (int i = 0; i < distinctQueries; i++) {
+            queryTexts[i] = "select employee0_.id as id1_0_, employee0_.name as name2_0_,"
+                    + " employee0_.department_id as department3_0_ from employee employee0_"
+                    + " where employee0_.department_id=? and employee0_.id" + i + "=?";
+        }
+        sameInstanceQueryTexts = new String[EXECUTIONS_PER_TRANSACTION];
+        equalInstanceQueryTexts = new String[EXECUTIONS_PER_TRANSACTION];
+        for (int i = 0; i < EXECUTIONS_PER_TRANSACTION; i++) {
+            String queryText = queryTexts[i % distinctQueries];
+            sameInstanceQueryTexts[i] = queryText;
+            equalInstanceQueryTexts[i] = new String(queryText);
+            // string hash codes are cached, so this is what equal instances look like after
+            // their first use
+            equalInstanceQueryTexts[i].hashCode();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EXECUTIONS_PER_TRANSACTION)
+    public QueryDataMap sameInstance() {
+        return execute(sameInstanceQueryTexts);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EXECUTIONS_PER_TRANSACTION)
+    public QueryDataMap equalInstance() {
+        return execute(equalInstanceQueryTexts);
+    }
+
+    private static QueryDataMap execute(String[] queryTexts) {
+        QueryDataMap map = new QueryDataMap("SQL");
+        SyncQueryData headQueryData = null;
+        for (String queryText : queryTexts) {
+            SyncQueryData queryData = map.get(queryText);
+            if (queryData == null) {
+                queryData = new SyncQueryData("SQL", queryText, headQueryData, null);
+                map.put(queryText, queryData);
+                headQueryData = queryData;
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.microbenchmarks.support.TimerWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// 1 million short-lived tasks executed from a single transaction, each of which propagates the
+// transaction's thread context to the thread executing the task
+//
+// VIRTUAL uses a virtual thread per task executor (requires Java 21+), and PLATFORM uses a fixed
+// size thread pool for comparison
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class VirtualThreadBenchmark extends TransactionWorthy {
+
+    private static final int TASK_COUNT = 1000000;
+
+    @Param({"VIRTUAL", "PLATFORM"})
+    private ExecutorType executorType;
+
+    private ExecutorService executor;
+
+    private TimerWorthy timerWorthy;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        switch (executorType) {
+            case VIRTUAL:
+                executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                break;
+            case PLATFORM:
+                executor = Executors
+                        .newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                break;
+        }
+        timerWorthy = new TimerWorthy();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(TASK_COUNT);
+        for (int i = 0; i < TASK_COUNT; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    timerWorthy.doSomethingTimerWorthy();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+    }
+
+    public enum ExecutorType {
+        VIRTUAL, PLATFORM
+    }
+}
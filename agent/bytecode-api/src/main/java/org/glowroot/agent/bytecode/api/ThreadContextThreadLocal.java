@@ -26,6 +26,10 @@ import org.checkerframework.checker.nullness.qual.Nullable;
  * slot and avoid the slow path ThreadLocalMap.getEntryAfterMiss().
  * 
  * Important: this thread local will live in ThreadLocalMap forever, so use with care.
+ * 
+ * Virtual threads (Java 21+) have their own ThreadLocalMap (independent of the carrier thread), so
+ * the holder lives only as long as the virtual thread, and is only allocated for virtual threads
+ * that access this thread local.
  */
 // NOTE this is same as org.glowroot.agent.plugin.api.util.FastThreadLocal, but not genericized in
 // order to help with stack frame maps
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentConfigUpdateRequest;
+
+// the agent config (and its version) that was most recently applied from an agent config update
+// request, which is the base for subsequent agent config update requests that are sent as deltas
+// (see AgentConfigUpdateRequest.base_config_version in DownstreamService.proto)
+class AppliedAgentConfig {
+
+    @GuardedBy("this")
+    private @Nullable AgentConfig agentConfig;
+    @GuardedBy("this")
+    private String configVersion = "";
+
+    // returns null if the request is a delta against a config version that is not the currently
+    // applied config version, in which case the full agent config needs to be requested
+    synchronized @Nullable AgentConfig getAgentConfig(AgentConfigUpdateRequest request) {
+        String baseConfigVersion = request.getBaseConfigVersion();
+        if (baseConfigVersion.isEmpty()) {
+            return request.getAgentConfig();
+        }
+        if (agentConfig == null || !baseConfigVersion.equals(configVersion)) {
+            return null;
+        }
+        return applyDelta(agentConfig, request.getAgentConfig(),
+                request.getDeltaFieldNumberList());
+    }
+
+    synchronized void setApplied(AgentConfig agentConfig, String configVersion) {
+        this.agentConfig = agentConfig;
+        this.configVersion = configVersion;
+    }
+
+    // the agent config may have been partially applied, so the next agent config update request
+    // needs to contain the full agent config
+    synchronized void clear() {
+        agentConfig = null;
+        configVersion = "";
+    }
+
+    static AgentConfig applyDelta(AgentConfig base, AgentConfig delta,
+            List<Integer> deltaFieldNumbers) {
+        AgentConfig.Builder builder = base.toBuilder();
+        for (int fieldNumber : deltaFieldNumbers) {
+            FieldDescriptor field = AgentConfig.getDescriptor().findFieldByNumber(fieldNumber);
+            if (field == null) {
+                throw new IllegalStateException(
+                        "Unexpected agent config field number: " + fieldNumber);
+            }
+            builder.clearField(field);
+            if (field.isRepeated()) {
+                for (Object value : (List<?>) delta.getField(field)) {
+                    builder.addRepeatedField(field, value);
+                }
+            } else if (delta.hasField(field)) {
+                builder.setField(field, delta.getField(field));
+            }
+        }
+        return builder.build();
+    }
+}
@@ -25,6 +25,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -37,6 +38,7 @@ import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -56,6 +58,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent.Level;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.QueryTextRegistryEntry;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamCounts;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamHeader;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
@@ -79,6 +82,11 @@ public class CentralCollector implements Collector {
     private final DownstreamServiceObserver downstreamServiceObserver;
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
+    private final GaugeNameDictionary gaugeNameDictionary = new GaugeNameDictionary();
+    private final QueryTextRegistry queryTextRegistry = new QueryTextRegistry();
+
+    private final RateLimitedLogger nonCompactGaugeValuesLogger =
+            new RateLimitedLogger(CentralCollector.class);
 
     private volatile @MonotonicNonNull Environment environment;
     private volatile int nextAggregateDelayMillis;
@@ -153,16 +161,17 @@ public class CentralCollector implements Collector {
     @Override
     public void collectAggregates(AggregateReader aggregateReader) {
         centralConnection.callWithAFewRetries(nextAggregateDelayMillis,
-                new CollectAggregatesGrpcCall(aggregateReader));
+                new CollectAggregatesGrpcCall(aggregateReader, false));
     }
 
     @Override
     public void collectGaugeValues(List<GaugeValue> gaugeValues) {
-        final GaugeValueMessage gaugeValueMessage = GaugeValueMessage.newBuilder()
-                .setAgentId(agentId)
-                .addAllGaugeValues(gaugeValues)
-                .setPostV09(true)
-                .build();
+        collectGaugeValues(gaugeValues,
+                gaugeNameDictionary.buildMessage(agentId, gaugeValues, false));
+    }
+
+    private void collectGaugeValues(final List<GaugeValue> gaugeValues,
+            final GaugeValueMessage gaugeValueMessage) {
         centralConnection.callWithAFewRetries(new GrpcCall<GaugeValueResponseMessage>() {
             @Override
             public void call(StreamObserver<GaugeValueResponseMessage> responseObserver) {
@@ -170,6 +179,27 @@ public class CentralCollector implements Collector {
             }
             @Override
             public void doWithResponse(GaugeValueResponseMessage response) {
+                if (response.getCompactGaugeValuesSupported()) {
+                    gaugeNameDictionary.setCompactSupported();
+                }
+                if (response.getResendGaugeNames()) {
+                    // central collector does not have the prior gauge names (e.g. it was
+                    // restarted), so the gauge values were not stored
+                    if (gaugeValueMessage.getFirstNewGaugeNameIndex() != 0) {
+                        collectGaugeValues(gaugeValues,
+                                gaugeNameDictionary.buildMessage(agentId, gaugeValues, true));
+                    } else if (gaugeValueMessage.getGaugeNameDictionaryId() != 0) {
+                        // the full dictionary was already sent, so the central collector could
+                        // not decode the compact message for some other reason
+                        nonCompactGaugeValuesLogger.warn("central collector could not decode"
+                                + " compact gauge value message, resending gauge values in"
+                                + " non-compact format");
+                        collectGaugeValues(gaugeValues, gaugeNameDictionary
+                                .buildNonCompactMessage(agentId, gaugeValues));
+                    }
+                } else {
+                    gaugeNameDictionary.acknowledge(gaugeValueMessage);
+                }
                 if (response.getResendInit() && environment != null) {
                     final InitMessage initMessage = InitMessage.newBuilder()
                             .setAgentId(agentId)
@@ -252,24 +282,41 @@ public class CentralCollector implements Collector {
     private class CollectAggregatesGrpcCall extends GrpcCall<AggregateResponseMessage> {
 
         private final AggregateReader aggregateReader;
+        // when true, all referenced query text registry entries are sent, instead of only those
+        // that have not been acknowledged yet
+        private final boolean allQueryTextRegistryEntries;
         private final List<String> fullTextSha1s = Lists.newArrayList();
 
-        private CollectAggregatesGrpcCall(AggregateReader aggregateReader) {
+        private QueryTextRegistry. /*@Nullable*/ Generation queryTextRegistryGeneration;
+        // query text registry indexes of the query texts that have been sent in the current stream
+        private final Map<String, Integer> queryTextRegistryIndexes = Maps.newHashMap();
+        private final List<Integer> sentQueryTextRegistryIndexes = Lists.newArrayList();
+
+        private CollectAggregatesGrpcCall(AggregateReader aggregateReader,
+                boolean allQueryTextRegistryEntries) {
             this.aggregateReader = aggregateReader;
+            this.allQueryTextRegistryEntries = allQueryTextRegistryEntries;
         }
 
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
             final StreamObserver<AggregateStreamMessage> requestObserver =
                     collectorServiceStub.collectAggregateStream(responseObserver);
+            queryTextRegistryGeneration = queryTextRegistry.getGeneration();
+            AggregateStreamHeader.Builder streamHeader = AggregateStreamHeader.newBuilder()
+                    .setAgentId(agentId)
+                    .setCaptureTime(aggregateReader.captureTime())
+                    .setPostV09(true);
+            if (queryTextRegistryGeneration != null) {
+                streamHeader.setQueryTextRegistryId(queryTextRegistryGeneration.getId());
+            }
             requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                    .setStreamHeader(AggregateStreamHeader.newBuilder()
-                            .setAgentId(agentId)
-                            .setCaptureTime(aggregateReader.captureTime())
-                            .setPostV09(true))
+                    .setStreamHeader(streamHeader)
                     .build());
             // need to clear in case this is a retry
             fullTextSha1s.clear();
+            queryTextRegistryIndexes.clear();
+            sentQueryTextRegistryIndexes.clear();
             try {
                 aggregateReader.accept(new AggregateVisitorImpl(requestObserver));
             } catch (Throwable t) {
@@ -284,6 +331,21 @@ public class CentralCollector implements Collector {
         public void doWithResponse(AggregateResponseMessage response) {
             // Math.min is just for safety
             nextAggregateDelayMillis = Math.min(response.getNextDelayMillis(), 30000);
+            if (response.getQueryTextRegistrySupported()) {
+                queryTextRegistry.setSupported();
+            }
+            if (response.getResendQueryTextRegistryEntries()) {
+                // central collector does not have the prior query text registry entries (e.g. it
+                // was restarted), so the aggregates were not stored
+                if (!allQueryTextRegistryEntries) {
+                    centralConnection.callWithAFewRetries(
+                            new CollectAggregatesGrpcCall(aggregateReader, true));
+                }
+                return;
+            }
+            if (queryTextRegistryGeneration != null) {
+                queryTextRegistryGeneration.acknowledge(sentQueryTextRegistryIndexes);
+            }
             for (String fullTextSha1 : fullTextSha1s) {
                 sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
             }
@@ -300,13 +362,7 @@ public class CentralCollector implements Collector {
             @Override
             public void visitOverallAggregate(String transactionType,
                     List<String> sharedQueryTexts, Aggregate overallAggregate) {
-                for (String sharedQueryText : sharedQueryTexts) {
-                    Aggregate.SharedQueryText aggregateSharedQueryText = sharedQueryTextLimiter
-                            .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s);
-                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(aggregateSharedQueryText)
-                            .build());
-                }
+                sendSharedQueryTexts(sharedQueryTexts);
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
                         .setOverallAggregate(OverallAggregate.newBuilder()
                                 .setTransactionType(transactionType)
@@ -318,12 +374,7 @@ public class CentralCollector implements Collector {
             public void visitTransactionAggregate(String transactionType,
                     String transactionName, List<String> sharedQueryTexts,
                     Aggregate transactionAggregate) {
-                for (String sharedQueryText : sharedQueryTexts) {
-                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(sharedQueryTextLimiter
-                                    .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s))
-                            .build());
-                }
+                sendSharedQueryTexts(sharedQueryTexts);
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
                         .setTransactionAggregate(TransactionAggregate.newBuilder()
                                 .setTransactionType(transactionType)
@@ -331,6 +382,51 @@ public class CentralCollector implements Collector {
                                 .setAggregate(transactionAggregate))
                         .build());
             }
+
+            private void sendSharedQueryTexts(List<String> sharedQueryTexts) {
+                for (String sharedQueryText : sharedQueryTexts) {
+                    int index = getQueryTextRegistryIndex(sharedQueryText);
+                    if (index == -1) {
+                        requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                                .setSharedQueryText(sharedQueryTextLimiter
+                                        .buildAggregateSharedQueryText(sharedQueryText,
+                                                fullTextSha1s))
+                                .build());
+                    } else {
+                        requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                                .setSharedQueryTextRegistryIndex(index)
+                                .build());
+                    }
+                }
+            }
+
+            // returns -1 if the query text registry is not available
+            private int getQueryTextRegistryIndex(String sharedQueryText) {
+                QueryTextRegistry.Generation generation = queryTextRegistryGeneration;
+                if (generation == null) {
+                    return -1;
+                }
+                Integer index = queryTextRegistryIndexes.get(sharedQueryText);
+                if (index != null) {
+                    return index;
+                }
+                index = generation.getIndex(sharedQueryText);
+                if (index == -1) {
+                    return -1;
+                }
+                if (allQueryTextRegistryEntries || !generation.isAcknowledged(index)) {
+                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                            .setQueryTextRegistryEntry(QueryTextRegistryEntry.newBuilder()
+                                    .setIndex(index)
+                                    .setSharedQueryText(sharedQueryTextLimiter
+                                            .buildAggregateSharedQueryText(sharedQueryText,
+                                                    fullTextSha1s)))
+                            .build());
+                    sentQueryTextRegistryIndexes.add(index);
+                }
+                queryTextRegistryIndexes.put(sharedQueryText, index);
+                return index;
+            }
         }
     }
 
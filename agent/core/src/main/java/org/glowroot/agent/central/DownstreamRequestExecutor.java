@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.util.Styles;
+
+// executes downstream requests concurrently so that a slow request (e.g. a heap dump) does not
+// delay all of the requests behind it, while limiting the number of concurrent requests of each
+// kind
+class DownstreamRequestExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(DownstreamRequestExecutor.class);
+
+    private final ExecutorService executor;
+
+    @GuardedBy("this")
+    private final Map<RequestKind, KindState> kindStates = Maps.newEnumMap(RequestKind.class);
+
+    // keyed by stream in addition to request id, since request ids are only unique per stream (and
+    // requests from a prior stream can still be running after re-connecting)
+    private final ConcurrentMap<RequestKey, RequestTask> requestTasks = Maps.newConcurrentMap();
+
+    DownstreamRequestExecutor() {
+        executor = Executors
+                .newCachedThreadPool(ThreadFactories.create("Glowroot-Downstream-Request-%d"));
+        for (RequestKind kind : RequestKind.values()) {
+            kindStates.put(kind, new KindState());
+        }
+    }
+
+    void execute(RequestTask task) {
+        requestTasks.put(task.key, task);
+        synchronized (this) {
+            KindState kindState = getKindState(task.kind);
+            if (kindState.running == task.kind.concurrencyLimit) {
+                kindState.pending.add(task);
+                return;
+            }
+            kindState.running++;
+        }
+        submit(task);
+    }
+
+    // pending requests are removed from the queue, and running requests are marked as cancelled so
+    // that their responses (including any remaining chunks) are not sent
+    //
+    // running requests are not interrupted since most of the underlying operations (e.g. heap dump,
+    // reweave) do not respond to interruption, and some (e.g. writing agent config) should not be
+    // interrupted
+    void cancel(Object stream, long requestId) {
+        RequestTask task = requestTasks.get(ImmutableRequestKey.of(stream, requestId));
+        if (task != null) {
+            cancel(task);
+        }
+    }
+
+    void cancel(RequestTask task) {
+        requestTasks.remove(task.key, task);
+        task.cancelled = true;
+        synchronized (this) {
+            getKindState(task.kind).pending.remove(task);
+        }
+    }
+
+    void cancelAll(Object stream) {
+        for (RequestTask task : requestTasks.values()) {
+            if (task.key.stream() == stream) {
+                cancel(task);
+            }
+        }
+    }
+
+    void close() {
+        for (RequestTask task : requestTasks.values()) {
+            cancel(task);
+        }
+        executor.shutdown();
+    }
+
+    private void submit(final RequestTask task) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!task.cancelled) {
+                            task.run();
+                        }
+                    } finally {
+                        requestTasks.remove(task.key, task);
+                        onComplete(task.kind);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // executor has been closed
+            logger.debug(e.getMessage(), e);
+            requestTasks.remove(task.key, task);
+        }
+    }
+
+    private void onComplete(RequestKind kind) {
+        RequestTask next;
+        synchronized (this) {
+            KindState kindState = getKindState(kind);
+            next = kindState.pending.poll();
+            if (next == null) {
+                kindState.running--;
+                return;
+            }
+        }
+        submit(next);
+    }
+
+    @GuardedBy("this")
+    private KindState getKindState(RequestKind kind) {
+        KindState kindState = kindStates.get(kind);
+        if (kindState == null) {
+            throw new IllegalStateException("Unexpected request kind: " + kind);
+        }
+        return kindState;
+    }
+
+    enum RequestKind {
+
+        // agent config updates need to be applied in the order they are received
+        AGENT_CONFIG(1),
+        // heap dump, heap histogram and force gc are expensive and pause the JVM
+        HEAP(1),
+        THREAD_DUMP(1),
+        WEAVING(2),
+        TRACE(4),
+        OTHER(2);
+
+        private final int concurrencyLimit;
+
+        private RequestKind(int concurrencyLimit) {
+            this.concurrencyLimit = concurrencyLimit;
+        }
+    }
+
+    abstract static class RequestTask implements Runnable {
+
+        private final RequestKey key;
+        private final RequestKind kind;
+
+        private volatile boolean cancelled;
+
+        RequestTask(Object stream, long requestId, RequestKind kind) {
+            key = ImmutableRequestKey.of(stream, requestId);
+            this.kind = kind;
+        }
+
+        long getRequestId() {
+            return key.requestId();
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface RequestKey {
+        // the response sender of the stream, which does not override equals()
+        Object stream();
+        long requestId();
+    }
+
+    private static class KindState {
+
+        private final Queue<RequestTask> pending = Queues.newArrayDeque();
+        private int running;
+    }
+}
@@ -21,33 +21,45 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.concurrent.GuardedBy;
+
 import com.google.common.base.Stopwatch;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.central.DownstreamRequestExecutor.RequestKind;
+import org.glowroot.agent.central.DownstreamRequestExecutor.RequestTask;
 import org.glowroot.agent.collector.Collector.AgentConfigUpdater;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
+import org.glowroot.agent.live.LiveJvmServiceImpl.ChunkHandler;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
+import org.glowroot.agent.live.LiveTraceRepositoryImpl.EntriesDelta;
+import org.glowroot.agent.live.LiveTraceRepositoryImpl.ProfileDelta;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.live.LiveJvmService.DirectoryDoesNotExistException;
 import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInIbmJvmException;
 import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInJreException;
-import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc.DownstreamServiceStub;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentConfigUpdateRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentConfigUpdateResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AuxThreadProfileRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AuxThreadProfileResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AvailableDiskSpaceResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Capabilities;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CapabilitiesResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CentralRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CentralRequest.MessageCase;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.EntriesRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.EntriesResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ExceptionResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ExplicitGcDisabledResponse;
@@ -68,6 +80,7 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDumpResponse
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanMeta;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanMetaRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanMetaResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MainThreadProfileRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MainThreadProfileResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MatchingClassNamesRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MatchingClassNamesResponse;
@@ -87,24 +100,38 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.UnknownRequestRes
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
+class DownstreamServiceObserver implements ClientResponseObserver<AgentResponse, CentralRequest> {
 
     private static final Logger logger = LoggerFactory.getLogger(DownstreamServiceObserver.class);
 
+    // max number of threads per thread dump response chunk
+    private static final int THREAD_DUMP_CHUNK_SIZE = 100;
+    // max number of classes per heap histogram response chunk
+    private static final int HEAP_HISTOGRAM_CHUNK_SIZE = 1000;
+
+    // in case on ready notification is missed, e.g. due to the stream being closed
+    private static final long READY_CHECK_INTERVAL_MILLIS = 1000;
+
     private final CentralConnection centralConnection;
     private final DownstreamServiceStub downstreamServiceStub;
     private final AgentConfigUpdater agentConfigUpdater;
+    private final AppliedAgentConfig appliedAgentConfig = new AppliedAgentConfig();
     private final LiveJvmServiceImpl liveJvmService;
     private final LiveWeavingServiceImpl liveWeavingService;
     private final LiveTraceRepositoryImpl liveTraceRepository;
     private final String agentId;
 
-    private volatile @Nullable StreamObserver<AgentResponse> currResponseObserver;
+    private volatile @Nullable ResponseSender currResponseSender;
+
+    private final DownstreamRequestExecutor requestExecutor = new DownstreamRequestExecutor();
 
+    // only used by tests
+    private volatile boolean closing;
     // only used by tests
     private volatile boolean closedByCentralCollector;
 
@@ -138,7 +165,7 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
     }
 
     @Override
-    public void onNext(CentralRequest request) {
+    public void onNext(final CentralRequest request) {
         inMaybeConnectionFailure.set(false);
         boolean errorFixed = inConnectionFailure.getAndSet(false);
         if (errorFixed) {
@@ -152,15 +179,45 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
         if (request.getMessageCase() == MessageCase.HELLO_ACK) {
             return;
         }
-        try {
-            onNextInternal(request);
-        } catch (Throwable t) {
-            logger.error(t.getMessage(), t);
+        // beforeStart() is always called before any requests are received on the stream, and
+        // onError() is always called after the last request is received on the stream
+        final ResponseSender responseSender = checkNotNull(currResponseSender);
+        if (request.getMessageCase() == MessageCase.CANCEL_REQUEST) {
+            requestExecutor.cancel(responseSender,
+                    request.getCancelRequest().getCancelledRequestId());
+            return;
         }
+        // this is called on the single grpc executor thread, so requests are executed on separate
+        // threads in order to not delay other requests (and their responses) behind slow requests
+        RequestTask task =
+                new RequestTask(responseSender, request.getRequestId(), getKind(request)) {
+                    @Override
+                    public void run() {
+                        try {
+                            onNextInternal(request, responseSender, this);
+                        } catch (Throwable t) {
+                            logger.error(t.getMessage(), t);
+                        }
+                    }
+                };
+        requestExecutor.execute(task);
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<AgentResponse> requestStream) {
+        final ResponseSender responseSender = new ResponseSender(requestStream);
+        requestStream.setOnReadyHandler(new Runnable() {
+            @Override
+            public void run() {
+                responseSender.onReady();
+            }
+        });
+        currResponseSender = responseSender;
     }
 
     @Override
     public void onError(final Throwable t) {
+        closeCurrentStream();
         if (!inMaybeConnectionFailure.getAndSet(true)) {
             // one free pass
             // try immediate re-connect once in case this is just node of central collector cluster
@@ -178,33 +235,56 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
                 }
             });
         }
-        currResponseObserver = null;
         // TODO revisit retry/backoff after next grpc version
         scheduledRetryExecutor.schedule(new RetryAfterError(), 1, SECONDS);
     }
 
     @Override
-    @OnlyUsedByTests
     public void onCompleted() {
-        closedByCentralCollector = true;
+        closeCurrentStream();
+        if (closing) {
+            closedByCentralCollector = true;
+            return;
+        }
+        // the central collector completes the stream when it is shutting down (e.g. one node of
+        // the central collector cluster is being restarted), so re-connect, but without logging
+        // a lost connection warning
+        if (!inMaybeConnectionFailure.getAndSet(true)) {
+            connectAsync();
+            return;
+        }
+        scheduledRetryExecutor.schedule(new RetryAfterError(), 1, SECONDS);
+    }
+
+    // the request executor is shared across streams, so only the requests from this stream are
+    // cancelled
+    private void closeCurrentStream() {
+        ResponseSender responseSender = currResponseSender;
+        if (responseSender != null) {
+            responseSender.close();
+            // responses to requests from the closed stream can no longer be sent
+            requestExecutor.cancelAll(responseSender);
+        }
+        currResponseSender = null;
     }
 
     void connectAsync() {
         // these are async so never fail, onError() will be called on failure
-        StreamObserver<AgentResponse> responseObserver = downstreamServiceStub.connect(this);
-        currResponseObserver = responseObserver;
-        responseObserver.onNext(AgentResponse.newBuilder()
+        StreamObserver<AgentResponse> requestStream = downstreamServiceStub.connect(this);
+        // no other responses can be sent on the new stream until the central collector receives
+        // the hello message, so no need to go through the response sender
+        requestStream.onNext(AgentResponse.newBuilder()
                 .setHello(Hello.newBuilder()
-                        .setAgentId(agentId))
+                        .setAgentId(agentId)
+                        .setCancelRequestSupported(true)
+                        .setAgentConfigDeltaSupported(true))
                 .build());
     }
 
-    private void onNextInternal(CentralRequest request) throws Exception {
-        StreamObserver<AgentResponse> responseObserver = currResponseObserver;
-        while (responseObserver == null) {
-            MILLISECONDS.sleep(10);
-            responseObserver = currResponseObserver;
-        }
+    private void onNextInternal(CentralRequest request, ResponseSender responseSender,
+            RequestTask task) throws Exception {
+        StreamObserver<AgentResponse> responseObserver =
+                new RequestResponseObserver(responseSender, task);
         switch (request.getMessageCase()) {
             case AGENT_CONFIG_UPDATE_REQUEST:
                 updateConfigAndRespond(request, responseObserver);
@@ -289,34 +369,68 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
 
     private void updateConfigAndRespond(CentralRequest request,
             StreamObserver<AgentResponse> responseObserver) {
+        AgentConfigUpdateRequest updateRequest = request.getAgentConfigUpdateRequest();
+        AgentConfig agentConfig;
         try {
-            agentConfigUpdater.update(request.getAgentConfigUpdateRequest().getAgentConfig());
+            agentConfig = appliedAgentConfig.getAgentConfig(updateRequest);
+            if (agentConfig == null) {
+                responseObserver.onNext(AgentResponse.newBuilder()
+                        .setRequestId(request.getRequestId())
+                        .setAgentConfigUpdateResponse(AgentConfigUpdateResponse.newBuilder()
+                                .setBaseConfigVersionMismatch(true))
+                        .build());
+                return;
+            }
+            agentConfigUpdater.update(agentConfig);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
+            appliedAgentConfig.clear();
             sendExceptionResponse(request, responseObserver);
             return;
         }
+        appliedAgentConfig.setApplied(agentConfig, updateRequest.getConfigVersion());
         responseObserver.onNext(AgentResponse.newBuilder()
                 .setRequestId(request.getRequestId())
-                .setAgentConfigUpdateResponse(AgentConfigUpdateResponse.getDefaultInstance())
+                .setAgentConfigUpdateResponse(AgentConfigUpdateResponse.newBuilder()
+                        .setAppliedConfigVersion(updateRequest.getConfigVersion()))
                 .build());
     }
 
-    private void threadDumpAndRespond(CentralRequest request,
-            StreamObserver<AgentResponse> responseObserver) {
-        ThreadDump threadDump;
+    private void threadDumpAndRespond(final CentralRequest request,
+            final StreamObserver<AgentResponse> responseObserver) {
+        if (!request.getChunkedResponseSupported()) {
+            ThreadDump threadDump;
+            try {
+                threadDump = liveJvmService.getThreadDump("");
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                sendExceptionResponse(request, responseObserver);
+                return;
+            }
+            responseObserver.onNext(AgentResponse.newBuilder()
+                    .setRequestId(request.getRequestId())
+                    .setThreadDumpResponse(ThreadDumpResponse.newBuilder()
+                            .setThreadDump(threadDump))
+                    .build());
+            return;
+        }
         try {
-            threadDump = liveJvmService.getThreadDump("");
+            liveJvmService.getThreadDump(THREAD_DUMP_CHUNK_SIZE, new ChunkHandler<ThreadDump>() {
+                @Override
+                public void onChunk(ThreadDump chunk, boolean last) {
+                    responseObserver.onNext(AgentResponse.newBuilder()
+                            .setRequestId(request.getRequestId())
+                            .setMoreChunks(!last)
+                            .setThreadDumpResponse(ThreadDumpResponse.newBuilder()
+                                    .setThreadDump(chunk))
+                            .build());
+                }
+            });
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
+            // this is merged by the central collector with any prior chunks, replacing them
             sendExceptionResponse(request, responseObserver);
-            return;
         }
-        responseObserver.onNext(AgentResponse.newBuilder()
-                .setRequestId(request.getRequestId())
-                .setThreadDumpResponse(ThreadDumpResponse.newBuilder()
-                        .setThreadDump(threadDump))
-                .build());
     }
 
     private void jstackAndRespond(CentralRequest request,
@@ -404,11 +518,27 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
                 .build());
     }
 
-    private void heapHistogramAndRespond(CentralRequest request,
-            StreamObserver<AgentResponse> responseObserver) {
-        HeapHistogram heapHistogram;
+    private void heapHistogramAndRespond(final CentralRequest request,
+            final StreamObserver<AgentResponse> responseObserver) {
+        final boolean chunked = request.getChunkedResponseSupported();
+        final HeapHistogram.Builder heapHistogram = HeapHistogram.newBuilder();
         try {
-            heapHistogram = liveJvmService.heapHistogram("");
+            liveJvmService.heapHistogram(request.getHeapHistogramRequest().getLimit(),
+                    HEAP_HISTOGRAM_CHUNK_SIZE, new ChunkHandler<HeapHistogram>() {
+                        @Override
+                        public void onChunk(HeapHistogram chunk, boolean last) {
+                            if (chunked) {
+                                responseObserver.onNext(AgentResponse.newBuilder()
+                                        .setRequestId(request.getRequestId())
+                                        .setMoreChunks(!last)
+                                        .setHeapHistogramResponse(HeapHistogramResponse.newBuilder()
+                                                .setHeapHistogram(chunk))
+                                        .build());
+                            } else {
+                                heapHistogram.mergeFrom(chunk);
+                            }
+                        }
+                    });
         } catch (UnavailableDueToRunningInJreException e) {
             logger.debug(e.getMessage(), e);
             responseObserver.onNext(AgentResponse.newBuilder()
@@ -430,11 +560,13 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        responseObserver.onNext(AgentResponse.newBuilder()
-                .setRequestId(request.getRequestId())
-                .setHeapHistogramResponse(HeapHistogramResponse.newBuilder()
-                        .setHeapHistogram(heapHistogram))
-                .build());
+        if (!chunked) {
+            responseObserver.onNext(AgentResponse.newBuilder()
+                    .setRequestId(request.getRequestId())
+                    .setHeapHistogramResponse(HeapHistogramResponse.newBuilder()
+                            .setHeapHistogram(heapHistogram))
+                    .build());
+        }
     }
 
     private void explicitGcDisabledAndRespond(CentralRequest request,
@@ -691,9 +823,12 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
 
     private void getEntriesAndRespond(CentralRequest request,
             StreamObserver<AgentResponse> responseObserver) throws Exception {
-        Entries entries;
+        EntriesRequest entriesRequest = request.getEntriesRequest();
+        EntriesDelta entries;
         try {
-            entries = liveTraceRepository.getEntries("", request.getEntriesRequest().getTraceId());
+            entries = liveTraceRepository.getEntriesDelta(entriesRequest.getTraceId(),
+                    entriesRequest.getStableEntryCount(), entriesRequest.getStableEntryHash(),
+                    entriesRequest.getSharedQueryTextCount());
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             sendExceptionResponse(request, responseObserver);
@@ -704,6 +839,10 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             response.addAllEntry(entries.entries());
             response.addAllSharedQueryText(sharedQueryTextLimiter
                     .reduceTracePayloadWherePossible(entries.sharedQueryTexts()));
+            response.setFirstEntryIndex(entries.firstEntryIndex());
+            response.setStableEntryCount(entries.stableEntryCount());
+            response.setStableEntryHash(entries.stableEntryHash());
+            response.setFirstSharedQueryTextIndex(entries.firstSharedQueryTextIndex());
         }
         responseObserver.onNext(AgentResponse.newBuilder()
                 .setRequestId(request.getRequestId())
@@ -713,22 +852,24 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
 
     private void getMainThreadProfileAndRespond(CentralRequest request,
             StreamObserver<AgentResponse> responseObserver) throws Exception {
-        Profile profile;
+        MainThreadProfileRequest profileRequest = request.getMainThreadProfileRequest();
+        ProfileDelta profile;
         try {
-            profile = liveTraceRepository.getMainThreadProfile("",
-                    request.getMainThreadProfileRequest().getTraceId());
+            profile = liveTraceRepository.getMainThreadProfileDelta(profileRequest.getTraceId(),
+                    profileRequest.getSampleCount());
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        MainThreadProfileResponse response;
-        if (profile == null) {
-            response = MainThreadProfileResponse.getDefaultInstance();
-        } else {
-            response = MainThreadProfileResponse.newBuilder()
-                    .setProfile(profile)
-                    .build();
+        MainThreadProfileResponse.Builder response = MainThreadProfileResponse.newBuilder();
+        if (profile != null) {
+            Profile proto = profile.profile();
+            if (proto != null) {
+                response.setProfile(proto);
+            }
+            response.setUnchanged(profile.unchanged())
+                    .setSampleCount(profile.sampleCount());
         }
         responseObserver.onNext(AgentResponse.newBuilder()
                 .setRequestId(request.getRequestId())
@@ -738,22 +879,24 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
 
     private void getAuxThreadProfileAndRespond(CentralRequest request,
             StreamObserver<AgentResponse> responseObserver) throws Exception {
-        Profile profile;
+        AuxThreadProfileRequest profileRequest = request.getAuxThreadProfileRequest();
+        ProfileDelta profile;
         try {
-            profile = liveTraceRepository.getAuxThreadProfile("",
-                    request.getAuxThreadProfileRequest().getTraceId());
+            profile = liveTraceRepository.getAuxThreadProfileDelta(profileRequest.getTraceId(),
+                    profileRequest.getSampleCount());
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             sendExceptionResponse(request, responseObserver);
             return;
         }
-        AuxThreadProfileResponse response;
-        if (profile == null) {
-            response = AuxThreadProfileResponse.getDefaultInstance();
-        } else {
-            response = AuxThreadProfileResponse.newBuilder()
-                    .setProfile(profile)
-                    .build();
+        AuxThreadProfileResponse.Builder response = AuxThreadProfileResponse.newBuilder();
+        if (profile != null) {
+            Profile proto = profile.profile();
+            if (proto != null) {
+                response.setProfile(proto);
+            }
+            response.setUnchanged(profile.unchanged())
+                    .setSampleCount(profile.sampleCount());
         }
         responseObserver.onNext(AgentResponse.newBuilder()
                 .setRequestId(request.getRequestId())
@@ -788,12 +931,14 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
 
     @OnlyUsedByTests
     void close() throws InterruptedException {
-        StreamObserver<AgentResponse> responseObserver = currResponseObserver;
-        while (responseObserver == null) {
+        closing = true;
+        requestExecutor.close();
+        ResponseSender responseSender = currResponseSender;
+        while (responseSender == null) {
             MILLISECONDS.sleep(10);
-            responseObserver = currResponseObserver;
+            responseSender = currResponseSender;
         }
-        responseObserver.onCompleted();
+        responseSender.complete();
         Stopwatch stopwatch = Stopwatch.createStarted();
         while (stopwatch.elapsed(SECONDS) < 10 && !closedByCentralCollector) {
             MILLISECONDS.sleep(10);
@@ -809,6 +954,35 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
                 .build());
     }
 
+    private static RequestKind getKind(CentralRequest request) {
+        switch (request.getMessageCase()) {
+            case AGENT_CONFIG_UPDATE_REQUEST:
+                return RequestKind.AGENT_CONFIG;
+            case HEAP_DUMP_REQUEST:
+            case HEAP_HISTOGRAM_REQUEST:
+            case FORCE_GC_REQUEST:
+                return RequestKind.HEAP;
+            case THREAD_DUMP_REQUEST:
+            case JSTACK_REQUEST:
+                return RequestKind.THREAD_DUMP;
+            case GLOBAL_META_REQUEST:
+            case PRELOAD_CLASSPATH_CACHE_REQUEST:
+            case MATCHING_CLASS_NAMES_REQUEST:
+            case MATCHING_METHOD_NAMES_REQUEST:
+            case METHOD_SIGNATURES_REQUEST:
+            case REWEAVE_REQUEST:
+                return RequestKind.WEAVING;
+            case HEADER_REQUEST:
+            case ENTRIES_REQUEST:
+            case MAIN_THREAD_PROFILE_REQUEST:
+            case AUX_THREAD_PROFILE_REQUEST:
+            case FULL_TRACE_REQUEST:
+                return RequestKind.TRACE;
+            default:
+                return RequestKind.OTHER;
+        }
+    }
+
     private static @Nullable String getRootCauseMessage(Throwable t) {
         Throwable cause = t.getCause();
         if (cause == null) {
@@ -835,4 +1009,84 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
             }
         }
     }
+
+    // responses from concurrently executing requests are serialized onto the stream (individual
+    // StreamObservers are not thread-safe), and wait for the stream to be ready (grpc flow control)
+    // so that large responses are not buffered unboundedly in netty
+    private static class ResponseSender {
+
+        private final ClientCallStreamObserver<AgentResponse> requestStream;
+
+        @GuardedBy("this")
+        private boolean closed;
+
+        private ResponseSender(ClientCallStreamObserver<AgentResponse> requestStream) {
+            this.requestStream = requestStream;
+        }
+
+        private synchronized void send(AgentResponse response, RequestTask task)
+                throws InterruptedException {
+            while (!requestStream.isReady()) {
+                if (closed || task.isCancelled()) {
+                    return;
+                }
+                wait(READY_CHECK_INTERVAL_MILLIS);
+            }
+            if (!closed && !task.isCancelled()) {
+                requestStream.onNext(response);
+            }
+        }
+
+        private synchronized void complete() {
+            requestStream.onCompleted();
+        }
+
+        private synchronized void onReady() {
+            notifyAll();
+        }
+
+        private synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private class RequestResponseObserver implements StreamObserver<AgentResponse> {
+
+        private final ResponseSender responseSender;
+        private final RequestTask task;
+
+        private RequestResponseObserver(ResponseSender responseSender, RequestTask task) {
+            this.responseSender = responseSender;
+            this.task = task;
+        }
+
+        @Override
+        public void onNext(AgentResponse response) {
+            try {
+                responseSender.send(response, task);
+            } catch (InterruptedException e) {
+                // probably shutdown requested
+                logger.debug(e.getMessage(), e);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.error(t.getMessage(), t);
+            // this is merged by the central collector with any prior chunks, replacing them
+            onNext(AgentResponse.newBuilder()
+                    .setRequestId(task.getRequestId())
+                    .setExceptionResponse(ExceptionResponse.getDefaultInstance())
+                    .build());
+            requestExecutor.cancel(task);
+        }
+
+        @Override
+        public void onCompleted() {
+            // no further responses are sent for this request
+            requestExecutor.cancel(task);
+        }
+    }
 }
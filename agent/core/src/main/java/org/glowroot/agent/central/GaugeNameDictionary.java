@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+// builds gauge value messages using the compact format (see GaugeValueMessage in
+// CollectorService.proto) once the central collector has indicated support for it
+class GaugeNameDictionary {
+
+    private final long id;
+
+    @GuardedBy("this")
+    private final Map<String, Integer> indexes = Maps.newHashMap();
+    @GuardedBy("this")
+    private final List<String> names = Lists.newArrayList();
+    // number of gauge names that the central collector is known to have received
+    @GuardedBy("this")
+    private int acknowledgedSize;
+
+    private volatile boolean compactSupported;
+
+    GaugeNameDictionary() {
+        long id;
+        do {
+            id = UUID.randomUUID().getMostSignificantBits();
+        } while (id == 0);
+        this.id = id;
+    }
+
+    void setCompactSupported() {
+        compactSupported = true;
+    }
+
+    GaugeValueMessage buildMessage(String agentId, List<GaugeValue> gaugeValues,
+            boolean fullDictionary) {
+        if (!compactSupported) {
+            return buildNonCompactMessage(agentId, gaugeValues);
+        }
+        GaugeValueMessage.Builder builder = GaugeValueMessage.newBuilder()
+                .setAgentId(agentId)
+                .setPostV09(true);
+        synchronized (this) {
+            long priorCaptureTime = 0;
+            for (GaugeValue gaugeValue : gaugeValues) {
+                String gaugeName = gaugeValue.getGaugeName();
+                Integer index = indexes.get(gaugeName);
+                if (index == null) {
+                    index = names.size();
+                    indexes.put(gaugeName, index);
+                    names.add(gaugeName);
+                }
+                builder.addGaugeNameIndex(index)
+                        .addCaptureTimeDelta(gaugeValue.getCaptureTime() - priorCaptureTime)
+                        .addValue(gaugeValue.getValue())
+                        .addWeight(gaugeValue.getWeight());
+                priorCaptureTime = gaugeValue.getCaptureTime();
+            }
+            // names that have not been acknowledged yet are sent with each message (instead of
+            // only the first message that uses them) since messages can be sent concurrently
+            int firstNewIndex = fullDictionary ? 0 : acknowledgedSize;
+            return builder.setGaugeNameDictionaryId(id)
+                    .setFirstNewGaugeNameIndex(firstNewIndex)
+                    .addAllNewGaugeName(names.subList(firstNewIndex, names.size()))
+                    .build();
+        }
+    }
+
+    // used as a fallback when the central collector cannot decode a compact message even with the
+    // full dictionary
+    GaugeValueMessage buildNonCompactMessage(String agentId, List<GaugeValue> gaugeValues) {
+        return GaugeValueMessage.newBuilder()
+                .setAgentId(agentId)
+                .setPostV09(true)
+                .addAllGaugeValues(gaugeValues)
+                .build();
+    }
+
+    synchronized void acknowledge(GaugeValueMessage message) {
+        if (message.getGaugeNameDictionaryId() == id) {
+            acknowledgedSize = Math.max(acknowledgedSize,
+                    message.getFirstNewGaugeNameIndex() + message.getNewGaugeNameCount());
+        }
+    }
+}
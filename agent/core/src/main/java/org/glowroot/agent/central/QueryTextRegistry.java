@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.common.Constants;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.DAYS;
+
+// content-addressed registry of the query texts that have been sent in aggregate streams (see
+// AggregateStreamHeader.query_text_registry_id in CollectorService.proto), so that query texts
+// which the central collector has already acknowledged are sent as an index into the registry
+//
+// the registry is replaced by a new (empty) registry once per day (consistent with the
+// SharedQueryTextLimiter) and when it reaches its size limit, since the central collector holds
+// each agent's registry in memory
+class QueryTextRegistry {
+
+    private static final int MAX_SIZE =
+            Integer.getInteger("glowroot.internal.queryTextRegistryMaxSize", 5000);
+
+    private static final long MAX_AGE_NANOS = DAYS.toNanos(1);
+
+    private final Ticker ticker;
+
+    private volatile boolean supported;
+
+    @GuardedBy("this")
+    private @Nullable Generation current;
+
+    QueryTextRegistry() {
+        this(Ticker.systemTicker());
+    }
+
+    QueryTextRegistry(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    void setSupported() {
+        supported = true;
+    }
+
+    // returns null until the central collector has indicated support for the query text registry
+    @Nullable
+    Generation getGeneration() {
+        if (!supported) {
+            return null;
+        }
+        synchronized (this) {
+            long currentTick = ticker.read();
+            if (current == null || current.isFull()
+                    || currentTick - current.startTick >= MAX_AGE_NANOS) {
+                current = new Generation(currentTick);
+            }
+            return current;
+        }
+    }
+
+    static class Generation {
+
+        private final long id;
+        private final long startTick;
+
+        // query texts longer than the aggregate truncate length are keyed by their sha1
+        @GuardedBy("this")
+        private final Map<String, Integer> indexes = Maps.newHashMap();
+        @GuardedBy("this")
+        private final Map<String, Integer> sha1Indexes = Maps.newHashMap();
+        @GuardedBy("this")
+        private int size;
+        // entries that the central collector is known to have received
+        @GuardedBy("this")
+        private final BitSet acknowledged = new BitSet();
+
+        private Generation(long startTick) {
+            long id;
+            do {
+                id = UUID.randomUUID().getMostSignificantBits();
+            } while (id == 0);
+            this.id = id;
+            this.startTick = startTick;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        // returns -1 if the registry is full, in which case the query text needs to be sent
+        // without using the registry
+        synchronized int getIndex(String fullText) {
+            Map<String, Integer> map;
+            String key;
+            if (fullText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+                map = sha1Indexes;
+                key = Hashing.sha1().hashString(fullText, UTF_8).toString();
+            } else {
+                map = indexes;
+                key = fullText;
+            }
+            Integer index = map.get(key);
+            if (index == null) {
+                if (size == MAX_SIZE) {
+                    return -1;
+                }
+                index = size++;
+                map.put(key, index);
+            }
+            return index;
+        }
+
+        synchronized boolean isAcknowledged(int index) {
+            return acknowledged.get(index);
+        }
+
+        synchronized void acknowledge(Collection<Integer> indexes) {
+            for (int index : indexes) {
+                acknowledged.set(index);
+            }
+        }
+
+        private synchronized boolean isFull() {
+            return size == MAX_SIZE;
+        }
+    }
+}
@@ -17,11 +17,11 @@ package org.glowroot.agent.impl;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Ticker;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
@@ -42,12 +42,18 @@ class AsyncComponents {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
 
+    private static final int MAX_ASYNC_TIMERS_BEFORE_MERGE = 1000;
+
     // async root timers are the root timers which do not have corresponding thread context
     // (those corresponding to async trace entries)
+    //
+    // this is the head of a lock-free stack (linked through the async timers themselves), so that
+    // starting an async timer on an event loop thread is just a compare-and-set, and the lock is
+    // only needed for the (infrequent) merging of completed async timers and for reading them
+    private final AtomicReference</*@Nullable*/ AsyncTimerImpl> asyncTimersHead =
+            new AtomicReference</*@Nullable*/ AsyncTimerImpl>();
     private final Object asyncTimerLock = new Object();
     @GuardedBy("asyncTimerLock")
-    private @MonotonicNonNull List<AsyncTimerImpl> asyncTimers;
-    @GuardedBy("asyncTimerLock")
     private @MonotonicNonNull Map<String, AggregateAsyncTimer> alreadyMergedAsyncTimers;
 
     private final int maxQueryAggregates;
@@ -71,9 +77,6 @@ class AsyncComponents {
 
     void mergeAsyncTimersInto(RootTimerCollector rootTimers) {
         synchronized (asyncTimerLock) {
-            if (asyncTimers == null) {
-                return;
-            }
             if (alreadyMergedAsyncTimers != null) {
                 for (Map.Entry<String, AggregateAsyncTimer> entry : alreadyMergedAsyncTimers
                         .entrySet()) {
@@ -82,8 +85,10 @@ class AsyncComponents {
                             new SimpleTimerImpl(entry.getKey(), value.totalNanos, value.count));
                 }
             }
-            for (AsyncTimerImpl asyncTimer : asyncTimers) {
+            AsyncTimerImpl asyncTimer = asyncTimersHead.get();
+            while (asyncTimer != null) {
                 rootTimers.mergeRootTimer(asyncTimer);
+                asyncTimer = asyncTimer.getNext();
             }
         }
     }
@@ -114,35 +119,52 @@ class AsyncComponents {
 
     AsyncTimerImpl startAsyncTimer(TimerName asyncTimerName, long startTick) {
         AsyncTimerImpl asyncTimer = new AsyncTimerImpl((TimerNameImpl) asyncTimerName, startTick);
+        push(asyncTimer);
+        if (asyncTimer.getDepth() > MAX_ASYNC_TIMERS_BEFORE_MERGE) {
+            mergeCompletedAsyncTimers();
+        }
+        return asyncTimer;
+    }
+
+    private void push(AsyncTimerImpl asyncTimer) {
+        AsyncTimerImpl head;
+        do {
+            head = asyncTimersHead.get();
+            asyncTimer.setNext(head);
+        } while (!asyncTimersHead.compareAndSet(head, asyncTimer));
+    }
+
+    // this is just to conserve memory
+    private void mergeCompletedAsyncTimers() {
         synchronized (asyncTimerLock) {
-            if (asyncTimers == null) {
-                asyncTimers = Lists.newArrayList();
+            // re-check under lock, since another thread may have just merged
+            AsyncTimerImpl head = asyncTimersHead.get();
+            if (head == null || head.getDepth() <= MAX_ASYNC_TIMERS_BEFORE_MERGE) {
+                return;
             }
-            if (asyncTimers.size() >= 1000) {
-                // this is just to conserve memory
-                if (alreadyMergedAsyncTimers == null) {
-                    alreadyMergedAsyncTimers = Maps.newHashMap();
-                }
-                List<AsyncTimerImpl> activeAsyncTimers = Lists.newArrayList();
-                for (AsyncTimerImpl loopAsyncTimer : asyncTimers) {
-                    if (loopAsyncTimer.active()) {
-                        activeAsyncTimers.add(loopAsyncTimer);
-                        continue;
-                    }
+            if (alreadyMergedAsyncTimers == null) {
+                alreadyMergedAsyncTimers = Maps.newHashMap();
+            }
+            // async timers started concurrently with this merge are pushed onto the new (empty)
+            // stack, and the still active async timers are pushed back onto it below
+            AsyncTimerImpl asyncTimer = asyncTimersHead.getAndSet(null);
+            while (asyncTimer != null) {
+                AsyncTimerImpl next = asyncTimer.getNext();
+                if (asyncTimer.active()) {
+                    push(asyncTimer);
+                } else {
                     AggregateAsyncTimer aggregateAsyncTimer =
-                            alreadyMergedAsyncTimers.get(loopAsyncTimer.getName());
+                            alreadyMergedAsyncTimers.get(asyncTimer.getName());
                     if (aggregateAsyncTimer == null) {
                         aggregateAsyncTimer = new AggregateAsyncTimer();
-                        alreadyMergedAsyncTimers.put(loopAsyncTimer.getName(), aggregateAsyncTimer);
+                        alreadyMergedAsyncTimers.put(asyncTimer.getName(), aggregateAsyncTimer);
                     }
-                    aggregateAsyncTimer.totalNanos += loopAsyncTimer.getTotalNanos();
-                    aggregateAsyncTimer.count += loopAsyncTimer.getCount();
+                    aggregateAsyncTimer.totalNanos += asyncTimer.getTotalNanos();
+                    aggregateAsyncTimer.count += asyncTimer.getCount();
                 }
-                asyncTimers = activeAsyncTimers;
+                asyncTimer = next;
             }
-            asyncTimers.add(asyncTimer);
         }
-        return asyncTimer;
     }
 
     AsyncQueryData getOrCreateAsyncQueryData(String queryType, String queryText,
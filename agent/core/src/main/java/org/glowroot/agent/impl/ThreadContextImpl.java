@@ -15,7 +15,6 @@
  */
 package org.glowroot.agent.impl;
 
-import java.lang.management.ThreadInfo;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -61,6 +60,7 @@ import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.agent.util.Tickers;
+import org.glowroot.agent.util.VirtualThreads;
 import org.glowroot.common.util.NotAvailableAware;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -117,6 +117,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     private final long threadId;
 
+    // only non-null for virtual threads (which are not visible to ThreadMXBean), and only while the
+    // thread context is active, so that the thread is not retained after the thread context ends
+    private volatile @Nullable Thread virtualThread;
+
     private final boolean limitExceededAuxThreadContext;
 
     private final Ticker ticker;
@@ -153,9 +157,16 @@ public class ThreadContextImpl implements ThreadContextPlus {
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
                 rootTimer, startTick);
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
-        threadId = Thread.currentThread().getId();
-        threadStatsComponent =
-                captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
+        Thread currentThread = Thread.currentThread();
+        threadId = currentThread.getId();
+        if (VirtualThreads.isVirtual(currentThread)) {
+            // thread stats are not available for virtual threads
+            threadStatsComponent = null;
+            virtualThread = currentThread;
+        } else {
+            threadStatsComponent =
+                    captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
+        }
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.limitExceededAuxThreadContext = limitExceededAuxThreadContext;
@@ -204,6 +215,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return threadId;
     }
 
+    @Nullable
+    Thread getVirtualThread() {
+        return virtualThread;
+    }
+
     boolean isCompleted() {
         return traceEntryComponent.isCompleted();
     }
@@ -421,8 +437,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    void captureStackTrace(ThreadInfo threadInfo) {
-        transaction.captureStackTrace(isAuxiliary(), threadInfo);
+    void captureStackTrace(StackTraceElement[] stackTrace, Thread.State threadState) {
+        transaction.captureStackTrace(isAuxiliary(), stackTrace, threadState);
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierRead();
     }
@@ -462,9 +478,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             if (threadStatsComponent != null) {
                 threadStatsComponent.onComplete();
             }
-            if (limitExceededAuxThreadContext) {
-                // this is a limit exceeded auxiliary thread context
-                transaction.mergeLimitExceededAuxThreadContext(this);
+            virtualThread = null;
+            if (isAuxiliary()) {
+                transaction.mergeCompletedAuxThreadContext(this, limitExceededAuxThreadContext);
             }
             if (!isAuxiliary() || transactionAsyncComplete) {
                 transaction.end(endTick, transactionAsyncComplete);
@@ -501,6 +517,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         // or profile sample, which both perform memory barrier reads)
         transaction.memoryBarrierWrite();
         detachedTime = ticker.read();
+        virtualThread = null;
     }
 
     private QueryDataMap getOrCreateQueriesForType(String queryType) {
@@ -131,7 +131,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         long offsetNanos = startTick - transactionStartTick;
         long durationNanos;
         boolean active;
-        if (isCompleted() && Tickers.lessThanOrEqual(endTick, captureTick)) {
+        if (isCompleted(captureTick)) {
             // total time is calculated relative to revised start tick
             durationNanos = endTick - revisedStartTick;
             active = false;
@@ -202,6 +202,21 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         return startTick;
     }
 
+    boolean isCompleted(long captureTick) {
+        return isCompleted() && Tickers.lessThanOrEqual(endTick, captureTick);
+    }
+
+    // hash of the state that the completed protobuf entry depends on, which can still change after
+    // completion if the entry is extended (e.g. iterating over a jdbc result set)
+    long getCompletedStateHash() {
+        long hash = System.identityHashCode(this);
+        hash = 31 * hash + startTick;
+        hash = 31 * hash + revisedStartTick;
+        hash = 31 * hash + endTick;
+        hash = 31 * hash + getRowCount();
+        return hash;
+    }
+
     @Override
     public void end() {
         if (initialComplete) {
@@ -17,6 +17,7 @@ package org.glowroot.agent.impl;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.ListIterator;
@@ -24,6 +25,7 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -47,6 +49,7 @@ import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
+import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -104,6 +107,11 @@ public class Transaction {
 
     private static final Random random = new Random();
 
+    private static final AtomicReferenceFieldUpdater<Transaction, CompletedAuxThreadContext>
+            completedAuxThreadContextsUpdater = AtomicReferenceFieldUpdater.newUpdater(
+                    Transaction.class, CompletedAuxThreadContext.class,
+                    "completedAuxThreadContexts");
+
     private volatile @Nullable String traceId;
 
     private final long startTime;
@@ -176,12 +184,18 @@ public class Transaction {
 
     private final ThreadContextImpl mainThreadContext;
 
+    // mergeable auxiliary thread contexts (those without trace entries or child auxiliary thread
+    // contexts) are removed from here and merged into the alreadyMergedAux* components once they
+    // complete (see mergeCompletedAuxThreadContext()), so that async transactions with large
+    // fan-out only retain the auxiliary thread contexts that are still running or that have trace
+    // entries
     @GuardedBy("mainThreadContext")
-    private @MonotonicNonNull List<ThreadContextImpl> auxThreadContexts;
-    @GuardedBy("mainThreadContext")
-    private @MonotonicNonNull List<ThreadContextImpl> unmergeableAuxThreadContexts;
+    private @MonotonicNonNull Set<ThreadContextImpl> auxThreadContexts;
     @GuardedBy("mainThreadContext")
     private @MonotonicNonNull Set<ThreadContextImpl> unmergedLimitExceededAuxThreadContexts;
+    // lock-free stack of completed auxiliary thread contexts that are waiting to be merged, see
+    // mergeCompletedAuxThreadContext()
+    private volatile @Nullable CompletedAuxThreadContext completedAuxThreadContexts;
 
     private final Object asyncComponentsInitLock = new Object();
     private volatile @MonotonicNonNull AsyncComponents asyncComponents;
@@ -207,8 +221,6 @@ public class Transaction {
     private @MonotonicNonNull QueryCollector alreadyMergedAuxQueries;
     @GuardedBy("mainThreadContext")
     private @MonotonicNonNull ServiceCallCollector alreadyMergedAuxServiceCalls;
-    @GuardedBy("mainThreadContext")
-    private boolean stopMergingAuxThreadContexts;
 
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
@@ -336,6 +348,7 @@ public class Transaction {
 
     void mergeAuxThreadTimersInto(RootTimerCollector rootTimers) {
         synchronized (mainThreadContext) {
+            mergeCompletedAuxThreadContexts();
             if (auxThreadContexts == null) {
                 return;
             }
@@ -364,6 +377,7 @@ public class Transaction {
     public long getTotalCpuNanos() {
         long totalCpuNanos = mainThreadContext.getTotalCpuNanos();
         synchronized (mainThreadContext) {
+            mergeCompletedAuxThreadContexts();
             if (auxThreadContexts == null) {
                 return totalCpuNanos;
             }
@@ -381,6 +395,7 @@ public class Transaction {
 
     void mergeAuxThreadStatsInto(ThreadStatsCollector collector) {
         synchronized (mainThreadContext) {
+            mergeCompletedAuxThreadContexts();
             if (auxThreadContexts == null) {
                 return;
             }
@@ -397,6 +412,7 @@ public class Transaction {
         memoryBarrierRead();
         mainThreadContext.mergeQueriesInto(collector);
         synchronized (mainThreadContext) {
+            mergeCompletedAuxThreadContexts();
             if (auxThreadContexts != null) {
                 if (alreadyMergedAuxQueries != null) {
                     alreadyMergedAuxQueries.mergeQueriesInto(collector);
@@ -445,6 +461,7 @@ public class Transaction {
         memoryBarrierRead();
         mainThreadContext.mergeServiceCallsInto(collector);
         synchronized (mainThreadContext) {
+            mergeCompletedAuxThreadContexts();
             if (auxThreadContexts != null) {
                 if (alreadyMergedAuxServiceCalls != null) {
                     alreadyMergedAuxServiceCalls.mergeServiceCallsInto(collector);
@@ -472,21 +489,34 @@ public class Transaction {
     }
 
     public void visitEntries(long captureTick, EntryVisitor entryVisitor) throws Exception {
+        visitEntries(captureTick, 0, 0, entryVisitor);
+    }
+
+    // visits only the entries following the stable entries from a prior visit when those entries
+    // are unchanged (as verified using their count and hash), otherwise visits all entries
+    //
+    // stable entries are the leading entries that are already completed, which are not expected to
+    // change, though it is still possible (e.g. if an entry is extended or if an auxiliary thread
+    // entry is inserted), which is why they are verified using their hash
+    public EntriesCursor visitEntries(long captureTick, int priorStableEntryCount,
+            long priorStableEntryHash, EntryVisitor entryVisitor) throws Exception {
         synchronized (sharedQueryTextCollectionLock) {
             if (sharedQueryTextCollection == null) {
                 sharedQueryTextCollection = new SharedQueryTextCollectionImpl();
             }
-            visitEntriesInternal(captureTick, entryVisitor, sharedQueryTextCollection);
+            return visitEntriesInternal(captureTick, priorStableEntryCount, priorStableEntryHash,
+                    entryVisitor, sharedQueryTextCollection);
         }
     }
 
     int getEntryCount(long captureTick) throws Exception {
         CountingEntryVisitor entryVisitor = new CountingEntryVisitor();
-        visitEntriesInternal(captureTick, entryVisitor, new NopSharedQueryTextCollection());
+        visitEntriesInternal(captureTick, 0, 0, entryVisitor, new NopSharedQueryTextCollection());
         return entryVisitor.count;
     }
 
-    private void visitEntriesInternal(long captureTick, EntryVisitor entryVisitor,
+    private EntriesCursor visitEntriesInternal(long captureTick, int priorStableEntryCount,
+            long priorStableEntryHash, EntryVisitor entryVisitor,
             SharedQueryTextCollection sharedQueryTextCollection) throws Exception {
         memoryBarrierRead();
         ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryChildThreadContextMap =
@@ -495,6 +525,7 @@ public class Transaction {
         mainThreadContext.populateParentChildMap(parentChildMap, captureTick,
                 priorEntryChildThreadContextMap);
         synchronized (mainThreadContext) {
+            mergeCompletedAuxThreadContexts();
             if (auxThreadContexts != null) {
                 for (ThreadContextImpl auxThreadContext : getUnmergedAuxThreadContext()) {
                     auxThreadContext.populateParentChildMap(parentChildMap, captureTick,
@@ -504,11 +535,42 @@ public class Transaction {
         }
         new ParentChildMapTrimmer(mainThreadContext.getRootEntry(), parentChildMap, captureTick)
                 .traverse();
-        addProtobufChildEntries(mainThreadContext.getRootEntry(), parentChildMap, startTick,
-                captureTick, 0, entryVisitor, sharedQueryTextCollection, async);
+        FlattenedEntries flattenedEntries = new FlattenedEntries();
+        addFlattenedChildEntries(mainThreadContext.getRootEntry(), parentChildMap, 0,
+                flattenedEntries, async);
+        // hashing the stable entries is much cheaper than building the protobuf entries
+        int size = flattenedEntries.size;
+        int firstEntryIndex = 0;
+        int stableEntryCount = -1;
+        long stableEntryHash = 0;
+        long hash = 0;
+        for (int i = 0; i <= size; i++) {
+            if (i == priorStableEntryCount && hash == priorStableEntryHash) {
+                firstEntryIndex = i;
+            }
+            if (stableEntryCount == -1
+                    && (i == size || !flattenedEntries.entries[i].isCompleted(captureTick))) {
+                stableEntryCount = i;
+                stableEntryHash = hash;
+            }
+            if (i == size || (stableEntryCount != -1 && i >= priorStableEntryCount)) {
+                break;
+            }
+            hash = 31 * hash + flattenedEntries.depths[i];
+            hash = 31 * hash + flattenedEntries.entries[i].getCompletedStateHash();
+        }
+        for (int i = firstEntryIndex; i < size; i++) {
+            flattenedEntries.entries[i].accept(flattenedEntries.depths[i], startTick, captureTick,
+                    entryVisitor, sharedQueryTextCollection);
+        }
+        return ImmutableEntriesCursor.builder()
+                .firstEntryIndex(firstEntryIndex)
+                .stableEntryCount(stableEntryCount)
+                .stableEntryHash(stableEntryHash)
+                .build();
     }
 
-    long getMainThreadProfileSampleCount() {
+    public long getMainThreadProfileSampleCount() {
         if (mainThreadProfile == null) {
             return 0;
         } else {
@@ -533,7 +595,7 @@ public class Transaction {
                 && mainThreadProfile.isSampleLimitExceeded();
     }
 
-    long getAuxThreadProfileSampleCount() {
+    public long getAuxThreadProfileSampleCount() {
         if (auxThreadProfile == null) {
             return 0;
         } else {
@@ -576,6 +638,7 @@ public class Transaction {
 
     public List<ThreadContextImpl> getActiveAuxThreadContexts() {
         synchronized (mainThreadContext) {
+            mergeCompletedAuxThreadContexts();
             if (auxThreadContexts == null) {
                 return ImmutableList.of();
             }
@@ -686,6 +749,7 @@ public class Transaction {
             @Nullable ThreadAllocatedBytes threadAllocatedBytes) {
         ThreadContextImpl auxThreadContext;
         synchronized (mainThreadContext) {
+            mergeCompletedAuxThreadContexts();
             // check completed and add aux thread context inside synchronized block to avoid race
             // condition with setting completed and detaching incomplete aux thread contexts, see
             // synchronized block in end()
@@ -693,7 +757,8 @@ public class Transaction {
                 return null;
             }
             if (auxThreadContexts == null) {
-                auxThreadContexts = Lists.newArrayList();
+                // linked hash set to retain ordering, while supporting efficient removal
+                auxThreadContexts = Sets.newLinkedHashSet();
             }
             // conditions below for parentTraceEntry and parentThreadContextPriorEntry are redundant
             // since they will not be null until after allowAnotherAuxThreadContextWithHierarchy()
@@ -725,16 +790,26 @@ public class Transaction {
         return auxThreadContext;
     }
 
-    void mergeLimitExceededAuxThreadContext(ThreadContextImpl auxThreadContext) {
-        synchronized (mainThreadContext) {
-            checkNotNull(unmergedLimitExceededAuxThreadContexts).remove(auxThreadContext);
-            if (auxThreadContext.hasTraceEntries()) {
-                checkNotNull(auxThreadContexts).add(auxThreadContext);
-                return;
-            }
-            initAlreadyMergedAuxComponentsIfNeeded();
-            mergeAux(auxThreadContext);
+    // this is called by the auxiliary thread itself when its thread context completes, which is
+    // what makes it safe to check isMergeable()
+    //
+    // the completed auxiliary thread context is pushed onto a lock-free stack instead of being
+    // merged here, so that auxiliary threads completing concurrently (e.g. wide fan-out) do not
+    // contend on the mainThreadContext lock, the stack is drained under that lock whenever the
+    // auxiliary thread contexts are read (e.g. when the trace is built)
+    void mergeCompletedAuxThreadContext(ThreadContextImpl auxThreadContext,
+            boolean limitExceededAuxThreadContext) {
+        if (!limitExceededAuxThreadContext && !auxThreadContext.isMergeable()) {
+            // nothing to do, it remains in auxThreadContexts
+            return;
         }
+        CompletedAuxThreadContext head;
+        CompletedAuxThreadContext newHead;
+        do {
+            head = completedAuxThreadContexts;
+            newHead = new CompletedAuxThreadContext(auxThreadContext,
+                    limitExceededAuxThreadContext, head);
+        } while (!completedAuxThreadContextsUpdater.compareAndSet(this, head, newHead));
     }
 
     AsyncTimerImpl startAsyncTimer(TimerName asyncTimerName, long startTick) {
@@ -769,7 +844,8 @@ public class Transaction {
         return queryCount > maxQueryAggregates;
     }
 
-    void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo) {
+    void captureStackTrace(boolean auxiliary, StackTraceElement[] stackTrace,
+            Thread.State threadState) {
         if (completed) {
             return;
         }
@@ -788,7 +864,7 @@ public class Transaction {
             // transaction profile field, so that it is not possible to read a profile that doesn't
             // have at least one stack trace
             profile = new ThreadProfile(maxProfileSamples);
-            profile.addStackTrace(threadInfo);
+            profile.addStackTrace(stackTrace, threadState);
             if (auxiliary) {
                 auxThreadProfile = profile;
             } else {
@@ -796,7 +872,7 @@ public class Transaction {
             }
             return;
         }
-        profile.addStackTrace(threadInfo);
+        profile.addStackTrace(stackTrace, threadState);
     }
 
     void end(long endTick, boolean completeAsyncTransaction) {
@@ -806,6 +882,7 @@ public class Transaction {
         // set endTick first before completed, to avoid race condition in getDurationNanos()
         this.endTick = endTick;
         synchronized (mainThreadContext) {
+            mergeCompletedAuxThreadContexts();
             // set completed and detach incomplete aux thread contexts inside synchronized block
             // to avoid race condition with adding new aux thread contexts, see synchronized block
             // in startAuxThreadContext()
@@ -871,47 +948,44 @@ public class Transaction {
     }
 
     @GuardedBy("mainThreadContext")
-    @RequiresNonNull("auxThreadContexts")
-    private boolean allowAnotherAuxThreadContextWithTraceEntries() {
-        int unmergedCount = auxThreadContexts.size();
-        if (unmergeableAuxThreadContexts != null) {
-            unmergedCount += unmergeableAuxThreadContexts.size();
-        }
-        if (unmergedCount < TRANSACTION_AUX_THREAD_CONTEXT_LIMIT) {
-            return true;
-        }
-        if (stopMergingAuxThreadContexts) {
-            return false;
-        }
-        List<ThreadContextImpl> mergeableAuxThreadContexts = Lists.newArrayList();
-        List<ThreadContextImpl> unmergeableAuxThreadContexts = Lists.newArrayList();
-        List<ThreadContextImpl> mergeableButIncompleteAuxThreadContexts = Lists.newArrayList();
-        for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-            if (!auxThreadContext.isMergeable()) {
-                // once it's not mergeable it will never be mergeable
-                unmergeableAuxThreadContexts.add(auxThreadContext);
-            } else if (auxThreadContext.isCompleted()) {
-                mergeableAuxThreadContexts.add(auxThreadContext);
+    private void mergeCompletedAuxThreadContexts() {
+        CompletedAuxThreadContext head = completedAuxThreadContextsUpdater.getAndSet(this, null);
+        if (head == null) {
+            return;
+        }
+        // reverse the stack so that auxiliary thread contexts are processed in the order that they
+        // completed, which is the order that retained ones are added to auxThreadContexts
+        List<CompletedAuxThreadContext> completedInOrder = Lists.newArrayList();
+        for (CompletedAuxThreadContext curr = head; curr != null; curr = curr.next) {
+            completedInOrder.add(curr);
+        }
+        for (CompletedAuxThreadContext completedAuxThreadContext : Lists
+                .reverse(completedInOrder)) {
+            ThreadContextImpl auxThreadContext = completedAuxThreadContext.threadContext;
+            if (completedAuxThreadContext.limitExceeded) {
+                checkNotNull(unmergedLimitExceededAuxThreadContexts).remove(auxThreadContext);
+                if (auxThreadContext.hasTraceEntries()) {
+                    checkNotNull(auxThreadContexts).add(auxThreadContext);
+                    continue;
+                }
+            } else if (completed) {
+                // once the transaction is completed, its aux thread contexts are left alone so
+                // that the captured trace is stable
+                continue;
             } else {
-                mergeableButIncompleteAuxThreadContexts.add(auxThreadContext);
+                checkNotNull(auxThreadContexts).remove(auxThreadContext);
             }
+            initAlreadyMergedAuxComponentsIfNeeded();
+            mergeAux(auxThreadContext);
         }
-        if (mergeableAuxThreadContexts.size() < 0.01 * TRANSACTION_AUX_THREAD_CONTEXT_LIMIT) {
-            // not worth continuing to merge
-            stopMergingAuxThreadContexts = true;
-            return false;
-        }
-        initAlreadyMergedAuxComponentsIfNeeded();
-        for (ThreadContextImpl mergeableAuxThreadContext : mergeableAuxThreadContexts) {
-            mergeAux(mergeableAuxThreadContext);
-        }
-        if (this.unmergeableAuxThreadContexts == null) {
-            this.unmergeableAuxThreadContexts = Lists.newArrayList(unmergeableAuxThreadContexts);
-        } else {
-            this.unmergeableAuxThreadContexts.addAll(unmergeableAuxThreadContexts);
-        }
-        auxThreadContexts = Lists.newArrayList(mergeableButIncompleteAuxThreadContexts);
-        return true;
+    }
+
+    @GuardedBy("mainThreadContext")
+    @RequiresNonNull("auxThreadContexts")
+    private boolean allowAnotherAuxThreadContextWithTraceEntries() {
+        // completed auxiliary thread contexts that are mergeable have already been merged (see
+        // mergeCompletedAuxThreadContext()), so the remaining ones are all still needed
+        return auxThreadContexts.size() < TRANSACTION_AUX_THREAD_CONTEXT_LIMIT;
     }
 
     @GuardedBy("mainThreadContext")
@@ -956,11 +1030,9 @@ public class Transaction {
         return asyncComponents;
     }
 
-    private static void addProtobufChildEntries(TraceEntryImpl entry,
-            ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap, long transactionStartTick,
-            long captureTick, int depth, EntryVisitor entryVisitor,
-            SharedQueryTextCollection sharedQueryTextCollection, boolean removeSingleAuxEntry)
-            throws Exception {
+    private static void addFlattenedChildEntries(TraceEntryImpl entry,
+            ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap, int depth,
+            FlattenedEntries flattenedEntries, boolean removeSingleAuxEntry) {
         if (!parentChildMap.containsKey(entry)) {
             // check containsKey to avoid creating garbage empty list via ListMultimap
             return;
@@ -970,20 +1042,19 @@ public class Transaction {
             boolean singleAuxEntry = childEntries.size() == 1 && childEntry.isAuxThreadRoot()
                     && !childEntry.hasLocationStackTrace();
             if (singleAuxEntry && removeSingleAuxEntry) {
-                addProtobufChildEntries(childEntry, parentChildMap, transactionStartTick,
-                        captureTick, depth, entryVisitor, sharedQueryTextCollection,
+                addFlattenedChildEntries(childEntry, parentChildMap, depth, flattenedEntries,
                         removeSingleAuxEntry);
             } else {
-                childEntry.accept(depth, transactionStartTick, captureTick, entryVisitor,
-                        sharedQueryTextCollection);
-                addProtobufChildEntries(childEntry, parentChildMap, transactionStartTick,
-                        captureTick, depth + 1, entryVisitor, sharedQueryTextCollection, false);
+                flattenedEntries.add(childEntry, depth);
+                addFlattenedChildEntries(childEntry, parentChildMap, depth + 1, flattenedEntries,
+                        false);
             }
         }
     }
 
     private ListMultimap<TraceEntryImpl, ThreadContextImpl> buildPriorEntryChildThreadContextMap() {
         synchronized (mainThreadContext) {
+            mergeCompletedAuxThreadContexts();
             if (auxThreadContexts == null) {
                 return ImmutableListMultimap.of();
             }
@@ -1034,17 +1105,10 @@ public class Transaction {
     @GuardedBy("mainThreadContext")
     @RequiresNonNull("auxThreadContexts")
     private Iterable<ThreadContextImpl> getUnmergedAuxThreadContext() {
-        if (unmergeableAuxThreadContexts == null) {
-            if (unmergedLimitExceededAuxThreadContexts == null) {
-                return auxThreadContexts;
-            } else {
-                return Iterables.concat(auxThreadContexts, unmergedLimitExceededAuxThreadContexts);
-            }
-        } else if (unmergedLimitExceededAuxThreadContexts == null) {
-            return Iterables.concat(unmergeableAuxThreadContexts, auxThreadContexts);
+        if (unmergedLimitExceededAuxThreadContexts == null) {
+            return auxThreadContexts;
         } else {
-            return Iterables.concat(unmergeableAuxThreadContexts, auxThreadContexts,
-                    unmergedLimitExceededAuxThreadContexts);
+            return Iterables.concat(auxThreadContexts, unmergedLimitExceededAuxThreadContexts);
         }
     }
 
@@ -1062,6 +1126,14 @@ public class Transaction {
         return Long.toHexString(mask | (startTime & (mask - 1))).substring(1);
     }
 
+    @Value.Immutable
+    public interface EntriesCursor {
+        // entries prior to this index were not visited since they are unchanged
+        int firstEntryIndex();
+        int stableEntryCount();
+        long stableEntryHash();
+    }
+
     interface CompletionCallback {
         void completed(Transaction transaction);
     }
@@ -1074,6 +1146,20 @@ public class Transaction {
         void mergeThreadStats(ThreadStats threadStats);
     }
 
+    private static class CompletedAuxThreadContext {
+
+        private final ThreadContextImpl threadContext;
+        private final boolean limitExceeded;
+        private final @Nullable CompletedAuxThreadContext next;
+
+        private CompletedAuxThreadContext(ThreadContextImpl threadContext, boolean limitExceeded,
+                @Nullable CompletedAuxThreadContext next) {
+            this.threadContext = threadContext;
+            this.limitExceeded = limitExceeded;
+            this.next = next;
+        }
+    }
+
     private static class AuxThreadRootMessageSupplier extends MessageSupplier {
 
         private static final AuxThreadRootMessageSupplier INSTANCE =
@@ -1153,6 +1239,24 @@ public class Transaction {
         }
     }
 
+    // entries in depth first order, along with their depth
+    private static class FlattenedEntries {
+
+        private TraceEntryImpl[] entries = new TraceEntryImpl[16];
+        private int[] depths = new int[16];
+        private int size;
+
+        private void add(TraceEntryImpl entry, int depth) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+                depths = Arrays.copyOf(depths, size * 2);
+            }
+            entries[size] = entry;
+            depths[size] = depth;
+            size++;
+        }
+    }
+
     private static class CountingEntryVisitor implements EntryVisitor {
 
         private int count;
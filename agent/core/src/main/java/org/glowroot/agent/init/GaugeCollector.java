@@ -20,11 +20,20 @@ import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
@@ -60,12 +69,23 @@ import org.glowroot.common.util.ScheduledRunnable;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class GaugeCollector extends ScheduledRunnable {
 
     private static final Logger logger = LoggerFactory.getLogger(GaugeCollector.class);
 
+    private static final long SLOW_MBEAN_THRESHOLD_NANOS = MILLISECONDS.toNanos(100);
+    // how long the collection thread waits for the slow lane before abandoning the remaining reads
+    // and flushing the gauge values
+    private static final long SLOW_LANE_WAIT_MILLIS = 1000;
+    // abandoned reads can hold on to their thread indefinitely (e.g. an mbean that never returns),
+    // so the slow lane is bounded in order to not leak threads
+    private static final int SLOW_LANE_MAX_THREADS = 4;
+
     private final ConfigService configService;
     private final Collector collector;
     private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
@@ -73,17 +93,25 @@ class GaugeCollector extends ScheduledRunnable {
     private final Ticker ticker;
     private final long startTimeMillis;
 
+    private final ObjectNameCache objectNameCache;
+
+    // mbeans whose attributes take a long time to read are moved to a separate lane so that they
+    // don't delay the collection of the other gauges
+    private final Set<ObjectName> slowMBeans = Sets.newConcurrentHashSet();
+
     private final Set<String> pendingLoggedMBeanGauges = Sets.newConcurrentHashSet();
     private final Set<String> loggedMBeanGauges = Sets.newConcurrentHashSet();
 
     // gauges have their own dedicated executor to make sure their collection is not hampered by
     // other glowroot background work
     private final ScheduledExecutorService collectionExecutor;
+    private final ExecutorService slowLaneExecutor;
     private final ExecutorService flushingExecutor;
 
-    // since gauges have their own dedicated thread, don't need to worry about thread safety of
-    // priorRawCounterValues (except can't initialize here outside of the dedicated thread)
-    private @MonotonicNonNull Map<String, RawCounterValue> priorRawCounterValues;
+    // gauges for a given mbean are collected by either the dedicated collection thread or a slow
+    // lane thread, and the mbean can move between the two (and an abandoned slow lane read can
+    // still be running when the mbean is read again), so this needs to be a concurrent map
+    private volatile @MonotonicNonNull Map<String, RawCounterValue> priorRawCounterValues;
 
     GaugeCollector(ConfigService configService, Collector collector,
             LazyPlatformMBeanServer lazyPlatformMBeanServer,
@@ -94,8 +122,12 @@ class GaugeCollector extends ScheduledRunnable {
         this.clock = clock;
         this.ticker = ticker;
         startTimeMillis = clock.currentTimeMillis();
+        objectNameCache = new ObjectNameCache(lazyPlatformMBeanServer);
         collectionExecutor = Executors.newSingleThreadScheduledExecutor(
                 ThreadFactories.create("Glowroot-Gauge-Collection"));
+        slowLaneExecutor = new ThreadPoolExecutor(0, SLOW_LANE_MAX_THREADS, 60, SECONDS,
+                new SynchronousQueue<Runnable>(),
+                ThreadFactories.create("Glowroot-Gauge-Slow-Collection-%d"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Gauge-Flushing"));
         lazyPlatformMBeanServer.addInitListener(new InitListener() {
@@ -115,31 +147,52 @@ class GaugeCollector extends ScheduledRunnable {
                 } catch (Exception e) {
                     logger.debug(e.getMessage(), e);
                 }
+                try {
+                    objectNameCache.startListening(mbeanServer);
+                } catch (Exception e) {
+                    // object names matching wildcard gauges will be queried every collection cycle
+                    logger.debug(e.getMessage(), e);
+                }
             }
         });
     }
 
     @Override
     protected void runInternal() throws Exception {
-        final List<GaugeValue> gaugeValues = Lists.newArrayList();
         if (priorRawCounterValues == null) {
             // wait to now to initialize priorGaugeValues inside of the dedicated thread
-            priorRawCounterValues = Maps.newHashMap();
+            priorRawCounterValues = Maps.newConcurrentMap();
         }
+        Map<ObjectName, List<MBeanGauge>> mbeanGauges = Maps.newLinkedHashMap();
         for (GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
-            gaugeValues.addAll(collectGaugeValues(gaugeConfig));
+            addMBeanGauges(gaugeConfig, mbeanGauges);
         }
-        flushingExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    collector.collectGaugeValues(gaugeValues);
-                } catch (Throwable t) {
-                    // log and terminate successfully
-                    logger.error(t.getMessage(), t);
-                }
+        // prune slow mbeans that are no longer configured or no longer match a wildcard gauge
+        // (e.g. after being unregistered)
+        slowMBeans.retainAll(mbeanGauges.keySet());
+        Map<ObjectName, Future<List<GaugeValue>>> slowLaneReads = Maps.newLinkedHashMap();
+        for (ObjectName slowMBean : slowMBeans) {
+            List<MBeanGauge> gauges = checkNotNull(mbeanGauges.remove(slowMBean));
+            try {
+                slowLaneReads.put(slowMBean,
+                        slowLaneExecutor.submit(new SlowLaneRead(slowMBean, gauges)));
+            } catch (RejectedExecutionException e) {
+                // all slow lane threads are tied up by abandoned reads, skip this collection cycle
+                logger.debug(e.getMessage(), e);
             }
-        });
+        }
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        for (Map.Entry<ObjectName, List<MBeanGauge>> entry : mbeanGauges.entrySet()) {
+            ObjectName objectName = entry.getKey();
+            long startTick = System.nanoTime();
+            gaugeValues.addAll(collectGaugeValues(objectName, entry.getValue()));
+            if (System.nanoTime() - startTick >= SLOW_MBEAN_THRESHOLD_NANOS) {
+                logger.debug("moving mbean to slow collection lane: {}", objectName);
+                slowMBeans.add(objectName);
+            }
+        }
+        gaugeValues.addAll(awaitSlowLaneReads(slowLaneReads));
+        flush(gaugeValues);
     }
 
     void scheduleWithFixedDelay(long period, TimeUnit unit) {
@@ -151,6 +204,9 @@ class GaugeCollector extends ScheduledRunnable {
         if (!collectionExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        // slow lane threads may be tied up indefinitely by abandoned reads, so interrupt them and
+        // don't wait for them (they are daemon threads)
+        slowLaneExecutor.shutdownNow();
         flushingExecutor.shutdown();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
@@ -160,6 +216,52 @@ class GaugeCollector extends ScheduledRunnable {
     @VisibleForTesting
     @RequiresNonNull("priorRawCounterValues")
     List<GaugeValue> collectGaugeValues(GaugeConfig gaugeConfig) throws Exception {
+        Map<ObjectName, List<MBeanGauge>> mbeanGauges = Maps.newLinkedHashMap();
+        addMBeanGauges(gaugeConfig, mbeanGauges);
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        for (Map.Entry<ObjectName, List<MBeanGauge>> entry : mbeanGauges.entrySet()) {
+            gaugeValues.addAll(collectGaugeValues(entry.getKey(), entry.getValue()));
+        }
+        return gaugeValues;
+    }
+
+    private List<GaugeValue> awaitSlowLaneReads(
+            Map<ObjectName, Future<List<GaugeValue>>> slowLaneReads) throws InterruptedException {
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        long deadline = System.nanoTime() + MILLISECONDS.toNanos(SLOW_LANE_WAIT_MILLIS);
+        for (Map.Entry<ObjectName, Future<List<GaugeValue>>> entry : slowLaneReads.entrySet()) {
+            Future<List<GaugeValue>> future = entry.getValue();
+            try {
+                gaugeValues.addAll(
+                        future.get(Math.max(0, deadline - System.nanoTime()), NANOSECONDS));
+            } catch (TimeoutException e) {
+                logger.debug("abandoning slow mbean read: {}", entry.getKey());
+                future.cancel(true);
+            } catch (ExecutionException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        return gaugeValues;
+    }
+
+    private void flush(final List<GaugeValue> gaugeValues) {
+        flushingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    collector.collectGaugeValues(gaugeValues);
+                } catch (Throwable t) {
+                    // log and terminate successfully
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        });
+    }
+
+    // gauges are grouped by object name (across gauge configs) so that all of the attributes of an
+    // mbean can be read with a single getAttributes() call
+    private void addMBeanGauges(GaugeConfig gaugeConfig,
+            Map<ObjectName, List<MBeanGauge>> mbeanGauges) throws Exception {
         String mbeanObjectName = gaugeConfig.mbeanObjectName();
         ObjectName objectName;
         try {
@@ -167,40 +269,88 @@ class GaugeCollector extends ScheduledRunnable {
         } catch (MalformedObjectNameException e) {
             logger.debug(e.getMessage(), e);
             logFirstTimeMBeanException(mbeanObjectName, e);
-            return ImmutableList.of();
+            return;
         }
         if (!objectName.isPattern()) {
-            return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(), mbeanObjectName);
+            addMBeanGauges(objectName, mbeanObjectName, gaugeConfig.mbeanAttributes(),
+                    mbeanGauges);
+            return;
         }
-        Set<ObjectName> matchingObjectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
+        Set<ObjectName> matchingObjectNames = objectNameCache.queryNames(objectName);
         if (matchingObjectNames.isEmpty()) {
             logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
-            return ImmutableList.of();
+            return;
         }
         // remove from pendingLoggedMBeanGauges so if it is later not found, it will be logged
         // normally and not with "waited ... seconds after jvm startup before logging this" message
         pendingLoggedMBeanGauges.remove(mbeanObjectName);
-        List<GaugeValue> gaugeValues = Lists.newArrayList();
         for (ObjectName matchingObjectName : matchingObjectNames) {
-            gaugeValues.addAll(collectGaugeValues(matchingObjectName, gaugeConfig.mbeanAttributes(),
-                    matchingObjectName.getDomain() + ":"
-                            + matchingObjectName.getKeyPropertyListString()));
+            addMBeanGauges(matchingObjectName, matchingObjectName.getDomain() + ":"
+                    + matchingObjectName.getKeyPropertyListString(),
+                    gaugeConfig.mbeanAttributes(), mbeanGauges);
+        }
+    }
+
+    private static void addMBeanGauges(ObjectName objectName, String mbeanObjectName,
+            List<ImmutableMBeanAttribute> mbeanAttributes,
+            Map<ObjectName, List<MBeanGauge>> mbeanGauges) {
+        List<MBeanGauge> gauges = mbeanGauges.get(objectName);
+        if (gauges == null) {
+            gauges = Lists.newArrayList();
+            mbeanGauges.put(objectName, gauges);
+        }
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            gauges.add(ImmutableMBeanGauge.of(mbeanObjectName, mbeanAttribute));
         }
-        return gaugeValues;
     }
 
+    // this is called from both the collection thread and the slow lane threads
     @RequiresNonNull("priorRawCounterValues")
     private List<GaugeValue> collectGaugeValues(ObjectName objectName,
-            List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName) {
+            List<MBeanGauge> mbeanGauges) {
         long captureTime = clock.currentTimeMillis();
+        Set<String> attributeNames = Sets.newLinkedHashSet();
+        for (MBeanGauge mbeanGauge : mbeanGauges) {
+            attributeNames.add(getTopLevelAttributeName(mbeanGauge.mbeanAttribute().name()));
+        }
+        Map<String, /*@Nullable*/ Object> attributeValues = Maps.newHashMap();
+        try {
+            AttributeList attributeList = lazyPlatformMBeanServer.getAttributes(objectName,
+                    attributeNames.toArray(new String[attributeNames.size()]));
+            if (attributeList != null) {
+                for (Attribute attribute : attributeList.asList()) {
+                    attributeValues.put(attribute.getName(), attribute.getValue());
+                }
+            }
+        } catch (InstanceNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+            slowMBeans.remove(objectName);
+            for (MBeanGauge mbeanGauge : mbeanGauges) {
+                logFirstTimeMBeanNotMatchedOrFound(mbeanGauge.mbeanObjectName());
+            }
+            return ImmutableList.of();
+        } catch (Exception e) {
+            // attributes will be read individually below, which will log the appropriate error
+            logger.debug(e.getMessage(), e);
+        }
         List<GaugeValue> gaugeValues = Lists.newArrayList();
-        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+        for (MBeanGauge mbeanGauge : mbeanGauges) {
+            String mbeanObjectName = mbeanGauge.mbeanObjectName();
+            MBeanAttribute mbeanAttribute = mbeanGauge.mbeanAttribute();
             String mbeanAttributeName = mbeanAttribute.name();
+            String topLevelAttributeName = getTopLevelAttributeName(mbeanAttributeName);
             Object attributeValue;
             try {
+                if (attributeValues.containsKey(topLevelAttributeName)) {
+                    attributeValue = attributeValues.get(topLevelAttributeName);
+                } else {
+                    // getAttributes() silently omits attributes that could not be read, so read
+                    // them individually in order to find out (and log) why
+                    attributeValue =
+                            lazyPlatformMBeanServer.getAttribute(objectName, topLevelAttributeName);
+                    attributeValues.put(topLevelAttributeName, attributeValue);
+                }
                 if (mbeanAttributeName.contains(".")) {
-                    String[] path = mbeanAttributeName.split("\\.");
-                    attributeValue = lazyPlatformMBeanServer.getAttribute(objectName, path[0]);
                     CompositeData compositeData = (CompositeData) attributeValue;
                     if (compositeData == null) {
                         // this is valid, e.g. attribute LastGcInfo on mbean
@@ -208,10 +358,8 @@ class GaugeCollector extends ScheduledRunnable {
                         // prior to first GC, this attribute value is null
                         continue;
                     }
-                    attributeValue = compositeData.get(path[1]);
-                } else {
-                    attributeValue =
-                            lazyPlatformMBeanServer.getAttribute(objectName, mbeanAttributeName);
+                    attributeValue = compositeData
+                            .get(mbeanAttributeName.substring(topLevelAttributeName.length() + 1));
                 }
             } catch (InstanceNotFoundException e) {
                 logger.debug(e.getMessage(), e);
@@ -284,6 +432,11 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    private static String getTopLevelAttributeName(String mbeanAttributeName) {
+        int index = mbeanAttributeName.indexOf('.');
+        return index == -1 ? mbeanAttributeName : mbeanAttributeName.substring(0, index);
+    }
+
     // relatively common, so nice message
     private void logFirstTimeMBeanNotMatchedOrFound(String mbeanObjectName) {
         int delaySeconds = configService.getAdvancedConfig().mbeanGaugeNotFoundDelaySeconds();
@@ -333,6 +486,36 @@ class GaugeCollector extends ScheduledRunnable {
         }
     }
 
+    private class SlowLaneRead implements Callable<List<GaugeValue>> {
+
+        private final ObjectName objectName;
+        private final List<MBeanGauge> mbeanGauges;
+
+        private SlowLaneRead(ObjectName objectName, List<MBeanGauge> mbeanGauges) {
+            this.objectName = objectName;
+            this.mbeanGauges = mbeanGauges;
+        }
+
+        @Override
+        public List<GaugeValue> call() {
+            checkNotNull(priorRawCounterValues);
+            long startTick = System.nanoTime();
+            List<GaugeValue> gaugeValues = collectGaugeValues(objectName, mbeanGauges);
+            if (System.nanoTime() - startTick < SLOW_MBEAN_THRESHOLD_NANOS) {
+                logger.debug("moving mbean back to normal collection lane: {}", objectName);
+                slowMBeans.remove(objectName);
+            }
+            return gaugeValues;
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface MBeanGauge {
+        String mbeanObjectName();
+        MBeanAttribute mbeanAttribute();
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface RawCounterValue {
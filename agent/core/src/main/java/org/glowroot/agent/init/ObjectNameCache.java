@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
+
+// caches the object names matching mbean object name patterns, so that wildcard gauges do not need
+// to query the mbean server every collection cycle
+//
+// the cached object names are kept up to date using mbean registration and unregistration
+// notifications from the mbean server delegate, and caching is only enabled once the notification
+// listener has been successfully added
+class ObjectNameCache implements NotificationListener {
+
+    private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
+
+    private final ConcurrentMap<ObjectName, Set<ObjectName>> matchingObjectNames =
+            Maps.newConcurrentMap();
+
+    // incremented on each registration or unregistration notification, so that query results that
+    // may have missed a notification are not cached
+    @GuardedBy("this")
+    private long generation;
+
+    private volatile boolean listening;
+
+    ObjectNameCache(LazyPlatformMBeanServer lazyPlatformMBeanServer) {
+        this.lazyPlatformMBeanServer = lazyPlatformMBeanServer;
+    }
+
+    void startListening(MBeanServer mbeanServer) throws Exception {
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        // object names are all deselected by default
+        filter.enableAllObjectNames();
+        mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+        listening = true;
+    }
+
+    // the returned set must not be modified by the caller
+    Set<ObjectName> queryNames(ObjectName pattern) throws Exception {
+        if (!listening) {
+            return lazyPlatformMBeanServer.queryNames(pattern, null);
+        }
+        Set<ObjectName> cached = matchingObjectNames.get(pattern);
+        if (cached != null) {
+            return cached;
+        }
+        long priorGeneration;
+        synchronized (this) {
+            priorGeneration = generation;
+        }
+        Set<ObjectName> objectNames = Sets.newConcurrentHashSet(
+                lazyPlatformMBeanServer.queryNames(pattern, null));
+        synchronized (this) {
+            if (generation == priorGeneration) {
+                matchingObjectNames.put(pattern, objectNames);
+            }
+        }
+        return objectNames;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, @Nullable Object handback) {
+        if (!(notification instanceof MBeanServerNotification)) {
+            return;
+        }
+        ObjectName objectName = ((MBeanServerNotification) notification).getMBeanName();
+        String type = notification.getType();
+        synchronized (this) {
+            generation++;
+            for (Map.Entry<ObjectName, Set<ObjectName>> entry : matchingObjectNames.entrySet()) {
+                if (type.equals(MBeanServerNotification.REGISTRATION_NOTIFICATION)) {
+                    if (entry.getKey().apply(objectName)) {
+                        entry.getValue().add(objectName);
+                    }
+                } else if (type.equals(MBeanServerNotification.UNREGISTRATION_NOTIFICATION)) {
+                    entry.getValue().remove(objectName);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// index for class name auto completion
+//
+// class names only match a partial class name at the start of the class name, or right after a
+// '.' or '$', so instead of indexing every trigram of every class name, this only indexes the
+// first 1, 2 and 3 characters following each of those boundaries, which is enough to narrow the
+// candidates down (the candidates are then checked against the full partial class name)
+//
+// full matches are looked up separately using the first 1, 2 or 3 characters of the last segment
+// of the class name, and partial matches are only read until the limit is reached, which works
+// because class names are added in sorted batches (and so are in sorted order within each batch)
+//
+// this class does not depend on guava so it can be used directly from the microbenchmarks
+public class ClassNameIndex {
+
+    // characters are mapped to 41 codes: end of string, A-Z, 0-9, '_', '$', '.' and other
+    private static final int CODE_COUNT = 41;
+    private static final int GRAM_COUNT = CODE_COUNT * CODE_COUNT * CODE_COUNT;
+
+    // posting lists for last segment grams are stored after the posting lists for prefix grams
+    private static final int TAIL_GRAM_OFFSET = GRAM_COUNT;
+
+    // rough per class name cost of the de-dup set entry and the class name array slot
+    private static final int CLASS_NAME_OVERHEAD_BYTES = 48;
+
+    private static final int INITIAL_POSTING_CAPACITY = 4;
+
+    // posting lists are allocated in pages of grams on first use, since only a small fraction of
+    // the possible grams occur in practice
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_COUNT = (2 * GRAM_COUNT + PAGE_SIZE - 1) >> PAGE_BITS;
+
+    private final long maxBytes;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @GuardedBy("lock")
+    private final Set<String> classNameSet = new HashSet<String>();
+    @GuardedBy("lock")
+    private String[] classNames = new String[1024];
+    @GuardedBy("lock")
+    private int classNameCount;
+    // first class name id of each batch
+    @GuardedBy("lock")
+    private int[] batchStarts = new int[16];
+    @GuardedBy("lock")
+    private int batchCount;
+
+    // posting lists of class name ids, in ascending order
+    @GuardedBy("lock")
+    private int /*@Nullable*/ [][][] postingPages = new int[PAGE_COUNT][][];
+    @GuardedBy("lock")
+    private int /*@Nullable*/ [][] postingSizePages = new int[PAGE_COUNT][];
+
+    @GuardedBy("lock")
+    private long estimatedBytes;
+    @GuardedBy("lock")
+    private boolean overBudget;
+
+    public ClassNameIndex(long maxBytes) {
+        this.maxBytes = maxBytes;
+        estimatedBytes = 8L * PAGE_COUNT + 4L * classNames.length;
+    }
+
+    // returns false if the memory budget has been exceeded, in which case the index is cleared and
+    // can no longer be used
+    public boolean addAll(Collection<String> newClassNames) {
+        lock.writeLock().lock();
+        try {
+            if (overBudget) {
+                return false;
+            }
+            List<String> batch = new ArrayList<String>();
+            for (String className : newClassNames) {
+                if (!className.startsWith("[") && classNameSet.add(className)) {
+                    batch.add(className);
+                }
+            }
+            if (batch.isEmpty()) {
+                return true;
+            }
+            Collections.sort(batch);
+            if (batchCount == batchStarts.length) {
+                batchStarts = Arrays.copyOf(batchStarts, batchCount * 2);
+            }
+            batchStarts[batchCount++] = classNameCount;
+            for (String className : batch) {
+                add(className);
+                if (estimatedBytes > maxBytes) {
+                    clear();
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // returns null if the index cannot be used for the partial class name, in which case the
+    // caller needs to fall back to scanning all class names
+    public @Nullable List<String> getMatchingClassNames(String partialClassName, int limit) {
+        if (partialClassName.isEmpty()) {
+            return null;
+        }
+        PartialClassNameMatcher matcher = new PartialClassNameMatcher(partialClassName);
+        String partialClassNameUpper = matcher.partialClassNameUpper;
+        int gram = getGram(partialClassNameUpper, 0);
+        int tailGram = getGram(partialClassNameUpper, getLastSegmentStart(partialClassNameUpper));
+        // sorted sets with limit are used in order to return the same class names as scanning
+        // through all class names in sorted order
+        TreeSet<String> fullMatchingClassNames = new TreeSet<String>();
+        TreeSet<String> matchingClassNames = new TreeSet<String>();
+        lock.readLock().lock();
+        try {
+            if (overBudget) {
+                return null;
+            }
+            int[] tailPosting = getPosting(TAIL_GRAM_OFFSET + tailGram);
+            int tailSize = getPostingSize(TAIL_GRAM_OFFSET + tailGram);
+            for (int i = 0; i < tailSize; i++) {
+                String className = classNames[tailPosting[i]];
+                if (!isFull(fullMatchingClassNames, limit, className) && matcher
+                        .isPotentialFullMatch(className.toUpperCase(Locale.ENGLISH))) {
+                    addWithLimit(fullMatchingClassNames, limit, className);
+                }
+            }
+            int[] posting = getPosting(gram);
+            int size = getPostingSize(gram);
+            int i = 0;
+            for (int batch = 0; batch < batchCount && i < size; batch++) {
+                int batchEnd = batch == batchCount - 1 ? classNameCount : batchStarts[batch + 1];
+                i = lowerBound(posting, i, size, batchStarts[batch]);
+                for (; i < size && posting[i] < batchEnd; i++) {
+                    String className = classNames[posting[i]];
+                    if (isFull(matchingClassNames, limit, className)) {
+                        // the rest of the batch comes after this class name in sorted order
+                        break;
+                    }
+                    String classNameUpper = className.toUpperCase(Locale.ENGLISH);
+                    if (!matcher.isPotentialFullMatch(classNameUpper)
+                            && matcher.isPotentialMatch(classNameUpper)) {
+                        addWithLimit(matchingClassNames, limit, className);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<String> combined = new ArrayList<String>(fullMatchingClassNames);
+        for (String className : matchingClassNames) {
+            if (combined.size() == limit) {
+                break;
+            }
+            combined.add(className);
+        }
+        return combined;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return classNameCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void add(String className) {
+        if (classNameCount == classNames.length) {
+            estimatedBytes += 4L * classNames.length;
+            classNames = Arrays.copyOf(classNames, classNames.length * 2);
+        }
+        int id = classNameCount++;
+        classNames[id] = className;
+        estimatedBytes += CLASS_NAME_OVERHEAD_BYTES;
+        String classNameUpper = className.toUpperCase(Locale.ENGLISH);
+        int length = classNameUpper.length();
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || isBoundary(classNameUpper.charAt(i - 1))) {
+                // index prefixes of length 1, 2 and 3 so that short partial class names can be
+                // looked up with a single posting list
+                int c1 = getCode(classNameUpper, i);
+                int c2 = getCode(classNameUpper, i + 1);
+                int c3 = getCode(classNameUpper, i + 2);
+                addPosting(c1 * CODE_COUNT * CODE_COUNT, id);
+                if (c2 != 0) {
+                    addPosting((c1 * CODE_COUNT + c2) * CODE_COUNT, id);
+                    if (c3 != 0) {
+                        addPosting((c1 * CODE_COUNT + c2) * CODE_COUNT + c3, id);
+                    }
+                }
+            }
+        }
+        addPosting(TAIL_GRAM_OFFSET + getGram(classNameUpper, getLastSegmentStart(classNameUpper)),
+                id);
+    }
+
+    @GuardedBy("lock")
+    private int /*@Nullable*/ [] getPosting(int gram) {
+        int[][] page = postingPages[gram >> PAGE_BITS];
+        return page == null ? null : page[gram & (PAGE_SIZE - 1)];
+    }
+
+    @GuardedBy("lock")
+    private int getPostingSize(int gram) {
+        int[] sizePage = postingSizePages[gram >> PAGE_BITS];
+        return sizePage == null ? 0 : sizePage[gram & (PAGE_SIZE - 1)];
+    }
+
+    @GuardedBy("lock")
+    private void addPosting(int gram, int id) {
+        int pageIndex = gram >> PAGE_BITS;
+        int offset = gram & (PAGE_SIZE - 1);
+        int[][] page = postingPages[pageIndex];
+        int[] sizePage = postingSizePages[pageIndex];
+        if (page == null || sizePage == null) {
+            page = new int[PAGE_SIZE][];
+            sizePage = new int[PAGE_SIZE];
+            postingPages[pageIndex] = page;
+            postingSizePages[pageIndex] = sizePage;
+            estimatedBytes += 32 + 8L * PAGE_SIZE;
+        }
+        int[] posting = page[offset];
+        int size = sizePage[offset];
+        if (posting == null) {
+            posting = new int[INITIAL_POSTING_CAPACITY];
+            page[offset] = posting;
+            estimatedBytes += 16 + 4 * INITIAL_POSTING_CAPACITY;
+        } else if (posting[size - 1] == id) {
+            // same prefix following multiple boundaries in the same class name
+            return;
+        } else if (size == posting.length) {
+            estimatedBytes += 4L * posting.length;
+            posting = Arrays.copyOf(posting, posting.length * 2);
+            page[offset] = posting;
+        }
+        posting[size] = id;
+        sizePage[offset] = size + 1;
+    }
+
+    @GuardedBy("lock")
+    private void clear() {
+        overBudget = true;
+        classNameSet.clear();
+        classNames = new String[0];
+        classNameCount = 0;
+        batchStarts = new int[0];
+        batchCount = 0;
+        postingPages = new int[0][][];
+        postingSizePages = new int[0][];
+    }
+
+    private static int getGram(String str, int index) {
+        int c1 = getCode(str, index);
+        int c2 = getCode(str, index + 1);
+        int c3 = getCode(str, index + 2);
+        return (c1 * CODE_COUNT + c2) * CODE_COUNT + c3;
+    }
+
+    private static int getLastSegmentStart(String str) {
+        return Math.max(str.lastIndexOf('.'), str.lastIndexOf('$')) + 1;
+    }
+
+    // returns the index of the first id in the posting list that is greater than or equal to the
+    // given id
+    private static int lowerBound(int /*@Nullable*/ [] posting, int fromIndex, int toIndex,
+            int id) {
+        if (posting == null) {
+            return toIndex;
+        }
+        int low = fromIndex;
+        int high = toIndex;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (posting[mid] < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int getCode(String str, int index) {
+        if (index >= str.length()) {
+            return 0;
+        }
+        char c = str.charAt(index);
+        if (c >= 'A' && c <= 'Z') {
+            return 1 + c - 'A';
+        } else if (c >= '0' && c <= '9') {
+            return 27 + c - '0';
+        } else if (c == '_') {
+            return 37;
+        } else if (c == '$') {
+            return 38;
+        } else if (c == '.') {
+            return 39;
+        } else {
+            return 40;
+        }
+    }
+
+    private static boolean isBoundary(char c) {
+        return c == '.' || c == '$';
+    }
+
+    private static boolean isFull(TreeSet<String> classNames, int limit, String className) {
+        return classNames.size() == limit && className.compareTo(classNames.last()) > 0;
+    }
+
+    private static void addWithLimit(TreeSet<String> classNames, int limit, String className) {
+        if (classNames.size() < limit) {
+            classNames.add(className);
+        } else if (className.compareTo(classNames.last()) < 0) {
+            classNames.pollLast();
+            classNames.add(className);
+        }
+    }
+
+    static class PartialClassNameMatcher {
+
+        private final String partialClassNameUpper;
+        private final String prefixedPartialClassNameUpper1;
+        private final String prefixedPartialClassNameUpper2;
+
+        PartialClassNameMatcher(String partialClassName) {
+            partialClassNameUpper = partialClassName.toUpperCase(Locale.ENGLISH);
+            prefixedPartialClassNameUpper1 = '.' + partialClassNameUpper;
+            prefixedPartialClassNameUpper2 = '$' + partialClassNameUpper;
+        }
+
+        boolean isPotentialFullMatch(String classNameUpper) {
+            return classNameUpper.equals(partialClassNameUpper)
+                    || classNameUpper.endsWith(prefixedPartialClassNameUpper1)
+                    || classNameUpper.endsWith(prefixedPartialClassNameUpper2);
+        }
+
+        boolean isPotentialMatch(String classNameUpper) {
+            return classNameUpper.startsWith(partialClassNameUpper)
+                    || classNameUpper.contains(prefixedPartialClassNameUpper1)
+                    || classNameUpper.contains(prefixedPartialClassNameUpper2);
+        }
+    }
+}
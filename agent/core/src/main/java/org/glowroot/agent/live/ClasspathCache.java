@@ -33,6 +33,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
@@ -63,6 +64,7 @@ import org.objectweb.asm.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.live.ClassNameIndex.PartialClassNameMatcher;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.ClassNames;
 
@@ -77,6 +79,13 @@ class ClasspathCache {
 
     private static final Logger logger = LoggerFactory.getLogger(ClasspathCache.class);
 
+    private static final long CLASS_NAME_INDEX_MAX_BYTES =
+            Long.getLong("glowroot.internal.classNameIndexMaxBytes", 32 * 1024 * 1024);
+
+    // searches (one per keystroke in the instrumentation config UI) only refresh the cache with
+    // newly loaded classes (and newly discovered class loaders) at most this often
+    private static final long LOADED_CLASSES_REFRESH_INTERVAL_MILLIS = 5000;
+
     private final AnalyzedWorld analyzedWorld;
     private final @Nullable Instrumentation instrumentation;
 
@@ -88,15 +97,36 @@ class ClasspathCache {
     @GuardedBy("this")
     private ImmutableMultimap<String, Location> classNameLocations = ImmutableMultimap.of();
 
+    // class names from classNameLocations plus loaded classes, once the index exceeds its memory
+    // budget searches fall back to scanning
+    private final ClassNameIndex classNameIndex = new ClassNameIndex(CLASS_NAME_INDEX_MAX_BYTES);
+
+    @GuardedBy("this")
+    private int loadedClassCount;
+
+    // zero until the cache has been refreshed with loaded classes for the first time
+    private volatile long lastLoadedClassesRefreshTime;
+    private final AtomicBoolean loadedClassesRefreshInProgress = new AtomicBoolean();
+
     ClasspathCache(AnalyzedWorld analyzedWorld, @Nullable Instrumentation instrumentation) {
         this.analyzedWorld = analyzedWorld;
         this.instrumentation = instrumentation;
     }
 
+    ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
+        maybeUpdateCacheWithLoadedClasses();
+        // the index has its own read/write lock so that searches (one per keystroke in the
+        // instrumentation config UI) do not block each other
+        List<String> classNames = classNameIndex.getMatchingClassNames(partialClassName, limit);
+        if (classNames != null) {
+            return ImmutableList.copyOf(classNames);
+        }
+        return getMatchingClassNamesUsingScan(partialClassName, limit);
+    }
+
     // using synchronization instead of concurrent structures in this cache to conserve memory
-    synchronized ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
-        // update cache before proceeding
-        updateCache();
+    private synchronized ImmutableList<String> getMatchingClassNamesUsingScan(
+            String partialClassName, int limit) {
         PartialClassNameMatcher matcher = new PartialClassNameMatcher(partialClassName);
         Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
         Set<String> matchingClassNames = Sets.newLinkedHashSet();
@@ -172,9 +202,61 @@ class ClasspathCache {
             newMap.putAll(classNameLocations);
             newMap.putAll(newClassNameLocations);
             classNameLocations = ImmutableMultimap.copyOf(newMap);
+            classNameIndex.addAll(newClassNameLocations.keySet());
         }
     }
 
+    private void maybeUpdateCacheWithLoadedClasses() {
+        if (lastLoadedClassesRefreshTime == 0) {
+            // the first search needs to wait for the cache to be populated
+            initCacheWithLoadedClasses();
+            return;
+        }
+        if (System.currentTimeMillis() - lastLoadedClassesRefreshTime
+                < LOADED_CLASSES_REFRESH_INTERVAL_MILLIS) {
+            return;
+        }
+        // only one search performs the refresh, other searches proceed against the current index
+        // instead of waiting on the monitor
+        if (loadedClassesRefreshInProgress.compareAndSet(false, true)) {
+            try {
+                updateCacheWithLoadedClasses();
+            } finally {
+                loadedClassesRefreshInProgress.set(false);
+            }
+        }
+    }
+
+    private synchronized void initCacheWithLoadedClasses() {
+        if (lastLoadedClassesRefreshTime == 0) {
+            updateCacheWithLoadedClasses();
+        }
+    }
+
+    private synchronized void updateCacheWithLoadedClasses() {
+        updateCache();
+        if (instrumentation != null) {
+            // also index loaded classes, e.g. for groovy classes
+            updateCacheWithLoadedClasses(instrumentation.getAllLoadedClasses());
+        }
+        lastLoadedClassesRefreshTime = System.currentTimeMillis();
+    }
+
+    @GuardedBy("this")
+    private void updateCacheWithLoadedClasses(Class<?>[] loadedClasses) {
+        if (loadedClasses.length == loadedClassCount) {
+            // not worth checking every class name on every refresh just to catch the rare case
+            // where the same number of classes have been unloaded and loaded since the last check
+            return;
+        }
+        List<String> loadedClassNames = Lists.newArrayListWithCapacity(loadedClasses.length);
+        for (Class<?> clazz : loadedClasses) {
+            loadedClassNames.add(clazz.getName());
+        }
+        classNameIndex.addAll(loadedClassNames);
+        loadedClassCount = loadedClasses.length;
+    }
+
     @GuardedBy("this")
     private void updateCacheWithClasspathClasses(Multimap<String, Location> newClassNameLocations) {
         String javaClassPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
@@ -517,31 +599,6 @@ class ClasspathCache {
         ImmutableList<String> exceptions();
     }
 
-    private static class PartialClassNameMatcher {
-
-        private final String partialClassNameUpper;
-        private final String prefixedPartialClassNameUpper1;
-        private final String prefixedPartialClassNameUpper2;
-
-        private PartialClassNameMatcher(String partialClassName) {
-            partialClassNameUpper = partialClassName.toUpperCase(Locale.ENGLISH);
-            prefixedPartialClassNameUpper1 = '.' + partialClassNameUpper;
-            prefixedPartialClassNameUpper2 = '$' + partialClassNameUpper;
-        }
-
-        private boolean isPotentialFullMatch(String classNameUpper) {
-            return classNameUpper.equals(partialClassNameUpper)
-                    || classNameUpper.endsWith(prefixedPartialClassNameUpper1)
-                    || classNameUpper.endsWith(prefixedPartialClassNameUpper2);
-        }
-
-        private boolean isPotentialMatch(String classNameUpper) {
-            return classNameUpper.startsWith(partialClassNameUpper)
-                    || classNameUpper.contains(prefixedPartialClassNameUpper1)
-                    || classNameUpper.contains(prefixedPartialClassNameUpper2);
-        }
-    }
-
     private static class AnalyzingClassVisitor extends ClassVisitor {
 
         private final List<UiAnalyzedMethod> analyzedMethods = Lists.newArrayList();
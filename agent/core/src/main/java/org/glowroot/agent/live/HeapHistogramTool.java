@@ -20,9 +20,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
@@ -31,6 +35,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.objectweb.asm.Type;
 
 import org.glowroot.agent.live.JvmTool.InputStreamProcessor;
+import org.glowroot.agent.live.LiveJvmServiceImpl.ChunkHandler;
 import org.glowroot.agent.util.JavaVersion;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogram;
 
@@ -38,16 +43,38 @@ class HeapHistogramTool {
 
     private HeapHistogramTool() {}
 
-    static HeapHistogram run(long pid, boolean allowAttachSelf, @Nullable File glowrootJarFile)
-            throws Exception {
-        return JvmTool.run(pid, "heapHisto", new HeapHistogramProcessor(), allowAttachSelf,
-                glowrootJarFile);
+    // limit is the max number of classes to return (ordered by total bytes), zero means no limit
+    static void run(long pid, boolean allowAttachSelf, @Nullable File glowrootJarFile, int limit,
+            int chunkSize, ChunkHandler<HeapHistogram> chunkHandler) throws Exception {
+        Histogram histogram = JvmTool.run(pid, "heapHisto", new HeapHistogramProcessor(limit),
+                allowAttachSelf, glowrootJarFile);
+        HeapHistogram.Builder builder = HeapHistogram.newBuilder()
+                .setTotalBytes(histogram.totalBytes)
+                .setTotalCount(histogram.totalCount);
+        int index = 0;
+        for (ClassInfo classInfo : histogram.classInfos) {
+            builder.addClassInfo(HeapHistogram.ClassInfo.newBuilder()
+                    .setClassName(classInfo.className)
+                    .setBytes(classInfo.bytes)
+                    .setCount(classInfo.count));
+            if (++index % chunkSize == 0 && index < histogram.classInfos.size()) {
+                chunkHandler.onChunk(builder.build(), false);
+                builder = HeapHistogram.newBuilder();
+            }
+        }
+        chunkHandler.onChunk(builder.build(), true);
     }
 
-    private static class HeapHistogramProcessor implements InputStreamProcessor<HeapHistogram> {
+    private static class HeapHistogramProcessor implements InputStreamProcessor<Histogram> {
+
+        private final int limit;
+
+        private HeapHistogramProcessor(int limit) {
+            this.limit = limit;
+        }
 
         @Override
-        public HeapHistogram process(InputStream in) throws IOException {
+        public Histogram process(InputStream in) throws IOException {
             boolean jrockit = JavaVersion.isJRockitJvm();
             BufferedReader reader = new BufferedReader(new InputStreamReader(in));
             // skip over header lines
@@ -60,6 +87,8 @@ class HeapHistogramTool {
             }
             Map<String, ClassInfo> classInfos = Maps.newHashMap();
             Splitter splitter = Splitter.on(' ').omitEmptyStrings();
+            long totalBytes = 0;
+            long totalCount = 0;
             while ((line = reader.readLine()) != null) {
                 if (line.startsWith("Total ") || line.endsWith(" total ---")) {
                     break;
@@ -88,22 +117,51 @@ class HeapHistogramTool {
                         classInfo = new ClassInfo(className);
                         classInfos.put(className, classInfo);
                     }
-                    classInfo.bytes += bytes;
-                    classInfo.count += count;
+                    classInfo.add(bytes, count);
+                    totalBytes += bytes;
+                    totalCount += count;
                 }
             }
-            HeapHistogram.Builder builder = HeapHistogram.newBuilder();
-            for (ClassInfo classInfo : ClassInfo.orderingByBytes.sortedCopy(classInfos.values())) {
-                builder.addClassInfo(HeapHistogram.ClassInfo.newBuilder()
-                        .setClassName(classInfo.className)
-                        .setBytes(classInfo.bytes)
-                        .setCount(classInfo.count));
+            return new Histogram(getLargest(classInfos.values(), limit), totalBytes, totalCount);
+        }
+    }
+
+    // returns the classes ordered by total bytes, using a bounded priority queue when there is a
+    // limit in order to avoid sorting all of the classes (which can be 60k+ in large applications)
+    @VisibleForTesting
+    static List<ClassInfo> getLargest(Collection<ClassInfo> classInfos, int limit) {
+        if (limit == 0 || classInfos.size() <= limit) {
+            return ClassInfo.orderingByBytes.sortedCopy(classInfos);
+        }
+        // head of the queue is the smallest of the largest classes seen so far
+        PriorityQueue<ClassInfo> largest =
+                new PriorityQueue<ClassInfo>(limit, ClassInfo.orderingByBytes.reverse());
+        for (ClassInfo classInfo : classInfos) {
+            if (largest.size() < limit) {
+                largest.add(classInfo);
+            } else if (classInfo.bytes > largest.peek().bytes) {
+                largest.poll();
+                largest.add(classInfo);
             }
-            return builder.build();
         }
+        return ClassInfo.orderingByBytes.sortedCopy(largest);
     }
 
-    private static class ClassInfo {
+    private static class Histogram {
+
+        private final List<ClassInfo> classInfos;
+        private final long totalBytes;
+        private final long totalCount;
+
+        private Histogram(List<ClassInfo> classInfos, long totalBytes, long totalCount) {
+            this.classInfos = classInfos;
+            this.totalBytes = totalBytes;
+            this.totalCount = totalCount;
+        }
+    }
+
+    @VisibleForTesting
+    static class ClassInfo {
 
         private static final Ordering<ClassInfo> orderingByBytes = new Ordering<ClassInfo>() {
             @Override
@@ -116,8 +174,20 @@ class HeapHistogramTool {
         private long bytes;
         private long count;
 
-        private ClassInfo(String className) {
+        @VisibleForTesting
+        ClassInfo(String className) {
             this.className = className;
         }
+
+        @VisibleForTesting
+        String className() {
+            return className;
+        }
+
+        @VisibleForTesting
+        void add(long bytes, long count) {
+            this.bytes += bytes;
+            this.count += count;
+        }
     }
 }
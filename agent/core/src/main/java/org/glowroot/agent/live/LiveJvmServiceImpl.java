@@ -108,6 +108,10 @@ public class LiveJvmServiceImpl implements LiveJvmService {
         return threadDumpService.getThreadDump();
     }
 
+    public void getThreadDump(int chunkSize, ChunkHandler<ThreadDump> chunkHandler) {
+        threadDumpService.getThreadDump(chunkSize, chunkHandler);
+    }
+
     @Override
     public String getJstack(String agentId) throws Exception {
         if (JavaVersion.isIbmJvm()) {
@@ -147,11 +151,25 @@ public class LiveJvmServiceImpl implements LiveJvmService {
 
     @Override
     public HeapHistogram heapHistogram(String agentId) throws Exception {
+        final HeapHistogram.Builder builder = HeapHistogram.newBuilder();
+        heapHistogram(0, Integer.MAX_VALUE, new ChunkHandler<HeapHistogram>() {
+            @Override
+            public void onChunk(HeapHistogram chunk, boolean last) {
+                builder.mergeFrom(chunk);
+            }
+        });
+        return builder.build();
+    }
+
+    // limit is the max number of classes to return (ordered by total bytes), zero means no limit
+    public void heapHistogram(int limit, int chunkSize, ChunkHandler<HeapHistogram> chunkHandler)
+            throws Exception {
         if (JavaVersion.isIbmJvm()) {
             throw new UnavailableDueToRunningInIbmJvmException();
         }
         long pid = checkNotNull(LiveJvmServiceImpl.getProcessId());
-        return HeapHistogramTool.run(pid, allowAttachSelf(), glowrootJarFile);
+        HeapHistogramTool.run(pid, allowAttachSelf(), glowrootJarFile, limit, chunkSize,
+                chunkHandler);
     }
 
     @Override
@@ -631,4 +649,9 @@ public class LiveJvmServiceImpl implements LiveJvmService {
         @Override
         public void setMBeanServer(MBeanServer s) {}
     }
+
+    // chunks are merged (using protobuf merge semantics) to form the complete response
+    public interface ChunkHandler<T> {
+        void onChunk(T chunk, boolean last);
+    }
 }
@@ -22,17 +22,21 @@ import java.util.List;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
 
 import org.glowroot.agent.collector.Collector.EntryVisitor;
 import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.collector.Collector.TraceVisitor;
 import org.glowroot.agent.impl.TraceCreator;
 import org.glowroot.agent.impl.Transaction;
+import org.glowroot.agent.impl.Transaction.EntriesCursor;
 import org.glowroot.agent.impl.TransactionCollector;
 import org.glowroot.agent.impl.TransactionRegistry;
 import org.glowroot.agent.model.ErrorMessage;
@@ -46,6 +50,7 @@ import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class LiveTraceRepositoryImpl implements LiveTraceRepository {
 
@@ -56,6 +61,14 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
     private final Clock clock;
     private final Ticker ticker;
 
+    // weak keys so that transactions can be collected as soon as they are stored
+    private final Cache<Transaction, CachedEntries> entriesCache =
+            CacheBuilder.newBuilder().weakKeys().expireAfterAccess(1, MINUTES).build();
+    private final Cache<Transaction, CachedProfile> mainThreadProfileCache =
+            CacheBuilder.newBuilder().weakKeys().expireAfterAccess(1, MINUTES).build();
+    private final Cache<Transaction, CachedProfile> auxThreadProfileCache =
+            CacheBuilder.newBuilder().weakKeys().expireAfterAccess(1, MINUTES).build();
+
     public LiveTraceRepositoryImpl(TransactionRegistry transactionRegistry,
             TransactionCollector transactionCollector, Clock clock, Ticker ticker) {
         this.transactionRegistry = transactionRegistry;
@@ -77,21 +90,49 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         return null;
     }
 
+    // entries are built incrementally across refreshes of the same active trace, reusing the
+    // entries from the prior refresh that are verified to be unchanged
     @Override
     public @Nullable Entries getEntries(String agentId, String traceId) throws Exception {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                CollectingEntryVisitor visitor = new CollectingEntryVisitor();
-                transaction.visitEntries(ticker.read(), visitor);
-                return ImmutableEntries.builder()
-                        .addAllEntries(visitor.entries)
-                        .addAllSharedQueryTexts(
-                                TraceCreator.toProto(transaction.getSharedQueryTexts()))
-                        .build();
-            }
+        Transaction transaction = getTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        CachedEntries priorEntries = entriesCache.getIfPresent(transaction);
+        EntriesDelta delta;
+        if (priorEntries == null) {
+            delta = getEntriesDelta(transaction, 0, 0, 0);
+        } else {
+            delta = getEntriesDelta(transaction, priorEntries.stableEntryCount,
+                    priorEntries.stableEntryHash, 0);
+        }
+        List<Trace.Entry> entries;
+        if (priorEntries == null || delta.firstEntryIndex() == 0) {
+            entries = delta.entries();
+        } else {
+            entries = Lists.newArrayListWithCapacity(
+                    delta.firstEntryIndex() + delta.entries().size());
+            entries.addAll(priorEntries.entries.subList(0, delta.firstEntryIndex()));
+            entries.addAll(delta.entries());
+        }
+        entriesCache.put(transaction,
+                new CachedEntries(entries, delta.stableEntryCount(), delta.stableEntryHash()));
+        return ImmutableEntries.builder()
+                .addAllEntries(entries)
+                .addAllSharedQueryTexts(delta.sharedQueryTexts())
+                .build();
+    }
+
+    // returns only the entries following the prior stable entries (and only the shared query texts
+    // following the prior shared query texts) when those are unchanged
+    public @Nullable EntriesDelta getEntriesDelta(String traceId, int priorStableEntryCount,
+            long priorStableEntryHash, int priorSharedQueryTextCount) throws Exception {
+        Transaction transaction = getTransaction(traceId);
+        if (transaction == null) {
+            return null;
+        }
+        return getEntriesDelta(transaction, priorStableEntryCount, priorStableEntryHash,
+                priorSharedQueryTextCount);
     }
 
     @Override
@@ -112,25 +153,41 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
     @Override
     public @Nullable Profile getMainThreadProfile(String agentId, String traceId)
             throws IOException {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                return transaction.getMainThreadProfileProtobuf();
-            }
+        Transaction transaction = getTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        return getProfileDelta(transaction, 0, false).profile();
     }
 
     @Override
     public @Nullable Profile getAuxThreadProfile(String agentId, String traceId)
             throws IOException {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                return transaction.getAuxThreadProfileProtobuf();
-            }
+        Transaction transaction = getTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        return getProfileDelta(transaction, 0, true).profile();
+    }
+
+    // profile is not returned (and not built) when the sample count is unchanged
+    public @Nullable ProfileDelta getMainThreadProfileDelta(String traceId,
+            long priorSampleCount) {
+        Transaction transaction = getTransaction(traceId);
+        if (transaction == null) {
+            return null;
+        }
+        return getProfileDelta(transaction, priorSampleCount, false);
+    }
+
+    // profile is not returned (and not built) when the sample count is unchanged
+    public @Nullable ProfileDelta getAuxThreadProfileDelta(String traceId,
+            long priorSampleCount) {
+        Transaction transaction = getTransaction(traceId);
+        if (transaction == null) {
+            return null;
+        }
+        return getProfileDelta(transaction, priorSampleCount, true);
     }
 
     @Override
@@ -229,6 +286,70 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         return points;
     }
 
+    private @Nullable Transaction getTransaction(String traceId) {
+        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
+                transactionCollector.getPendingTransactions())) {
+            if (transaction.getTraceId().equals(traceId)) {
+                return transaction;
+            }
+        }
+        return null;
+    }
+
+    private EntriesDelta getEntriesDelta(Transaction transaction, int priorStableEntryCount,
+            long priorStableEntryHash, int priorSharedQueryTextCount) throws Exception {
+        CollectingEntryVisitor visitor = new CollectingEntryVisitor();
+        EntriesCursor cursor = transaction.visitEntries(ticker.read(), priorStableEntryCount,
+                priorStableEntryHash, visitor);
+        // shared query texts are only ever appended for a given transaction
+        List<String> sharedQueryTexts = transaction.getSharedQueryTexts();
+        int firstSharedQueryTextIndex = 0;
+        if (priorSharedQueryTextCount <= sharedQueryTexts.size()) {
+            firstSharedQueryTextIndex = priorSharedQueryTextCount;
+        }
+        return ImmutableEntriesDelta.builder()
+                .addAllEntries(visitor.entries)
+                .addAllSharedQueryTexts(TraceCreator.toProto(sharedQueryTexts
+                        .subList(firstSharedQueryTextIndex, sharedQueryTexts.size())))
+                .firstEntryIndex(cursor.firstEntryIndex())
+                .stableEntryCount(cursor.stableEntryCount())
+                .stableEntryHash(cursor.stableEntryHash())
+                .firstSharedQueryTextIndex(firstSharedQueryTextIndex)
+                .build();
+    }
+
+    private ProfileDelta getProfileDelta(Transaction transaction, long priorSampleCount,
+            boolean auxiliary) {
+        // sample count is read prior to building the profile, so that the profile is never older
+        // than its sample count
+        long sampleCount = auxiliary ? transaction.getAuxThreadProfileSampleCount()
+                : transaction.getMainThreadProfileSampleCount();
+        if (priorSampleCount != 0 && sampleCount == priorSampleCount) {
+            return ImmutableProfileDelta.builder()
+                    .unchanged(true)
+                    .sampleCount(sampleCount)
+                    .build();
+        }
+        Cache<Transaction, CachedProfile> profileCache =
+                auxiliary ? auxThreadProfileCache : mainThreadProfileCache;
+        CachedProfile cachedProfile = profileCache.getIfPresent(transaction);
+        Profile profile;
+        if (cachedProfile != null && cachedProfile.sampleCount == sampleCount) {
+            profile = cachedProfile.profile;
+        } else {
+            profile = auxiliary ? transaction.getAuxThreadProfileProtobuf()
+                    : transaction.getMainThreadProfileProtobuf();
+            if (profile != null) {
+                profileCache.put(transaction, new CachedProfile(sampleCount, profile));
+            }
+        }
+        return ImmutableProfileDelta.builder()
+                .profile(profile)
+                .unchanged(false)
+                .sampleCount(sampleCount)
+                .build();
+    }
+
     @VisibleForTesting
     boolean matchesActive(Transaction transaction, String transactionType,
             @Nullable String transactionName) {
@@ -293,6 +414,51 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         return transactionName == null || transactionName.equals(transaction.getTransactionName());
     }
 
+    @Value.Immutable
+    public interface EntriesDelta {
+        List<Trace.Entry> entries();
+        List<Trace.SharedQueryText> sharedQueryTexts();
+        // entries prior to this index are unchanged since the prior request
+        int firstEntryIndex();
+        int stableEntryCount();
+        long stableEntryHash();
+        // shared query texts prior to this index are unchanged since the prior request
+        int firstSharedQueryTextIndex();
+    }
+
+    @Value.Immutable
+    public interface ProfileDelta {
+        @Nullable
+        Profile profile();
+        boolean unchanged();
+        long sampleCount();
+    }
+
+    private static class CachedEntries {
+
+        private final List<Trace.Entry> entries;
+        private final int stableEntryCount;
+        private final long stableEntryHash;
+
+        private CachedEntries(List<Trace.Entry> entries, int stableEntryCount,
+                long stableEntryHash) {
+            this.entries = entries;
+            this.stableEntryCount = stableEntryCount;
+            this.stableEntryHash = stableEntryHash;
+        }
+    }
+
+    private static class CachedProfile {
+
+        private final long sampleCount;
+        private final Profile profile;
+
+        private CachedProfile(long sampleCount, Profile profile) {
+            this.sampleCount = sampleCount;
+            this.profile = profile;
+        }
+    }
+
     private static class CollectingTraceVisitor implements TraceVisitor {
 
         private final List<Trace.Entry> entries = Lists.newArrayList();
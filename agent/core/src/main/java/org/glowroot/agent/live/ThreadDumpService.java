@@ -34,6 +34,7 @@ import org.glowroot.agent.impl.ThreadContextImpl;
 import org.glowroot.agent.impl.Transaction;
 import org.glowroot.agent.impl.TransactionCollector;
 import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.live.LiveJvmServiceImpl.ChunkHandler;
 import org.glowroot.common.util.NotAvailableAware;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
 import org.glowroot.wire.api.model.Proto.OptionalInt64;
@@ -52,6 +53,20 @@ class ThreadDumpService {
     }
 
     ThreadDump getThreadDump() {
+        final ThreadDump.Builder builder = ThreadDump.newBuilder();
+        getThreadDump(Integer.MAX_VALUE, new ChunkHandler<ThreadDump>() {
+            @Override
+            public void onChunk(ThreadDump chunk, boolean last) {
+                builder.mergeFrom(chunk);
+            }
+        });
+        return builder.build();
+    }
+
+    // the thread dump is split into chunks of approximately chunkSize threads (threads for a given
+    // transaction are never split across chunks), so that protobuf objects are not created for all
+    // threads at the same time
+    void getThreadDump(int chunkSize, ChunkHandler<ThreadDump> chunkHandler) {
         ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
         List<ThreadContextImpl> activeThreadContexts = getActiveThreadContexts();
         @Nullable
@@ -98,22 +113,30 @@ class ThreadDumpService {
             }
             transactionThreadInfo.threadInfos.add(threadInfo);
         }
-        List<ThreadDump.Transaction> transactions = Lists.newArrayList();
+        ThreadDump.Builder builder = ThreadDump.newBuilder();
+        if (currentThreadInfo != null) {
+            builder.setThreadDumpingThread(createProtobuf(currentThreadInfo));
+        }
+        int threadCount = 0;
         for (Map.Entry<String, TransactionThreadInfo> entry : transactionThreadInfos.entrySet()) {
-            transactions.add(entry.getValue().toProto(entry.getKey()));
+            TransactionThreadInfo transactionThreadInfo = entry.getValue();
+            builder.addTransaction(transactionThreadInfo.toProto(entry.getKey()));
+            threadCount += transactionThreadInfo.threadInfos.size();
+            if (threadCount >= chunkSize) {
+                chunkHandler.onChunk(builder.build(), false);
+                builder = ThreadDump.newBuilder();
+                threadCount = 0;
+            }
         }
-        List<ThreadDump.Thread> unmatchedThreads = Lists.newArrayList();
         for (ThreadInfo unmatchedThreadInfo : unmatchedThreadInfos.values()) {
-            unmatchedThreads.add(createProtobuf(unmatchedThreadInfo));
-        }
-
-        ThreadDump.Builder builder = ThreadDump.newBuilder()
-                .addAllTransaction(transactions)
-                .addAllUnmatchedThread(unmatchedThreads);
-        if (currentThreadInfo != null) {
-            builder.setThreadDumpingThread(createProtobuf(currentThreadInfo));
+            builder.addUnmatchedThread(createProtobuf(unmatchedThreadInfo));
+            if (++threadCount >= chunkSize) {
+                chunkHandler.onChunk(builder.build(), false);
+                builder = ThreadDump.newBuilder();
+                threadCount = 0;
+            }
         }
-        return builder.build();
+        chunkHandler.onChunk(builder.build(), true);
     }
 
     private List<ThreadContextImpl> getActiveThreadContexts() {
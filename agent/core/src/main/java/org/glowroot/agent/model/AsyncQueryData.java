@@ -15,25 +15,37 @@
  */
 package org.glowroot.agent.model;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import com.google.common.base.Ticker;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+// field updaters are used instead of separate atomic instances to reduce the allocation and
+// indirection for each async query (these are created per distinct query per transaction)
 public class AsyncQueryData implements QueryData {
 
+    private static final AtomicLongFieldUpdater<AsyncQueryData> totalTicksUpdater =
+            AtomicLongFieldUpdater.newUpdater(AsyncQueryData.class, "totalTicks");
+    private static final AtomicLongFieldUpdater<AsyncQueryData> executionCountUpdater =
+            AtomicLongFieldUpdater.newUpdater(AsyncQueryData.class, "executionCount");
+    private static final AtomicIntegerFieldUpdater<AsyncQueryData> activeCountUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(AsyncQueryData.class, "activeCount");
+    private static final AtomicLongFieldUpdater<AsyncQueryData> totalRowsUpdater =
+            AtomicLongFieldUpdater.newUpdater(AsyncQueryData.class, "totalRows");
+
     private final String queryText;
     private final @Nullable AsyncQueryData limitExceededBucket;
 
-    private final AtomicLong sumOfStartTicks = new AtomicLong();
-    private final AtomicLong sumOfEndTicks = new AtomicLong();
-    private final AtomicLong executionCount = new AtomicLong();
-    private final AtomicInteger activeCount = new AtomicInteger();
+    // this is the sum of end ticks minus the sum of start ticks, which is tracked in a single field
+    // so that starting and ending an async query each need one less atomic update
+    private volatile long totalTicks;
+    private volatile long executionCount;
+    private volatile int activeCount;
 
     // -1 is for queries that don't even have a concept of row (e.g. http client requests which are
     // also tracked as queries)
-    private final AtomicLong totalRows = new AtomicLong(-1);
+    private volatile long totalRows = -1;
 
     public AsyncQueryData(String queryText, @Nullable AsyncQueryData limitExceededBucket) {
         this.queryText = queryText;
@@ -48,35 +60,36 @@ public class AsyncQueryData implements QueryData {
     public long getTotalDurationNanos(Ticker ticker) {
         // TODO analyze worst case due to lack of atomicity, especially because it's possible for
         // async query to be active at the end of a transaction
-        if (activeCount.get() > 0) {
+        int activeCount = this.activeCount;
+        if (activeCount > 0) {
             long currTick = ticker.read();
-            return sumOfEndTicks.get() + currTick * activeCount.get() - sumOfStartTicks.get();
+            return totalTicks + currTick * activeCount;
         }
-        return sumOfEndTicks.get() - sumOfStartTicks.get();
+        return totalTicks;
     }
 
     public long getExecutionCount() {
-        return executionCount.get();
+        return executionCount;
     }
 
     public boolean hasTotalRows() {
-        return totalRows.get() != -1;
+        return totalRows != -1;
     }
 
     public long getTotalRows() {
-        long totalRows = this.totalRows.get();
+        long totalRows = this.totalRows;
         return totalRows == -1 ? 0 : totalRows;
     }
 
     public boolean isActive() {
-        return activeCount.get() > 0;
+        return activeCount > 0;
     }
 
     @Override
     public void start(long startTick, long batchSize) {
-        sumOfStartTicks.getAndAdd(startTick);
-        executionCount.getAndAdd(batchSize);
-        activeCount.getAndIncrement();
+        totalTicksUpdater.getAndAdd(this, -startTick);
+        executionCountUpdater.getAndAdd(this, batchSize);
+        activeCountUpdater.getAndIncrement(this);
         if (limitExceededBucket != null) {
             limitExceededBucket.start(startTick, batchSize);
         }
@@ -84,8 +97,8 @@ public class AsyncQueryData implements QueryData {
 
     @Override
     public void end(long endTick) {
-        sumOfEndTicks.getAndAdd(endTick);
-        activeCount.getAndDecrement();
+        totalTicksUpdater.getAndAdd(this, endTick);
+        activeCountUpdater.getAndDecrement(this);
         if (limitExceededBucket != null) {
             limitExceededBucket.end(endTick);
         }
@@ -93,7 +106,7 @@ public class AsyncQueryData implements QueryData {
 
     @Override
     public void setHasTotalRows() {
-        totalRows.compareAndSet(-1, 0);
+        totalRowsUpdater.compareAndSet(this, -1, 0);
         if (limitExceededBucket != null) {
             limitExceededBucket.setHasTotalRows();
         }
@@ -101,8 +114,8 @@ public class AsyncQueryData implements QueryData {
 
     @Override
     public void incrementRowCount(long inc) {
-        totalRows.compareAndSet(-1, 0);
-        totalRows.getAndAdd(inc);
+        totalRowsUpdater.compareAndSet(this, -1, 0);
+        totalRowsUpdater.getAndAdd(this, inc);
         if (limitExceededBucket != null) {
             limitExceededBucket.incrementRowCount(inc);
         }
@@ -110,8 +123,8 @@ public class AsyncQueryData implements QueryData {
 
     @Override
     public void extend(long startTick) {
-        sumOfStartTicks.getAndAdd(startTick);
-        activeCount.getAndIncrement();
+        totalTicksUpdater.getAndAdd(this, -startTick);
+        activeCountUpdater.getAndIncrement(this);
         if (limitExceededBucket != null) {
             limitExceededBucket.extend(startTick);
         }
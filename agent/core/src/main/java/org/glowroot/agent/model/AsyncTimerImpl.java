@@ -18,6 +18,7 @@ package org.glowroot.agent.model;
 import java.util.List;
 
 import com.google.common.base.Ticker;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.util.Tickers;
 
@@ -32,6 +33,12 @@ public class AsyncTimerImpl implements CommonTimerImpl {
 
     private volatile long totalNanos = 0;
 
+    // these are used by AsyncComponents to link the async timers of a transaction into a lock-free
+    // stack, which avoids allocating a separate node (or growing a shared list) for each async
+    // timer, and are only written prior to (re-)publishing this timer onto the stack
+    private @Nullable AsyncTimerImpl next;
+    private int depth;
+
     public AsyncTimerImpl(TimerNameImpl timerName, long startTick) {
         this.timerName = timerName;
         this.startTick = startTick;
@@ -86,6 +93,20 @@ public class AsyncTimerImpl implements CommonTimerImpl {
         return active;
     }
 
+    public @Nullable AsyncTimerImpl getNext() {
+        return next;
+    }
+
+    // depth is the number of timers in the stack from this timer down (inclusive)
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setNext(@Nullable AsyncTimerImpl next) {
+        this.next = next;
+        depth = next == null ? 1 : next.depth + 1;
+    }
+
     @Override
     public TimerImplSnapshot getSnapshot() {
         return ImmutableTimerImplSnapshot.builder()
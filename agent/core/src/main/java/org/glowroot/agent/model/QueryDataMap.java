@@ -17,21 +17,23 @@ package org.glowroot.agent.model;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
 // micro-optimized map for query data
+//
+// open addressing with linear probing over flat key/value arrays (no chained entries), with the
+// key hash codes stored alongside so that a probe only calls equals() on the (rare) keys whose
+// full hash code matches, and with an identity check first since the same query text instance is
+// typically used on every execution (e.g. prepared statements)
 public class QueryDataMap {
 
-    private static final Object CHAINED_KEY = new Object();
-
     private final String type;
 
     // capacity must always be a power of 2, see comments in get() and put()
-    private int capacity = 4;
-    private @Nullable Object[] table = new Object[capacity << 1];
+    private @Nullable String[] keys = new String[8];
+    private @Nullable SyncQueryData[] values = new SyncQueryData[8];
+    private int[] hashes = new int[8];
 
     private int size = 0;
-    private int threshold = 3; // 0.75 * capacity
+    private int threshold = 4; // 0.5 * capacity
 
     public QueryDataMap(String type) {
         this.type = type;
@@ -42,109 +44,66 @@ public class QueryDataMap {
     }
 
     public @Nullable SyncQueryData get(String key) {
+        int hash = key.hashCode();
         // this mask requires capacity to be a power of 2
-        int bucket = (key.hashCode() & (capacity - 1)) << 1;
-        Object keyAtBucket = table[bucket];
-        Object value = table[bucket + 1];
-        if (key.equals(keyAtBucket)) {
-            return (SyncQueryData) value;
-        }
-        if (keyAtBucket == CHAINED_KEY) {
-            return getChained(key, checkNotNull(value));
+        int mask = keys.length - 1;
+        int index = spread(hash) & mask;
+        while (true) {
+            String keyAtIndex = keys[index];
+            if (keyAtIndex == key) {
+                return values[index];
+            }
+            if (keyAtIndex == null) {
+                return null;
+            }
+            if (hashes[index] == hash && key.equals(keyAtIndex)) {
+                return values[index];
+            }
+            index = (index + 1) & mask;
         }
-        return null;
     }
 
     // IMPORTANT put assumes get was already called and key is not present in this map
     public void put(String key, SyncQueryData value) {
-        if (size++ > threshold) {
+        if (size++ >= threshold) {
             rehash();
         }
-        putWithoutRehashCheck(key, value);
+        putWithoutRehashCheck(key, value, key.hashCode());
     }
 
-    private void putWithoutRehashCheck(Object key, @Nullable Object value) {
+    private void putWithoutRehashCheck(String key, @Nullable SyncQueryData value, int hash) {
         // this mask requires capacity to be a power of 2
-        int bucket = (key.hashCode() & (capacity - 1)) << 1;
-        Object keyAtBucket = table[bucket];
-        if (keyAtBucket == null) {
-            table[bucket] = key;
-            table[bucket + 1] = value;
-            return;
+        int mask = keys.length - 1;
+        int index = spread(hash) & mask;
+        while (keys[index] != null) {
+            index = (index + 1) & mask;
         }
-        putChained(key, value, bucket, keyAtBucket);
+        keys[index] = key;
+        values[index] = value;
+        hashes[index] = hash;
     }
 
-    private void putChained(Object key, @Nullable Object value, int bucket, Object keyAtBucket) {
-        if (keyAtBucket == CHAINED_KEY) {
-            @Nullable
-            Object[] chain = (/*@Nullable*/ Object[]) checkNotNull(table[bucket + 1]);
-            int chainLength = chain.length;
-            for (int i = 0; i < chainLength; i += 2) {
-                if (chain[i] == null) {
-                    chain[i] = key;
-                    chain[i + 1] = value;
-                    return;
-                }
-            }
-            @Nullable
-            Object[] newChain = new Object[chainLength << 1];
-            System.arraycopy(chain, 0, newChain, 0, chainLength);
-            newChain[chainLength] = key;
-            newChain[chainLength + 1] = value;
-            table[bucket + 1] = newChain;
-            return;
-        }
-        @Nullable
-        Object[] chain = new Object[4];
-        chain[0] = keyAtBucket;
-        chain[1] = table[bucket + 1];
-        chain[2] = key;
-        chain[3] = value;
-        table[bucket] = CHAINED_KEY;
-        table[bucket + 1] = chain;
+    // same as HashMap, since only the low bits are used for the index
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
     }
 
     private void rehash() {
         @Nullable
-        Object[] existingTable = table;
-        capacity <<= 1;
-        threshold <<= 1;
-        table = new Object[capacity << 1];
-
-        for (int i = 0; i < existingTable.length; i += 2) {
-            Object key = existingTable[i];
-            if (key == null) {
-                continue;
-            }
-            if (key == CHAINED_KEY) {
-                @Nullable
-                Object[] values = (/*@Nullable*/ Object[]) checkNotNull(existingTable[i + 1]);
-                putChainedValues(values);
-            } else {
-                putWithoutRehashCheck(key, existingTable[i + 1]);
-            }
-        }
-    }
-
-    private void putChainedValues(/*@Nullable*/ Object[] values) {
-        for (int j = 0; j < values.length; j += 2) {
-            Object chainedKey = values[j];
-            if (chainedKey == null) {
-                break;
-            }
-            putWithoutRehashCheck(chainedKey, values[j + 1]);
-        }
-    }
-
-    private static @Nullable SyncQueryData getChained(String key, Object value) {
+        String[] existingKeys = keys;
         @Nullable
-        Object[] chainedTable = (/*@Nullable*/ Object[]) value;
-        for (int i = 0; i < chainedTable.length; i += 2) {
-            if (key.equals(chainedTable[i])) {
-                return (SyncQueryData) chainedTable[i + 1];
+        SyncQueryData[] existingValues = values;
+        int[] existingHashes = hashes;
+        int capacity = existingKeys.length << 1;
+        keys = new String[capacity];
+        values = new SyncQueryData[capacity];
+        hashes = new int[capacity];
+        threshold <<= 1;
+        for (int i = 0; i < existingKeys.length; i++) {
+            String key = existingKeys[i];
+            if (key != null) {
+                putWithoutRehashCheck(key, existingValues[i], existingHashes[i]);
             }
         }
-        return null;
     }
 }
@@ -15,7 +15,6 @@
  */
 package org.glowroot.agent.model;
 
-import java.lang.management.ThreadInfo;
 import java.util.Arrays;
 import java.util.List;
 
@@ -83,13 +82,12 @@ public class ThreadProfile {
 
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
-    public void addStackTrace(ThreadInfo threadInfo) {
+    public void addStackTrace(StackTraceElement[] stackTraceElements, Thread.State threadState) {
         synchronized (lock) {
             if (++sampleCount > maxSamples) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
+            List<StackTraceElement> stackTrace = Arrays.asList(stackTraceElements);
             if (profile == null) {
                 unmergedStackTraces.add(stackTrace);
                 unmergedStackTraceThreadStates.add(threadState);
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.lang.reflect.Method;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// virtual threads (Java 21+) are not visible to ThreadMXBean, so thread stats (cpu time, blocked
+// time, waited time and allocated bytes) cannot be captured for them, and their stack traces need
+// to be captured directly from the Thread object instead of via ThreadMXBean.getThreadInfo()
+public class VirtualThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final @Nullable Method IS_VIRTUAL_METHOD = getIsVirtualMethod();
+
+    // all virtual thread implementations extend this internal class (and virtual threads cannot
+    // otherwise be subclassed), so checking the thread's superclass avoids a reflective call to
+    // Thread.isVirtual() on every thread context start
+    private static final @Nullable Class<?> BASE_VIRTUAL_THREAD_CLASS =
+            IS_VIRTUAL_METHOD == null ? null : getBaseVirtualThreadClass();
+
+    private static volatile boolean disabledDueToError;
+
+    private VirtualThreads() {}
+
+    public static boolean isCurrentThreadVirtual() {
+        return isVirtual(Thread.currentThread());
+    }
+
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL_METHOD == null || disabledDueToError) {
+            return false;
+        }
+        if (BASE_VIRTUAL_THREAD_CLASS != null) {
+            return thread.getClass().getSuperclass() == BASE_VIRTUAL_THREAD_CLASS;
+        }
+        try {
+            Boolean virtual = (Boolean) IS_VIRTUAL_METHOD.invoke(thread);
+            return virtual != null && virtual;
+        } catch (Exception e) {
+            // prevent excessive error logging in case there is a problem
+            disabledDueToError = true;
+            logger.error(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private static @Nullable Method getIsVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            // prior to Java 19
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private static @Nullable Class<?> getBaseVirtualThreadClass() {
+        try {
+            return Class.forName("java.lang.BaseVirtualThread");
+        } catch (ClassNotFoundException e) {
+            // fall back to calling Thread.isVirtual() reflectively
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+}
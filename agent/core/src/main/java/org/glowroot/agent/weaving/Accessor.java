@@ -17,18 +17,26 @@ package org.glowroot.agent.weaving;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 class Accessor {
 
+    private static final Logger logger = LoggerFactory.getLogger(Accessor.class);
+
     private final AccessorType accessorType;
     private final @Nullable Method method;
     private final @Nullable Field field;
 
+    // this is only set for accessors that were compiled via compile()
+    private volatile @Nullable CompiledAccessor compiledAccessor;
+
     static Accessor fromMethod(Method method) {
         return new Accessor(method);
     }
@@ -59,6 +67,30 @@ class Accessor {
         this.field = null;
     }
 
+    // returns a new accessor that uses a generated class to invoke the method (or read the field)
+    // directly, or returns this accessor if that is not possible (see AccessorGenerator)
+    Accessor compile() {
+        CompiledAccessor compiledAccessor;
+        switch (accessorType) {
+            case METHOD:
+                compiledAccessor = AccessorGenerator.generate(checkNotNull(method));
+                break;
+            case FIELD:
+                compiledAccessor = AccessorGenerator.generate(checkNotNull(field));
+                break;
+            default:
+                compiledAccessor = null;
+                break;
+        }
+        if (compiledAccessor == null) {
+            return this;
+        }
+        Accessor accessor = accessorType == AccessorType.METHOD ? new Accessor(checkNotNull(method))
+                : new Accessor(checkNotNull(field));
+        accessor.compiledAccessor = compiledAccessor;
+        return accessor;
+    }
+
     Class<?> getValueType() {
         switch (accessorType) {
             case METHOD:
@@ -79,6 +111,20 @@ class Accessor {
         if (isArrayEvaluation(object)) {
             return evaluateArray((/*@Nullable*/ Object[]) object);
         }
+        CompiledAccessor compiledAccessor = this.compiledAccessor;
+        if (compiledAccessor != null) {
+            try {
+                return compiledAccessor.evaluate(object);
+            } catch (IllegalAccessError e) {
+                // e.g. the declaring class is in a package that is not exported by its module, so
+                // permanently fall back to reflection (which is able to use setAccessible)
+                logger.debug(e.getMessage(), e);
+                this.compiledAccessor = null;
+            } catch (Throwable t) {
+                // wrap for consistency with reflection
+                throw new InvocationTargetException(t);
+            }
+        }
         switch (accessorType) {
             case METHOD:
                 checkNotNull(method);
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_5;
+
+// generates a small class per accessor that invokes the getter (or reads the field) directly, so
+// that evaluating message templates on every invocation of an instrumented method does not go
+// through reflection
+//
+// only public members of public classes are supported, since the generated class is defined in
+// its own class loader (child of the class loader of the member's declaring class)
+class AccessorGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessorGenerator.class);
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private AccessorGenerator() {}
+
+    static @Nullable CompiledAccessor generate(Method method) {
+        if (!isAccessible(method) || method.getParameterTypes().length != 0) {
+            return null;
+        }
+        Class<?> declaringClass = method.getDeclaringClass();
+        String owner = Type.getInternalName(declaringClass);
+        Class<?> returnType = method.getReturnType();
+        String internalName = generateInternalName();
+        ClassWriter cw = createClassWriter(internalName);
+        MethodVisitor mv = visitEvaluateMethod(cw);
+        if (Modifier.isStatic(method.getModifiers())) {
+            mv.visitMethodInsn(INVOKESTATIC, owner, method.getName(),
+                    Type.getMethodDescriptor(method), declaringClass.isInterface());
+        } else {
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitTypeInsn(CHECKCAST, owner);
+            if (declaringClass.isInterface()) {
+                mv.visitMethodInsn(INVOKEINTERFACE, owner, method.getName(),
+                        Type.getMethodDescriptor(method), true);
+            } else {
+                mv.visitMethodInsn(INVOKEVIRTUAL, owner, method.getName(),
+                        Type.getMethodDescriptor(method), false);
+            }
+        }
+        if (returnType == void.class) {
+            mv.visitInsn(ACONST_NULL);
+        } else {
+            boxIfPrimitive(mv, returnType);
+        }
+        return define(cw, mv, internalName, declaringClass);
+    }
+
+    static @Nullable CompiledAccessor generate(Field field) {
+        if (!isAccessible(field)) {
+            return null;
+        }
+        Class<?> declaringClass = field.getDeclaringClass();
+        String owner = Type.getInternalName(declaringClass);
+        Class<?> fieldType = field.getType();
+        String internalName = generateInternalName();
+        ClassWriter cw = createClassWriter(internalName);
+        MethodVisitor mv = visitEvaluateMethod(cw);
+        if (Modifier.isStatic(field.getModifiers())) {
+            mv.visitFieldInsn(GETSTATIC, owner, field.getName(), Type.getDescriptor(fieldType));
+        } else {
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitTypeInsn(CHECKCAST, owner);
+            mv.visitFieldInsn(GETFIELD, owner, field.getName(), Type.getDescriptor(fieldType));
+        }
+        boxIfPrimitive(mv, fieldType);
+        return define(cw, mv, internalName, declaringClass);
+    }
+
+    private static boolean isAccessible(Member member) {
+        return Modifier.isPublic(member.getModifiers())
+                && Modifier.isPublic(member.getDeclaringClass().getModifiers());
+    }
+
+    private static String generateInternalName() {
+        return "org/glowroot/agent/weaving/GeneratedAccessor" + counter.incrementAndGet();
+    }
+
+    private static ClassWriter createClassWriter(String internalName) {
+        // not computing frames since V1_5 class files do not have them (and computing frames
+        // would require loading the referenced classes)
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, internalName, null,
+                "java/lang/Object",
+                new String[] {Type.getInternalName(CompiledAccessor.class)});
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        return cw;
+    }
+
+    private static MethodVisitor visitEvaluateMethod(ClassWriter cw) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "evaluate",
+                "(Ljava/lang/Object;)Ljava/lang/Object;", null,
+                new String[] {"java/lang/Exception"});
+        mv.visitCode();
+        return mv;
+    }
+
+    private static void boxIfPrimitive(MethodVisitor mv, Class<?> type) {
+        if (!type.isPrimitive()) {
+            return;
+        }
+        Type primitiveType = Type.getType(type);
+        String wrapperInternalName = getWrapperInternalName(primitiveType);
+        mv.visitMethodInsn(INVOKESTATIC, wrapperInternalName, "valueOf",
+                "(" + primitiveType.getDescriptor() + ")L" + wrapperInternalName + ";", false);
+    }
+
+    private static String getWrapperInternalName(Type primitiveType) {
+        switch (primitiveType.getSort()) {
+            case Type.BOOLEAN:
+                return "java/lang/Boolean";
+            case Type.CHAR:
+                return "java/lang/Character";
+            case Type.BYTE:
+                return "java/lang/Byte";
+            case Type.SHORT:
+                return "java/lang/Short";
+            case Type.INT:
+                return "java/lang/Integer";
+            case Type.FLOAT:
+                return "java/lang/Float";
+            case Type.LONG:
+                return "java/lang/Long";
+            case Type.DOUBLE:
+                return "java/lang/Double";
+            default:
+                throw new AssertionError("Unexpected primitive type: " + primitiveType);
+        }
+    }
+
+    private static @Nullable CompiledAccessor define(ClassWriter cw, MethodVisitor mv,
+            String internalName, Class<?> declaringClass) {
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        try {
+            GeneratedAccessorClassLoader loader =
+                    new GeneratedAccessorClassLoader(declaringClass.getClassLoader());
+            Class<?> generatedClass =
+                    loader.defineClass(internalName.replace('/', '.'), cw.toByteArray());
+            return (CompiledAccessor) generatedClass.newInstance();
+        } catch (Throwable t) {
+            // fall back to reflection
+            logger.debug(t.getMessage(), t);
+            return null;
+        }
+    }
+
+    private static class GeneratedAccessorClassLoader extends ClassLoader {
+
+        private GeneratedAccessorClassLoader(@Nullable ClassLoader parent) {
+            super(parent);
+        }
+
+        private Class<?> defineClass(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(CompiledAccessor.class.getName())) {
+                // the parent class loader may not be able to see glowroot's classes
+                return CompiledAccessor.class;
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+}
@@ -29,20 +29,22 @@ import org.glowroot.agent.weaving.MessageTemplateImpl.ValuePathPart;
 public class GenericMessageSupplier extends MessageSupplier {
 
     private final MessageTemplateImpl template;
-    private final String[] resolvedReceiverPathParts;
-    private final String[] resolvedArgPathParts;
-    private volatile String /*@MonotonicNonNull*/[] resolvedReturnValuePathParts;
+    // these are either immutable values or strings, see ValuePathPart.evaluatePart()
+    private final /*@Nullable*/ Object[] resolvedReceiverPathParts;
+    private final /*@Nullable*/ Object[] resolvedArgPathParts;
+    private volatile /*@Nullable*/ Object /*@MonotonicNonNull*/[] resolvedReturnValuePathParts;
     private final String methodName;
 
     public static GenericMessageSupplier create(MessageTemplateImpl template, Object receiver,
             String methodName, @Nullable Object... args) {
-        // render paths to strings immediately in case the objects are mutable
-        String[] resolvedReceiverPathParts = new String[template.getThisPathParts().size()];
+        // evaluate paths immediately in case the objects are mutable
+        /*@Nullable*/ Object[] resolvedReceiverPathParts =
+                new Object[template.getThisPathParts().size()];
         int i = 0;
         for (ValuePathPart part : template.getThisPathParts()) {
             resolvedReceiverPathParts[i++] = part.evaluatePart(receiver);
         }
-        String[] resolvedArgPathParts = new String[template.getArgPathParts().size()];
+        /*@Nullable*/ Object[] resolvedArgPathParts = new Object[template.getArgPathParts().size()];
         i = 0;
         for (ArgPathPart part : template.getArgPathParts()) {
             if (part.getArgNumber() >= args.length) {
@@ -56,8 +58,9 @@ public class GenericMessageSupplier extends MessageSupplier {
                 methodName);
     }
 
-    private GenericMessageSupplier(MessageTemplateImpl template, String[] resolvedReceiverPathParts,
-            String[] resolvedArgPathParts, String methodName) {
+    private GenericMessageSupplier(MessageTemplateImpl template,
+            /*@Nullable*/ Object[] resolvedReceiverPathParts,
+            /*@Nullable*/ Object[] resolvedArgPathParts, String methodName) {
         this.template = template;
         this.resolvedReceiverPathParts = resolvedReceiverPathParts;
         this.resolvedArgPathParts = resolvedArgPathParts;
@@ -65,8 +68,8 @@ public class GenericMessageSupplier extends MessageSupplier {
     }
 
     private void setReturnValue(@Nullable Object returnValue) {
-        // render the return value to strings immediately in case it is mutable
-        String[] parts = new String[template.getReturnPathParts().size()];
+        // evaluate the return value paths immediately in case it is mutable
+        /*@Nullable*/ Object[] parts = new Object[template.getReturnPathParts().size()];
         int i = 0;
         for (ValuePathPart part : template.getReturnPathParts()) {
             parts[i++] = part.evaluatePart(returnValue);
@@ -168,13 +168,22 @@ public class MessageTemplateImpl implements MessageTemplate {
             this.pathEvaluator = new PathEvaluator(valueClass, propertyPath);
         }
 
-        String evaluatePart(@Nullable Object base) {
+        // immutable values are returned as is, so that rendering them to strings is deferred until
+        // the message is actually needed (which for most trace entries is never, since most
+        // transactions are not captured as slow traces), while other values are rendered to
+        // strings immediately in case they are mutable
+        @Nullable
+        Object evaluatePart(@Nullable Object base) {
             if (base == null) {
                 // this is same as String.valueOf((Object) null);
                 return "null";
             }
             try {
-                return valueOf(pathEvaluator.evaluateOnBase(base));
+                Object value = pathEvaluator.evaluateOnBase(base);
+                if (isImmutable(value)) {
+                    return value;
+                }
+                return valueOf(value);
             } catch (InvocationTargetException e) {
                 logger.debug(e.getMessage(), e);
                 // InvocationTargetException has the problem of obscuring the original message
@@ -189,6 +198,18 @@ public class MessageTemplateImpl implements MessageTemplate {
             }
         }
 
+        private static boolean isImmutable(@Nullable Object value) {
+            if (value == null) {
+                return true;
+            }
+            Class<?> valueClass = value.getClass();
+            return valueClass == String.class || valueClass == Integer.class
+                    || valueClass == Long.class || valueClass == Boolean.class
+                    || valueClass == Double.class || valueClass == Float.class
+                    || valueClass == Short.class || valueClass == Byte.class
+                    || valueClass == Character.class;
+        }
+
         private static String valueOf(@Nullable Object value) {
             if (value == null) {
                 return String.valueOf(value);
@@ -271,7 +292,9 @@ public class MessageTemplateImpl implements MessageTemplate {
                     parts.add(0, currPart);
                     break;
                 }
-                accessors.add(accessor);
+                // message templates are evaluated on every invocation of the instrumented method,
+                // so it is worth generating an accessor class instead of using reflection
+                accessors.add(accessor.compile());
                 currClass = accessor.getValueType();
             }
             this.accessors = accessors.toArray(new Accessor[accessors.size()]);
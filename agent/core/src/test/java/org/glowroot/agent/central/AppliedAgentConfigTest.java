@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.InstrumentationConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.UiConfig;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentConfigUpdateRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AppliedAgentConfigTest {
+
+    private static final AgentConfig BASE = AgentConfig.newBuilder()
+            .setAgentVersion("0.10.13")
+            .setUiConfig(UiConfig.newBuilder()
+                    .setDefaultTransactionType("Web"))
+            .addInstrumentationConfig(InstrumentationConfig.newBuilder()
+                    .setClassName("com.example.Foo"))
+            .addInstrumentationConfig(InstrumentationConfig.newBuilder()
+                    .setClassName("com.example.Bar"))
+            .build();
+
+    @Test
+    public void shouldApplyFullConfig() {
+        // given
+        AppliedAgentConfig appliedAgentConfig = new AppliedAgentConfig();
+
+        // when
+        AgentConfig agentConfig = appliedAgentConfig.getAgentConfig(
+                AgentConfigUpdateRequest.newBuilder()
+                        .setAgentConfig(BASE)
+                        .setConfigVersion("v1")
+                        .build());
+
+        // then
+        assertThat(agentConfig).isEqualTo(BASE);
+    }
+
+    @Test
+    public void shouldApplyDelta() {
+        // given
+        AppliedAgentConfig appliedAgentConfig = new AppliedAgentConfig();
+        appliedAgentConfig.setApplied(BASE, "v1");
+
+        // when
+        AgentConfig agentConfig = appliedAgentConfig.getAgentConfig(
+                AgentConfigUpdateRequest.newBuilder()
+                        .setAgentConfig(AgentConfig.newBuilder()
+                                .addInstrumentationConfig(InstrumentationConfig.newBuilder()
+                                        .setClassName("com.example.Baz")))
+                        .setConfigVersion("v2")
+                        .setBaseConfigVersion("v1")
+                        .addDeltaFieldNumber(AgentConfig.UI_CONFIG_FIELD_NUMBER)
+                        .addDeltaFieldNumber(AgentConfig.INSTRUMENTATION_CONFIG_FIELD_NUMBER)
+                        .build());
+
+        // then
+        assertThat(agentConfig).isNotNull();
+        assertThat(agentConfig.getAgentVersion()).isEqualTo("0.10.13");
+        assertThat(agentConfig.hasUiConfig()).isFalse();
+        assertThat(agentConfig.getInstrumentationConfigCount()).isEqualTo(1);
+        assertThat(agentConfig.getInstrumentationConfig(0).getClassName())
+                .isEqualTo("com.example.Baz");
+    }
+
+    @Test
+    public void shouldNotApplyDeltaAgainstDifferentVersion() {
+        // given
+        AppliedAgentConfig appliedAgentConfig = new AppliedAgentConfig();
+        appliedAgentConfig.setApplied(BASE, "v1");
+        AgentConfigUpdateRequest request = AgentConfigUpdateRequest.newBuilder()
+                .setAgentConfig(AgentConfig.getDefaultInstance())
+                .setConfigVersion("v3")
+                .setBaseConfigVersion("v2")
+                .addDeltaFieldNumber(AgentConfig.UI_CONFIG_FIELD_NUMBER)
+                .build();
+
+        // when
+        AgentConfig agentConfig = appliedAgentConfig.getAgentConfig(request);
+        appliedAgentConfig.clear();
+        AgentConfig agentConfigAfterClear = appliedAgentConfig.getAgentConfig(
+                request.toBuilder()
+                        .setBaseConfigVersion("v1")
+                        .build());
+
+        // then
+        assertThat(agentConfig).isNull();
+        assertThat(agentConfigAfterClear).isNull();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.DownstreamRequestExecutor.RequestKind;
+import org.glowroot.agent.central.DownstreamRequestExecutor.RequestTask;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DownstreamRequestExecutorTest {
+
+    private static final Object STREAM = new Object();
+
+    private DownstreamRequestExecutor executor;
+    private List<Long> completedRequestIds;
+
+    @Before
+    public void beforeEachTest() {
+        executor = new DownstreamRequestExecutor();
+        completedRequestIds = new CopyOnWriteArrayList<Long>();
+    }
+
+    @After
+    public void afterEachTest() {
+        executor.close();
+    }
+
+    @Test
+    public void shouldNotDelayOtherKinds() throws Exception {
+        // given
+        CountDownLatch heapDumpLatch = new CountDownLatch(1);
+        CountDownLatch traceLatch = new CountDownLatch(1);
+
+        // when
+        executor.execute(new BlockingTask(1, RequestKind.HEAP, heapDumpLatch, null));
+        executor.execute(new BlockingTask(2, RequestKind.TRACE, null, traceLatch));
+
+        // then
+        assertThat(traceLatch.await(10, SECONDS)).isTrue();
+        assertThat(completedRequestIds).containsExactly(2L);
+        heapDumpLatch.countDown();
+    }
+
+    @Test
+    public void shouldLimitConcurrencyPerKind() throws Exception {
+        // given
+        CountDownLatch firstLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+
+        // when
+        executor.execute(new BlockingTask(1, RequestKind.AGENT_CONFIG, firstLatch, null));
+        executor.execute(new BlockingTask(2, RequestKind.AGENT_CONFIG, null, doneLatch));
+        SECONDS.sleep(1);
+
+        // then
+        assertThat(completedRequestIds).isEmpty();
+        firstLatch.countDown();
+        assertThat(doneLatch.await(10, SECONDS)).isTrue();
+        assertThat(completedRequestIds).containsExactly(1L, 2L);
+    }
+
+    @Test
+    public void shouldCancelPendingRequest() throws Exception {
+        // given
+        CountDownLatch firstLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        BlockingTask first = new BlockingTask(1, RequestKind.HEAP, firstLatch, null);
+        executor.execute(first);
+        assertThat(first.startedLatch.await(10, SECONDS)).isTrue();
+        executor.execute(new BlockingTask(2, RequestKind.HEAP, null, null));
+        executor.execute(new BlockingTask(3, RequestKind.HEAP, null, doneLatch));
+
+        // when
+        executor.cancel(STREAM, 2);
+        executor.cancel(STREAM, 1);
+        firstLatch.countDown();
+
+        // then
+        assertThat(doneLatch.await(10, SECONDS)).isTrue();
+        // running request is not interrupted
+        assertThat(completedRequestIds).containsExactly(1L, 3L);
+        assertThat(first.isCancelled()).isTrue();
+    }
+
+    @Test
+    public void shouldOnlyCancelRequestFromSameStream() throws Exception {
+        // given
+        Object otherStream = new Object();
+        CountDownLatch latch = new CountDownLatch(1);
+        BlockingTask first = new BlockingTask(1, RequestKind.TRACE, latch, null);
+        BlockingTask second = new BlockingTask(otherStream, 1, RequestKind.TRACE, latch, null);
+        executor.execute(first);
+        executor.execute(second);
+
+        // when
+        executor.cancel(otherStream, 1);
+        latch.countDown();
+
+        // then
+        assertThat(first.isCancelled()).isFalse();
+        assertThat(second.isCancelled()).isTrue();
+    }
+
+    @Test
+    public void shouldCancelAllRequestsFromStream() throws Exception {
+        // given
+        Object otherStream = new Object();
+        CountDownLatch latch = new CountDownLatch(1);
+        BlockingTask first = new BlockingTask(1, RequestKind.TRACE, latch, null);
+        BlockingTask second = new BlockingTask(otherStream, 2, RequestKind.TRACE, latch, null);
+        BlockingTask third = new BlockingTask(otherStream, 3, RequestKind.OTHER, latch, null);
+        executor.execute(first);
+        executor.execute(second);
+        executor.execute(third);
+
+        // when
+        executor.cancelAll(otherStream);
+        latch.countDown();
+
+        // then
+        assertThat(first.isCancelled()).isFalse();
+        assertThat(second.isCancelled()).isTrue();
+        assertThat(third.isCancelled()).isTrue();
+    }
+
+    private class BlockingTask extends RequestTask {
+
+        private final @Nullable CountDownLatch startLatch;
+        private final @Nullable CountDownLatch doneLatch;
+        private final CountDownLatch startedLatch = new CountDownLatch(1);
+
+        private BlockingTask(long requestId, RequestKind kind, @Nullable CountDownLatch startLatch,
+                @Nullable CountDownLatch doneLatch) {
+            this(STREAM, requestId, kind, startLatch, doneLatch);
+        }
+
+        private BlockingTask(Object stream, long requestId, RequestKind kind,
+                @Nullable CountDownLatch startLatch, @Nullable CountDownLatch doneLatch) {
+            super(stream, requestId, kind);
+            this.startLatch = startLatch;
+            this.doneLatch = doneLatch;
+        }
+
+        @Override
+        public void run() {
+            startedLatch.countDown();
+            try {
+                if (startLatch != null) {
+                    startLatch.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            completedRequestIds.add(getRequestId());
+            if (doneLatch != null) {
+                doneLatch.countDown();
+            }
+        }
+    }
+}
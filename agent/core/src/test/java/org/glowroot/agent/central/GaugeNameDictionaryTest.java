@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeNameDictionaryTest {
+
+    private static final List<GaugeValue> GAUGE_VALUES = ImmutableList.of(
+            gaugeValue("java.lang:type=Memory:HeapMemoryUsage.used", 1000, 1.5),
+            gaugeValue("java.lang:type=Threading:ThreadCount", 1000, 20),
+            gaugeValue("java.lang:type=Memory:HeapMemoryUsage.used", 6000, 2.5));
+
+    @Test
+    public void shouldUseLegacyFormatUntilSupported() {
+        // given
+        GaugeNameDictionary dictionary = new GaugeNameDictionary();
+
+        // when
+        GaugeValueMessage message = dictionary.buildMessage("xyz", GAUGE_VALUES, false);
+
+        // then
+        assertThat(message.getGaugeNameDictionaryId()).isZero();
+        assertThat(message.getGaugeValuesList()).isEqualTo(GAUGE_VALUES);
+        assertThat(message.getGaugeNameIndexCount()).isZero();
+    }
+
+    @Test
+    public void shouldUseCompactFormat() {
+        // given
+        GaugeNameDictionary dictionary = new GaugeNameDictionary();
+        dictionary.setCompactSupported();
+
+        // when
+        GaugeValueMessage message = dictionary.buildMessage("xyz", GAUGE_VALUES, false);
+
+        // then
+        assertThat(message.getGaugeNameDictionaryId()).isNotZero();
+        assertThat(message.getGaugeValuesCount()).isZero();
+        assertThat(message.getFirstNewGaugeNameIndex()).isZero();
+        assertThat(message.getNewGaugeNameList()).containsExactly(
+                "java.lang:type=Memory:HeapMemoryUsage.used",
+                "java.lang:type=Threading:ThreadCount");
+        assertThat(message.getGaugeNameIndexList()).containsExactly(0, 1, 0);
+        assertThat(message.getCaptureTimeDeltaList()).containsExactly(1000L, 0L, 5000L);
+        assertThat(message.getValueList()).containsExactly(1.5, 20.0, 2.5);
+        assertThat(message.getWeightList()).containsExactly(1L, 1L, 1L);
+    }
+
+    @Test
+    public void shouldBuildNonCompactMessageEvenWhenCompactSupported() {
+        // given
+        GaugeNameDictionary dictionary = new GaugeNameDictionary();
+        dictionary.setCompactSupported();
+
+        // when
+        GaugeValueMessage message = dictionary.buildNonCompactMessage("xyz", GAUGE_VALUES);
+
+        // then
+        assertThat(message.getGaugeNameDictionaryId()).isZero();
+        assertThat(message.getGaugeValuesList()).isEqualTo(GAUGE_VALUES);
+        assertThat(message.getGaugeNameIndexCount()).isZero();
+    }
+
+    @Test
+    public void shouldOnlySendUnacknowledgedNames() {
+        // given
+        GaugeNameDictionary dictionary = new GaugeNameDictionary();
+        dictionary.setCompactSupported();
+        GaugeValueMessage first = dictionary.buildMessage("xyz", GAUGE_VALUES, false);
+        // second message is built before the first message is acknowledged
+        GaugeValueMessage second = dictionary.buildMessage("xyz", GAUGE_VALUES, false);
+        dictionary.acknowledge(first);
+
+        // when
+        GaugeValueMessage third = dictionary.buildMessage("xyz",
+                ImmutableList.of(gaugeValue("java.lang:type=Threading:ThreadCount", 11000, 21),
+                        gaugeValue("java.lang:type=Runtime:Uptime", 11000, 5)),
+                false);
+        GaugeValueMessage full = dictionary.buildMessage("xyz", GAUGE_VALUES, true);
+
+        // then
+        assertThat(second.getFirstNewGaugeNameIndex()).isZero();
+        assertThat(second.getNewGaugeNameCount()).isEqualTo(2);
+        assertThat(third.getFirstNewGaugeNameIndex()).isEqualTo(2);
+        assertThat(third.getNewGaugeNameList()).containsExactly("java.lang:type=Runtime:Uptime");
+        assertThat(third.getGaugeNameIndexList()).containsExactly(1, 2);
+        assertThat(full.getFirstNewGaugeNameIndex()).isZero();
+        assertThat(full.getNewGaugeNameCount()).isEqualTo(3);
+    }
+
+    private static GaugeValue gaugeValue(String gaugeName, long captureTime, double value) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextRegistryTest {
+
+    @Test
+    public void shouldNotUseRegistryUntilSupported() {
+        // given
+        QueryTextRegistry registry = new QueryTextRegistry();
+
+        // when
+        QueryTextRegistry.Generation generation = registry.getGeneration();
+
+        // then
+        assertThat(generation).isNull();
+    }
+
+    @Test
+    public void shouldReuseIndexes() {
+        // given
+        QueryTextRegistry registry = new QueryTextRegistry();
+        registry.setSupported();
+        QueryTextRegistry.Generation generation = registry.getGeneration();
+        String longText = "select " + Strings.repeat("x, ", 100) + "y from z";
+
+        // when
+        int index1 = generation.getIndex("select 1");
+        int index2 = generation.getIndex(longText);
+        int index3 = generation.getIndex("select 1");
+        int index4 = generation.getIndex(longText);
+
+        // then
+        assertThat(index1).isEqualTo(0);
+        assertThat(index2).isEqualTo(1);
+        assertThat(index3).isEqualTo(0);
+        assertThat(index4).isEqualTo(1);
+        assertThat(registry.getGeneration()).isSameAs(generation);
+    }
+
+    @Test
+    public void shouldAcknowledge() {
+        // given
+        QueryTextRegistry registry = new QueryTextRegistry();
+        registry.setSupported();
+        QueryTextRegistry.Generation generation = registry.getGeneration();
+        generation.getIndex("select 1");
+        generation.getIndex("select 2");
+
+        // when
+        generation.acknowledge(ImmutableList.of(1));
+
+        // then
+        assertThat(generation.isAcknowledged(0)).isFalse();
+        assertThat(generation.isAcknowledged(1)).isTrue();
+    }
+
+    @Test
+    public void shouldStartNewGenerationAfterOneDay() {
+        // given
+        final AtomicLong tick = new AtomicLong();
+        QueryTextRegistry registry = new QueryTextRegistry(new Ticker() {
+            @Override
+            public long read() {
+                return tick.get();
+            }
+        });
+        registry.setSupported();
+        QueryTextRegistry.Generation generation = registry.getGeneration();
+        generation.getIndex("select 1");
+
+        // when
+        tick.set(HOURS.toNanos(23));
+        QueryTextRegistry.Generation sameGeneration = registry.getGeneration();
+        tick.set(HOURS.toNanos(24));
+        QueryTextRegistry.Generation nextGeneration = registry.getGeneration();
+
+        // then
+        assertThat(sameGeneration).isSameAs(generation);
+        assertThat(nextGeneration).isNotSameAs(generation);
+        assertThat(nextGeneration.getId()).isNotEqualTo(generation.getId());
+        assertThat(nextGeneration.getIndex("select 2")).isEqualTo(0);
+    }
+}
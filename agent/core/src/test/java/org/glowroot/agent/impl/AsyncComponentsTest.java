@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.model.AsyncQueryData;
+import org.glowroot.agent.model.AsyncTimerImpl;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.MutableTraceTimer;
+import org.glowroot.agent.model.TimerNameImpl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AsyncComponentsTest {
+
+    private static final TimerNameImpl TIMER_NAME = ImmutableTimerNameImpl.of("abc", false);
+
+    @Test
+    public void testMergeCompletedAsyncTimers() {
+        // given
+        Ticker ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(10000L);
+        AsyncComponents asyncComponents = new AsyncComponents(500, 500, ticker);
+        List<AsyncTimerImpl> activeAsyncTimers = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 2500; i++) {
+            AsyncTimerImpl asyncTimer = asyncComponents.startAsyncTimer(TIMER_NAME, 0);
+            if (i % 100 == 0) {
+                activeAsyncTimers.add(asyncTimer);
+            } else {
+                asyncTimer.end(10);
+            }
+        }
+        for (AsyncTimerImpl asyncTimer : activeAsyncTimers) {
+            asyncTimer.end(20);
+        }
+        // then
+        RootTimerCollectorImpl rootTimers = new RootTimerCollectorImpl();
+        asyncComponents.mergeAsyncTimersInto(rootTimers);
+        assertThat(rootTimers.getRootTimers()).hasSize(1);
+        MutableTraceTimer rootTimer = rootTimers.getRootTimers().get(0);
+        assertThat(rootTimer.getName()).isEqualTo("abc");
+        assertThat(rootTimer.getCount()).isEqualTo(2500);
+        assertThat(rootTimer.getTotalNanos()).isEqualTo(2475 * 10 + 25 * 20);
+    }
+
+    @Test
+    public void testAsyncQueryDataDuration() {
+        // given
+        Ticker ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(1000L);
+        AsyncComponents asyncComponents = new AsyncComponents(500, 500, ticker);
+        AsyncQueryData queryData =
+                asyncComponents.getOrCreateAsyncQueryData("SQL", "select 1", false);
+        // when
+        queryData.start(100, 1);
+        queryData.end(300);
+        queryData.start(500, 1);
+        // then
+        assertThat(queryData.isActive()).isTrue();
+        assertThat(queryData.getExecutionCount()).isEqualTo(2);
+        assertThat(queryData.getTotalDurationNanos(ticker)).isEqualTo(200 + 500);
+        queryData.end(600);
+        assertThat(queryData.isActive()).isFalse();
+        assertThat(queryData.getTotalDurationNanos(ticker)).isEqualTo(200 + 100);
+    }
+}
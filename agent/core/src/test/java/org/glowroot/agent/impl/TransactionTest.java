@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,12 +15,39 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.collector.Collector.EntryVisitor;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.Transaction.CompletionCallback;
+import org.glowroot.agent.impl.Transaction.EntriesCursor;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.agent.util.Tickers;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
 
 public class TransactionTest {
 
+    private static final TimerNameImpl TIMER_NAME = ImmutableTimerNameImpl.builder()
+            .name("test")
+            .extended(false)
+            .build();
+
+    private static final TimerNameImpl AUX_TIMER_NAME = ImmutableTimerNameImpl.builder()
+            .name("aux")
+            .extended(false)
+            .build();
+
     @Test
     public void traceIdShouldBeThirtyTwoCharactersAndLowerCase() {
         // when
@@ -59,4 +86,158 @@ public class TransactionTest {
         // then
         assertThat(lowerSixBytes).isEqualTo("9ab0affd1a83");
     }
+
+    @Test
+    public void shouldVisitOnlyEntriesFollowingStableEntries() throws Exception {
+        // given
+        Ticker ticker = Tickers.getTicker();
+        Transaction transaction = createTransaction(ticker);
+        ThreadContextImpl threadContext = transaction.getMainThreadContext();
+        threadContext.startTraceEntry(MessageSupplier.create("one"), TIMER_NAME).end();
+        threadContext.startTraceEntry(MessageSupplier.create("two"), TIMER_NAME).end();
+        TraceEntry three = threadContext.startTraceEntry(MessageSupplier.create("three"),
+                TIMER_NAME);
+        CollectingEntryVisitor firstVisitor = new CollectingEntryVisitor();
+        EntriesCursor firstCursor = transaction.visitEntries(ticker.read(), 0, 0, firstVisitor);
+        three.end();
+        threadContext.startTraceEntry(MessageSupplier.create("four"), TIMER_NAME).end();
+
+        // when
+        CollectingEntryVisitor secondVisitor = new CollectingEntryVisitor();
+        EntriesCursor secondCursor = transaction.visitEntries(ticker.read(),
+                firstCursor.stableEntryCount(), firstCursor.stableEntryHash(), secondVisitor);
+
+        // then
+        assertThat(firstCursor.firstEntryIndex()).isZero();
+        assertThat(firstCursor.stableEntryCount()).isEqualTo(2);
+        assertThat(getMessages(firstVisitor)).containsExactly("one", "two", "three");
+        assertThat(secondCursor.firstEntryIndex()).isEqualTo(2);
+        assertThat(secondCursor.stableEntryCount()).isEqualTo(4);
+        assertThat(getMessages(secondVisitor)).containsExactly("three", "four");
+    }
+
+    @Test
+    public void shouldVisitAllEntriesWhenStableEntriesHaveChanged() throws Exception {
+        // given
+        Ticker ticker = Tickers.getTicker();
+        Transaction transaction = createTransaction(ticker);
+        ThreadContextImpl threadContext = transaction.getMainThreadContext();
+        TraceEntry one = threadContext.startTraceEntry(MessageSupplier.create("one"), TIMER_NAME);
+        one.end();
+        threadContext.startTraceEntry(MessageSupplier.create("two"), TIMER_NAME).end();
+        EntriesCursor firstCursor = transaction.visitEntries(ticker.read(), 0, 0,
+                new CollectingEntryVisitor());
+        // extending an entry changes its duration
+        one.extend().stop();
+
+        // when
+        CollectingEntryVisitor secondVisitor = new CollectingEntryVisitor();
+        EntriesCursor secondCursor = transaction.visitEntries(ticker.read(),
+                firstCursor.stableEntryCount(), firstCursor.stableEntryHash(), secondVisitor);
+
+        // then
+        assertThat(firstCursor.stableEntryCount()).isEqualTo(2);
+        assertThat(secondCursor.firstEntryIndex()).isZero();
+        assertThat(getMessages(secondVisitor)).containsExactly("one", "two");
+    }
+
+    @Test
+    public void shouldMergeCompletedAuxThreadContextsWithoutTraceEntries() throws Exception {
+        // given
+        Ticker ticker = Tickers.getTicker();
+        Transaction transaction = createTransaction(ticker);
+        ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
+        List<ThreadContextImpl> auxThreadContexts = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            auxThreadContexts.add(transaction.startAuxThreadContext(
+                    mainThreadContext.getRootEntry(), mainThreadContext.getTailEntry(),
+                    AUX_TIMER_NAME, ticker.read(), mock(ThreadContextThreadLocal.Holder.class),
+                    null, null));
+        }
+        auxThreadContexts.get(1).startTraceEntry(MessageSupplier.create("one"), TIMER_NAME).end();
+
+        // when
+        for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+            auxThreadContext.popEntry(auxThreadContext.getRootEntry(), ticker.read());
+        }
+
+        // then
+        RootTimerCollectorImpl rootTimers = new RootTimerCollectorImpl();
+        transaction.mergeAuxThreadTimersInto(rootTimers);
+        List<Trace.Timer> auxThreadRootTimers = rootTimers.toProto();
+        assertThat(auxThreadRootTimers).hasSize(1);
+        assertThat(auxThreadRootTimers.get(0).getName()).isEqualTo("aux");
+        assertThat(auxThreadRootTimers.get(0).getCount()).isEqualTo(3);
+        CollectingEntryVisitor visitor = new CollectingEntryVisitor();
+        transaction.visitEntries(ticker.read(), visitor);
+        assertThat(getMessages(visitor)).containsExactly("auxiliary thread", "one");
+    }
+
+    @Test
+    public void shouldMergeAuxThreadContextsCompletedConcurrently() throws Exception {
+        // given
+        final Ticker ticker = Tickers.getTicker();
+        Transaction transaction = createTransaction(ticker);
+        ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            final List<ThreadContextImpl> auxThreadContexts = Lists.newArrayList();
+            for (int j = 0; j < 100; j++) {
+                auxThreadContexts.add(transaction.startAuxThreadContext(
+                        mainThreadContext.getRootEntry(), mainThreadContext.getTailEntry(),
+                        AUX_TIMER_NAME, ticker.read(), mock(ThreadContextThreadLocal.Holder.class),
+                        null, null));
+            }
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+                        auxThreadContext.popEntry(auxThreadContext.getRootEntry(), ticker.read());
+                    }
+                }
+            }));
+        }
+
+        // when
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // then
+        RootTimerCollectorImpl rootTimers = new RootTimerCollectorImpl();
+        transaction.mergeAuxThreadTimersInto(rootTimers);
+        List<Trace.Timer> auxThreadRootTimers = rootTimers.toProto();
+        assertThat(auxThreadRootTimers).hasSize(1);
+        assertThat(auxThreadRootTimers.get(0).getCount()).isEqualTo(800);
+        assertThat(transaction.getActiveAuxThreadContexts()).isEmpty();
+    }
+
+    private static Transaction createTransaction(Ticker ticker) {
+        return new Transaction(System.currentTimeMillis(), ticker.read(), "type", "name",
+                MessageSupplier.create("root"), TIMER_NAME, false, 100, 10, 10, 10, null,
+                mock(CompletionCallback.class), ticker, mock(TransactionRegistry.class),
+                mock(TransactionService.class), mock(ConfigService.class),
+                mock(UserProfileScheduler.class), mock(ThreadContextThreadLocal.Holder.class));
+    }
+
+    private static List<String> getMessages(CollectingEntryVisitor visitor) {
+        List<String> messages = Lists.newArrayList();
+        for (Trace.Entry entry : visitor.entries) {
+            messages.add(entry.getMessage());
+        }
+        return messages;
+    }
+
+    private static class CollectingEntryVisitor implements EntryVisitor {
+
+        private final List<Trace.Entry> entries = Lists.newArrayList();
+
+        @Override
+        public void visitEntry(Trace.Entry entry) {
+            entries.add(entry);
+        }
+    }
 }
@@ -18,16 +18,24 @@ package org.glowroot.agent.init;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 
 import org.glowroot.agent.collector.Collector;
@@ -41,6 +49,7 @@ import org.glowroot.agent.util.LazyPlatformMBeanServer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
@@ -48,6 +57,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -56,6 +66,7 @@ import static org.mockito.Mockito.when;
 public class GaugeCollectorTest {
 
     private GaugeCollector gaugeCollector;
+    private ConfigService configService;
     private LazyPlatformMBeanServer lazyPlatformMBeanServer;
     private Clock clock;
     private Ticker ticker;
@@ -63,7 +74,7 @@ public class GaugeCollectorTest {
 
     @Before
     public void beforeEachTest() throws Exception {
-        ConfigService configService = mock(ConfigService.class);
+        configService = mock(ConfigService.class);
         AdvancedConfig advancedConfig =
                 ImmutableAdvancedConfig.builder().mbeanGaugeNotFoundDelaySeconds(60).build();
         when(configService.getAdvancedConfig()).thenReturn(advancedConfig);
@@ -102,6 +113,35 @@ public class GaugeCollectorTest {
         assertThat(gaugeValues.get(0).getWeight()).isEqualTo(1);
     }
 
+    @Test
+    public void shouldReadAllAttributesInOneCall() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("test:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
+                .build();
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 555));
+        attributeList.add(new Attribute("ddd", "666"));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(attributeList);
+
+        // when
+        List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
+
+        // then
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getGaugeName()).isEqualTo("test:aaa=bbb:ccc");
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(555);
+        assertThat(gaugeValues.get(1).getGaugeName()).isEqualTo("test:aaa=bbb:ddd");
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(666);
+        verify(lazyPlatformMBeanServer).getAttributes(ObjectName.getInstance("test:aaa=bbb"),
+                new String[] {"ccc", "ddd"});
+        verify(lazyPlatformMBeanServer, never()).getAttribute(any(ObjectName.class),
+                anyString());
+    }
+
     @Test
     public void shouldNotCaptureCounterGauge() throws Exception {
         // given
@@ -331,6 +371,47 @@ public class GaugeCollectorTest {
                 "MBean attribute value is not a number or string");
     }
 
+    @Test
+    public void shouldAbandonWedgedSlowMBeanRead() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+        when(configService.getGaugeConfigs()).thenReturn(ImmutableList.of(gaugeConfig));
+        final AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 555));
+        final AtomicInteger readCount = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenAnswer(new Answer<AttributeList>() {
+                    @Override
+                    public AttributeList answer(InvocationOnMock invocation) {
+                        if (readCount.getAndIncrement() == 0) {
+                            // slow enough to move the mbean to the slow lane
+                            Uninterruptibles.sleepUninterruptibly(200, MILLISECONDS);
+                        } else {
+                            // wedged
+                            Uninterruptibles.awaitUninterruptibly(latch);
+                        }
+                        return attributeList;
+                    }
+                });
+
+        // when
+        gaugeCollector.runInternal();
+        gaugeCollector.runInternal();
+        gaugeCollector.runInternal();
+        latch.countDown();
+
+        // then
+        // the wedged read from the second cycle does not prevent the mbean from being read again
+        assertThat(readCount.get()).isEqualTo(3);
+        ObjectName objectName = ObjectName.getInstance("xyz:aaa=bbb");
+        verify(logger).debug("moving mbean to slow collection lane: {}", objectName);
+        verify(logger, times(2)).debug("abandoning slow mbean read: {}", objectName);
+    }
+
     private static void setLogger(Class<?> clazz, Logger logger) throws Exception {
         Field loggerField = clazz.getDeclaredField("logger");
         loggerField.setAccessible(true);
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ObjectNameCacheTest {
+
+    private MBeanServer mbeanServer;
+    private LazyPlatformMBeanServer lazyPlatformMBeanServer;
+    private ObjectNameCache objectNameCache;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        mbeanServer = MBeanServerFactory.newMBeanServer();
+        lazyPlatformMBeanServer = mock(LazyPlatformMBeanServer.class);
+        when(lazyPlatformMBeanServer.queryNames(any(ObjectName.class), isNull()))
+                .thenAnswer(new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) throws Throwable {
+                        return mbeanServer.queryNames(
+                                invocation.<ObjectName>getArgument(0), null);
+                    }
+                });
+        objectNameCache = new ObjectNameCache(lazyPlatformMBeanServer);
+    }
+
+    @Test
+    public void shouldQueryEachTimeWhenNotListening() throws Exception {
+        // given
+        ObjectName pattern = ObjectName.getInstance("test:type=Sample,name=*");
+        register("test:type=Sample,name=one");
+
+        // when
+        objectNameCache.queryNames(pattern);
+        objectNameCache.queryNames(pattern);
+
+        // then
+        verify(lazyPlatformMBeanServer, times(2)).queryNames(pattern, null);
+    }
+
+    @Test
+    public void shouldTrackRegistrationAndUnregistration() throws Exception {
+        // given
+        objectNameCache.startListening(mbeanServer);
+        ObjectName pattern = ObjectName.getInstance("test:type=Sample,name=*");
+        register("test:type=Sample,name=one");
+        assertThat(objectNameCache.queryNames(pattern))
+                .containsOnly(ObjectName.getInstance("test:type=Sample,name=one"));
+
+        // when
+        register("test:type=Sample,name=two");
+        register("test:type=Other,name=three");
+        mbeanServer.unregisterMBean(ObjectName.getInstance("test:type=Sample,name=one"));
+
+        // then
+        assertThat(objectNameCache.queryNames(pattern))
+                .containsOnly(ObjectName.getInstance("test:type=Sample,name=two"));
+        verify(lazyPlatformMBeanServer).queryNames(pattern, null);
+    }
+
+    private void register(String name) throws Exception {
+        mbeanServer.registerMBean(new Sample(), ObjectName.getInstance(name));
+    }
+
+    public interface SampleMBean {
+        int getValue();
+    }
+
+    public static class Sample implements SampleMBean {
+        @Override
+        public int getValue() {
+            return 1;
+        }
+    }
+}
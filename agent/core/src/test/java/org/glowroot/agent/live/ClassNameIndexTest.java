@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassNameIndexTest {
+
+    private static final List<String> CLASS_NAMES = ImmutableList.of(
+            "com.example.Builder",
+            "com.example.BuilderFactory",
+            "com.example.Outer$Builder",
+            "com.example.builder.Tool",
+            "com.example.RebuilderTool",
+            "org.other.Bu");
+
+    @Test
+    public void shouldMatchAtBoundaries() {
+        // given
+        ClassNameIndex index = new ClassNameIndex(Long.MAX_VALUE);
+        index.addAll(CLASS_NAMES);
+
+        // when
+        List<String> classNames = index.getMatchingClassNames("builder", 10);
+
+        // then
+        assertThat(classNames).containsExactly("com.example.Builder", "com.example.Outer$Builder",
+                "com.example.BuilderFactory", "com.example.builder.Tool");
+    }
+
+    @Test
+    public void shouldMatchShortAndQualifiedPartialClassNames() {
+        // given
+        ClassNameIndex index = new ClassNameIndex(Long.MAX_VALUE);
+        index.addAll(CLASS_NAMES);
+
+        // when
+        List<String> shortClassNames = index.getMatchingClassNames("b", 10);
+        List<String> qualifiedClassNames = index.getMatchingClassNames("example.outer$b", 10);
+
+        // then
+        assertThat(shortClassNames).containsExactly("com.example.Builder",
+                "com.example.BuilderFactory", "com.example.Outer$Builder",
+                "com.example.builder.Tool", "org.other.Bu");
+        assertThat(qualifiedClassNames).containsExactly("com.example.Outer$Builder");
+    }
+
+    @Test
+    public void shouldApplyLimitInSortedOrder() {
+        // given
+        ClassNameIndex index = new ClassNameIndex(Long.MAX_VALUE);
+        index.addAll(ImmutableList.copyOf(CLASS_NAMES).reverse());
+
+        // when
+        List<String> classNames = index.getMatchingClassNames("bu", 3);
+
+        // then
+        assertThat(classNames).containsExactly("org.other.Bu", "com.example.Builder",
+                "com.example.BuilderFactory");
+    }
+
+    @Test
+    public void shouldApplyLimitAcrossBatches() {
+        // given
+        ClassNameIndex index = new ClassNameIndex(Long.MAX_VALUE);
+        index.addAll(ImmutableList.of("com.example.Zoo", "com.example.ZooKeeper"));
+        index.addAll(ImmutableList.of("com.example.ZooAnimal", "com.example.ZebraZoo"));
+
+        // when
+        List<String> classNames = index.getMatchingClassNames("zoo", 3);
+
+        // then
+        assertThat(classNames).containsExactly("com.example.Zoo", "com.example.ZooAnimal",
+                "com.example.ZooKeeper");
+    }
+
+    @Test
+    public void shouldNotIndexDuplicatesOrArrays() {
+        // given
+        ClassNameIndex index = new ClassNameIndex(Long.MAX_VALUE);
+
+        // when
+        index.addAll(CLASS_NAMES);
+        index.addAll(ImmutableList.of("com.example.Builder", "[Lcom.example.Builder;"));
+
+        // then
+        assertThat(index.size()).isEqualTo(CLASS_NAMES.size());
+    }
+
+    @Test
+    public void shouldFallBackWhenOverBudget() {
+        // given
+        ClassNameIndex index = new ClassNameIndex(1024);
+
+        // when
+        boolean added = index.addAll(CLASS_NAMES);
+
+        // then
+        assertThat(added).isFalse();
+        assertThat(index.getMatchingClassNames("builder", 10)).isNull();
+    }
+}
@@ -30,6 +30,7 @@ import org.glowroot.agent.weaving.AnalyzedWorld;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class ClasspathCacheTest {
@@ -103,6 +104,24 @@ public class ClasspathCacheTest {
         }
     }
 
+    @Test
+    public void shouldNotRefreshLoadedClassesOnEverySearch() {
+        // given
+        AnalyzedWorld analyzedWorld = mock(AnalyzedWorld.class);
+        when(analyzedWorld.getClassLoaders()).thenReturn(ImmutableList.<ClassLoader>of());
+        Instrumentation instrumentation = mock(Instrumentation.class);
+        when(instrumentation.getAllLoadedClasses()).thenReturn(new Class[] {A.class});
+        ClasspathCache cache = new ClasspathCache(analyzedWorld, instrumentation);
+
+        // when
+        List<String> classNames = cache.getMatchingClassNames("ClasspathCacheTest$A", 5);
+        cache.getMatchingClassNames("ClasspathCacheTest$B", 5);
+
+        // then
+        assertThat(classNames).contains(A.class.getName());
+        verify(instrumentation).getAllLoadedClasses();
+    }
+
     @Test
     public void shouldAnalyzedMethods() {
         List<UiAnalyzedMethod> methods = classpathCache.getAnalyzedMethods(A.class.getName());
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.live.HeapHistogramTool.ClassInfo;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HeapHistogramToolTest {
+
+    @Test
+    public void shouldReturnLargest() {
+        // given
+        List<ClassInfo> classInfos = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            // mix up the order
+            int bytes = (i * 37) % 100;
+            ClassInfo classInfo = new ClassInfo("class" + bytes);
+            classInfo.add(bytes, 1);
+            classInfos.add(classInfo);
+        }
+
+        // when
+        List<ClassInfo> largest = HeapHistogramTool.getLargest(classInfos, 3);
+        List<ClassInfo> all = HeapHistogramTool.getLargest(classInfos, 0);
+
+        // then
+        assertThat(largest).hasSize(3);
+        assertThat(largest.get(0).className()).isEqualTo("class99");
+        assertThat(largest.get(1).className()).isEqualTo("class98");
+        assertThat(largest.get(2).className()).isEqualTo("class97");
+        assertThat(all).hasSize(100);
+        assertThat(all.get(0).className()).isEqualTo("class99");
+        assertThat(all.get(99).className()).isEqualTo("class0");
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.impl.Transaction;
+import org.glowroot.agent.impl.TransactionCollector;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.live.LiveJvmServiceImpl.ChunkHandler;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ThreadDumpServiceTest {
+
+    @Test
+    public void shouldSplitIntoChunks() {
+        // given
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getTransactions())
+                .thenReturn(ImmutableList.<Transaction>of());
+        ThreadDumpService threadDumpService =
+                new ThreadDumpService(transactionRegistry, mock(TransactionCollector.class));
+        final List<ThreadDump> chunks = Lists.newArrayList();
+        final List<Boolean> lastFlags = Lists.newArrayList();
+
+        // when
+        threadDumpService.getThreadDump(2, new ChunkHandler<ThreadDump>() {
+            @Override
+            public void onChunk(ThreadDump chunk, boolean last) {
+                chunks.add(chunk);
+                lastFlags.add(last);
+            }
+        });
+
+        // then
+        assertThat(chunks.size()).isGreaterThan(1);
+        ThreadDump.Builder merged = ThreadDump.newBuilder();
+        for (int i = 0; i < chunks.size(); i++) {
+            ThreadDump chunk = chunks.get(i);
+            assertThat(chunk.getUnmatchedThreadCount()).isLessThanOrEqualTo(2);
+            assertThat(lastFlags.get(i)).isEqualTo(i == chunks.size() - 1);
+            merged.mergeFrom(chunk);
+        }
+        assertThat(merged.getThreadDumpingThread().getName())
+                .isEqualTo(Thread.currentThread().getName());
+        assertThat(merged.getUnmatchedThreadCount()).isGreaterThanOrEqualTo(2);
+    }
+}
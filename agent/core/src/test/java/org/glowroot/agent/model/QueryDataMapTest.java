@@ -42,4 +42,20 @@ public class QueryDataMapTest {
             assertThat(map.get(new String(entry.getKey()))).isEqualTo(entry.getValue());
         }
     }
+
+    @Test
+    public void testHashCollision() {
+        // given
+        QueryDataMap map = new QueryDataMap("");
+        // "Aa" and "BB" have the same hash code
+        SyncQueryData aa = mock(SyncQueryData.class);
+        SyncQueryData bb = mock(SyncQueryData.class);
+        // when
+        map.put("Aa", aa);
+        map.put("BB", bb);
+        // then
+        assertThat(map.get(new String("Aa"))).isEqualTo(aa);
+        assertThat(map.get(new String("BB"))).isEqualTo(bb);
+        assertThat(map.get("AaAa")).isNull();
+    }
 }
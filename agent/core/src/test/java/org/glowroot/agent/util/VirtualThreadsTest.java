@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void shouldNotConsiderPlatformThreadVirtual() throws Exception {
+        // given
+        final boolean[] virtual = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                virtual[0] = VirtualThreads.isCurrentThreadVirtual();
+            }
+        });
+
+        // when
+        thread.start();
+        thread.join();
+
+        // then
+        assertThat(virtual[0]).isFalse();
+        assertThat(VirtualThreads.isVirtual(Thread.currentThread())).isFalse();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AccessorGeneratorTest {
+
+    @Test
+    public void shouldGenerateMethodAccessors() throws Exception {
+        assertThat(AccessorGenerator.generate(Bean.class.getMethod("getName"))
+                .evaluate(new Bean())).isEqualTo("abc");
+        assertThat(AccessorGenerator.generate(Bean.class.getMethod("getCount"))
+                .evaluate(new Bean())).isEqualTo(3);
+        assertThat(AccessorGenerator.generate(Bean.class.getMethod("isEnabled"))
+                .evaluate(new Bean())).isEqualTo(true);
+        assertThat(AccessorGenerator.generate(Bean.class.getMethod("getStaticName"))
+                .evaluate(new Bean())).isEqualTo("xyz");
+        assertThat(AccessorGenerator.generate(List.class.getMethod("size"))
+                .evaluate(ImmutableList.of("a", "b"))).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldGenerateFieldAccessors() throws Exception {
+        assertThat(AccessorGenerator.generate(Bean.class.getField("id")).evaluate(new Bean()))
+                .isEqualTo(123L);
+    }
+
+    @Test
+    public void shouldNotGenerateForNonPublicMembers() throws Exception {
+        assertThat(AccessorGenerator.generate(Bean.class.getDeclaredMethod("getPrivateName")))
+                .isNull();
+        assertThat(AccessorGenerator.generate(NonPublicBean.class.getMethod("getName"))).isNull();
+    }
+
+    @Test
+    public void shouldWrapExceptionsForConsistencyWithReflection() throws Exception {
+        Accessor accessor = Accessor.fromMethod(Bean.class.getMethod("getThrowingName")).compile();
+        Exception exception = null;
+        try {
+            accessor.evaluate(new Bean());
+        } catch (Exception e) {
+            exception = e;
+        }
+        assertThat(exception).isInstanceOf(InvocationTargetException.class);
+        assertThat(exception.getCause()).hasMessage("Abc Xyz");
+    }
+
+    public static class Bean {
+
+        public final long id = 123;
+
+        public String getName() {
+            return "abc";
+        }
+
+        public int getCount() {
+            return 3;
+        }
+
+        public boolean isEnabled() {
+            return true;
+        }
+
+        public String getThrowingName() {
+            throw new RuntimeException("Abc Xyz");
+        }
+
+        public static String getStaticName() {
+            return "xyz";
+        }
+
+        @SuppressWarnings("unused")
+        private String getPrivateName() {
+            return "abc";
+        }
+    }
+
+    static class NonPublicBean {
+        public String getName() {
+            return "abc";
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.weaving;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.Test;
 
 import org.glowroot.agent.plugin.api.Message;
@@ -173,6 +174,17 @@ public class GenericMessageSupplierTest {
         assertThat(text).isEqualTo(TestReceiver.class.getName() + ".execute(): 2");
     }
 
+    @Test
+    public void shouldRenderImmutableValues() throws Exception {
+        MessageTemplateImpl template = MessageTemplateImpl.create(
+                "{{0.count}} {{0.enabled}} {{0.nullName}} {{0.name}}",
+                TestImmutableValuesReceiver.class.getMethod("execute", HasImmutableValues.class));
+        Message message = GenericMessageSupplier.create(template,
+                new TestImmutableValuesReceiver(), "execute", new HasImmutableValues()).get();
+        String text = ((ReadableMessage) message).getText();
+        assertThat(text).isEqualTo("3 true null the name");
+    }
+
     public static class HasName {
         public String getName() {
             return "the name";
@@ -200,10 +212,29 @@ public class GenericMessageSupplierTest {
         }
     }
 
+    public static class HasImmutableValues {
+        public int getCount() {
+            return 3;
+        }
+        public boolean isEnabled() {
+            return true;
+        }
+        public @Nullable String getNullName() {
+            return null;
+        }
+        public String getName() {
+            return "the name";
+        }
+    }
+
     public static class TestReceiver {
         public void execute(@SuppressWarnings("unused") HasName arg) {}
     }
 
+    public static class TestImmutableValuesReceiver {
+        public void execute(@SuppressWarnings("unused") HasImmutableValues arg) {}
+    }
+
     public static class TestArrayReceiver {
         public void execute(@SuppressWarnings("unused") HasArray arg) {}
     }
@@ -68,7 +68,6 @@ class PreInitializeStorageShutdownClasses {
         List<String> types = Lists.newArrayList();
         types.addAll(getGlowrootUsedTypes());
         types.addAll(getH2UsedTypes());
-        types.addAll(getGuavaUsedTypes());
         types.addAll(javaUsedTypes());
         return types;
     }
@@ -80,7 +79,6 @@ class PreInitializeStorageShutdownClasses {
         types.add("org.glowroot.agent.embedded.util.CappedDatabaseOutputStream");
         types.add("org.glowroot.agent.embedded.util.DataSource");
         types.add("org.glowroot.agent.embedded.util.DataSource$ShutdownHookThread");
-        types.add("org.glowroot.agent.util.JavaVersion");
         return types;
     }
 
@@ -112,12 +110,6 @@ class PreInitializeStorageShutdownClasses {
         return types;
     }
 
-    private static List<String> getGuavaUsedTypes() {
-        List<String> types = Lists.newArrayList();
-        types.add("com.google.common.base.StandardSystemProperty");
-        return types;
-    }
-
     @VisibleForTesting
     static List<String> maybeUsedTypes() {
         List<String> types = Lists.newArrayList();
@@ -20,21 +20,28 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLongArray;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.embedded.repo.AggregateSegmentStore.CoveredRange;
 import org.glowroot.agent.embedded.repo.model.Stored;
 import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.ColumnarSegment.RowVisitor;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
@@ -46,9 +53,11 @@ import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.common.Constants;
+import org.glowroot.common.live.ImmutableOverallQuery;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
@@ -79,6 +88,8 @@ import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class AggregateDao implements AggregateRepository {
 
+    private static final Logger logger = LoggerFactory.getLogger(AggregateDao.class);
+
     private static final String AGENT_ID = "";
 
     private static final ImmutableList<Column> overallAggregatePointColumns =
@@ -151,6 +162,7 @@ public class AggregateDao implements AggregateRepository {
     private final ConfigRepositoryImpl configRepository;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
+    private final @Nullable AggregateSegmentStore segmentStore;
 
     private final AtomicLongArray lastRollupTimes;
 
@@ -158,12 +170,14 @@ public class AggregateDao implements AggregateRepository {
 
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepositoryImpl configRepository, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao) throws Exception {
+            FullQueryTextDao fullQueryTextDao, @Nullable AggregateSegmentStore segmentStore)
+            throws Exception {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.configRepository = configRepository;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
+        this.segmentStore = segmentStore;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         for (int i = 0; i < rollupConfigs.size(); i++) {
@@ -243,6 +257,16 @@ public class AggregateDao implements AggregateRepository {
                     rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1);
                     lastRollupTimes.set(i, safeRollupTime);
                 }
+                if (segmentStore != null) {
+                    try {
+                        segmentStore.writeClosedSegments(i, lastRollupTimes.get(i));
+                    } catch (Exception e) {
+                        // segments are optional (uncovered ranges are read from h2), so this
+                        // should not prevent the remaining rollup levels from being rolled up,
+                        // and the segment will be retried on the next store
+                        logger.error(e.getMessage(), e);
+                    }
+                }
             }
         }
     }
@@ -250,33 +274,95 @@ public class AggregateDao implements AggregateRepository {
     // query.from() is non-inclusive
     @Override
     public void mergeOverallSummaryInto(String agentRollupId, OverallQuery query,
-            OverallSummaryCollector collector) throws Exception {
-        dataSource.query(new OverallSummaryQuery(collector, query));
+            final OverallSummaryCollector collector) throws Exception {
+        List<OverallQuery> h2Queries = scanSegments(query, new RowVisitor() {
+            @Override
+            public void visit(long captureTime, @Nullable String transactionName,
+                    double totalDurationNanos, long transactionCount, long errorCount) {
+                if (transactionName == null) {
+                    collector.mergeSummary(totalDurationNanos, transactionCount, captureTime);
+                }
+            }
+        });
+        for (OverallQuery h2Query : h2Queries) {
+            dataSource.query(new OverallSummaryQuery(collector, h2Query));
+        }
     }
 
     // query.from() is non-inclusive
     @Override
     public void mergeTransactionSummariesInto(String agentRollupId, OverallQuery query,
-            SummarySortOrder sortOrder, int limit, TransactionSummaryCollector collector)
+            SummarySortOrder sortOrder, int limit, final TransactionSummaryCollector collector)
             throws Exception {
-        dataSource.query(
-                new TransactionSummaryQuery(query, sortOrder, limit, collector));
+        List<OverallQuery> h2Queries = scanSegments(query, new RowVisitor() {
+            @Override
+            public void visit(long captureTime, @Nullable String transactionName,
+                    double totalDurationNanos, long transactionCount, long errorCount) {
+                if (transactionName != null) {
+                    collector.collect(transactionName, totalDurationNanos, transactionCount,
+                            captureTime);
+                }
+            }
+        });
+        for (OverallQuery h2Query : h2Queries) {
+            dataSource.query(new TransactionSummaryQuery(h2Query, sortOrder, limit, collector));
+        }
     }
 
     // query.from() is non-inclusive
     @Override
     public void mergeOverallErrorSummaryInto(String agentRollupId, OverallQuery query,
-            OverallErrorSummaryCollector collector) throws Exception {
-        dataSource.query(new OverallErrorSummaryQuery(collector, query));
+            final OverallErrorSummaryCollector collector) throws Exception {
+        List<OverallQuery> h2Queries = scanSegments(query, new RowVisitor() {
+            @Override
+            public void visit(long captureTime, @Nullable String transactionName,
+                    double totalDurationNanos, long transactionCount, long errorCount) {
+                if (transactionName == null) {
+                    collector.mergeErrorSummary(errorCount, transactionCount, captureTime);
+                }
+            }
+        });
+        for (OverallQuery h2Query : h2Queries) {
+            dataSource.query(new OverallErrorSummaryQuery(collector, h2Query));
+        }
     }
 
     // query.from() is non-inclusive
     @Override
     public void mergeTransactionErrorSummariesInto(String agentRollupId, OverallQuery query,
-            ErrorSummarySortOrder sortOrder, int limit, TransactionErrorSummaryCollector collector)
-            throws Exception {
-        dataSource.query(new TransactionErrorSummaryQuery(query, sortOrder, limit,
-                collector));
+            ErrorSummarySortOrder sortOrder, int limit,
+            final TransactionErrorSummaryCollector collector) throws Exception {
+        // error summaries only include transaction names with errors (see "having" clause in
+        // TransactionErrorSummaryQuery), so need to sum up before passing to the collector
+        final Map<String, MutableErrorSummary> errorSummaries = Maps.newHashMap();
+        List<OverallQuery> h2Queries = scanSegments(query, new RowVisitor() {
+            @Override
+            public void visit(long captureTime, @Nullable String transactionName,
+                    double totalDurationNanos, long transactionCount, long errorCount) {
+                if (transactionName == null) {
+                    return;
+                }
+                MutableErrorSummary errorSummary = errorSummaries.get(transactionName);
+                if (errorSummary == null) {
+                    errorSummary = new MutableErrorSummary();
+                    errorSummaries.put(transactionName, errorSummary);
+                }
+                errorSummary.errorCount += errorCount;
+                errorSummary.transactionCount += transactionCount;
+                errorSummary.maxCaptureTime = Math.max(errorSummary.maxCaptureTime, captureTime);
+            }
+        });
+        for (Map.Entry<String, MutableErrorSummary> entry : errorSummaries.entrySet()) {
+            MutableErrorSummary errorSummary = entry.getValue();
+            if (errorSummary.errorCount > 0) {
+                collector.collect(entry.getKey(), errorSummary.errorCount,
+                        errorSummary.transactionCount, errorSummary.maxCaptureTime);
+            }
+        }
+        for (OverallQuery h2Query : h2Queries) {
+            dataSource.query(
+                    new TransactionErrorSummaryQuery(h2Query, sortOrder, limit, collector));
+        }
     }
 
     // query.from() is INCLUSIVE
@@ -297,7 +383,36 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
-        return dataSource.query(new ThroughputAggregateQuery(query));
+        CoveredRange coveredRange = segmentStore == null ? null
+                : segmentStore.getCoveredRange(query.rollupLevel(), query.from() - 1, query.to());
+        if (coveredRange == null) {
+            return dataSource.query(new ThroughputAggregateQuery(query));
+        }
+        final List<ThroughputAggregate> throughputAggregates = Lists.newArrayList();
+        if (query.from() <= coveredRange.from()) {
+            throughputAggregates.addAll(dataSource.query(new ThroughputAggregateQuery(
+                    ImmutableTransactionQuery.copyOf(query).withTo(coveredRange.from()))));
+        }
+        final String transactionName = query.transactionName();
+        checkNotNull(segmentStore).scan(query.rollupLevel(), coveredRange.from(),
+                coveredRange.to(), query.transactionType(), new RowVisitor() {
+                    @Override
+                    public void visit(long captureTime, @Nullable String rowTransactionName,
+                            double totalDurationNanos, long transactionCount, long errorCount) {
+                        if (Objects.equal(rowTransactionName, transactionName)) {
+                            throughputAggregates.add(ImmutableThroughputAggregate.builder()
+                                    .captureTime(captureTime)
+                                    .transactionCount(transactionCount)
+                                    .errorCount(errorCount)
+                                    .build());
+                        }
+                    }
+                });
+        if (coveredRange.to() < query.to()) {
+            throughputAggregates.addAll(dataSource.query(new ThroughputAggregateQuery(
+                    ImmutableTransactionQuery.copyOf(query).withFrom(coveredRange.to() + 1))));
+        }
+        return throughputAggregates;
     }
 
     @Override
@@ -423,6 +538,39 @@ public class AggregateDao implements AggregateRepository {
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
         dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        if (segmentStore != null) {
+            segmentStore.deleteBefore(captureTime, rollupLevel);
+        }
+    }
+
+    void reinitAfterDeletingDatabase() {
+        if (segmentStore != null) {
+            segmentStore.deleteAll();
+        }
+    }
+
+    // reads the part of the query range that is covered by columnar segments (if any), and returns
+    // the remaining parts of the query range that need to be read from h2
+    private List<OverallQuery> scanSegments(OverallQuery query, RowVisitor visitor)
+            throws Exception {
+        if (segmentStore == null) {
+            return ImmutableList.of(query);
+        }
+        CoveredRange coveredRange =
+                segmentStore.getCoveredRange(query.rollupLevel(), query.from(), query.to());
+        if (coveredRange == null) {
+            return ImmutableList.of(query);
+        }
+        segmentStore.scan(query.rollupLevel(), coveredRange.from(), coveredRange.to(),
+                query.transactionType(), visitor);
+        List<OverallQuery> h2Queries = Lists.newArrayList();
+        if (query.from() < coveredRange.from()) {
+            h2Queries.add(ImmutableOverallQuery.copyOf(query).withTo(coveredRange.from()));
+        }
+        if (coveredRange.to() < query.to()) {
+            h2Queries.add(ImmutableOverallQuery.copyOf(query).withFrom(coveredRange.to()));
+        }
+        return h2Queries;
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
@@ -1288,4 +1436,10 @@ public class AggregateDao implements AggregateRepository {
         @Nullable
         String fullTextSha1();
     }
+
+    private static class MutableErrorSummary {
+        private long errorCount;
+        private long transactionCount;
+        private long maxCaptureTime;
+    }
 }
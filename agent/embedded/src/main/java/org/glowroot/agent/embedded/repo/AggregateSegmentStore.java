@@ -0,0 +1,379 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.embedded.util.ColumnarSegment;
+import org.glowroot.agent.embedded.util.ColumnarSegment.RowVisitor;
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.util.RollupLevelService;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
+// stores the summary columns of closed rollup intervals (rollup level 1 and above) in columnar
+// segment files, one file per rollup level per day, so that summary and chart queries over long
+// time ranges can scan compact columns instead of h2 rows
+//
+// segments are only ever appended after the last segment and deleted from the front, so the
+// segments for each rollup level always cover a single contiguous time range
+class AggregateSegmentStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(AggregateSegmentStore.class);
+
+    private static final long SEGMENT_MILLIS = DAYS.toMillis(1);
+
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile("rollup-(\\d+)-(\\d+)\\.seg");
+
+    private final File dir;
+    private final DataSource dataSource;
+
+    // indexed by rollup level, covered range is coveredFrom (non-inclusive) to coveredTo
+    // (inclusive), and -1 means not initialized yet
+    private final long[] coveredFrom;
+    private final long[] coveredTo;
+
+    private final Object lock = new Object();
+
+    // opened segments are cached so that each query does not have to re-open (and re-map) every
+    // segment in its range, and are closed when they are pruned
+    @GuardedBy("lock")
+    private final Map<File, OpenSegment> openSegments = Maps.newHashMap();
+
+    AggregateSegmentStore(File dir, DataSource dataSource, int rollupLevelCount)
+            throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        this.dir = dir;
+        this.dataSource = dataSource;
+        coveredFrom = new long[rollupLevelCount];
+        coveredTo = new long[rollupLevelCount];
+        Arrays.fill(coveredFrom, -1);
+        Arrays.fill(coveredTo, -1);
+        for (int rollupLevel = 1; rollupLevel < rollupLevelCount; rollupLevel++) {
+            initCoveredRange(rollupLevel);
+        }
+    }
+
+    // rollup must be complete up through lastRollupTime for the given rollup level
+    void writeClosedSegments(int rollupLevel, long lastRollupTime) throws Exception {
+        long segmentFrom;
+        synchronized (lock) {
+            if (coveredTo[rollupLevel] == -1) {
+                if (lastRollupTime == 0) {
+                    // no data rolled up yet
+                    return;
+                }
+                // segment coverage starts at the beginning of the current day, the segment for
+                // the current day is written (from h2) once the day is closed
+                long floorTime =
+                        RollupLevelService.getFloorRollupTime(lastRollupTime, SEGMENT_MILLIS);
+                coveredFrom[rollupLevel] = floorTime;
+                coveredTo[rollupLevel] = floorTime;
+            }
+            segmentFrom = coveredTo[rollupLevel];
+        }
+        // writing is only performed by a single thread (under AggregateDao rollup lock), so no
+        // need to hold the lock while reading from h2 and writing the segment file
+        while (segmentFrom + SEGMENT_MILLIS <= lastRollupTime) {
+            long segmentTo = segmentFrom + SEGMENT_MILLIS;
+            ColumnarSegment.Writer writer = new ColumnarSegment.Writer();
+            dataSource.query(new SegmentRowQuery(rollupLevel, segmentFrom, segmentTo, writer));
+            writer.write(getFile(rollupLevel, segmentFrom));
+            synchronized (lock) {
+                if (coveredTo[rollupLevel] != segmentFrom) {
+                    // deleteAll() was called concurrently
+                    return;
+                }
+                coveredTo[rollupLevel] = segmentTo;
+            }
+            segmentFrom = segmentTo;
+        }
+    }
+
+    // from is non-inclusive, to is inclusive
+    //
+    // returns the sub-range of the given range that is covered by segments, or null if no part of
+    // the given range is covered by segments
+    @Nullable
+    CoveredRange getCoveredRange(int rollupLevel, long from, long to) {
+        if (rollupLevel == 0 || rollupLevel >= coveredFrom.length) {
+            return null;
+        }
+        synchronized (lock) {
+            long coveredFrom = Math.max(from, this.coveredFrom[rollupLevel]);
+            long coveredTo = Math.min(to, this.coveredTo[rollupLevel]);
+            if (coveredFrom >= coveredTo) {
+                return null;
+            }
+            return ImmutableCoveredRange.of(coveredFrom, coveredTo);
+        }
+    }
+
+    // from is non-inclusive, to is inclusive, and the range must be covered by segments (see
+    // getCoveredRange() above)
+    void scan(int rollupLevel, long from, long to, String transactionType, RowVisitor visitor)
+            throws IOException {
+        long segmentFrom =
+                RollupLevelService.getCeilRollupTime(from + 1, SEGMENT_MILLIS) - SEGMENT_MILLIS;
+        for (; segmentFrom < to; segmentFrom += SEGMENT_MILLIS) {
+            OpenSegment openSegment;
+            try {
+                openSegment = acquire(getFile(rollupLevel, segmentFrom));
+            } catch (FileNotFoundException e) {
+                // segment was deleted after the covered range was calculated, which only happens
+                // when its data has expired
+                logger.debug(e.getMessage(), e);
+                continue;
+            }
+            try {
+                openSegment.segment.scan(from, to, transactionType, visitor);
+            } finally {
+                release(openSegment);
+            }
+        }
+    }
+
+    // capture times less than captureTime are expired (this matches DataSource.deleteBefore())
+    void deleteBefore(long captureTime, int rollupLevel) {
+        synchronized (lock) {
+            if (coveredFrom[rollupLevel] == -1 || coveredFrom[rollupLevel] >= captureTime - 1) {
+                return;
+            }
+            coveredFrom[rollupLevel] = Math.min(captureTime - 1, coveredTo[rollupLevel]);
+        }
+        for (SegmentFile segmentFile : listSegmentFiles(rollupLevel)) {
+            if (segmentFile.segmentFrom() + SEGMENT_MILLIS < captureTime) {
+                prune(segmentFile.file());
+                deleteFile(segmentFile.file());
+            }
+        }
+    }
+
+    void deleteAll() {
+        synchronized (lock) {
+            Arrays.fill(coveredFrom, -1);
+            Arrays.fill(coveredTo, -1);
+        }
+        for (int rollupLevel = 1; rollupLevel < coveredFrom.length; rollupLevel++) {
+            for (SegmentFile segmentFile : listSegmentFiles(rollupLevel)) {
+                prune(segmentFile.file());
+                deleteFile(segmentFile.file());
+            }
+        }
+    }
+
+    private OpenSegment acquire(File file) throws IOException {
+        synchronized (lock) {
+            OpenSegment openSegment = openSegments.get(file);
+            if (openSegment == null) {
+                openSegment = new OpenSegment(ColumnarSegment.open(file));
+                openSegments.put(file, openSegment);
+            }
+            openSegment.refCount++;
+            return openSegment;
+        }
+    }
+
+    private void release(OpenSegment openSegment) {
+        synchronized (lock) {
+            if (--openSegment.refCount == 0 && openSegment.pruned) {
+                openSegment.segment.close();
+            }
+        }
+    }
+
+    // the segment is closed right away unless it is still being scanned, in which case it is
+    // closed when the scan releases it
+    private void prune(File file) {
+        synchronized (lock) {
+            OpenSegment openSegment = openSegments.remove(file);
+            if (openSegment == null) {
+                return;
+            }
+            openSegment.pruned = true;
+            if (openSegment.refCount == 0) {
+                openSegment.segment.close();
+            }
+        }
+    }
+
+    private void initCoveredRange(int rollupLevel) {
+        List<SegmentFile> segmentFiles = listSegmentFiles(rollupLevel);
+        if (segmentFiles.isEmpty()) {
+            return;
+        }
+        int last = segmentFiles.size() - 1;
+        long segmentTo = segmentFiles.get(last).segmentFrom() + SEGMENT_MILLIS;
+        long segmentFrom = segmentFiles.get(last).segmentFrom();
+        for (int i = last - 1; i >= 0; i--) {
+            SegmentFile segmentFile = segmentFiles.get(i);
+            if (segmentFile.segmentFrom() == segmentFrom - SEGMENT_MILLIS) {
+                segmentFrom = segmentFile.segmentFrom();
+            } else {
+                // segments prior to a gap cannot be used (e.g. files deleted manually)
+                deleteFile(segmentFile.file());
+            }
+        }
+        coveredFrom[rollupLevel] = segmentFrom;
+        coveredTo[rollupLevel] = segmentTo;
+    }
+
+    // ordered by segmentFrom
+    private List<SegmentFile> listSegmentFiles(int rollupLevel) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return Lists.newArrayList();
+        }
+        List<SegmentFile> segmentFiles = Lists.newArrayList();
+        for (File file : files) {
+            Matcher matcher = FILE_NAME_PATTERN.matcher(file.getName());
+            if (matcher.matches() && Integer.parseInt(matcher.group(1)) == rollupLevel) {
+                segmentFiles.add(
+                        ImmutableSegmentFile.of(file, Long.parseLong(matcher.group(2))));
+            }
+        }
+        Collections.sort(segmentFiles, new Comparator<SegmentFile>() {
+            @Override
+            public int compare(SegmentFile left, SegmentFile right) {
+                return Longs.compare(left.segmentFrom(), right.segmentFrom());
+            }
+        });
+        return segmentFiles;
+    }
+
+    private File getFile(int rollupLevel, long segmentFrom) {
+        return new File(dir, "rollup-" + rollupLevel + "-" + segmentFrom + ".seg");
+    }
+
+    private static void deleteFile(File file) {
+        // deletion can fail on windows while the file is still memory-mapped by an in-progress
+        // query, in which case it will be retried on the next call to deleteBefore()
+        if (!file.delete() && file.exists()) {
+            logger.debug("could not delete segment file: {}", file.getAbsolutePath());
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface CoveredRange {
+        long from(); // non-inclusive
+        long to(); // inclusive
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SegmentFile {
+        File file();
+        long segmentFrom();
+    }
+
+    private static class OpenSegment {
+
+        private final ColumnarSegment segment;
+
+        // these are guarded by AggregateSegmentStore.lock
+        private int refCount;
+        private boolean pruned;
+
+        private OpenSegment(ColumnarSegment segment) {
+            this.segment = segment;
+        }
+    }
+
+    // streams the rows into the segment writer (ordered by capture time) instead of loading the
+    // whole day of rows into memory
+    private static class SegmentRowQuery implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final int rollupLevel;
+        private final long from;
+        private final long to;
+        private final ColumnarSegment.Writer writer;
+
+        private SegmentRowQuery(int rollupLevel, long from, long to,
+                ColumnarSegment.Writer writer) {
+            this.rollupLevel = rollupLevel;
+            this.from = from;
+            this.to = to;
+            this.writer = writer;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select capture_time, transaction_type, cast(null as varchar),"
+                    + " total_duration_nanos, transaction_count, error_count"
+                    + " from aggregate_tt_rollup_" + castUntainted(rollupLevel)
+                    + " where capture_time > ? and capture_time <= ? union all"
+                    + " select capture_time, transaction_type, transaction_name,"
+                    + " total_duration_nanos, transaction_count, error_count"
+                    + " from aggregate_tn_rollup_" + castUntainted(rollupLevel)
+                    + " where capture_time > ? and capture_time <= ? order by capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to);
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to);
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            while (resultSet.next()) {
+                int i = 1;
+                writer.add(resultSet.getLong(i++), checkNotNull(resultSet.getString(i++)),
+                        resultSet.getString(i++), resultSet.getDouble(i++),
+                        resultSet.getLong(i++), resultSet.getLong(i++));
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosed() {
+            return null;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Longs;
@@ -39,6 +40,8 @@ import org.glowroot.agent.embedded.util.ImmutableIndex;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.embedded.util.TimeSeriesBlock;
+import org.glowroot.agent.embedded.util.TimeSeriesBlock.SampleVisitor;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.GaugeValueRepository;
@@ -46,7 +49,9 @@ import org.glowroot.common2.repo.util.Gauges;
 import org.glowroot.common2.repo.util.RollupLevelService;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class GaugeValueDao implements GaugeValueRepository {
@@ -60,6 +65,18 @@ public class GaugeValueDao implements GaugeValueRepository {
             // for counters, it is the interval of time that the (averaged) value represents
             ImmutableColumn.of("weight", ColumnType.BIGINT));
 
+    // capture_time is the (inclusive) end of the block, and the block covers one hour
+    private static final ImmutableList<Column> blockColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("gauge_id", ColumnType.BIGINT),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("data", ColumnType.VARBINARY)); // TimeSeriesBlock
+
+    private static final long BLOCK_MILLIS = HOURS.toMillis(1);
+
+    // only the finer grained rollup levels are compacted into blocks, coarser levels have too few
+    // values per hour to benefit from the block encoding
+    private static final int BLOCK_ROLLUP_LEVEL_COUNT = 3;
+
     private final GaugeIdDao gaugeIdDao;
     private final GaugeNameDao gaugeNameDao;
     private final DataSource dataSource;
@@ -71,12 +88,19 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     private final Object rollupLock = new Object();
 
+    private final boolean useBlocks;
+
+    // values with capture time up to and including the last compaction time are stored in
+    // blocks, and values after it are stored as rows (AtomicLongArray used for visibility)
+    private final AtomicLongArray lastCompactionTimes;
+
     GaugeValueDao(DataSource dataSource, GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao,
-            Clock clock) throws Exception {
+            Clock clock, boolean useBlocks) throws Exception {
         this.dataSource = dataSource;
         this.gaugeIdDao = gaugeIdDao;
         this.gaugeNameDao = gaugeNameDao;
         this.clock = clock;
+        this.useBlocks = useBlocks;
         this.rollupConfigs = ImmutableList.copyOf(RollupConfig.buildRollupConfigs());
 
         for (int i = 0; i <= rollupConfigs.size(); i++) {
@@ -102,6 +126,23 @@ public class GaugeValueDao implements GaugeValueRepository {
 
         lastRollupTimes = initData(rollupConfigs, dataSource);
 
+        lastCompactionTimes = new AtomicLongArray(BLOCK_ROLLUP_LEVEL_COUNT);
+        if (useBlocks) {
+            for (int i = 0; i < BLOCK_ROLLUP_LEVEL_COUNT; i++) {
+                dataSource.syncTable("gauge_value_block_rollup_" + castUntainted(i),
+                        blockColumns);
+                dataSource.syncIndexes("gauge_value_block_rollup_" + castUntainted(i),
+                        ImmutableList.<Index>of(ImmutableIndex.of(
+                                "gauge_value_block_rollup_" + castUntainted(i) + "_idx",
+                                ImmutableList.of("gauge_id", "capture_time"))));
+            }
+            initLastCompactionTimes();
+        } else {
+            // blocks are not read when blocks are disabled, so any blocks written while they were
+            // enabled need to be expanded back into rows
+            expandBlocksIntoRows();
+        }
+
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
@@ -160,6 +201,9 @@ public class GaugeValueDao implements GaugeValueRepository {
                     lastRollupTimes.set(i, safeRollupTime);
                 }
             }
+            if (useBlocks) {
+                compactClosedBlocks(safeCurrentTime);
+            }
         }
     }
 
@@ -172,11 +216,37 @@ public class GaugeValueDao implements GaugeValueRepository {
             // not necessarily an error, gauge id not created until first store
             return ImmutableList.of();
         }
-        return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
+        if (!useBlocks || rollupLevel >= BLOCK_ROLLUP_LEVEL_COUNT) {
+            return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
+        }
+        while (true) {
+            long lastCompactionTime = lastCompactionTimes.get(rollupLevel);
+            List<GaugeValue> rowValues = dataSource.query(new GaugeValueQuery(gaugeId,
+                    Math.max(from, lastCompactionTime + 1), to, rollupLevel));
+            if (lastCompactionTimes.get(rollupLevel) != lastCompactionTime) {
+                // rows may have been compacted (and deleted) concurrently with the query above
+                continue;
+            }
+            if (from > lastCompactionTime) {
+                return rowValues;
+            }
+            List<GaugeValue> gaugeValues = dataSource.query(new GaugeValueBlockQuery(gaugeId,
+                    from, Math.min(to, lastCompactionTime), rollupLevel));
+            if (gaugeValues.isEmpty()) {
+                return rowValues;
+            }
+            gaugeValues.addAll(rowValues);
+            return gaugeValues;
+        }
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
         dataSource.deleteBefore("gauge_value_rollup_" + castUntainted(rollupLevel), captureTime);
+        if (useBlocks && rollupLevel < BLOCK_ROLLUP_LEVEL_COUNT) {
+            // only blocks that are fully expired are deleted
+            dataSource.deleteBefore("gauge_value_block_rollup_" + castUntainted(rollupLevel),
+                    captureTime);
+        }
     }
 
     void reinitAfterDeletingDatabase() throws Exception {
@@ -184,6 +254,89 @@ public class GaugeValueDao implements GaugeValueRepository {
         for (int i = 0; i < lastRollupTimes.length(); i++) {
             this.lastRollupTimes.set(i, lastRollupTimes.get(i));
         }
+        for (int i = 0; i < lastCompactionTimes.length(); i++) {
+            lastCompactionTimes.set(i, 0);
+        }
+    }
+
+    // must be called under rollupLock
+    private void compactClosedBlocks(long safeCurrentTime) throws Exception {
+        for (int i = 0; i < BLOCK_ROLLUP_LEVEL_COUNT; i++) {
+            // rows cannot be compacted until they have been rolled up into the next rollup level
+            long compactThroughTime =
+                    i < rollupConfigs.size() ? lastRollupTimes.get(i) : safeCurrentTime;
+            long lastCompactionTime = lastCompactionTimes.get(i);
+            while (true) {
+                // skip over hours that have no values (e.g. while the jvm was not running)
+                Long minCaptureTime = dataSource.queryForOptionalLong(
+                        "select min(capture_time) from gauge_value_rollup_" + castUntainted(i)
+                                + " where capture_time > ?",
+                        lastCompactionTime);
+                if (minCaptureTime == null) {
+                    break;
+                }
+                long blockEndTime = getBlockEndTime(minCaptureTime);
+                if (blockEndTime > compactThroughTime) {
+                    break;
+                }
+                compactBlock(i, blockEndTime - BLOCK_MILLIS, blockEndTime);
+                lastCompactionTime = blockEndTime;
+            }
+        }
+    }
+
+    private void compactBlock(int rollupLevel, long from, long to) throws Exception {
+        Map<Long, byte[]> blocks =
+                dataSource.query(new GaugeValueBlockEncodingQuery(rollupLevel, from, to));
+        dataSource.batchUpdate(new GaugeValueBlocksBinder(rollupLevel, to, blocks));
+        // the new compaction time must be published before the rows are deleted, so that a
+        // concurrent readGaugeValues() that has read the prior compaction time will retry and
+        // read the values from the block, instead of missing them
+        lastCompactionTimes.set(rollupLevel, to);
+        // JVM termination here will leave rows that are also stored in the block, which are
+        // cleaned up on the next startup, see initLastCompactionTimes()
+        dataSource.update("delete from gauge_value_rollup_" + castUntainted(rollupLevel)
+                + " where capture_time > ? and capture_time <= ?", from, to);
+    }
+
+    private void initLastCompactionTimes() throws Exception {
+        for (int i = 0; i < BLOCK_ROLLUP_LEVEL_COUNT; i++) {
+            Long lastCompactionTime = dataSource.queryForOptionalLong(
+                    "select max(capture_time) from gauge_value_block_rollup_" + castUntainted(i));
+            if (lastCompactionTime != null) {
+                dataSource.update("delete from gauge_value_rollup_" + castUntainted(i)
+                        + " where capture_time <= ?", lastCompactionTime);
+                lastCompactionTimes.set(i, lastCompactionTime);
+            }
+        }
+    }
+
+    private void expandBlocksIntoRows() throws Exception {
+        for (int i = 0; i < BLOCK_ROLLUP_LEVEL_COUNT; i++) {
+            String blockTableName = "gauge_value_block_rollup_" + castUntainted(i);
+            if (!dataSource.tableExists(blockTableName)) {
+                continue;
+            }
+            while (true) {
+                Long blockEndTime = dataSource.queryForOptionalLong(
+                        "select min(capture_time) from " + blockTableName);
+                if (blockEndTime == null) {
+                    break;
+                }
+                Map<Long, List<GaugeValue>> gaugeValues = dataSource
+                        .query(new GaugeValueBlockDecodingQuery(i, blockEndTime));
+                dataSource.batchUpdate(new GaugeValueRowsBinder(i, gaugeValues));
+                // JVM termination here will leave blocks that are also stored as rows, which are
+                // expanded again (and merged over the existing rows) on the next startup
+                dataSource.update("delete from " + blockTableName + " where capture_time = ?",
+                        blockEndTime);
+            }
+            dataSource.execute("drop table " + blockTableName);
+        }
+    }
+
+    private static long getBlockEndTime(long captureTime) {
+        return (long) Math.ceil(captureTime / (double) BLOCK_MILLIS) * BLOCK_MILLIS;
     }
 
     private void rollup(long lastRollupTime, long safeRollupTime, long fixedIntervalMillis,
@@ -249,6 +402,236 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    private static class GaugeValueBlocksBinder implements JdbcUpdate {
+
+        private final int rollupLevel;
+        private final long captureTime;
+        private final Map<Long, byte[]> blocks;
+
+        private GaugeValueBlocksBinder(int rollupLevel, long captureTime,
+                Map<Long, byte[]> blocks) {
+            this.rollupLevel = rollupLevel;
+            this.captureTime = captureTime;
+            this.blocks = blocks;
+        }
+
+        // merge so that re-compacting a block after JVM termination overwrites the prior block
+        @Override
+        public @Untainted String getSql() {
+            return "merge into gauge_value_block_rollup_" + castUntainted(rollupLevel)
+                    + " (gauge_id, capture_time, data) key (gauge_id, capture_time)"
+                    + " values (?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (Map.Entry<Long, byte[]> entry : blocks.entrySet()) {
+                int i = 1;
+                preparedStatement.setLong(i++, entry.getKey());
+                preparedStatement.setLong(i++, captureTime);
+                preparedStatement.setBytes(i++, entry.getValue());
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
+    private static class GaugeValueRowsBinder implements JdbcUpdate {
+
+        private final int rollupLevel;
+        private final Map<Long, List<GaugeValue>> gaugeValues;
+
+        private GaugeValueRowsBinder(int rollupLevel, Map<Long, List<GaugeValue>> gaugeValues) {
+            this.rollupLevel = rollupLevel;
+            this.gaugeValues = gaugeValues;
+        }
+
+        // merge so that re-expanding a block after JVM termination overwrites the prior rows
+        @Override
+        public @Untainted String getSql() {
+            return "merge into gauge_value_rollup_" + castUntainted(rollupLevel)
+                    + " (gauge_id, capture_time, value, weight) key (gauge_id, capture_time)"
+                    + " values (?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (Map.Entry<Long, List<GaugeValue>> entry : gaugeValues.entrySet()) {
+                long gaugeId = entry.getKey();
+                for (GaugeValue gaugeValue : entry.getValue()) {
+                    int i = 1;
+                    preparedStatement.setLong(i++, gaugeId);
+                    preparedStatement.setLong(i++, gaugeValue.getCaptureTime());
+                    preparedStatement.setDouble(i++, gaugeValue.getValue());
+                    preparedStatement.setLong(i++, gaugeValue.getWeight());
+                    preparedStatement.addBatch();
+                }
+            }
+        }
+    }
+
+    private static class GaugeValueBlockDecodingQuery
+            implements JdbcQuery<Map<Long, List<GaugeValue>>> {
+
+        private final int rollupLevel;
+        private final long captureTime;
+
+        private GaugeValueBlockDecodingQuery(int rollupLevel, long captureTime) {
+            this.rollupLevel = rollupLevel;
+            this.captureTime = captureTime;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select gauge_id, data from gauge_value_block_rollup_"
+                    + castUntainted(rollupLevel) + " where capture_time = ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, captureTime);
+        }
+
+        @Override
+        public Map<Long, List<GaugeValue>> processResultSet(ResultSet resultSet)
+                throws Exception {
+            Map<Long, List<GaugeValue>> gaugeValues = Maps.newLinkedHashMap();
+            while (resultSet.next()) {
+                final List<GaugeValue> values = Lists.newArrayList();
+                TimeSeriesBlock.decode(checkNotNull(resultSet.getBytes(2)),
+                        new SampleVisitor() {
+                            @Override
+                            public void visit(long captureTime, double value, long weight) {
+                                values.add(GaugeValue.newBuilder()
+                                        .setCaptureTime(captureTime)
+                                        .setValue(value)
+                                        .setWeight(weight)
+                                        .build());
+                            }
+                        });
+                gaugeValues.put(resultSet.getLong(1), values);
+            }
+            return gaugeValues;
+        }
+
+        @Override
+        public Map<Long, List<GaugeValue>> valueIfDataSourceClosed() {
+            return ImmutableMap.of();
+        }
+    }
+
+    private static class GaugeValueBlockEncodingQuery implements JdbcQuery<Map<Long, byte[]>> {
+
+        private final int rollupLevel;
+        private final long from;
+        private final long to;
+
+        private GaugeValueBlockEncodingQuery(int rollupLevel, long from, long to) {
+            this.rollupLevel = rollupLevel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select gauge_id, capture_time, value, weight from gauge_value_rollup_"
+                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?"
+                    + " order by gauge_id, capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, from);
+            preparedStatement.setLong(2, to);
+        }
+
+        @Override
+        public Map<Long, byte[]> processResultSet(ResultSet resultSet) throws Exception {
+            Map<Long, byte[]> blocks = Maps.newLinkedHashMap();
+            long currGaugeId = -1;
+            TimeSeriesBlock.Encoder encoder = null;
+            while (resultSet.next()) {
+                int i = 1;
+                long gaugeId = resultSet.getLong(i++);
+                if (encoder == null || gaugeId != currGaugeId) {
+                    if (encoder != null) {
+                        blocks.put(currGaugeId, encoder.toByteArray());
+                    }
+                    currGaugeId = gaugeId;
+                    encoder = new TimeSeriesBlock.Encoder();
+                }
+                encoder.add(resultSet.getLong(i++), resultSet.getDouble(i++),
+                        resultSet.getLong(i++));
+            }
+            if (encoder != null) {
+                blocks.put(currGaugeId, encoder.toByteArray());
+            }
+            return blocks;
+        }
+
+        @Override
+        public Map<Long, byte[]> valueIfDataSourceClosed() {
+            return ImmutableMap.of();
+        }
+    }
+
+    // decodes blocks sequentially, from is INCLUSIVE
+    private static class GaugeValueBlockQuery implements JdbcQuery<List<GaugeValue>> {
+
+        private final long gaugeId;
+        private final long from;
+        private final long to;
+        private final int rollupLevel;
+
+        private GaugeValueBlockQuery(long gaugeId, long from, long to, int rollupLevel) {
+            this.gaugeId = gaugeId;
+            this.from = from;
+            this.to = to;
+            this.rollupLevel = rollupLevel;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select data from gauge_value_block_rollup_" + castUntainted(rollupLevel)
+                    + " where gauge_id = ? and capture_time >= ? and capture_time < ?"
+                    + " order by capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, gaugeId);
+            preparedStatement.setLong(i++, from);
+            // block capture time is the end of the block
+            preparedStatement.setLong(i++, to + BLOCK_MILLIS);
+        }
+
+        @Override
+        public List<GaugeValue> processResultSet(ResultSet resultSet) throws Exception {
+            final List<GaugeValue> gaugeValues = Lists.newArrayList();
+            SampleVisitor visitor = new SampleVisitor() {
+                @Override
+                public void visit(long captureTime, double value, long weight) {
+                    if (captureTime >= from && captureTime <= to) {
+                        gaugeValues.add(GaugeValue.newBuilder()
+                                .setCaptureTime(captureTime)
+                                .setValue(value)
+                                .setWeight(weight)
+                                .build());
+                    }
+                }
+            };
+            while (resultSet.next()) {
+                TimeSeriesBlock.decode(checkNotNull(resultSet.getBytes(1)), visitor);
+            }
+            return gaugeValues;
+        }
+
+        @Override
+        public List<GaugeValue> valueIfDataSourceClosed() {
+            return Lists.newArrayList();
+        }
+    }
+
     private static class LastRollupTimesQuery implements JdbcQuery<long[]> {
 
         private final @Untainted String selectClause;
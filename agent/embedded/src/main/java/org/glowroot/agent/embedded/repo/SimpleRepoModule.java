@@ -49,11 +49,16 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class SimpleRepoModule {
 
+    private static final Logger logger = LoggerFactory.getLogger(SimpleRepoModule.class);
+
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
     private static final long SNAPSHOT_REAPER_PERIOD_MINUTES = 5;
 
+    private static final long TRACE_POINT_INDEX_MAX_BYTES =
+            Long.getLong("glowroot.internal.tracePointIndexMaxBytes", 64 * 1024 * 1024);
+
     private final DataSource dataSource;
     private final ImmutableList<CappedDatabase> rollupCappedDatabases;
     private final CappedDatabase traceCappedDatabase;
@@ -102,14 +107,26 @@ public class SimpleRepoModule {
         transactionTypeDao = new TransactionTypeDao(dataSource);
         rollupLevelService = new RollupLevelService(configRepository, clock);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(dataSource);
+        @Nullable
+        AggregateSegmentStore aggregateSegmentStore;
+        if (Boolean.getBoolean("glowroot.internal.columnarAggregateSegments")) {
+            aggregateSegmentStore = new AggregateSegmentStore(
+                    new File(dataDir, "aggregate-segments"), dataSource,
+                    configRepository.getRollupConfigs().size());
+        } else {
+            aggregateSegmentStore = null;
+        }
         aggregateDao = new AggregateDao(dataSource, this.rollupCappedDatabases, configRepository,
-                transactionTypeDao, fullQueryTextDao);
+                transactionTypeDao, fullQueryTextDao, aggregateSegmentStore);
         traceAttributeNameDao = new TraceAttributeNameDao(dataSource);
         traceDao = new TraceDao(dataSource, traceCappedDatabase, transactionTypeDao,
-                fullQueryTextDao, traceAttributeNameDao);
+                fullQueryTextDao, traceAttributeNameDao,
+                Boolean.getBoolean("glowroot.internal.tracePointIndex")
+                        ? new TracePointIndex(TRACE_POINT_INDEX_MAX_BYTES) : null);
         GaugeIdDao gaugeIdDao = new GaugeIdDao(dataSource);
         GaugeNameDao gaugeNameDao = new GaugeNameDao(dataSource);
-        gaugeValueDao = new GaugeValueDao(dataSource, gaugeIdDao, gaugeNameDao, clock);
+        gaugeValueDao = new GaugeValueDao(dataSource, gaugeIdDao, gaugeNameDao, clock,
+                Boolean.getBoolean("glowroot.internal.gaugeValueBlocks"));
         incidentDao = new IncidentDao(dataSource);
 
         if (initialSchemaVersion == null) {
@@ -118,8 +135,8 @@ public class SimpleRepoModule {
         }
 
         repoAdmin = new RepoAdminImpl(dataSource, rollupCappedDatabases, traceCappedDatabase,
-                configRepository, environmentDao, gaugeIdDao, gaugeNameDao, gaugeValueDao,
-                transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, clock);
+                configRepository, environmentDao, aggregateDao, traceDao, gaugeIdDao, gaugeNameDao,
+                gaugeValueDao, transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, clock);
 
         httpClient = new HttpClient(configRepository);
 
@@ -127,8 +144,19 @@ public class SimpleRepoModule {
                 gaugeValueDao, rollupLevelService, new MailService(), httpClient, newLockSet(),
                 newLockSet(), clock);
         if (backgroundExecutor == null) {
+            traceDao.buildPointIndex();
             reaperRunnable = null;
         } else {
+            backgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        traceDao.buildPointIndex();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+            });
             reaperRunnable = new ReaperRunnable(configRepository, aggregateDao, traceDao,
                     gaugeIdDao, gaugeNameDao, gaugeValueDao, transactionTypeDao, fullQueryTextDao,
                     incidentDao, clock);
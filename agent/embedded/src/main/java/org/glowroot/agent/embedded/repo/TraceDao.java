@@ -20,12 +20,20 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.slf4j.Logger;
@@ -68,12 +76,17 @@ import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class TraceDao implements TraceRepository {
 
     private static final String AGENT_ID = "";
 
+    private static final long POINT_INDEX_BUILD_CHUNK_MILLIS = HOURS.toMillis(1);
+    private static final int MAX_POINT_INDEX_BATCH_SIZE = 1000;
+    private static final int MAX_POINT_INDEX_VERIFIED_CANDIDATES = 10000;
+
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
@@ -139,14 +152,18 @@ public class TraceDao implements TraceRepository {
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
 
+    private final @Nullable TracePointIndex pointIndex;
+
     TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            TraceAttributeNameDao traceAttributeNameDao) throws Exception {
+            TraceAttributeNameDao traceAttributeNameDao, @Nullable TracePointIndex pointIndex)
+            throws Exception {
         this.dataSource = dataSource;
         this.traceCappedDatabase = traceCappedDatabase;
         this.traceAttributeNameDao = traceAttributeNameDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
+        this.pointIndex = pointIndex;
         if (dataSource.tableExists("trace")
                 && !dataSource.columnExists("trace", "shared_query_texts_capped_id")) {
             // upgrade to 0.9.3
@@ -181,6 +198,12 @@ public class TraceDao implements TraceRepository {
         Trace.Header header = trace.getHeader();
 
         dataSource.update(new TraceMerge(trace));
+        if (pointIndex != null) {
+            pointIndex.add(trace.getId(), header.getCaptureTime(), header.getDurationNanos(),
+                    header.getSlow(), header.hasError(), header.getTransactionType(),
+                    header.getTransactionName(), header.getHeadline(),
+                    header.hasError() ? header.getError().getMessage() : null, header.getUser());
+        }
         if (header.getAttributeCount() > 0) {
             if (trace.getUpdate()) {
                 dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
@@ -311,10 +334,46 @@ public class TraceDao implements TraceRepository {
         traceAttributeNameDao.deleteBefore(captureTime);
         dataSource.deleteBefore("trace", captureTime);
         dataSource.deleteBefore("trace_attribute", captureTime);
+        if (pointIndex != null) {
+            pointIndex.deleteBefore(captureTime);
+        }
+    }
+
+    // populates the trace point index from the trace table one capture time bucket at a time, so
+    // that the data source lock is not held for long periods (traces stored concurrently are
+    // added to the index by store(), and any resulting duplicates are harmless)
+    void buildPointIndex() throws Exception {
+        if (pointIndex == null) {
+            return;
+        }
+        Long minCaptureTime =
+                dataSource.queryForOptionalLong("select min(capture_time) from trace");
+        if (minCaptureTime != null) {
+            long maxCaptureTime = dataSource.queryForLong("select max(capture_time) from trace");
+            for (long from = minCaptureTime - 1; from < maxCaptureTime;
+                    from += POINT_INDEX_BUILD_CHUNK_MILLIS) {
+                dataSource.query(new TracePointIndexBuildQuery(pointIndex, from,
+                        from + POINT_INDEX_BUILD_CHUNK_MILLIS));
+            }
+        }
+        pointIndex.setReady();
+    }
+
+    void reinitAfterDeletingDatabase() {
+        if (pointIndex != null) {
+            pointIndex.clear();
+        }
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
+        if (pointIndex != null && limit != 0) {
+            Result<TracePoint> result =
+                    readPointsUsingIndex(pointIndex, traceKind, query, filter, limit);
+            if (result != null) {
+                return result;
+            }
+        }
         ParameterizedSql parameterizedSql =
                 new TracePointQueryBuilder(traceKind, query, filter, limit).getParameterizedSql();
         List<TracePoint> points = dataSource.query(new TracePointQuery(parameterizedSql));
@@ -322,6 +381,57 @@ public class TraceDao implements TraceRepository {
         return Result.create(points, limit);
     }
 
+    // verifies index candidates (in descending duration order) against the trace table using the
+    // original criteria until limit + 1 points are found, returns null if the index cannot be
+    // used or if too many candidates are rejected during verification (e.g. due to a selective
+    // headline filter with many false positives), in which case the plain query is used instead
+    private @Nullable Result<TracePoint> readPointsUsingIndex(TracePointIndex pointIndex,
+            TraceKind traceKind, TraceQuery query, TracePointFilter filter, int limit)
+            throws Exception {
+        Iterator<String> candidates = pointIndex.getCandidates(traceKind, query, filter);
+        if (candidates == null) {
+            return null;
+        }
+        TracePointQueryBuilder queryBuilder =
+                new TracePointQueryBuilder(traceKind, query, filter, limit);
+        Map<String, TracePoint> points = Maps.newHashMap();
+        Set<String> verifiedTraceIds = Sets.newHashSet();
+        int batchSize = Math.min(limit + 1, MAX_POINT_INDEX_BATCH_SIZE);
+        while (points.size() <= limit && candidates.hasNext()) {
+            if (verifiedTraceIds.size() >= MAX_POINT_INDEX_VERIFIED_CANDIDATES) {
+                return null;
+            }
+            List<String> batch = Lists.newArrayList();
+            while (batch.size() < batchSize && candidates.hasNext()) {
+                String traceId = candidates.next();
+                // duplicate candidates come from partial traces that were later updated
+                if (verifiedTraceIds.add(traceId)) {
+                    batch.add(traceId);
+                }
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            ParameterizedSql parameterizedSql = queryBuilder.getParameterizedSql(batch);
+            for (TracePoint point : dataSource.query(new TracePointQuery(parameterizedSql))) {
+                points.put(point.traceId(), point);
+            }
+            batchSize = Math.min(batchSize * 2, MAX_POINT_INDEX_BATCH_SIZE);
+        }
+        List<TracePoint> orderedPoints = Lists.newArrayList(points.values());
+        Collections.sort(orderedPoints, new Comparator<TracePoint>() {
+            @Override
+            public int compare(TracePoint left, TracePoint right) {
+                return Longs.compare(right.durationNanos(), left.durationNanos());
+            }
+        });
+        if (orderedPoints.size() > limit + 1) {
+            orderedPoints = orderedPoints.subList(0, limit + 1);
+        }
+        // one extra record over the limit is fetched above to identify if the limit was hit
+        return Result.create(orderedPoints, limit);
+    }
+
     private List<Trace.SharedQueryText> getSharedQueryTextsForExport(
             List<Trace.SharedQueryText> sharedQueryTexts) throws SQLException {
         List<Trace.SharedQueryText> sharedQueryTextsForExport = Lists.newArrayList();
@@ -603,6 +713,51 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static class TracePointIndexBuildQuery implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final TracePointIndex pointIndex;
+        private final long from;
+        private final long to;
+
+        private TracePointIndexBuildQuery(TracePointIndex pointIndex, long from, long to) {
+            this.pointIndex = pointIndex;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select id, capture_time, duration_nanos, slow, error, transaction_type,"
+                    + " transaction_name, headline, error_message, user from trace where"
+                    + " capture_time > ? and capture_time <= ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, from);
+            preparedStatement.setLong(2, to);
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            while (resultSet.next()) {
+                int i = 1;
+                pointIndex.add(checkNotNull(resultSet.getString(i++)), resultSet.getLong(i++),
+                        resultSet.getLong(i++), resultSet.getBoolean(i++),
+                        resultSet.getBoolean(i++), checkNotNull(resultSet.getString(i++)),
+                        checkNotNull(resultSet.getString(i++)),
+                        checkNotNull(resultSet.getString(i++)), resultSet.getString(i++),
+                        resultSet.getString(i++));
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosed() {
+            return null;
+        }
+    }
+
     private class TraceHeaderQuery implements JdbcRowQuery<HeaderPlus> {
 
         private final String traceId;
@@ -0,0 +1,655 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.common.live.LiveTraceRepository.TraceKind;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
+import org.glowroot.common2.repo.TraceRepository.TraceQuery;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// in-memory secondary index over the trace table, partitioned into capture time buckets, that is
+// used to produce trace point candidates in descending duration order
+//
+// the index is only used to find candidates, the candidates are then verified against the trace
+// table using the original criteria, so the index is allowed to contain stale entries (e.g. from
+// partial traces that have since been updated, or from traces that have since expired) and the
+// headline/error/user filtering is allowed to have false positives
+//
+// the index is bounded by a memory budget, when the budget is exceeded the oldest buckets are
+// evicted and queries that reach back into the evicted time range fall back to the plain query
+class TracePointIndex {
+
+    private static final long BUCKET_MILLIS = HOURS.toMillis(1);
+
+    private static final int INITIAL_BUCKET_CAPACITY = 64;
+
+    private static final byte SLOW_FLAG = 1;
+    private static final byte ERROR_FLAG = 2;
+
+    // capture time offset, duration, flags, transaction type, transaction name, headline/error/user
+    // signatures, trace id (two longs) and sorted position
+    private static final int ENTRY_BYTES = 4 + 8 + 1 + 4 + 4 + 8 + 8 + 8 + 8 + 8 + 4;
+    // rough per entry cost of the ordinal maps and of the irregular trace id map, excluding the
+    // string chars
+    private static final int MAP_ENTRY_OVERHEAD_BYTES = 64;
+
+    private final long maxBytes;
+
+    private final ConcurrentNavigableMap<Long, Bucket> buckets =
+            new ConcurrentSkipListMap<Long, Bucket>();
+
+    // transaction types and transaction names are stored as ordinals into these maps
+    private final ConcurrentMap<String, Integer> transactionTypeOrdinals =
+            new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String, Integer> transactionNameOrdinals =
+            new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger nextOrdinal = new AtomicInteger();
+
+    // adds hold the read lock so that ordinals cannot be pruned between being looked up and being
+    // stored in a bucket, pruning (after dropping buckets) holds the write lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    // entries with capture time before this have been evicted due to the memory budget
+    private volatile long evictedBefore;
+    // set when a single bucket exceeds the memory budget, after which the index is not used
+    private volatile boolean overBudget;
+
+    // index is not used until it has been populated from the trace table
+    private volatile boolean ready;
+
+    TracePointIndex(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    void setReady() {
+        ready = true;
+    }
+
+    void add(String traceId, long captureTime, long durationNanos, boolean slow, boolean error,
+            String transactionType, String transactionName, String headline,
+            @Nullable String errorMessage, @Nullable String user) {
+        byte flags = 0;
+        if (slow) {
+            flags |= SLOW_FLAG;
+        }
+        if (error) {
+            flags |= ERROR_FLAG;
+        }
+        long bucketKey = captureTime / BUCKET_MILLIS;
+        lock.readLock().lock();
+        try {
+            if (overBudget || captureTime < evictedBefore) {
+                return;
+            }
+            Bucket bucket = buckets.get(bucketKey);
+            if (bucket == null) {
+                bucket = new Bucket(bucketKey * BUCKET_MILLIS);
+                Bucket existing = buckets.putIfAbsent(bucketKey, bucket);
+                if (existing != null) {
+                    bucket = existing;
+                }
+            }
+            estimatedBytes.addAndGet(bucket.add(traceId, captureTime, durationNanos, flags,
+                    getOrCreateOrdinal(transactionTypeOrdinals, transactionType),
+                    getOrCreateOrdinal(transactionNameOrdinals, transactionName),
+                    textSignature(headline), textSignature(Strings.nullToEmpty(errorMessage)),
+                    textSignature(Strings.nullToEmpty(user))));
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (estimatedBytes.get() > maxBytes) {
+            evictOldestBuckets();
+        }
+    }
+
+    // returns null if the index cannot be used for the filter, otherwise returns the trace ids of
+    // all candidates in descending (indexed) duration order
+    @Nullable
+    Iterator<String> getCandidates(TraceKind traceKind, TraceQuery query,
+            TracePointFilter filter) {
+        // capture time lower bound is non-inclusive, see TracePointQueryBuilder
+        if (!ready || overBudget || query.from() + 1 < evictedBefore
+                || !Strings.isNullOrEmpty(filter.attributeName())
+                || filter.attributeValueComparator() != null
+                        && !Strings.isNullOrEmpty(filter.attributeValue())) {
+            return null;
+        }
+        Integer transactionTypeOrdinal = transactionTypeOrdinals.get(query.transactionType());
+        int transactionNameOrdinal;
+        String transactionName = query.transactionName();
+        if (transactionName == null) {
+            transactionNameOrdinal = -1;
+        } else {
+            Integer ordinal = transactionNameOrdinals.get(transactionName);
+            transactionNameOrdinal = ordinal == null ? -2 : ordinal;
+        }
+        if (transactionTypeOrdinal == null || transactionNameOrdinal == -2) {
+            // nothing has been indexed for this transaction type or transaction name
+            return ImmutableList.<String>of().iterator();
+        }
+        Long durationNanosHigh = filter.durationNanosHigh();
+        Matcher matcher = new Matcher(query.from(), query.to(),
+                traceKind == TraceKind.SLOW ? SLOW_FLAG : ERROR_FLAG, transactionTypeOrdinal,
+                transactionNameOrdinal, filter.durationNanosLow(),
+                durationNanosHigh == null ? Long.MAX_VALUE : durationNanosHigh,
+                querySignature(filter.headlineComparator(), filter.headline()),
+                querySignature(filter.errorMessageComparator(), filter.errorMessage()),
+                querySignature(filter.userComparator(), filter.user()));
+        Map<Long, Bucket> bucketsInRange = buckets.subMap(query.from() / BUCKET_MILLIS, true,
+                query.to() / BUCKET_MILLIS, true);
+        PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>();
+        for (Bucket bucket : bucketsInRange.values()) {
+            Cursor cursor = new Cursor(bucket.snapshot(), matcher);
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+        }
+        return new CandidateIterator(cursors);
+    }
+
+    void deleteBefore(long captureTime) {
+        lock.writeLock().lock();
+        try {
+            // only drop buckets that are fully expired, entries in the remaining partially expired
+            // bucket are filtered out when the candidates are verified against the trace table
+            Map<Long, Bucket> expiredBuckets = buckets.headMap(captureTime / BUCKET_MILLIS);
+            if (expiredBuckets.isEmpty()) {
+                return;
+            }
+            for (Bucket bucket : expiredBuckets.values()) {
+                estimatedBytes.addAndGet(-bucket.getEstimatedBytes());
+            }
+            expiredBuckets.clear();
+            pruneOrdinals();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            buckets.clear();
+            transactionTypeOrdinals.clear();
+            transactionNameOrdinals.clear();
+            estimatedBytes.set(0);
+            evictedBefore = 0;
+            overBudget = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    private void evictOldestBuckets() {
+        lock.writeLock().lock();
+        try {
+            while (estimatedBytes.get() > maxBytes) {
+                Map.Entry<Long, Bucket> entry = buckets.pollFirstEntry();
+                if (entry == null) {
+                    break;
+                }
+                estimatedBytes.addAndGet(-entry.getValue().getEstimatedBytes());
+                if (buckets.isEmpty()) {
+                    // a single bucket exceeds the memory budget
+                    overBudget = true;
+                    break;
+                }
+                evictedBefore = (entry.getKey() + 1) * BUCKET_MILLIS;
+            }
+            if (overBudget) {
+                buckets.clear();
+                transactionTypeOrdinals.clear();
+                transactionNameOrdinals.clear();
+                estimatedBytes.set(0);
+            } else {
+                pruneOrdinals();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // must be called under the write lock
+    private void pruneOrdinals() {
+        Set<Integer> referencedOrdinals = Sets.newHashSet();
+        for (Bucket bucket : buckets.values()) {
+            bucket.addOrdinalsTo(referencedOrdinals);
+        }
+        pruneOrdinals(transactionTypeOrdinals, referencedOrdinals);
+        pruneOrdinals(transactionNameOrdinals, referencedOrdinals);
+    }
+
+    private void pruneOrdinals(ConcurrentMap<String, Integer> ordinals,
+            Set<Integer> referencedOrdinals) {
+        Iterator<Map.Entry<String, Integer>> i = ordinals.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, Integer> entry = i.next();
+            if (!referencedOrdinals.contains(entry.getValue())) {
+                i.remove();
+                estimatedBytes.addAndGet(-getOrdinalBytes(entry.getKey()));
+            }
+        }
+    }
+
+    private int getOrCreateOrdinal(ConcurrentMap<String, Integer> ordinals, String value) {
+        Integer ordinal = ordinals.get(value);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        Integer newOrdinal = nextOrdinal.getAndIncrement();
+        ordinal = ordinals.putIfAbsent(value, newOrdinal);
+        if (ordinal == null) {
+            estimatedBytes.addAndGet(getOrdinalBytes(value));
+            return newOrdinal;
+        }
+        return ordinal;
+    }
+
+    private static long getOrdinalBytes(String value) {
+        return MAP_ENTRY_OVERHEAD_BYTES + 2L * value.length();
+    }
+
+    // upper case to match the trace point query, which compares against upper(..) and formats
+    // the parameter using StringComparator.formatParameter()
+    private static long textSignature(String text) {
+        if (text.isEmpty()) {
+            return 0;
+        }
+        String upper = text.toUpperCase(Locale.ENGLISH);
+        long signature = 0;
+        for (int i = 0; i + 3 <= upper.length(); i++) {
+            signature |= trigramBit(upper.charAt(i), upper.charAt(i + 1), upper.charAt(i + 2));
+        }
+        return signature;
+    }
+
+    private static long querySignature(@Nullable StringComparator comparator,
+            @Nullable String text) {
+        if (comparator == null || comparator == StringComparator.NOT_CONTAINS
+                || Strings.isNullOrEmpty(text)) {
+            return 0;
+        }
+        String upper = text.toUpperCase(Locale.ENGLISH);
+        long signature = 0;
+        for (int i = 0; i + 3 <= upper.length(); i++) {
+            char c1 = upper.charAt(i);
+            char c2 = upper.charAt(i + 1);
+            char c3 = upper.charAt(i + 2);
+            // only ascii trigrams are used for filtering since upper casing of the text in the
+            // database is not guaranteed to use the same locale, and trigrams that contain like
+            // wildcard or escape characters are not literal
+            if (isLiteralAscii(c1) && isLiteralAscii(c2) && isLiteralAscii(c3)) {
+                signature |= trigramBit(c1, c2, c3);
+            }
+        }
+        return signature;
+    }
+
+    private static boolean isLiteralAscii(char c) {
+        return c < 128 && c != '%' && c != '_' && c != '\\';
+    }
+
+    private static long trigramBit(char c1, char c2, char c3) {
+        int hash = (c1 * 31 + c2) * 31 + c3;
+        hash ^= hash >>> 7;
+        hash *= 0x9E3779B1;
+        return 1L << (hash >>> 26);
+    }
+
+    private static class Bucket {
+
+        private final long startTime;
+
+        private int size;
+        // capture time offsets from bucket start time
+        private int[] captureTimeOffsets = new int[INITIAL_BUCKET_CAPACITY];
+        private long[] durationNanos = new long[INITIAL_BUCKET_CAPACITY];
+        private byte[] flags = new byte[INITIAL_BUCKET_CAPACITY];
+        private int[] transactionTypes = new int[INITIAL_BUCKET_CAPACITY];
+        private int[] transactionNames = new int[INITIAL_BUCKET_CAPACITY];
+        private long[] headlineSignatures = new long[INITIAL_BUCKET_CAPACITY];
+        private long[] errorSignatures = new long[INITIAL_BUCKET_CAPACITY];
+        private long[] userSignatures = new long[INITIAL_BUCKET_CAPACITY];
+        // trace ids are normally 32 lowercase hex chars, which are stored as two longs
+        private long[] traceIdHighs = new long[INITIAL_BUCKET_CAPACITY];
+        private long[] traceIdLows = new long[INITIAL_BUCKET_CAPACITY];
+        private @Nullable Map<Integer, String> irregularTraceIds;
+
+        // transaction type and transaction name ordinals referenced by the entries in this bucket
+        private final Set<Integer> ordinals = Sets.newHashSet();
+
+        private long estimatedBytes = ENTRY_BYTES * INITIAL_BUCKET_CAPACITY;
+
+        // positions in descending duration order, lazily re-sorted after new entries are added
+        private int[] sortedPositions = new int[0];
+
+        private Bucket(long startTime) {
+            this.startTime = startTime;
+        }
+
+        // returns the increase in estimated bytes
+        private synchronized long add(String traceId, long captureTime, long durationNanos,
+                byte flags, int transactionType, int transactionName, long headlineSignature,
+                long errorSignature, long userSignature) {
+            long priorEstimatedBytes = size == 0 ? 0 : estimatedBytes;
+            if (size == this.durationNanos.length) {
+                grow();
+            }
+            captureTimeOffsets[size] = (int) (captureTime - startTime);
+            this.durationNanos[size] = durationNanos;
+            this.flags[size] = flags;
+            transactionTypes[size] = transactionType;
+            transactionNames[size] = transactionName;
+            headlineSignatures[size] = headlineSignature;
+            errorSignatures[size] = errorSignature;
+            userSignatures[size] = userSignature;
+            if (isRegularTraceId(traceId)) {
+                traceIdHighs[size] = parseHex(traceId, 0);
+                traceIdLows[size] = parseHex(traceId, 16);
+            } else {
+                if (irregularTraceIds == null) {
+                    irregularTraceIds = Maps.newHashMap();
+                }
+                irregularTraceIds.put(size, traceId);
+                estimatedBytes += MAP_ENTRY_OVERHEAD_BYTES + 2L * traceId.length();
+            }
+            ordinals.add(transactionType);
+            ordinals.add(transactionName);
+            size++;
+            return estimatedBytes - priorEstimatedBytes;
+        }
+
+        private synchronized long getEstimatedBytes() {
+            return size == 0 ? 0 : estimatedBytes;
+        }
+
+        private synchronized void addOrdinalsTo(Set<Integer> referencedOrdinals) {
+            referencedOrdinals.addAll(ordinals);
+        }
+
+        // arrays are only ever replaced (never modified) at positions below size, so the snapshot
+        // can be read outside of the lock
+        private synchronized Snapshot snapshot() {
+            if (sortedPositions.length != size) {
+                int[] positions = new int[size];
+                for (int i = 0; i < size; i++) {
+                    positions[i] = i;
+                }
+                sortByDurationDesc(positions, durationNanos, 0, size - 1);
+                sortedPositions = positions;
+            }
+            return new Snapshot(startTime, sortedPositions, captureTimeOffsets, durationNanos,
+                    flags, transactionTypes, transactionNames, headlineSignatures,
+                    errorSignatures, userSignatures, traceIdHighs, traceIdLows,
+                    irregularTraceIds == null ? null : Maps.newHashMap(irregularTraceIds));
+        }
+
+        private void grow() {
+            int priorCapacity = durationNanos.length;
+            int capacity = priorCapacity * 2;
+            captureTimeOffsets = Arrays.copyOf(captureTimeOffsets, capacity);
+            durationNanos = Arrays.copyOf(durationNanos, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            transactionTypes = Arrays.copyOf(transactionTypes, capacity);
+            transactionNames = Arrays.copyOf(transactionNames, capacity);
+            headlineSignatures = Arrays.copyOf(headlineSignatures, capacity);
+            errorSignatures = Arrays.copyOf(errorSignatures, capacity);
+            userSignatures = Arrays.copyOf(userSignatures, capacity);
+            traceIdHighs = Arrays.copyOf(traceIdHighs, capacity);
+            traceIdLows = Arrays.copyOf(traceIdLows, capacity);
+            estimatedBytes += ENTRY_BYTES * (capacity - priorCapacity);
+        }
+
+        private static boolean isRegularTraceId(String traceId) {
+            if (traceId.length() != 32) {
+                return false;
+            }
+            for (int i = 0; i < 32; i++) {
+                char c = traceId.charAt(i);
+                if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static long parseHex(String traceId, int offset) {
+            long value = 0;
+            for (int i = offset; i < offset + 16; i++) {
+                value = (value << 4) | Character.digit(traceId.charAt(i), 16);
+            }
+            return value;
+        }
+
+        private static void sortByDurationDesc(int[] positions, long[] durationNanos, int low,
+                int high) {
+            while (low < high) {
+                long pivot = durationNanos[positions[(low + high) >>> 1]];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (durationNanos[positions[i]] > pivot) {
+                        i++;
+                    }
+                    while (durationNanos[positions[j]] < pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int temp = positions[i];
+                        positions[i] = positions[j];
+                        positions[j] = temp;
+                        i++;
+                        j--;
+                    }
+                }
+                // recurse into the smaller partition to bound the stack depth
+                if (j - low < high - i) {
+                    sortByDurationDesc(positions, durationNanos, low, j);
+                    low = i;
+                } else {
+                    sortByDurationDesc(positions, durationNanos, i, high);
+                    high = j;
+                }
+            }
+        }
+    }
+
+    private static class Snapshot {
+
+        private final long startTime;
+        private final int[] sortedPositions;
+        private final int[] captureTimeOffsets;
+        private final long[] durationNanos;
+        private final byte[] flags;
+        private final int[] transactionTypes;
+        private final int[] transactionNames;
+        private final long[] headlineSignatures;
+        private final long[] errorSignatures;
+        private final long[] userSignatures;
+        private final long[] traceIdHighs;
+        private final long[] traceIdLows;
+        private final @Nullable Map<Integer, String> irregularTraceIds;
+
+        private Snapshot(long startTime, int[] sortedPositions, int[] captureTimeOffsets,
+                long[] durationNanos, byte[] flags, int[] transactionTypes,
+                int[] transactionNames, long[] headlineSignatures, long[] errorSignatures,
+                long[] userSignatures, long[] traceIdHighs, long[] traceIdLows,
+                @Nullable Map<Integer, String> irregularTraceIds) {
+            this.startTime = startTime;
+            this.sortedPositions = sortedPositions;
+            this.captureTimeOffsets = captureTimeOffsets;
+            this.durationNanos = durationNanos;
+            this.flags = flags;
+            this.transactionTypes = transactionTypes;
+            this.transactionNames = transactionNames;
+            this.headlineSignatures = headlineSignatures;
+            this.errorSignatures = errorSignatures;
+            this.userSignatures = userSignatures;
+            this.traceIdHighs = traceIdHighs;
+            this.traceIdLows = traceIdLows;
+            this.irregularTraceIds = irregularTraceIds;
+        }
+
+        private String getTraceId(int position) {
+            if (irregularTraceIds != null) {
+                String traceId = irregularTraceIds.get(position);
+                if (traceId != null) {
+                    return traceId;
+                }
+            }
+            return toHex(traceIdHighs[position]) + toHex(traceIdLows[position]);
+        }
+
+        private static String toHex(long value) {
+            return Strings.padStart(Long.toHexString(value), 16, '0');
+        }
+    }
+
+    private static class Matcher {
+
+        private final long from;
+        private final long to;
+        private final byte flag;
+        private final int transactionType;
+        private final int transactionName; // -1 means any
+        private final long durationNanosLow;
+        private final long durationNanosHigh;
+        private final long headlineSignature;
+        private final long errorSignature;
+        private final long userSignature;
+
+        private Matcher(long from, long to, byte flag, int transactionType, int transactionName,
+                long durationNanosLow, long durationNanosHigh, long headlineSignature,
+                long errorSignature, long userSignature) {
+            this.from = from;
+            this.to = to;
+            this.flag = flag;
+            this.transactionType = transactionType;
+            this.transactionName = transactionName;
+            this.durationNanosLow = durationNanosLow;
+            this.durationNanosHigh = durationNanosHigh;
+            this.headlineSignature = headlineSignature;
+            this.errorSignature = errorSignature;
+            this.userSignature = userSignature;
+        }
+
+        private boolean matches(Snapshot snapshot, int position) {
+            long captureTime = snapshot.startTime + snapshot.captureTimeOffsets[position];
+            long durationNanos = snapshot.durationNanos[position];
+            return captureTime > from && captureTime <= to
+                    && (snapshot.flags[position] & flag) != 0
+                    && snapshot.transactionTypes[position] == transactionType
+                    && (transactionName == -1
+                            || snapshot.transactionNames[position] == transactionName)
+                    && durationNanos >= durationNanosLow && durationNanos <= durationNanosHigh
+                    && (snapshot.headlineSignatures[position] & headlineSignature)
+                            == headlineSignature
+                    && (snapshot.errorSignatures[position] & errorSignature) == errorSignature
+                    && (snapshot.userSignatures[position] & userSignature) == userSignature;
+        }
+    }
+
+    private static class Cursor implements Comparable<Cursor> {
+
+        private final Snapshot snapshot;
+        private final Matcher matcher;
+
+        private int index = -1;
+        private int position;
+
+        private Cursor(Snapshot snapshot, Matcher matcher) {
+            this.snapshot = snapshot;
+            this.matcher = matcher;
+        }
+
+        private boolean advance() {
+            int[] sortedPositions = snapshot.sortedPositions;
+            while (++index < sortedPositions.length) {
+                position = sortedPositions[index];
+                if (matcher.matches(snapshot, position)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private long durationNanos() {
+            return snapshot.durationNanos[position];
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return Longs.compare(other.durationNanos(), durationNanos());
+        }
+    }
+
+    private static class CandidateIterator extends AbstractIterator<String> {
+
+        private final PriorityQueue<Cursor> cursors;
+
+        private CandidateIterator(PriorityQueue<Cursor> cursors) {
+            this.cursors = cursors;
+        }
+
+        @Override
+        protected String computeNext() {
+            Cursor cursor = cursors.poll();
+            if (cursor == null) {
+                return endOfData();
+            }
+            String traceId = cursor.snapshot.getTraceId(cursor.position);
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+            return traceId;
+        }
+    }
+}
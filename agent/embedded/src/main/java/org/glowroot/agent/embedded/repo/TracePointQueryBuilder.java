@@ -50,6 +50,11 @@ class TracePointQueryBuilder {
     // to their trace points (aggregate data intervals are non-inclusive on lower bound and
     // inclusive on upper bound)
     ParameterizedSql getParameterizedSql() {
+        return getParameterizedSql(ImmutableList.<String>of());
+    }
+
+    // non-empty traceIds restricts the query to the given candidates (see TracePointIndex)
+    ParameterizedSql getParameterizedSql(List<String> traceIds) {
         ParameterizedSqlBuilder builder = new ParameterizedSqlBuilder();
         builder.appendText("select trace.id, trace.capture_time, trace.duration_nanos,"
                 + " trace.partial, trace.error from trace");
@@ -74,6 +79,7 @@ class TracePointQueryBuilder {
         appendHeadlineCriteria(builder);
         appendErrorCriteria(builder);
         appendUserCriteria(builder);
+        appendTraceIdCriteria(builder, traceIds);
         appendOrderByAndLimit(builder);
         return builder.build();
     }
@@ -165,6 +171,21 @@ class TracePointQueryBuilder {
         }
     }
 
+    private static void appendTraceIdCriteria(ParameterizedSqlBuilder builder,
+            List<String> traceIds) {
+        if (traceIds.isEmpty()) {
+            return;
+        }
+        builder.appendText(" and trace.id in (?");
+        for (int i = 1; i < traceIds.size(); i++) {
+            builder.appendText(", ?");
+        }
+        builder.appendText(")");
+        for (String traceId : traceIds) {
+            builder.addArg(traceId);
+        }
+    }
+
     private void appendOrderByAndLimit(ParameterizedSqlBuilder builder) {
         builder.appendText(" order by trace.duration_nanos");
         if (limit != 0) {
@@ -16,6 +16,7 @@
 package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -24,12 +25,15 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
 
 import javax.annotation.concurrent.GuardedBy;
 
-import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -41,14 +45,9 @@ import com.google.common.primitives.Longs;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.Parser;
-import com.ning.compress.lzf.LZFInputStream;
-import com.ning.compress.lzf.LZFOutputStream;
-import com.ning.compress.lzf.util.ChunkDecoderFactory;
-import com.ning.compress.lzf.util.ChunkEncoderFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.glowroot.agent.util.JavaVersion;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
@@ -58,35 +57,45 @@ public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
-    private static final boolean USE_SAFE_LZF_ENCODER;
+    private static final boolean USE_DICTIONARY_CODEC =
+            Boolean.getBoolean("glowroot.internal.cappedDatabaseDictionaryCodec");
 
-    static {
-        String arch = StandardSystemProperty.OS_ARCH.value();
-        // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
-        boolean unalignedAccessAllowed = "i386".equals(arch) || "x86".equals(arch)
-                || "amd64".equals(arch) || "x86_64".equals(arch) || "aarch64".equals(arch)
-                || "ppc64le".equals(arch);
-        USE_SAFE_LZF_ENCODER =
-                !unalignedAccessAllowed || (JavaVersion.isIbmJvm() && JavaVersion.isJava6());
-    }
+    // returned by CappedBlockInputStream when the capped database was resized during the read, in
+    // which case the read needs to be retried
+    private static final int RESIZED_MID_READ = -2;
 
     private final File file;
     private final Object lock = new Object();
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
+    // reads are performed using positional reads without holding the lock, and a new channel is
+    // published after each resize, so readers can detect a concurrent resize by comparing the
+    // channel they read from against the current channel (see CappedBlockInputStream)
+    private volatile FileChannel inChannel;
     private volatile boolean closed = false;
 
+    // the dictionary codec is needed for reading even when it is not used for writing, since the
+    // capped database can contain blocks written by either codec
+    private final DictionaryCodec dictionaryCodec;
+    @GuardedBy("lock")
+    private final CappedDatabaseCodec writeCodec;
+
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
+        this(file, requestedSizeKb, ticker, USE_DICTIONARY_CODEC);
+    }
+
+    CappedDatabase(File file, int requestedSizeKb, Ticker ticker, boolean useDictionaryCodec)
+            throws IOException {
         this.file = file;
         this.ticker = ticker;
+        dictionaryCodec = new DictionaryCodec(new File(file.getPath() + ".dict"));
+        writeCodec = useDictionaryCodec ? dictionaryCodec : LzfCodec.INSTANCE;
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
-        inFile = new RandomAccessFile(file, "r");
+        inChannel = openInChannel(file);
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -136,11 +145,17 @@ public class CappedDatabase {
                 return -1;
             }
             long startTick = ticker.read();
+            // the current index needs to be captured prior to starting the block, so that the
+            // codec can rely on the block's capped id being greater than or equal to it
+            long currIndex = out.getCurrIndex();
+            long smallestNonOverwrittenId = out.getSmallestNonOverwrittenId();
             out.startBlock();
             NonClosingCountingOutputStream countingStreamAfterCompression =
                     new NonClosingCountingOutputStream(out);
             CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(newLZFOutputStream(countingStreamAfterCompression));
+                    new CountingOutputStream(writeCodec.newCompressingStream(
+                            countingStreamAfterCompression, type, currIndex,
+                            smallestNonOverwrittenId, out.getSizeBytes()));
             copier.copyTo(countingStreamBeforeCompression);
             countingStreamBeforeCompression.close();
             long endTick = ticker.read();
@@ -157,12 +172,8 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
+        boolean overwritten = out.isOverwritten(cappedId);
+        boolean inTheFuture = cappedId >= out.getCurrIndex();
         if (overwritten) {
             return null;
         }
@@ -174,34 +185,26 @@ public class CappedDatabase {
             // glowroot.capped.db
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = null;
         try {
+            input = newDecompressingStream(cappedId);
             return parser.parseFrom(input);
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!out.isOverwritten(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return null;
         } finally {
-            input.close();
+            if (input != null) {
+                input.close();
+            }
         }
     }
 
     public <T extends /*@NonNull*/ MessageLite> List<T> readMessages(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
+        boolean overwritten = out.isOverwritten(cappedId);
+        boolean inTheFuture = cappedId >= out.getCurrIndex();
         if (overwritten) {
             return ImmutableList.of();
         }
@@ -213,29 +216,25 @@ public class CappedDatabase {
             // glowroot.capped.db
             return ImmutableList.of();
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
+        InputStream input = null;
         try {
+            input = newDecompressingStream(cappedId);
             T message;
             while ((message = sizeLimitBypassingParser.parseDelimitedFrom(input)) != null) {
                 messages.add(message);
             }
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!out.isOverwritten(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return ImmutableList.of();
         } finally {
-            input.close();
+            if (input != null) {
+                input.close();
+            }
         }
         return messages;
     }
@@ -246,15 +245,11 @@ public class CappedDatabase {
     }
 
     boolean isExpired(long cappedId) {
-        synchronized (lock) {
-            return out.isOverwritten(cappedId);
-        }
+        return out.isOverwritten(cappedId);
     }
 
     public long getSmallestNonExpiredId() {
-        synchronized (lock) {
-            return out.getSmallestNonOverwrittenId();
-        }
+        return out.getSmallestNonOverwrittenId();
     }
 
     public void resize(int newSizeKb) throws IOException {
@@ -262,9 +257,12 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
+            // closing the channel before resizing causes any in-flight reads to fail with
+            // AsynchronousCloseException, after which they wait on the lock (see reopenInChannel())
+            // and retry against the new channel
+            inChannel.close();
             out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            inChannel = openInChannel(file);
         }
     }
 
@@ -273,27 +271,55 @@ public class CappedDatabase {
         synchronized (lock) {
             closed = true;
             out.close();
-            inFile.close();
+            inChannel.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
-        if (USE_SAFE_LZF_ENCODER) {
-            return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
-        } else {
-            return new LZFOutputStream(outputStream);
+    // a channel can also be closed underneath readers when a reading thread is interrupted (see
+    // ClosedByInterruptException), in which case it needs to be re-opened for the other readers
+    private void reopenInChannel(FileChannel closedChannel) throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (inChannel == closedChannel && !closedChannel.isOpen()) {
+                inChannel = openInChannel(file);
+            }
         }
     }
 
-    private static LZFInputStream newLZFInputStream(InputStream inputStream) throws IOException {
-        if (USE_SAFE_LZF_ENCODER) {
-            return new LZFInputStream(ChunkDecoderFactory.safeInstance(), inputStream);
-        } else {
-            return new LZFInputStream(inputStream);
+    private static FileChannel openInChannel(File file) throws IOException {
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long currPosition = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, currPosition);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            currPosition += n;
         }
     }
 
+    private InputStream newDecompressingStream(long cappedId) throws IOException {
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying FileChannel
+        final int bufferSize = 32768;
+        BufferedInputStream in =
+                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize);
+        in.mark(1);
+        if (in.read() == DictionaryCodec.ID) {
+            return dictionaryCodec.newDecompressingStream(in);
+        }
+        // blocks written by the LZF codec do not have a codec id byte
+        in.reset();
+        return LzfCodec.INSTANCE.newDecompressingStream(in);
+    }
+
     @OnlyUsedByTests
     private class CappedBlockCharSource extends CharSource {
 
@@ -305,12 +331,7 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
-            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
-            final int bufferSize = 32768;
-            return new InputStreamReader(newLZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
-                    UTF_8);
+            return new InputStreamReader(newDecompressingStream(cappedId), UTF_8);
         }
     }
 
@@ -329,24 +350,60 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            while (true) {
+                // the channel must be read before reading positions from the output stream, since a
+                // resize closes the old channel before updating the positions
+                FileChannel channel = inChannel;
+                try {
+                    int numRead = read(channel, bytes, off, len);
+                    if (numRead != RESIZED_MID_READ) {
+                        return numRead;
+                    }
+                } catch (ClosedByInterruptException e) {
+                    reopenInChannel(channel);
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    logger.debug(e.getMessage(), e);
+                    reopenInChannel(channel);
                 }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+            }
+        }
+
+        private int read(FileChannel channel, byte[] bytes, int off, int len) throws IOException {
+            checkNotOverwritten();
+            long blockLength = this.blockLength;
+            if (blockLength == -1) {
+                long filePosition = out.convertToFilePosition(cappedId);
+                ByteBuffer buffer =
+                        ByteBuffer.allocate(CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES);
+                readFully(channel, buffer,
+                        CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+                if (channel != inChannel) {
+                    return RESIZED_MID_READ;
                 }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
+                // the block length is only valid if the block was not overwritten while reading
+                checkNotOverwritten();
+                blockLength = buffer.getLong(0);
+            }
+            long filePosition = out.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            long blockRemaining = blockLength - blockIndex;
+            long fileRemaining = out.getSizeBytes() - filePosition;
+            int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+            readFully(channel, ByteBuffer.wrap(bytes, off, numToRead),
+                    CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+            if (channel != inChannel) {
+                return RESIZED_MID_READ;
+            }
+            checkNotOverwritten();
+            this.blockLength = blockLength;
+            blockIndex += numToRead;
+            return numToRead;
+        }
+
+        private void checkNotOverwritten() throws CappedBlockRolledOverMidReadException {
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
             }
         }
 
@@ -374,7 +431,7 @@ public class CappedDatabase {
                 closed = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
+                    inChannel.close();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// compresses the blocks written to a capped database
+//
+// the codec used to write a block is identified by the first byte of the block, so that blocks
+// written by different codecs can be read back from the same capped database (LZF blocks have no
+// codec id byte, since they were written before there were other codecs, but they can be
+// identified by the LZF chunk signature)
+interface CappedDatabaseCodec {
+
+    // this is only called by the writer thread (under the capped database lock)
+    //
+    // currIndex and smallestNonOverwrittenId are the capped database indexes at the time of the
+    // write, which codecs can use to track which blocks they may still be asked to read
+    OutputStream newCompressingStream(OutputStream out, String type, long currIndex,
+            long smallestNonOverwrittenId, long sizeBytes) throws IOException;
+
+    // this can be called concurrently by multiple reader threads, and the codec id byte (if any)
+    // has already been consumed from the input stream
+    InputStream newDecompressingStream(InputStream in) throws IOException;
+}
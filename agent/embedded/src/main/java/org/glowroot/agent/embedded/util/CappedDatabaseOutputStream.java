@@ -22,7 +22,12 @@ import java.io.RandomAccessFile;
 
 import org.glowroot.common.util.OnlyUsedByTests;
 
-// Needs to be externally synchronized around startBlock()/write()/endBlock().
+// Needs to be externally synchronized around startBlock()/write()/endBlock()/resize().
+//
+// The methods used by readers (isOverwritten(), getSmallestNonOverwrittenId(), getCurrIndex(),
+// getSizeBytes() and convertToFilePosition()) can be called without external synchronization.
+// Readers must re-check isOverwritten() after reading in order to detect data that was overwritten
+// concurrently, which works because writeLimitIndex is published before any bytes are written.
 class CappedDatabaseOutputStream extends OutputStream {
 
     static final int HEADER_SKIP_BYTES = 20;
@@ -35,13 +40,16 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
+    private volatile long currIndex;
+    // writeLimitIndex is the (exclusive) upper bound of the indexes that are currently being
+    // written, which is greater than currIndex while a write is in progress
+    private volatile long writeLimitIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
-    private long lastResizeBaseIndex;
-    // sizeKb is volatile so it can be read outside of the external synchronization around
-    // startBlock()/write()/endBlock()
+    private volatile long lastResizeBaseIndex;
+    // sizeKb and sizeBytes are volatile so they can be read outside of the external
+    // synchronization around startBlock()/write()/endBlock()
     private volatile int sizeKb;
-    private long sizeBytes;
+    private volatile long sizeBytes;
 
     private long blockStartIndex;
     private long blockStartPosition;
@@ -66,6 +74,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        writeLimitIndex = currIndex;
     }
 
     void startBlock() {
@@ -78,6 +87,7 @@ class CappedDatabaseOutputStream extends OutputStream {
         blockStartIndex = currIndex;
         blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         // make space for block size to be written at start position
+        writeLimitIndex = currIndex + BLOCK_HEADER_SKIP_BYTES;
         currIndex += BLOCK_HEADER_SKIP_BYTES;
     }
 
@@ -94,8 +104,11 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     long getSmallestNonOverwrittenId() {
         // need to check lastResizeBaseIndex in case it was recently resized larger, in which case
-        // currIndex - sizeBytes would be less than lastResizeBaseIndex
-        return Math.max(lastResizeBaseIndex, currIndex - sizeBytes);
+        // writeLimitIndex - sizeBytes would be less than lastResizeBaseIndex
+        //
+        // using writeLimitIndex instead of currIndex so that bytes that are in the process of being
+        // overwritten are already considered overwritten
+        return Math.max(lastResizeBaseIndex, writeLimitIndex - sizeBytes);
     }
 
     long getCurrIndex() {
@@ -107,6 +120,10 @@ class CappedDatabaseOutputStream extends OutputStream {
         return sizeKb;
     }
 
+    long getSizeBytes() {
+        return sizeBytes;
+    }
+
     long convertToFilePosition(long index) {
         return (index - lastResizeBaseIndex) % sizeBytes;
     }
@@ -176,6 +193,7 @@ class CappedDatabaseOutputStream extends OutputStream {
                     "A single block cannot have more bytes than size of the capped database");
         }
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
+        writeLimitIndex = currIndex + len;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
         if (len >= remaining) {
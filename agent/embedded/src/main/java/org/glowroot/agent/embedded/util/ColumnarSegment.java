@@ -0,0 +1,315 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// immutable, column-oriented file format for the summary columns of closed aggregate intervals
+//
+// all columns are stored back to back after the header, and each column is read sequentially using
+// its own cursor into the memory-mapped file:
+// * capture times are sorted and stored as varint deltas
+// * transaction types and transaction names are stored as varint indexes into a shared dictionary
+// * counts are stored as varints
+// * durations are stored as varints when they are whole numbers (which is almost always the case
+// since they are sums of nanosecond durations), otherwise as raw doubles
+public class ColumnarSegment {
+
+    private static final Logger logger = LoggerFactory.getLogger(ColumnarSegment.class);
+
+    private static final int MAGIC = 0x47524353;
+    private static final int VERSION = 1;
+
+    private static final int NUM_COLUMNS = 6;
+
+    private final MappedByteBuffer buffer;
+    private final String[] dictionary;
+    private final int rowCount;
+    private final int[] columnOffsets;
+
+    private ColumnarSegment(MappedByteBuffer buffer, String[] dictionary, int rowCount,
+            int[] columnOffsets) {
+        this.buffer = buffer;
+        this.dictionary = dictionary;
+        this.rowCount = rowCount;
+        this.columnOffsets = columnOffsets;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    // releases the memory mapping immediately instead of waiting for garbage collection (which is
+    // also what allows the file to be deleted on windows)
+    //
+    // the caller must ensure that this segment is no longer being scanned, since accessing an
+    // unmapped buffer crashes the jvm
+    public void close() {
+        try {
+            unmap(buffer);
+        } catch (Throwable t) {
+            // the mapping will still be released once the buffer is garbage collected
+            logger.debug(t.getMessage(), t);
+        }
+    }
+
+    // from is non-inclusive, to is inclusive
+    public void scan(long from, long to, String transactionType, RowVisitor visitor) {
+        int transactionTypeIndex = -1;
+        for (int i = 0; i < dictionary.length; i++) {
+            if (dictionary[i].equals(transactionType)) {
+                transactionTypeIndex = i;
+                break;
+            }
+        }
+        if (transactionTypeIndex == -1) {
+            return;
+        }
+        ByteBuffer captureTimes = newCursor(0);
+        ByteBuffer transactionTypes = newCursor(1);
+        ByteBuffer transactionNames = newCursor(2);
+        ByteBuffer totalDurationNanos = newCursor(3);
+        ByteBuffer transactionCounts = newCursor(4);
+        ByteBuffer errorCounts = newCursor(5);
+        long captureTime = 0;
+        for (int i = 0; i < rowCount; i++) {
+            captureTime += readVarLong(captureTimes);
+            int typeIndex = (int) readVarLong(transactionTypes);
+            int nameIndex = (int) readVarLong(transactionNames);
+            double durationNanos = readDuration(totalDurationNanos);
+            long transactionCount = readVarLong(transactionCounts);
+            long errorCount = readVarLong(errorCounts);
+            if (captureTime <= from || typeIndex != transactionTypeIndex) {
+                continue;
+            }
+            if (captureTime > to) {
+                // capture times are sorted
+                return;
+            }
+            String transactionName = nameIndex == 0 ? null : dictionary[nameIndex - 1];
+            visitor.visit(captureTime, transactionName, durationNanos, transactionCount,
+                    errorCount);
+        }
+    }
+
+    private ByteBuffer newCursor(int column) {
+        ByteBuffer cursor = buffer.duplicate();
+        // this cast is needed in order to avoid
+        // java.lang.NoSuchMethodError: java.nio.ByteBuffer.position(I)Ljava/nio/ByteBuffer;
+        // when this code is compiled with Java 9 and run with Java 8 or earlier
+        ((Buffer) cursor).position(columnOffsets[column]);
+        return cursor;
+    }
+
+    public static ColumnarSegment open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            // the mapping remains valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Invalid segment file: " + file.getAbsolutePath());
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unexpected segment file version: " + version);
+        }
+        String[] dictionary = new String[buffer.getInt()];
+        for (int i = 0; i < dictionary.length; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            dictionary[i] = new String(bytes, Charsets.UTF_8);
+        }
+        int rowCount = buffer.getInt();
+        int[] columnOffsets = new int[NUM_COLUMNS];
+        int offset = buffer.position() + NUM_COLUMNS * 4;
+        for (int i = 0; i < NUM_COLUMNS; i++) {
+            columnOffsets[i] = offset;
+            offset += buffer.getInt();
+        }
+        return new ColumnarSegment(buffer, dictionary, rowCount, columnOffsets);
+    }
+
+    private static void unmap(MappedByteBuffer buffer) throws Exception {
+        try {
+            // java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleanerMethod =
+                    unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafeField.setAccessible(true);
+            invokeCleanerMethod.invoke(theUnsafeField.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            // java 8 and earlier
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        }
+    }
+
+    private static int getDictionaryIndex(Map<String, Integer> dictionary, String value) {
+        Integer index = dictionary.get(value);
+        if (index == null) {
+            index = dictionary.size();
+            dictionary.put(value, index);
+        }
+        return index;
+    }
+
+    private static void writeDuration(ByteArrayOutputStream out, double value) {
+        long longValue = (long) value;
+        if (longValue == value && longValue >= 0 && longValue < Long.MAX_VALUE >> 1) {
+            writeVarLong(out, longValue << 1);
+        } else {
+            writeVarLong(out, 1);
+            long bits = Double.doubleToLongBits(value);
+            for (int i = 56; i >= 0; i -= 8) {
+                out.write((int) (bits >>> i));
+            }
+        }
+    }
+
+    private static double readDuration(ByteBuffer buffer) {
+        long value = readVarLong(buffer);
+        if ((value & 1) == 0) {
+            return value >>> 1;
+        } else {
+            return Double.longBitsToDouble(buffer.getLong());
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    // rows are encoded into the columns as they are added, so that only the (compact) encoded
+    // columns are held in memory, instead of all of the rows
+    public static class Writer {
+
+        private final Map<String, Integer> dictionary = Maps.newLinkedHashMap();
+        private final ByteArrayOutputStream[] columns = new ByteArrayOutputStream[NUM_COLUMNS];
+
+        private long priorCaptureTime;
+        private int rowCount;
+
+        public Writer() {
+            for (int i = 0; i < NUM_COLUMNS; i++) {
+                columns[i] = new ByteArrayOutputStream();
+            }
+        }
+
+        // rows must be added in capture time order
+        public void add(long captureTime, String transactionType,
+                @Nullable String transactionName, double totalDurationNanos,
+                long transactionCount, long errorCount) {
+            checkArgument(captureTime >= priorCaptureTime, "rows must be added in order");
+            writeVarLong(columns[0], captureTime - priorCaptureTime);
+            priorCaptureTime = captureTime;
+            writeVarLong(columns[1], getDictionaryIndex(dictionary, transactionType));
+            if (transactionName == null) {
+                writeVarLong(columns[2], 0);
+            } else {
+                writeVarLong(columns[2], getDictionaryIndex(dictionary, transactionName) + 1);
+            }
+            writeDuration(columns[3], totalDurationNanos);
+            writeVarLong(columns[4], transactionCount);
+            writeVarLong(columns[5], errorCount);
+            rowCount++;
+        }
+
+        public void write(File file) throws IOException {
+            // write to temporary file first so that readers never see a partially written segment
+            File tmpFile = new File(file.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(dictionary.size());
+                for (String value : dictionary.keySet()) {
+                    byte[] bytes = value.getBytes(Charsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+                out.writeInt(rowCount);
+                for (ByteArrayOutputStream column : columns) {
+                    out.writeInt(column.size());
+                }
+                for (ByteArrayOutputStream column : columns) {
+                    column.writeTo(out);
+                }
+            } finally {
+                out.close();
+            }
+            // renameTo() does not replace an existing file on windows (an existing file is only
+            // left over from a segment that was written but not yet recorded as covered prior to
+            // jvm termination, so it is not being read)
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete file " + file.getAbsolutePath());
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Could not rename file " + tmpFile.getAbsolutePath()
+                        + " to " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    public interface RowVisitor {
+        void visit(long captureTime, @Nullable String transactionName, double totalDurationNanos,
+                long transactionCount, long errorCount);
+    }
+}
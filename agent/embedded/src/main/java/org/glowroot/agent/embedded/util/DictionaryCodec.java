@@ -0,0 +1,414 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// compresses blocks using deflate with a preset dictionary that is shared across the blocks of each
+// type, since blocks of the same type (e.g. trace entries, queries and profiles) share a lot of
+// structure with each other that is lost when each block is compressed independently
+//
+// the dictionary for each type is periodically re-trained from the beginning of recently written
+// blocks of that type, and dictionaries are stored in a separate file next to the capped database
+// file until all of the blocks that were written using them have been overwritten
+class DictionaryCodec implements CappedDatabaseCodec {
+
+    static final int ID = 1;
+
+    // dictionary id 0 is used for blocks written before the first dictionary was trained
+    private static final long NO_DICTIONARY_ID = 0;
+
+    private static final int SAMPLE_BYTES = 2048;
+    private static final int MAX_SAMPLES = 8;
+    private static final int MIN_SAMPLES_FOR_TRAINING = 4;
+    // re-train once a quarter of the capped database size has been written using the current
+    // dictionary, which bounds the number of dictionaries that need to be retained
+    private static final int RETRAIN_FRACTION = 4;
+
+    private final File file;
+
+    // dictionaries are read concurrently by reader threads
+    private final ConcurrentMap<Long, Dictionary> dictionaries = Maps.newConcurrentMap();
+
+    // the rest is only accessed by the writer thread (under the capped database lock)
+    private final Map<String, TypeState> typeStates = Maps.newHashMap();
+    private long nextDictionaryId = NO_DICTIONARY_ID + 1;
+
+    DictionaryCodec(File file) throws IOException {
+        this.file = file;
+        recoverFromInterruptedRewrite(file);
+        for (Dictionary dictionary : readDictionaries(file)) {
+            dictionaries.put(dictionary.id, dictionary);
+            getTypeState(dictionary.type).dictionaries.add(dictionary);
+            nextDictionaryId = Math.max(nextDictionaryId, dictionary.id + 1);
+        }
+    }
+
+    @Override
+    public OutputStream newCompressingStream(OutputStream out, String type, long currIndex,
+            long smallestNonOverwrittenId, long sizeBytes) throws IOException {
+        pruneDictionaries(smallestNonOverwrittenId);
+        TypeState typeState = getTypeState(type);
+        Dictionary dictionary = typeState.getCurrentDictionary();
+        if (shouldTrain(typeState, dictionary, currIndex, sizeBytes)) {
+            dictionary = train(type, typeState, currIndex);
+        }
+        out.write(ID);
+        DataOutputStream dataOut = new DataOutputStream(out);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        if (dictionary == null) {
+            dataOut.writeLong(NO_DICTIONARY_ID);
+        } else {
+            dataOut.writeLong(dictionary.id);
+            deflater.setDictionary(dictionary.bytes);
+        }
+        dataOut.flush();
+        return new SamplingOutputStream(new DeflaterOutputStream(out, deflater), deflater,
+                typeState);
+    }
+
+    @Override
+    public InputStream newDecompressingStream(InputStream in) throws IOException {
+        long dictionaryId = new DataInputStream(in).readLong();
+        Inflater inflater = new Inflater(true);
+        if (dictionaryId != NO_DICTIONARY_ID) {
+            Dictionary dictionary = dictionaries.get(dictionaryId);
+            if (dictionary == null) {
+                inflater.end();
+                // this can happen if the block is overwritten during the read, or if the
+                // dictionary file was deleted
+                throw new IOException("Dictionary not found: " + dictionaryId);
+            }
+            inflater.setDictionary(dictionary.bytes);
+        }
+        return new EndingInflaterInputStream(in, inflater);
+    }
+
+    private TypeState getTypeState(String type) {
+        TypeState typeState = typeStates.get(type);
+        if (typeState == null) {
+            typeState = new TypeState();
+            typeStates.put(type, typeState);
+        }
+        return typeState;
+    }
+
+    private Dictionary train(String type, TypeState typeState, long currIndex)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        // most recent samples are placed at the end of the dictionary since deflate can encode
+        // shorter distances to them
+        for (byte[] sample : typeState.samples) {
+            baos.write(sample);
+        }
+        Dictionary dictionary = new Dictionary(nextDictionaryId++, currIndex, type,
+                baos.toByteArray(), typeState.samples.size());
+        // the dictionary must be durable before any block is written using it
+        appendDictionary(dictionary);
+        dictionaries.put(dictionary.id, dictionary);
+        typeState.dictionaries.add(dictionary);
+        return dictionary;
+    }
+
+    private void pruneDictionaries(long smallestNonOverwrittenId) throws IOException {
+        boolean pruned = false;
+        for (TypeState typeState : typeStates.values()) {
+            List<Dictionary> typeDictionaries = typeState.dictionaries;
+            // all blocks written using a dictionary have been overwritten once the next dictionary
+            // (of the same type) was created before the smallest non-overwritten id
+            while (typeDictionaries.size() > 1
+                    && typeDictionaries.get(1).createdIndex <= smallestNonOverwrittenId) {
+                dictionaries.remove(typeDictionaries.remove(0).id);
+                pruned = true;
+            }
+        }
+        if (pruned) {
+            rewriteDictionaries();
+        }
+    }
+
+    private void appendDictionary(Dictionary dictionary) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(file, true);
+        try {
+            DataOutputStream out = new DataOutputStream(fileOut);
+            writeDictionary(out, dictionary);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+    }
+
+    private void rewriteDictionaries() throws IOException {
+        File tmpFile = getTmpFile(file);
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream out = new DataOutputStream(fileOut);
+            for (TypeState typeState : typeStates.values()) {
+                for (Dictionary dictionary : typeState.dictionaries) {
+                    writeDictionary(out, dictionary);
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        // the existing file is kept (as the backup file) until the new file is in place, so that
+        // the dictionaries are never lost if the jvm crashes (or the rename fails) in between, see
+        // recoverFromInterruptedRewrite()
+        File bakFile = getBakFile(file);
+        if (bakFile.exists() && !bakFile.delete()) {
+            throw new IOException("Unable to delete old backup dictionary file");
+        }
+        if (file.exists() && !file.renameTo(bakFile)) {
+            throw new IOException("Unable to rename existing dictionary file");
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Unable to rename new dictionary file");
+        }
+        if (!bakFile.delete()) {
+            throw new IOException("Unable to delete backup dictionary file");
+        }
+    }
+
+    private static void recoverFromInterruptedRewrite(File file) throws IOException {
+        File tmpFile = getTmpFile(file);
+        File bakFile = getBakFile(file);
+        if (!file.exists() && bakFile.exists()) {
+            // the rewrite was interrupted after the existing file was renamed to the backup file,
+            // and the backup file is a superset of the new file (which only prunes dictionaries)
+            if (!bakFile.renameTo(file)) {
+                throw new IOException("Unable to restore backup dictionary file");
+            }
+        }
+        // any remaining temp file may be partially written, and any remaining backup file is
+        // superseded by the file
+        if (tmpFile.exists() && !tmpFile.delete()) {
+            throw new IOException("Unable to delete temp dictionary file");
+        }
+        if (bakFile.exists() && !bakFile.delete()) {
+            throw new IOException("Unable to delete backup dictionary file");
+        }
+    }
+
+    private static File getTmpFile(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private static File getBakFile(File file) {
+        return new File(file.getPath() + ".bak");
+    }
+
+    private static boolean shouldTrain(TypeState typeState, @Nullable Dictionary dictionary,
+            long currIndex, long sizeBytes) {
+        int sampleCount = typeState.samples.size();
+        if (sampleCount < MIN_SAMPLES_FOR_TRAINING) {
+            return false;
+        }
+        if (dictionary == null) {
+            return true;
+        }
+        if (dictionary.sampleCount < MAX_SAMPLES && sampleCount == MAX_SAMPLES) {
+            // the initial dictionary is trained early from fewer samples
+            return true;
+        }
+        return currIndex - dictionary.createdIndex >= sizeBytes / RETRAIN_FRACTION;
+    }
+
+    private static void writeDictionary(DataOutputStream out, Dictionary dictionary)
+            throws IOException {
+        out.writeLong(dictionary.id);
+        out.writeLong(dictionary.createdIndex);
+        out.writeUTF(dictionary.type);
+        out.writeInt(dictionary.bytes.length);
+        out.write(dictionary.bytes);
+    }
+
+    // ordered by id
+    private static List<Dictionary> readDictionaries(File file) throws IOException {
+        List<Dictionary> dictionaries = Lists.newArrayList();
+        if (!file.exists()) {
+            return dictionaries;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            while (true) {
+                long id;
+                try {
+                    id = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                long createdIndex = in.readLong();
+                String type = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                dictionaries.add(new Dictionary(id, createdIndex, type, bytes, MAX_SAMPLES));
+            }
+        } catch (EOFException e) {
+            // partially written dictionary at the end of the file (e.g. from jvm crash), any blocks
+            // written using it were never written since the dictionary must be durable first
+        } finally {
+            in.close();
+        }
+        // sort in case dictionary file was rewritten (which groups dictionaries by type)
+        Collections.sort(dictionaries, new Comparator<Dictionary>() {
+            @Override
+            public int compare(Dictionary left, Dictionary right) {
+                return Longs.compare(left.id, right.id);
+            }
+        });
+        return dictionaries;
+    }
+
+    private static class Dictionary {
+
+        private final long id;
+        // capped database index at the time the dictionary was created, all blocks written using
+        // this dictionary have a capped id greater than or equal to this
+        private final long createdIndex;
+        private final String type;
+        private final byte[] bytes;
+        // this is not stored in the dictionary file, see shouldTrain()
+        private final int sampleCount;
+
+        private Dictionary(long id, long createdIndex, String type, byte[] bytes,
+                int sampleCount) {
+            this.id = id;
+            this.createdIndex = createdIndex;
+            this.type = type;
+            this.bytes = bytes;
+            this.sampleCount = sampleCount;
+        }
+    }
+
+    private static class TypeState {
+
+        // ordered by id
+        private final List<Dictionary> dictionaries = Lists.newArrayList();
+        // most recent samples last
+        private final Deque<byte[]> samples = new ArrayDeque<byte[]>();
+
+        private @Nullable Dictionary getCurrentDictionary() {
+            return dictionaries.isEmpty() ? null : dictionaries.get(dictionaries.size() - 1);
+        }
+
+        private void addSample(byte[] sample) {
+            if (samples.size() == MAX_SAMPLES) {
+                samples.removeFirst();
+            }
+            samples.addLast(sample);
+        }
+    }
+
+    // captures the beginning of each block as a training sample for the next dictionary
+    private static class SamplingOutputStream extends FilterOutputStream {
+
+        private final Deflater deflater;
+        private final TypeState typeState;
+        private final ByteArrayOutputStream sample = new ByteArrayOutputStream();
+
+        private SamplingOutputStream(DeflaterOutputStream out, Deflater deflater,
+                TypeState typeState) {
+            super(out);
+            this.deflater = deflater;
+            this.typeState = typeState;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (sample.size() < SAMPLE_BYTES) {
+                sample.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            int remaining = SAMPLE_BYTES - sample.size();
+            if (remaining > 0) {
+                sample.write(b, off, Math.min(len, remaining));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                // this finishes the deflater output
+                out.close();
+            } finally {
+                // explicitly release native memory, which is not released by DeflaterOutputStream
+                // when it is passed a deflater
+                deflater.end();
+            }
+            if (sample.size() > 0) {
+                typeState.addSample(sample.toByteArray());
+            }
+        }
+    }
+
+    private static class EndingInflaterInputStream extends InflaterInputStream {
+
+        private boolean closed;
+
+        private EndingInflaterInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                // explicitly release native memory, which is not released by InflaterInputStream
+                // when it is passed an inflater
+                inf.end();
+            }
+        }
+    }
+}
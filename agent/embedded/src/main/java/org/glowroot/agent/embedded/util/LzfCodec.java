@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.common.base.StandardSystemProperty;
+import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.LZFOutputStream;
+import com.ning.compress.lzf.util.ChunkDecoderFactory;
+import com.ning.compress.lzf.util.ChunkEncoderFactory;
+
+import org.glowroot.agent.util.JavaVersion;
+
+// compresses each block independently
+class LzfCodec implements CappedDatabaseCodec {
+
+    static final LzfCodec INSTANCE = new LzfCodec();
+
+    private static final boolean USE_SAFE_LZF_ENCODER;
+
+    static {
+        String arch = StandardSystemProperty.OS_ARCH.value();
+        // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
+        boolean unalignedAccessAllowed = "i386".equals(arch) || "x86".equals(arch)
+                || "amd64".equals(arch) || "x86_64".equals(arch) || "aarch64".equals(arch)
+                || "ppc64le".equals(arch);
+        USE_SAFE_LZF_ENCODER =
+                !unalignedAccessAllowed || (JavaVersion.isIbmJvm() && JavaVersion.isJava6());
+    }
+
+    private LzfCodec() {}
+
+    @Override
+    public OutputStream newCompressingStream(OutputStream out, String type, long currIndex,
+            long smallestNonOverwrittenId, long sizeBytes) {
+        if (USE_SAFE_LZF_ENCODER) {
+            return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), out);
+        } else {
+            return new LZFOutputStream(out);
+        }
+    }
+
+    @Override
+    public InputStream newDecompressingStream(InputStream in) throws IOException {
+        if (USE_SAFE_LZF_ENCODER) {
+            return new LZFInputStream(ChunkDecoderFactory.safeInstance(), in);
+        } else {
+            return new LZFInputStream(in);
+        }
+    }
+}
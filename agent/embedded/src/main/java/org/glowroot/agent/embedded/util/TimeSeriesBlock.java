@@ -0,0 +1,264 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.util.Arrays;
+
+// compressed block of (capture time, value, weight) samples for a single time series, in capture
+// time order, using the encoding from the facebook gorilla paper
+//
+// capture times are stored as delta-of-deltas, which is a single bit for samples captured at a
+// fixed interval, values are stored as the xor with the prior value, which is a single bit for
+// unchanged values and only the meaningful bits otherwise, and weights are stored as a single bit
+// when unchanged (which is the common case for both non-counter and counter gauges)
+public class TimeSeriesBlock {
+
+    private TimeSeriesBlock() {}
+
+    public static void decode(byte[] block, SampleVisitor visitor) throws Exception {
+        BitReader reader = new BitReader(block);
+        int count = (int) reader.readBits(32);
+        if (count == 0) {
+            return;
+        }
+        long captureTime = reader.readBits(64);
+        long valueBits = reader.readBits(64);
+        long weight = reader.readBits(64);
+        visitor.visit(captureTime, Double.longBitsToDouble(valueBits), weight);
+        long delta = 0;
+        int leadingZeros = -1;
+        int trailingZeros = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readDeltaOfDelta(reader);
+            captureTime += delta;
+            if (reader.readBit()) {
+                if (!reader.readBit()) {
+                    if (leadingZeros == -1) {
+                        throw new IllegalStateException("Invalid time series block");
+                    }
+                } else {
+                    leadingZeros = (int) reader.readBits(5);
+                    trailingZeros = 64 - leadingZeros - ((int) reader.readBits(6) + 1);
+                }
+                int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                valueBits ^= reader.readBits(meaningfulBits) << trailingZeros;
+            }
+            if (reader.readBit()) {
+                weight += decodeZigZag(readVarBits(reader));
+            }
+            visitor.visit(captureTime, Double.longBitsToDouble(valueBits), weight);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader reader) {
+        if (!reader.readBit()) {
+            return 0;
+        }
+        if (!reader.readBit()) {
+            return reader.readBits(7) - 63;
+        }
+        if (!reader.readBit()) {
+            return reader.readBits(9) - 255;
+        }
+        if (!reader.readBit()) {
+            return reader.readBits(12) - 2047;
+        }
+        return reader.readBits(64);
+    }
+
+    private static long readVarBits(BitReader reader) {
+        long value = 0;
+        int shift = 0;
+        boolean more;
+        do {
+            more = reader.readBit();
+            value |= reader.readBits(7) << shift;
+            shift += 7;
+        } while (more);
+        return value;
+    }
+
+    private static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public interface SampleVisitor {
+        void visit(long captureTime, double value, long weight) throws Exception;
+    }
+
+    // samples must be added in capture time order
+    public static class Encoder {
+
+        private final BitWriter writer = new BitWriter();
+
+        private int count;
+        private long prevCaptureTime;
+        private long prevDelta;
+        private long prevValueBits;
+        private int prevLeadingZeros = -1;
+        private int prevTrailingZeros;
+        private long prevWeight;
+
+        public void add(long captureTime, double value, long weight) {
+            long valueBits = Double.doubleToRawLongBits(value);
+            if (count == 0) {
+                writer.writeBits(captureTime, 64);
+                writer.writeBits(valueBits, 64);
+                writer.writeBits(weight, 64);
+            } else {
+                long delta = captureTime - prevCaptureTime;
+                writeDeltaOfDelta(delta - prevDelta);
+                prevDelta = delta;
+                writeValue(valueBits ^ prevValueBits);
+                if (weight == prevWeight) {
+                    writer.writeBit(false);
+                } else {
+                    writer.writeBit(true);
+                    writeVarBits(encodeZigZag(weight - prevWeight));
+                }
+            }
+            prevCaptureTime = captureTime;
+            prevValueBits = valueBits;
+            prevWeight = weight;
+            count++;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public byte[] toByteArray() {
+            byte[] bits = writer.toByteArray();
+            byte[] block = new byte[4 + bits.length];
+            block[0] = (byte) (count >>> 24);
+            block[1] = (byte) (count >>> 16);
+            block[2] = (byte) (count >>> 8);
+            block[3] = (byte) count;
+            System.arraycopy(bits, 0, block, 4, bits.length);
+            return block;
+        }
+
+        private void writeDeltaOfDelta(long deltaOfDelta) {
+            if (deltaOfDelta == 0) {
+                writer.writeBit(false);
+            } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+                writer.writeBits(0x2, 2);
+                writer.writeBits(deltaOfDelta + 63, 7);
+            } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+                writer.writeBits(0x6, 3);
+                writer.writeBits(deltaOfDelta + 255, 9);
+            } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+                writer.writeBits(0xE, 4);
+                writer.writeBits(deltaOfDelta + 2047, 12);
+            } else {
+                writer.writeBits(0xF, 4);
+                writer.writeBits(deltaOfDelta, 64);
+            }
+        }
+
+        private void writeValue(long xor) {
+            if (xor == 0) {
+                writer.writeBit(false);
+                return;
+            }
+            writer.writeBit(true);
+            // leading zeros are capped so they fit in 5 bits
+            int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailingZeros = Long.numberOfTrailingZeros(xor);
+            if (prevLeadingZeros != -1 && leadingZeros >= prevLeadingZeros
+                    && trailingZeros >= prevTrailingZeros) {
+                // meaningful bits fall within the prior window
+                writer.writeBit(false);
+                int meaningfulBits = 64 - prevLeadingZeros - prevTrailingZeros;
+                writer.writeBits(xor >>> prevTrailingZeros, meaningfulBits);
+            } else {
+                writer.writeBit(true);
+                int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                writer.writeBits(leadingZeros, 5);
+                writer.writeBits(meaningfulBits - 1, 6);
+                writer.writeBits(xor >>> trailingZeros, meaningfulBits);
+                prevLeadingZeros = leadingZeros;
+                prevTrailingZeros = trailingZeros;
+            }
+        }
+
+        private void writeVarBits(long value) {
+            long remaining = value;
+            do {
+                long group = remaining & 0x7F;
+                remaining >>>= 7;
+                writer.writeBit(remaining != 0);
+                writer.writeBits(group, 7);
+            } while (remaining != 0);
+        }
+
+        private static long encodeZigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    private static class BitWriter {
+
+        private byte[] bytes = new byte[64];
+        private int bitCount;
+
+        private void writeBit(boolean bit) {
+            int byteIndex = bitCount >>> 3;
+            if (byteIndex == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            if (bit) {
+                bytes[byteIndex] |= 0x80 >>> (bitCount & 7);
+            }
+            bitCount++;
+        }
+
+        // writes the low numBits bits of value, most significant bit first
+        private void writeBits(long value, int numBits) {
+            for (int i = numBits - 1; i >= 0; i--) {
+                writeBit(((value >>> i) & 1) != 0);
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, (bitCount + 7) >>> 3);
+        }
+    }
+
+    private static class BitReader {
+
+        private final byte[] bytes;
+        private int bitIndex;
+
+        private BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private boolean readBit() {
+            boolean bit = (bytes[bitIndex >>> 3] & (0x80 >>> (bitIndex & 7))) != 0;
+            bitIndex++;
+            return bit;
+        }
+
+        private long readBits(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.collector.Collector.AggregateReader;
+import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.live.ImmutableOverallQuery;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.TransactionSummaryCollector;
+import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common2.repo.ImmutableRollupConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// compares summary and chart queries over 30 days of rollup level 1 data, with and without
+// columnar aggregate segments
+public class AggregateDaoPerformanceMain {
+
+    private static final Logger logger = LoggerFactory.getLogger(AggregateDaoPerformanceMain.class);
+
+    private static final int DAY_COUNT = 30;
+    private static final int TRANSACTION_NAME_COUNT = 50;
+    private static final int QUERY_ITERATIONS = 20;
+
+    private AggregateDaoPerformanceMain() {}
+
+    public static void main(String[] args) throws Exception {
+        DataSource dataSource = new DataSource();
+        File cappedFile = File.createTempFile("glowroot-perf-", ".capped.db");
+        CappedDatabase cappedDatabase =
+                new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
+        File segmentDir = Files.createTempDir();
+        ConfigRepositoryImpl configRepository = mock(ConfigRepositoryImpl.class);
+        when(configRepository.getAdvancedConfig(""))
+                .thenReturn(AdvancedConfig.getDefaultInstance());
+        ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
+                ImmutableRollupConfig.of(60000, 0), ImmutableRollupConfig.of(300000, 3600000));
+        when(configRepository.getRollupConfigs()).thenReturn(rollupConfigs);
+        ImmutableList<CappedDatabase> cappedDatabases =
+                ImmutableList.of(cappedDatabase, cappedDatabase);
+        AggregateDao h2AggregateDao = new AggregateDao(dataSource, cappedDatabases,
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                null);
+        AggregateDao segmentAggregateDao = new AggregateDao(dataSource, cappedDatabases,
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                new AggregateSegmentStore(segmentDir, dataSource, rollupConfigs.size()));
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (long captureTime = MINUTES.toMillis(5); captureTime <= DAYS.toMillis(DAY_COUNT)
+                + MINUTES.toMillis(5); captureTime += MINUTES.toMillis(5)) {
+            segmentAggregateDao.store(new PerformanceAggregateReader(captureTime));
+        }
+        logger.info("populate elapsed time: {}", stopwatch.elapsed(MILLISECONDS));
+
+        for (int i = 0; i < 3; i++) {
+            runQueries("h2", h2AggregateDao);
+            runQueries("segments", segmentAggregateDao);
+        }
+
+        dataSource.close();
+        cappedDatabase.close();
+        cappedFile.delete();
+        for (File file : segmentDir.listFiles()) {
+            file.delete();
+        }
+        segmentDir.delete();
+    }
+
+    private static void runQueries(String label, AggregateDao aggregateDao) throws Exception {
+        OverallQuery overallQuery = ImmutableOverallQuery.builder()
+                .transactionType("Web")
+                .from(0)
+                .to(DAYS.toMillis(DAY_COUNT))
+                .rollupLevel(1)
+                .build();
+        TransactionQuery transactionQuery = ImmutableTransactionQuery.builder()
+                .transactionType("Web")
+                .from(0)
+                .to(DAYS.toMillis(DAY_COUNT))
+                .rollupLevel(1)
+                .build();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int i = 0; i < QUERY_ITERATIONS; i++) {
+            aggregateDao.mergeOverallSummaryInto("", overallQuery, new OverallSummaryCollector());
+            aggregateDao.mergeTransactionSummariesInto("", overallQuery,
+                    SummarySortOrder.TOTAL_TIME, 10, new TransactionSummaryCollector());
+            aggregateDao.readThroughputAggregates("", transactionQuery);
+        }
+        logger.info("{} query elapsed time: {}", label, stopwatch.elapsed(MILLISECONDS));
+    }
+
+    private static class PerformanceAggregateReader implements AggregateReader {
+
+        private final long captureTime;
+
+        private PerformanceAggregateReader(long captureTime) {
+            this.captureTime = captureTime;
+        }
+
+        @Override
+        public long captureTime() {
+            return captureTime;
+        }
+
+        @Override
+        public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+            aggregateVisitor.visitOverallAggregate("Web", new ArrayList<String>(),
+                    createAggregate(TRANSACTION_NAME_COUNT));
+            for (int i = 0; i < TRANSACTION_NAME_COUNT; i++) {
+                aggregateVisitor.visitTransactionAggregate("Web", "/page" + i,
+                        new ArrayList<String>(), createAggregate(1));
+            }
+        }
+
+        private static Aggregate createAggregate(int transactionCount) {
+            return Aggregate.newBuilder()
+                    .setTotalDurationNanos(transactionCount * 1000000.0)
+                    .setErrorCount(0)
+                    .setTransactionCount(transactionCount)
+                    .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                            .addOrderedRawValue(1000000))
+                    .build();
+        }
+    }
+}
@@ -21,19 +21,23 @@ import java.util.List;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.embedded.repo.AggregateSegmentStore.CoveredRange;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.common.live.ImmutableOverallQuery;
 import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.model.TransactionSummaryCollector;
 import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
@@ -45,6 +49,8 @@ import org.glowroot.common2.repo.ImmutableRollupConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.DAYS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -59,6 +65,7 @@ public class AggregateDaoTest {
     private DataSource dataSource;
     private File cappedFile;
     private CappedDatabase cappedDatabase;
+    private ConfigRepositoryImpl configRepository;
     private AggregateDao aggregateDao;
 
     @Before
@@ -72,7 +79,7 @@ public class AggregateDaoTest {
         }
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
-        ConfigRepositoryImpl configRepository = mock(ConfigRepositoryImpl.class);
+        configRepository = mock(ConfigRepositoryImpl.class);
         when(configRepository.getAdvancedConfig(AGENT_ID))
                 .thenReturn(AdvancedConfig.getDefaultInstance());
         ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
@@ -82,7 +89,8 @@ public class AggregateDaoTest {
         aggregateDao = new AggregateDao(
                 dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
                         cappedDatabase, cappedDatabase),
-                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                null);
     }
 
     @After
@@ -132,6 +140,75 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldReadSummariesFromColumnarSegments() throws Exception {
+        // given
+        File segmentDir = Files.createTempDir();
+        AggregateSegmentStore segmentStore = new AggregateSegmentStore(segmentDir, dataSource, 3);
+        AggregateDao segmentAggregateDao = new AggregateDao(dataSource,
+                ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase, cappedDatabase,
+                        cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                segmentStore);
+        for (int i = 0; i < 4; i++) {
+            storeAggregate(segmentAggregateDao, DAYS.toMillis(i) + 10000);
+        }
+        // remove the h2 rows that are covered by segments, so that the results below can only be
+        // correct if the covered range is read from the segments
+        CoveredRange coveredRange =
+                checkNotNull(segmentStore.getCoveredRange(1, 0, DAYS.toMillis(4)));
+        assertThat(dataSource.update("delete from aggregate_tt_rollup_1 where capture_time > ?"
+                + " and capture_time <= ?", coveredRange.from(), coveredRange.to()))
+                        .isGreaterThan(0);
+        assertThat(dataSource.update("delete from aggregate_tn_rollup_1 where capture_time > ?"
+                + " and capture_time <= ?", coveredRange.from(), coveredRange.to()))
+                        .isGreaterThan(0);
+
+        // when
+        OverallQuery query = ImmutableOverallQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(DAYS.toMillis(4))
+                .rollupLevel(1)
+                .build();
+        TransactionQuery throughputQuery = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(DAYS.toMillis(4))
+                .rollupLevel(1)
+                .build();
+        OverallSummaryCollector overallCollector = new OverallSummaryCollector();
+        segmentAggregateDao.mergeOverallSummaryInto(AGENT_ID, query, overallCollector);
+        TransactionSummaryCollector collector = new TransactionSummaryCollector();
+        segmentAggregateDao.mergeTransactionSummariesInto(AGENT_ID, query,
+                SummarySortOrder.TOTAL_TIME, 10, collector);
+        Result<TransactionSummary> queryResult =
+                collector.getResult(SummarySortOrder.TOTAL_TIME, 10);
+        List<ThroughputAggregate> throughputAggregates =
+                segmentAggregateDao.readThroughputAggregates(AGENT_ID, throughputQuery);
+
+        // then
+        assertThat(segmentDir.list()).isNotEmpty();
+        assertThat(overallCollector.getOverallSummary().transactionCount()).isEqualTo(30);
+        assertThat(overallCollector.getOverallSummary().totalDurationNanos())
+                .isEqualTo(3000000);
+        assertThat(queryResult.records()).hasSize(2);
+        assertThat(queryResult.records().get(0).transactionName()).isEqualTo("seven");
+        assertThat(queryResult.records().get(0).transactionCount()).isEqualTo(21);
+        assertThat(queryResult.records().get(1).transactionName()).isEqualTo("one");
+        assertThat(queryResult.records().get(1).transactionCount()).isEqualTo(9);
+        assertThat(throughputAggregates).hasSize(3);
+        assertThat(throughputAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(throughputAggregates.get(1).captureTime())
+                .isEqualTo(DAYS.toMillis(1) + 15000);
+        assertThat(throughputAggregates.get(2).captureTime())
+                .isEqualTo(DAYS.toMillis(2) + 15000);
+
+        segmentAggregateDao.reinitAfterDeletingDatabase();
+        assertThat(segmentDir.list()).isEmpty();
+        segmentDir.delete();
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
@@ -211,6 +288,40 @@ public class AggregateDaoTest {
         });
     }
 
+    private static void storeAggregate(AggregateDao aggregateDao, final long captureTime)
+            throws Exception {
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return captureTime;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
+                        Aggregate.newBuilder()
+                                .setTotalDurationNanos(1000000)
+                                .setErrorCount(0)
+                                .setTransactionCount(10)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+                aggregateVisitor.visitTransactionAggregate("a type", "one", new ArrayList<String>(),
+                        Aggregate.newBuilder()
+                                .setTotalDurationNanos(300000)
+                                .setErrorCount(0)
+                                .setTransactionCount(3)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+                aggregateVisitor.visitTransactionAggregate("a type", "seven",
+                        new ArrayList<String>(), Aggregate.newBuilder()
+                                .setTotalDurationNanos(700000)
+                                .setErrorCount(0)
+                                .setTransactionCount(7)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+            }
+        });
+    }
+
     // used by TransactionCommonServiceTest
     public AggregateRepository getAggregateRepository() {
         return aggregateDao;
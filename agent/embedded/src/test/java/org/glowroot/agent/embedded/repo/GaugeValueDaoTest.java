@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class GaugeValueDaoTest {
+
+    private static final String AGENT_ID = "";
+    private static final String GAUGE_NAME = "java.lang:type=Memory:HeapMemoryUsage.used";
+
+    private static final long START_TIME = HOURS.toMillis(24 * 365 * 48);
+
+    private DataSource rowDataSource;
+    private DataSource blockDataSource;
+    private Clock clock;
+    private GaugeValueDao rowGaugeValueDao;
+    private GaugeValueDao blockGaugeValueDao;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        rowDataSource = new DataSource();
+        blockDataSource = new DataSource();
+        clock = mock(Clock.class);
+        rowGaugeValueDao = createGaugeValueDao(rowDataSource, false);
+        blockGaugeValueDao = createGaugeValueDao(blockDataSource, true);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        rowDataSource.close();
+        blockDataSource.close();
+    }
+
+    @Test
+    public void shouldReadSameGaugeValuesFromBlocks() throws Exception {
+        // given
+        long to = START_TIME + HOURS.toMillis(3) + MINUTES.toMillis(30);
+        for (long captureTime = START_TIME + 5000; captureTime <= to; captureTime += 5000) {
+            when(clock.currentTimeMillis()).thenReturn(captureTime + 1);
+            List<GaugeValue> gaugeValues = ImmutableList.of(GaugeValue.newBuilder()
+                    .setGaugeName(GAUGE_NAME)
+                    .setCaptureTime(captureTime)
+                    .setValue(captureTime % 7)
+                    .setWeight(1)
+                    .build());
+            rowGaugeValueDao.store(gaugeValues);
+            blockGaugeValueDao.store(gaugeValues);
+        }
+
+        // then
+        assertThat(blockDataSource.queryForLong("select count(*) from gauge_value_rollup_0"))
+                .isEqualTo(MINUTES.toMillis(30) / 5000);
+        assertThat(blockDataSource.queryForLong("select count(*) from gauge_value_block_rollup_0"))
+                .isEqualTo(3);
+        for (int rollupLevel = 0; rollupLevel <= 4; rollupLevel++) {
+            List<GaugeValue> expected = rowGaugeValueDao.readGaugeValues(AGENT_ID, GAUGE_NAME,
+                    START_TIME, to, rollupLevel);
+            assertThat(blockGaugeValueDao.readGaugeValues(AGENT_ID, GAUGE_NAME, START_TIME, to,
+                    rollupLevel)).isEqualTo(expected);
+        }
+        // range starting in the middle of a block and ending in the uncompacted rows
+        long from = START_TIME + HOURS.toMillis(2) + MINUTES.toMillis(30);
+        assertThat(blockGaugeValueDao.readGaugeValues(AGENT_ID, GAUGE_NAME, from, to, 0))
+                .isEqualTo(rowGaugeValueDao.readGaugeValues(AGENT_ID, GAUGE_NAME, from, to, 0));
+    }
+
+    @Test
+    public void shouldCleanUpCompactedRowsAfterRestart() throws Exception {
+        // given
+        long to = START_TIME + HOURS.toMillis(2);
+        for (long captureTime = START_TIME + 5000; captureTime <= to; captureTime += 5000) {
+            when(clock.currentTimeMillis()).thenReturn(captureTime + 1);
+            blockGaugeValueDao.store(ImmutableList.of(GaugeValue.newBuilder()
+                    .setGaugeName(GAUGE_NAME)
+                    .setCaptureTime(captureTime)
+                    .setValue(1)
+                    .setWeight(1)
+                    .build()));
+        }
+        List<GaugeValue> expected = blockGaugeValueDao.readGaugeValues(AGENT_ID, GAUGE_NAME,
+                START_TIME, to, 0);
+        // simulate JVM termination after the block was stored but before the rows were deleted
+        blockDataSource.execute("insert into gauge_value_rollup_0 (gauge_id, capture_time,"
+                + " value, weight) select gauge_id, capture_time + 1, 1, 1 from"
+                + " gauge_value_block_rollup_0 where capture_time = (select min(capture_time)"
+                + " from gauge_value_block_rollup_0)");
+
+        // when
+        GaugeValueDao gaugeValueDao = createGaugeValueDao(blockDataSource, true);
+
+        // then
+        assertThat(gaugeValueDao.readGaugeValues(AGENT_ID, GAUGE_NAME, START_TIME, to, 0))
+                .isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldReadCompactedValuesAfterDisablingBlocks() throws Exception {
+        // given
+        long to = START_TIME + HOURS.toMillis(2);
+        for (long captureTime = START_TIME + 5000; captureTime <= to; captureTime += 5000) {
+            when(clock.currentTimeMillis()).thenReturn(captureTime + 1);
+            blockGaugeValueDao.store(ImmutableList.of(GaugeValue.newBuilder()
+                    .setGaugeName(GAUGE_NAME)
+                    .setCaptureTime(captureTime)
+                    .setValue(1)
+                    .setWeight(1)
+                    .build()));
+        }
+        List<GaugeValue> expected = blockGaugeValueDao.readGaugeValues(AGENT_ID, GAUGE_NAME,
+                START_TIME, to, 0);
+
+        // when
+        GaugeValueDao gaugeValueDao = createGaugeValueDao(blockDataSource, false);
+
+        // then
+        assertThat(gaugeValueDao.readGaugeValues(AGENT_ID, GAUGE_NAME, START_TIME, to, 0))
+                .isEqualTo(expected);
+        assertThat(blockDataSource.tableExists("gauge_value_block_rollup_0")).isFalse();
+    }
+
+    private GaugeValueDao createGaugeValueDao(DataSource dataSource, boolean useBlocks)
+            throws Exception {
+        return new GaugeValueDao(dataSource, new GaugeIdDao(dataSource),
+                new GaugeNameDao(dataSource), clock, useBlocks);
+    }
+}
@@ -40,7 +40,7 @@ public class TraceDaoPerformanceMain {
                 new CappedDatabase(new File("glowroot.capped.db"), 1000000, Ticker.systemTicker());
         TraceDao traceDao = new TraceDao(dataSource, cappedDatabase,
                 mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
-                mock(TraceAttributeNameDao.class));
+                mock(TraceAttributeNameDao.class), null);
 
         Stopwatch stopwatch = Stopwatch.createStarted();
         for (int i = 0; i < 1000; i++) {
@@ -17,6 +17,7 @@ package org.glowroot.agent.embedded.repo;
 
 import java.io.File;
 
+import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -24,6 +25,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.collector.Collector.TraceVisitor;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.common.live.ImmutableTracePointFilter;
@@ -35,6 +37,7 @@ import org.glowroot.common2.repo.ImmutableTraceQuery;
 import org.glowroot.common2.repo.TraceRepository.TraceQuery;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
@@ -60,7 +63,7 @@ public class TraceDaoTest {
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
         traceDao = new TraceDao(dataSource, cappedDatabase, mock(TransactionTypeDao.class),
-                mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class));
+                mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class), null);
     }
 
     @AfterClass
@@ -296,4 +299,83 @@ public class TraceDaoTest {
         // then
         assertThat(traceDao.readHeaderPlus(AGENT_ID, traceReader.traceId())).isNull();
     }
+
+    @Test
+    public void shouldReadTracePointsUsingPointIndex() throws Exception {
+        // given
+        TraceDao indexedTraceDao = new TraceDao(dataSource, cappedDatabase,
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                mock(TraceAttributeNameDao.class), new TracePointIndex(Long.MAX_VALUE));
+        for (int i = 1; i <= 20; i++) {
+            Trace.Header header = TraceTestData.createTraceHeader().toBuilder()
+                    .setDurationNanos(MILLISECONDS.toNanos(i))
+                    .setHeadline(i % 2 == 0 ? "even headline" : "odd headline")
+                    .build();
+            TraceReader traceReader = TraceTestData.createTraceReader(header);
+            if (i % 4 == 0) {
+                traceReader = withTraceId(traceReader, Strings.padStart(Integer.toHexString(i),
+                        32, '0'));
+            }
+            indexedTraceDao.store(traceReader);
+        }
+        // this also adds duplicate index entries for all of the traces above
+        indexedTraceDao.buildPointIndex();
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("EVEN head")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult =
+                indexedTraceDao.readSlowPoints(AGENT_ID, query, filter, 3);
+
+        // then
+        assertThat(queryResult.records()).hasSize(3);
+        assertThat(queryResult.moreAvailable()).isTrue();
+        assertThat(queryResult.records().get(0).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(20));
+        assertThat(queryResult.records().get(0).traceId())
+                .isEqualTo(Strings.padStart(Integer.toHexString(20), 32, '0'));
+        assertThat(queryResult.records().get(1).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(18));
+        assertThat(queryResult.records().get(2).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(16));
+        assertThat(queryResult.records())
+                .isEqualTo(traceDao.readSlowPoints(AGENT_ID, query, filter, 3).records());
+    }
+
+    private static TraceReader withTraceId(final TraceReader traceReader, final String traceId) {
+        return new TraceReader() {
+            @Override
+            public long captureTime() {
+                return traceReader.captureTime();
+            }
+            @Override
+            public String traceId() {
+                return traceId;
+            }
+            @Override
+            public boolean partial() {
+                return traceReader.partial();
+            }
+            @Override
+            public boolean update() {
+                return traceReader.update();
+            }
+            @Override
+            public void accept(TraceVisitor traceVisitor) throws Exception {
+                traceReader.accept(traceVisitor);
+            }
+            @Override
+            public Trace.Header readHeader() {
+                return traceReader.readHeader();
+            }
+        };
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.File;
+import java.util.Random;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
+import org.glowroot.common2.repo.ImmutableTraceQuery;
+import org.glowroot.common2.repo.TraceRepository.TraceQuery;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.Mockito.mock;
+
+// compares scatter chart trace point queries with and without the trace point index, trace count
+// can be passed as the first argument (defaults to 1 million)
+public class TracePointIndexPerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(TracePointIndexPerformanceMain.class);
+
+    private static final long TIME_SPAN_MILLIS = DAYS.toMillis(7);
+    private static final int TRANSACTION_NAME_COUNT = 50;
+    private static final int QUERY_ITERATIONS = 20;
+    private static final int LIMIT = 500;
+
+    private TracePointIndexPerformanceMain() {}
+
+    public static void main(String[] args) throws Exception {
+        int traceCount = args.length == 0 ? 1000000 : Integer.parseInt(args[0]);
+        DataSource dataSource = new DataSource();
+        File cappedFile = File.createTempFile("glowroot-perf-", ".capped.db");
+        CappedDatabase cappedDatabase =
+                new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
+        TraceDao h2TraceDao = new TraceDao(dataSource, cappedDatabase,
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                mock(TraceAttributeNameDao.class), null);
+        TraceDao indexedTraceDao = new TraceDao(dataSource, cappedDatabase,
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                mock(TraceAttributeNameDao.class), new TracePointIndex(Long.MAX_VALUE));
+
+        Random random = new Random(0);
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int i = 0; i < traceCount; i++) {
+            int transactionNameIndex = random.nextInt(TRANSACTION_NAME_COUNT);
+            boolean error = random.nextInt(20) == 0;
+            Trace.Header.Builder header = Trace.Header.newBuilder()
+                    .setSlow(true)
+                    .setCaptureTime(1 + (long) i * TIME_SPAN_MILLIS / traceCount)
+                    .setDurationNanos(MILLISECONDS.toNanos(1 + random.nextInt(10000)))
+                    .setTransactionType("Web")
+                    .setTransactionName("/page" + transactionNameIndex)
+                    .setHeadline("/page" + transactionNameIndex + "?id=" + random.nextInt(1000))
+                    .setUser("user" + random.nextInt(100));
+            if (error) {
+                header.setError(Trace.Error.newBuilder()
+                        .setMessage("java.lang.IllegalStateException: error "
+                                + random.nextInt(10)));
+            }
+            indexedTraceDao.store(TraceTestData.createTraceReader(header.build()));
+        }
+        logger.info("populate elapsed time: {}", stopwatch.elapsed(MILLISECONDS));
+        indexedTraceDao.reinitAfterDeletingDatabase();
+        stopwatch = Stopwatch.createStarted();
+        indexedTraceDao.buildPointIndex();
+        logger.info("index build elapsed time: {}", stopwatch.elapsed(MILLISECONDS));
+
+        for (int i = 0; i < 3; i++) {
+            runQueries("h2", h2TraceDao);
+            runQueries("index", indexedTraceDao);
+        }
+
+        dataSource.close();
+        cappedDatabase.close();
+        cappedFile.delete();
+    }
+
+    private static void runQueries(String label, TraceDao traceDao) throws Exception {
+        TraceQuery lastDayQuery = ImmutableTraceQuery.builder()
+                .transactionType("Web")
+                .from(TIME_SPAN_MILLIS - DAYS.toMillis(1))
+                .to(TIME_SPAN_MILLIS)
+                .build();
+        TraceQuery lastHourTransactionQuery = ImmutableTraceQuery.builder()
+                .transactionType("Web")
+                .transactionName("/page1")
+                .from(TIME_SPAN_MILLIS - HOURS.toMillis(1))
+                .to(TIME_SPAN_MILLIS)
+                .build();
+        TracePointFilter noFilter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .build();
+        TracePointFilter headlineFilter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("page7?id=1")
+                .build();
+        TracePointFilter errorFilter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .errorMessageComparator(StringComparator.CONTAINS)
+                .errorMessage("error 3")
+                .build();
+        run(label, "last day", traceDao, lastDayQuery, noFilter, false);
+        run(label, "last day / headline", traceDao, lastDayQuery, headlineFilter, false);
+        run(label, "last day / error", traceDao, lastDayQuery, errorFilter, true);
+        run(label, "last hour / transaction", traceDao, lastHourTransactionQuery, noFilter,
+                false);
+    }
+
+    private static void run(String label, String queryLabel, TraceDao traceDao,
+            TraceQuery query, TracePointFilter filter, boolean error) throws Exception {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int i = 0; i < QUERY_ITERATIONS; i++) {
+            if (error) {
+                traceDao.readErrorPoints("", query, filter, LIMIT);
+            } else {
+                traceDao.readSlowPoints("", query, filter, LIMIT);
+            }
+        }
+        logger.info("{} / {}: {} millis per query", label, queryLabel,
+                stopwatch.elapsed(MILLISECONDS) / QUERY_ITERATIONS);
+    }
+}
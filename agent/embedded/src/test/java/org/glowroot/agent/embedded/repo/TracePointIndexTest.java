@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.Iterator;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.TraceKind;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common2.repo.ImmutableTraceQuery;
+import org.glowroot.common2.repo.TraceRepository.TraceQuery;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TracePointIndexTest {
+
+    private static final TracePointFilter FILTER =
+            ImmutableTracePointFilter.builder().durationNanosLow(0).build();
+
+    @Test
+    public void shouldFallBackAfterEvictingOldestBuckets() {
+        // given
+        TracePointIndex pointIndex = new TracePointIndex(12000);
+        for (int i = 0; i < 4; i++) {
+            add(pointIndex, i, "name" + i);
+        }
+        pointIndex.setReady();
+
+        // when
+        Iterator<String> allCandidates = pointIndex.getCandidates(TraceKind.SLOW,
+                query(0, HOURS.toMillis(4), null), FILTER);
+        Iterator<String> recentCandidates = pointIndex.getCandidates(TraceKind.SLOW,
+                query(HOURS.toMillis(3), HOURS.toMillis(4), null), FILTER);
+
+        // then
+        assertThat(pointIndex.getEstimatedBytes()).isLessThanOrEqualTo(12000);
+        assertThat(allCandidates).isNull();
+        assertThat(ImmutableList.copyOf(recentCandidates)).containsExactly(traceId(3));
+    }
+
+    @Test
+    public void shouldNotUseIndexAfterSingleBucketExceedsBudget() {
+        // given
+        TracePointIndex pointIndex = new TracePointIndex(1000);
+        add(pointIndex, 0, "name");
+        pointIndex.setReady();
+
+        // when
+        Iterator<String> candidates = pointIndex.getCandidates(TraceKind.SLOW,
+                query(0, HOURS.toMillis(1), null), FILTER);
+
+        // then
+        assertThat(candidates).isNull();
+        assertThat(pointIndex.getEstimatedBytes()).isZero();
+    }
+
+    @Test
+    public void shouldPruneOrdinalsOfDeletedBuckets() {
+        // given
+        TracePointIndex pointIndex = new TracePointIndex(Long.MAX_VALUE);
+        add(pointIndex, 0, "old name");
+        add(pointIndex, 1, "new name");
+        pointIndex.setReady();
+        long estimatedBytes = pointIndex.getEstimatedBytes();
+
+        // when
+        pointIndex.deleteBefore(HOURS.toMillis(1));
+
+        // then
+        assertThat(pointIndex.getEstimatedBytes()).isLessThan(estimatedBytes);
+        assertThat(ImmutableList.copyOf(pointIndex.getCandidates(TraceKind.SLOW,
+                query(0, HOURS.toMillis(2), "old name"), FILTER))).isEmpty();
+        assertThat(ImmutableList.copyOf(pointIndex.getCandidates(TraceKind.SLOW,
+                query(0, HOURS.toMillis(2), "new name"), FILTER))).containsExactly(traceId(1));
+
+        // when
+        pointIndex.deleteBefore(HOURS.toMillis(2));
+
+        // then
+        assertThat(pointIndex.getEstimatedBytes()).isZero();
+    }
+
+    private static void add(TracePointIndex pointIndex, int hour, String transactionName) {
+        pointIndex.add(traceId(hour), HOURS.toMillis(hour) + 1, 1000, true, false, "Web",
+                transactionName, "headline", null, null);
+    }
+
+    private static TraceQuery query(long from, long to, String transactionName) {
+        return ImmutableTraceQuery.builder()
+                .transactionType("Web")
+                .transactionName(transactionName)
+                .from(from)
+                .to(to)
+                .build();
+    }
+
+    private static String traceId(int hour) {
+        return "0000000000000000000000000000000" + hour;
+    }
+}
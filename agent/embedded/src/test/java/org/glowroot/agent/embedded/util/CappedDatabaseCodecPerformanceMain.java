@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// reports compression ratio and encode/decode throughput per block type for each codec
+public class CappedDatabaseCodecPerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(CappedDatabaseCodecPerformanceMain.class);
+
+    private static final int BLOCK_COUNT = 2000;
+
+    private static final String[] TABLES = {"employee", "department", "account", "invoice"};
+    private static final String[] PACKAGES = {"org.example.web", "org.example.service",
+            "org.example.dao", "org.springframework.web.servlet", "org.hibernate.internal"};
+
+    private CappedDatabaseCodecPerformanceMain() {}
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < 2; i++) {
+            // first pass is warmup
+            run("lzf", false);
+            run("dictionary", true);
+        }
+    }
+
+    private static void run(String codec, boolean useDictionaryCodec) throws Exception {
+        File file = File.createTempFile("glowroot-perf-", ".capped.db");
+        CappedDatabase cappedDatabase =
+                new CappedDatabase(file, 1024 * 1024, Ticker.systemTicker(), useDictionaryCodec);
+        Random random = new Random(0);
+        List<List<Trace.Entry>> entryBlocks = Lists.newArrayList();
+        List<List<Aggregate.Query>> queryBlocks = Lists.newArrayList();
+        List<Profile> profiles = Lists.newArrayList();
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            entryBlocks.add(createEntries(random));
+            queryBlocks.add(createQueries(random));
+            profiles.add(createProfile(random));
+        }
+        runMessages(codec, "trace entries", cappedDatabase, entryBlocks, Trace.Entry.parser());
+        runMessages(codec, "queries", cappedDatabase, queryBlocks, Aggregate.Query.parser());
+        runMessage(codec, "profile", cappedDatabase, profiles, Profile.parser());
+        cappedDatabase.close();
+        file.delete();
+        new File(file.getPath() + ".dict").delete();
+    }
+
+    private static <T extends AbstractMessage> void runMessages(String codec, String type,
+            CappedDatabase cappedDatabase, List<List<T>> blocks, Parser<T> parser)
+            throws Exception {
+        List<Long> cappedIds = Lists.newArrayList();
+        for (List<T> block : blocks) {
+            cappedIds.add(cappedDatabase.writeMessages(block, type));
+        }
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (long cappedId : cappedIds) {
+            cappedDatabase.readMessages(cappedId, parser);
+        }
+        log(codec, type, cappedDatabase.getStats(type), stopwatch.elapsed(NANOSECONDS));
+    }
+
+    private static <T extends AbstractMessage> void runMessage(String codec, String type,
+            CappedDatabase cappedDatabase, List<T> messages, Parser<T> parser) throws Exception {
+        List<Long> cappedIds = Lists.newArrayList();
+        for (T message : messages) {
+            cappedIds.add(cappedDatabase.writeMessage(message, type));
+        }
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (long cappedId : cappedIds) {
+            cappedDatabase.readMessage(cappedId, parser);
+        }
+        log(codec, type, cappedDatabase.getStats(type), stopwatch.elapsed(NANOSECONDS));
+    }
+
+    private static void log(String codec, String type, CappedDatabaseStats stats,
+            long decodeNanos) {
+        double megabytes = stats.getTotalBytesBeforeCompression() / (1024.0 * 1024);
+        logger.info("{} / {}: compressed to {}% of original size, encode {} MB/sec,"
+                + " decode {} MB/sec", codec, type,
+                Math.round(100 * (1 - stats.getCompressionRatio())),
+                Math.round(megabytes / (stats.getTotalMillis() / 1000)),
+                Math.round(megabytes / (decodeNanos / 1000000000.0)));
+    }
+
+    private static List<Trace.Entry> createEntries(Random random) {
+        List<Trace.Entry> entries = Lists.newArrayList();
+        long startOffsetNanos = 0;
+        int count = 5 + random.nextInt(20);
+        for (int i = 0; i < count; i++) {
+            long durationNanos = random.nextInt(10000000);
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(random.nextInt(3))
+                    .setStartOffsetNanos(startOffsetNanos)
+                    .setDurationNanos(durationNanos)
+                    .setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                            .setSharedQueryTextIndex(random.nextInt(10))
+                            .setPrefix("jdbc execution: ")
+                            .setSuffix(" => " + random.nextInt(100) + " rows"))
+                    .build());
+            startOffsetNanos += durationNanos;
+        }
+        return entries;
+    }
+
+    private static List<Aggregate.Query> createQueries(Random random) {
+        List<Aggregate.Query> queries = Lists.newArrayList();
+        int count = 5 + random.nextInt(20);
+        for (int i = 0; i < count; i++) {
+            queries.add(Aggregate.Query.newBuilder()
+                    .setType("SQL")
+                    .setSharedQueryTextIndex(i)
+                    .setTotalDurationNanos(random.nextInt(100000000))
+                    .setExecutionCount(1 + random.nextInt(100))
+                    .build());
+        }
+        return queries;
+    }
+
+    private static Profile createProfile(Random random) {
+        Profile.Builder profile = Profile.newBuilder();
+        for (String packageName : PACKAGES) {
+            profile.addPackageName(packageName);
+        }
+        for (String table : TABLES) {
+            String className = Character.toUpperCase(table.charAt(0)) + table.substring(1);
+            profile.addClassName(className + "Controller");
+            profile.addClassName(className + "Service");
+            profile.addClassName(className + "Repository");
+            profile.addMethodName("find" + className);
+            profile.addMethodName("save" + className);
+            profile.addFileName(className + ".java");
+        }
+        int count = 20 + random.nextInt(100);
+        for (int i = 0; i < count; i++) {
+            profile.addNode(Profile.ProfileNode.newBuilder()
+                    .setDepth(i % 10)
+                    .setPackageNameIndex(random.nextInt(PACKAGES.length))
+                    .setClassNameIndex(random.nextInt(TABLES.length * 3))
+                    .setMethodNameIndex(random.nextInt(TABLES.length * 2))
+                    .setFileNameIndex(random.nextInt(TABLES.length))
+                    .setLineNumber(random.nextInt(500))
+                    .setSampleCount(1 + random.nextInt(10)));
+        }
+        return profile.build();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// measures read throughput of large blocks (e.g. large traces and profiles) at multiple reader
+// threads, while a writer thread is continually writing new blocks
+public class CappedDatabasePerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(CappedDatabasePerformanceMain.class);
+
+    private static final int BLOCK_COUNT = 100;
+    private static final int BLOCK_SIZE_CHARS = 1024 * 1024;
+    private static final int READS_PER_THREAD = 50;
+
+    private CappedDatabasePerformanceMain() {}
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("glowroot-perf-", ".capped.db");
+        final CappedDatabase cappedDatabase =
+                new CappedDatabase(file, 1024 * 1024, Ticker.systemTicker());
+        final String text = createRandomText(BLOCK_SIZE_CHARS);
+        final long[] cappedIds = new long[BLOCK_COUNT];
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            cappedIds[i] = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        }
+        for (int numThreads : new int[] {1, 2, 4, 8}) {
+            // first pass is warmup
+            runReaders(cappedDatabase, cappedIds, text, numThreads);
+            long elapsedMillis = runReaders(cappedDatabase, cappedIds, text, numThreads);
+            long totalReads = (long) numThreads * READS_PER_THREAD;
+            logger.info("{} reader thread(s): {} reads in {} millis ({} reads/sec)", numThreads,
+                    totalReads, elapsedMillis, totalReads * 1000 / Math.max(elapsedMillis, 1));
+        }
+        cappedDatabase.close();
+        file.delete();
+    }
+
+    private static long runReaders(final CappedDatabase cappedDatabase, final long[] cappedIds,
+            final String text, int numThreads) throws Exception {
+        ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
+        final String writerText = createRandomText(64 * 1024);
+        final ByteSource writerByteSource = ByteSource.wrap(writerText.getBytes(UTF_8));
+        final Future<?> writerFuture = writerExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                while (!Thread.currentThread().isInterrupted()) {
+                    cappedDatabase.write(writerByteSource, "test");
+                    MILLISECONDS.sleep(10);
+                }
+                return null;
+            }
+        });
+        ExecutorService readerExecutor = Executors.newFixedThreadPool(numThreads);
+        List<Future<Void>> readerFutures = Lists.newArrayList();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int i = 0; i < numThreads; i++) {
+            final Random random = new Random(i);
+            readerFutures.add(readerExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < READS_PER_THREAD; j++) {
+                        long cappedId = cappedIds[random.nextInt(cappedIds.length)];
+                        String read = cappedDatabase.read(cappedId).read();
+                        if (read.length() != text.length()) {
+                            throw new IllegalStateException("Unexpected length: " + read.length());
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> readerFuture : readerFutures) {
+            readerFuture.get();
+        }
+        long elapsedMillis = stopwatch.elapsed(MILLISECONDS);
+        readerExecutor.shutdown();
+        writerFuture.cancel(false);
+        writerExecutor.shutdownNow();
+        return elapsedMillis;
+    }
+
+    private static String createRandomText(int length) {
+        // use random text so that the lzf compressed text is also large
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+}
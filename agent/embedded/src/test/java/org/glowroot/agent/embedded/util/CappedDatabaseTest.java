@@ -18,10 +18,17 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -49,6 +56,7 @@ public class CappedDatabaseTest {
     public void onAfter() throws IOException {
         cappedDatabase.close();
         tempFile.delete();
+        new File(tempFile.getPath() + ".dict").delete();
     }
 
     @Test
@@ -152,4 +160,120 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldReadConcurrently() throws Exception {
+        // given
+        final String text = "0123456789";
+        final long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<String>> futures = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            futures.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return cappedDatabase.read(cappedId).read();
+                }
+            }));
+        }
+
+        // then
+        for (Future<String> future : futures) {
+            assertThat(future.get()).isEqualTo(text);
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldReadAfterResize() throws Exception {
+        // given
+        String text = "0123456789";
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // when
+        cappedDatabase.resize(2);
+
+        // then
+        String text2 = cappedDatabase.read(cappedId).read();
+        assertThat(text2).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldReadWithDictionaryCodec() throws Exception {
+        // given
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1, Ticker.systemTicker(), true);
+        List<Long> cappedIds = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            String text = "select * from employee where id = " + i;
+            cappedIds.add(cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test"));
+        }
+
+        // then
+        for (int i = 0; i < 10; i++) {
+            String text2 = cappedDatabase.read(cappedIds.get(i)).read();
+            assertThat(text2).isEqualTo("select * from employee where id = " + i);
+        }
+        assertThat(new File(tempFile.getPath() + ".dict").exists()).isTrue();
+    }
+
+    @Test
+    public void shouldRecoverDictionariesFromInterruptedRewrite() throws Exception {
+        // given
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1, Ticker.systemTicker(), true);
+        List<Long> cappedIds = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            String text = "select * from employee where id = " + i;
+            cappedIds.add(cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test"));
+        }
+        cappedDatabase.close();
+        // simulate jvm crash during rewrite, after the existing dictionary file was renamed to the
+        // backup file and before the partially written temp file was renamed to the file
+        File dictFile = new File(tempFile.getPath() + ".dict");
+        File bakFile = new File(tempFile.getPath() + ".dict.bak");
+        File tmpFile = new File(tempFile.getPath() + ".dict.tmp");
+        assertThat(dictFile.renameTo(bakFile)).isTrue();
+        Files.write(new byte[] {1, 2, 3}, tmpFile);
+
+        // when
+        cappedDatabase = new CappedDatabase(tempFile, 1, Ticker.systemTicker(), true);
+
+        // then
+        for (int i = 0; i < 10; i++) {
+            String text2 = cappedDatabase.read(cappedIds.get(i)).read();
+            assertThat(text2).isEqualTo("select * from employee where id = " + i);
+        }
+        assertThat(dictFile.exists()).isTrue();
+        assertThat(bakFile.exists()).isFalse();
+        assertThat(tmpFile.exists()).isFalse();
+    }
+
+    @Test
+    public void shouldReadBlocksWrittenByEitherCodecAfterReopening() throws Exception {
+        // given
+        long lzfCappedId = cappedDatabase.write(ByteSource.wrap("lzf".getBytes(UTF_8)), "test");
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1, Ticker.systemTicker(), true);
+        List<Long> cappedIds = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            String text = "dictionary " + i;
+            cappedIds.add(cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test"));
+        }
+
+        // when
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1, Ticker.systemTicker(), false);
+
+        // then
+        assertThat(cappedDatabase.read(lzfCappedId).read()).isEqualTo("lzf");
+        for (int i = 0; i < 10; i++) {
+            String text2 = cappedDatabase.read(cappedIds.get(i)).read();
+            assertThat(text2).isEqualTo("dictionary " + i);
+        }
+    }
 }
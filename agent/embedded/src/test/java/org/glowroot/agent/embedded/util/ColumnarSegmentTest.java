@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.ColumnarSegment.RowVisitor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ColumnarSegmentTest {
+
+    private File tempFile;
+
+    @Before
+    public void onBefore() throws IOException {
+        tempFile = File.createTempFile("glowroot-test-", ".seg");
+    }
+
+    @After
+    public void onAfter() throws IOException {
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldReadRowsInCaptureTimeOrder() throws Exception {
+        // given
+        List<Row> rows = ImmutableList.<Row>of(
+                row(120000, "Web", null, 3000000, 3, 1),
+                row(60000, "Web", null, 1000000, 1, 0),
+                row(60000, "Web", "/abc", 1000000, 1, 0),
+                row(120000, "Web", "/xyz", 3000000, 3, 1));
+        write(tempFile, rows);
+        // when
+        List<String> visited = scan(ColumnarSegment.open(tempFile), 0, 120000, "Web");
+        // then
+        assertThat(visited).containsExactly("60000:null:1000000.0:1:0",
+                "60000:/abc:1000000.0:1:0", "120000:null:3000000.0:3:1",
+                "120000:/xyz:3000000.0:3:1");
+    }
+
+    @Test
+    public void shouldFilterByCaptureTimeRange() throws Exception {
+        // given
+        List<Row> rows = ImmutableList.<Row>of(
+                row(60000, "Web", null, 1, 1, 0),
+                row(120000, "Web", null, 2, 1, 0),
+                row(180000, "Web", null, 3, 1, 0));
+        write(tempFile, rows);
+        // when
+        List<String> visited = scan(ColumnarSegment.open(tempFile), 60000, 120000, "Web");
+        // then
+        assertThat(visited).containsExactly("120000:null:2.0:1:0");
+    }
+
+    @Test
+    public void shouldFilterByTransactionType() throws Exception {
+        // given
+        List<Row> rows = ImmutableList.<Row>of(
+                row(60000, "Web", null, 1, 1, 0),
+                row(60000, "Background", null, 2, 1, 0),
+                row(60000, "Background", "Web", 2, 1, 0));
+        write(tempFile, rows);
+        // when
+        ColumnarSegment segment = ColumnarSegment.open(tempFile);
+        List<String> visited = scan(segment, 0, 60000, "Background");
+        List<String> visitedOther = scan(segment, 0, 60000, "Other");
+        // then
+        assertThat(visited).containsExactly("60000:null:2.0:1:0", "60000:Web:2.0:1:0");
+        assertThat(visitedOther).isEmpty();
+    }
+
+    @Test
+    public void shouldReadFractionalAndLargeValues() throws Exception {
+        // given
+        List<Row> rows = ImmutableList.<Row>of(
+                row(60000, "Web", null, 1.5, Long.MAX_VALUE, 0),
+                row(60000, "Web", "/abc", 1e300, 1, Long.MAX_VALUE));
+        write(tempFile, rows);
+        // when
+        List<String> visited = scan(ColumnarSegment.open(tempFile), 0, 60000, "Web");
+        // then
+        assertThat(visited).containsExactly("60000:null:1.5:" + Long.MAX_VALUE + ":0",
+                "60000:/abc:1.0E300:1:" + Long.MAX_VALUE);
+    }
+
+    @Test
+    public void shouldReadEmptySegment() throws Exception {
+        // given
+        write(tempFile, ImmutableList.<Row>of());
+        // when
+        ColumnarSegment segment = ColumnarSegment.open(tempFile);
+        // then
+        assertThat(segment.getRowCount()).isZero();
+        assertThat(scan(segment, 0, Long.MAX_VALUE, "Web")).isEmpty();
+    }
+
+    @Test
+    public void shouldReplaceExistingSegment() throws Exception {
+        // given
+        write(tempFile, ImmutableList.of(row(60000, "Web", null, 1, 1, 0)));
+        // when
+        write(tempFile, ImmutableList.of(row(60000, "Web", null, 2, 1, 0)));
+        // then
+        List<String> visited = scan(ColumnarSegment.open(tempFile), 0, 60000, "Web");
+        assertThat(visited).containsExactly("60000:null:2.0:1:0");
+    }
+
+    private static void write(File file, List<Row> rows) throws IOException {
+        List<Row> sortedRows = Lists.newArrayList(rows);
+        Collections.sort(sortedRows, new Comparator<Row>() {
+            @Override
+            public int compare(Row left, Row right) {
+                return Longs.compare(left.captureTime(), right.captureTime());
+            }
+        });
+        ColumnarSegment.Writer writer = new ColumnarSegment.Writer();
+        for (Row row : sortedRows) {
+            writer.add(row.captureTime(), row.transactionType(), row.transactionName(),
+                    row.totalDurationNanos(), row.transactionCount(), row.errorCount());
+        }
+        writer.write(file);
+    }
+
+    private static Row row(long captureTime, String transactionType,
+            @Nullable String transactionName, double totalDurationNanos, long transactionCount,
+            long errorCount) {
+        return ImmutableRow.builder()
+                .captureTime(captureTime)
+                .transactionType(transactionType)
+                .transactionName(transactionName)
+                .totalDurationNanos(totalDurationNanos)
+                .transactionCount(transactionCount)
+                .errorCount(errorCount)
+                .build();
+    }
+
+    private static List<String> scan(ColumnarSegment segment, long from, long to,
+            String transactionType) {
+        final List<String> visited = Lists.newArrayList();
+        segment.scan(from, to, transactionType, new RowVisitor() {
+            @Override
+            public void visit(long captureTime, @Nullable String transactionName,
+                    double totalDurationNanos, long transactionCount, long errorCount) {
+                visited.add(captureTime + ":" + transactionName + ":" + totalDurationNanos + ":"
+                        + transactionCount + ":" + errorCount);
+            }
+        });
+        return visited;
+    }
+
+    @Value.Immutable
+    interface Row {
+        long captureTime();
+        String transactionType();
+        @Nullable
+        String transactionName(); // null for overall rows
+        double totalDurationNanos();
+        long transactionCount();
+        long errorCount();
+    }
+}
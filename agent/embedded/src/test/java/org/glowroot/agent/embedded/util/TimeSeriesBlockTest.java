@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.TimeSeriesBlock.SampleVisitor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimeSeriesBlockTest {
+
+    @Test
+    public void shouldReadEmptyBlock() throws Exception {
+        // given
+        TimeSeriesBlock.Encoder encoder = new TimeSeriesBlock.Encoder();
+        // when
+        List<String> samples = decode(encoder.toByteArray());
+        // then
+        assertThat(samples).isEmpty();
+    }
+
+    @Test
+    public void shouldReadFixedIntervalSamples() throws Exception {
+        // given
+        TimeSeriesBlock.Encoder encoder = new TimeSeriesBlock.Encoder();
+        List<String> expected = Lists.newArrayList();
+        for (int i = 0; i < 720; i++) {
+            long captureTime = 1500000005000L + i * 5000;
+            double value = i < 360 ? 1024 : 2048.5;
+            encoder.add(captureTime, value, 1);
+            expected.add(captureTime + ":" + value + ":1");
+        }
+        // when
+        byte[] block = encoder.toByteArray();
+        // then
+        assertThat(decode(block)).isEqualTo(expected);
+        // unchanged capture time interval, value and weight each take a single bit
+        assertThat(block.length).isLessThan(720);
+    }
+
+    @Test
+    public void shouldReadIrregularSamples() throws Exception {
+        // given
+        Random random = new Random(0);
+        TimeSeriesBlock.Encoder encoder = new TimeSeriesBlock.Encoder();
+        List<String> expected = Lists.newArrayList();
+        long captureTime = 1500000000000L;
+        for (int i = 0; i < 1000; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    captureTime += 5000;
+                    break;
+                case 1:
+                    captureTime += random.nextInt(100);
+                    break;
+                case 2:
+                    captureTime += random.nextInt(10000);
+                    break;
+                default:
+                    captureTime += random.nextInt(Integer.MAX_VALUE);
+            }
+            double value = random.nextBoolean() ? random.nextDouble() : random.nextInt(10);
+            if (i % 100 == 0) {
+                value = Double.NaN;
+            }
+            long weight = random.nextBoolean() ? 5000 : random.nextLong();
+            encoder.add(captureTime, value, weight);
+            expected.add(captureTime + ":" + value + ":" + weight);
+        }
+        // when
+        List<String> samples = decode(encoder.toByteArray());
+        // then
+        assertThat(samples).isEqualTo(expected);
+    }
+
+    private static List<String> decode(byte[] block) throws Exception {
+        final List<String> samples = Lists.newArrayList();
+        TimeSeriesBlock.decode(block, new SampleVisitor() {
+            @Override
+            public void visit(long captureTime, double value, long weight) {
+                samples.add(captureTime + ":" + value + ":" + weight);
+            }
+        });
+        return samples;
+    }
+}
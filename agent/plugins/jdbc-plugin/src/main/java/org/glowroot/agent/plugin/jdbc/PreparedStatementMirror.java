@@ -15,11 +15,8 @@
  */
 package org.glowroot.agent.plugin.jdbc;
 
-import java.util.Collection;
-import java.util.Collections;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
 import org.glowroot.agent.plugin.api.checker.Nullable;
+import org.glowroot.agent.plugin.jdbc.message.BindParameterBatch;
 import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
 
 // used to capture and mirror the state of prepared statements since the underlying
@@ -30,6 +27,8 @@ class PreparedStatementMirror extends StatementMirror {
 
     private static final int PARAMETERS_INITIAL_CAPACITY = 4;
 
+    private static final int BATCHED_PARAMETERS_INITIAL_ROW_CAPACITY = 16;
+
     private final String sql;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
@@ -37,7 +36,10 @@ class PreparedStatementMirror extends StatementMirror {
     private boolean parametersShared;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
-    private @Nullable Collection<BindParameterList> batchedParameters;
+    private @Nullable BindParameterBatch batchedParameters;
+    // used to size the next batch (prepared statements are typically executed with similar batch
+    // sizes), so that it does not need to grow incrementally up to the size of the prior batch
+    private int batchedParametersRowCapacity = BATCHED_PARAMETERS_INITIAL_ROW_CAPACITY;
     private int batchSize;
 
     PreparedStatementMirror(String sql) {
@@ -48,21 +50,20 @@ class PreparedStatementMirror extends StatementMirror {
 
     void addBatch() {
         // synchronization isn't an issue here as this method is called only by the monitored thread
-        if (batchedParameters == null) {
-            batchedParameters = new ConcurrentLinkedQueue<BindParameterList>();
-        }
         if (batchSize++ < CAPTURED_BATCH_SIZE_LIMIT) {
-            batchedParameters.add(parameters);
-            parametersShared = true;
+            if (batchedParameters == null) {
+                batchedParameters =
+                        new BindParameterBatch(batchedParametersRowCapacity, parameters.size());
+            }
+            // the row is copied into the batch, so parameters can continue to be reused for the
+            // next row (as opposed to copying parameters on the next call to setParameterValue)
+            batchedParameters.addRow(parameters);
         }
     }
 
-    Collection<BindParameterList> getBatchedParameters() {
-        if (batchedParameters == null) {
-            return Collections.emptyList();
-        } else {
-            return batchedParameters;
-        }
+    @Nullable
+    BindParameterBatch getBatchedParameters() {
+        return batchedParameters;
     }
 
     @Nullable
@@ -88,6 +89,34 @@ class PreparedStatementMirror extends StatementMirror {
         parameters.set(parameterIndex - 1, object);
     }
 
+    void setIntParameterValue(int parameterIndex, int value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setInt(parameterIndex - 1, value);
+    }
+
+    void setLongParameterValue(int parameterIndex, long value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setLong(parameterIndex - 1, value);
+    }
+
+    void setFloatParameterValue(int parameterIndex, float value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setFloat(parameterIndex - 1, value);
+    }
+
+    void setDoubleParameterValue(int parameterIndex, double value) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setDouble(parameterIndex - 1, value);
+    }
+
     private void copyParameters() {
         parameters = BindParameterList.copyOf(parameters);
         parametersShared = false;
@@ -110,7 +139,12 @@ class PreparedStatementMirror extends StatementMirror {
         } else {
             parameters.clear();
         }
-        batchedParameters = null;
+        if (batchedParameters != null) {
+            // the batch is not reused since it may have been captured by a query message supplier
+            batchedParametersRowCapacity = Math.max(batchedParameters.getRowCount(),
+                    BATCHED_PARAMETERS_INITIAL_ROW_CAPACITY);
+            batchedParameters = null;
+        }
         batchSize = 0;
     }
 
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// normalizes sql by replacing string and numeric literals with ? and collapsing IN lists with more
+// than one element into a single ?, so that queries which only differ by inlined literal values (or
+// by the number of elements in an IN list) are aggregated together, instead of each using up one
+// of the limited number of query aggregates
+//
+// this is a single pass tokenizer, not a parser, so it only needs to handle the lexical structure
+// of sql (literals, quoted identifiers and comments)
+//
+// this is only applied to plain Statement sql, since PreparedStatement sql is already
+// parameterized, and normalizing it would misalign the captured bind parameters
+class QueryTextNormalizer {
+
+    // the number of distinct sql texts is unbounded for applications that inline literals, so the
+    // cache is bounded by the total number of chars (raw and normalized) that it holds
+    private static final int MAX_CACHED_CHARS = 1000000;
+    // so that a single large sql text cannot evict the rest of the cache
+    private static final int MAX_CACHED_QUERY_TEXT_LENGTH = 10000;
+
+    private static final ConcurrentMap<String, String> cache =
+            new ConcurrentHashMap<String, String>();
+
+    private static final AtomicInteger cachedChars = new AtomicInteger();
+
+    private QueryTextNormalizer() {}
+
+    static String normalize(String sql) {
+        String normalized = cache.get(sql);
+        if (normalized != null) {
+            return normalized;
+        }
+        normalized = normalizeInternal(sql);
+        if (sql.length() <= MAX_CACHED_QUERY_TEXT_LENGTH) {
+            // normalized is the same instance as sql when there was nothing to normalize
+            int chars = normalized == sql ? sql.length() : sql.length() + normalized.length();
+            if (cachedChars.addAndGet(chars) > MAX_CACHED_CHARS) {
+                // simple eviction, frequently executed sql will be cached again quickly
+                // (the count is approximate under concurrent access, which is ok for a bound)
+                cache.clear();
+                cachedChars.set(chars);
+            }
+            if (cache.putIfAbsent(sql, normalized) != null) {
+                // another thread cached it first
+                cachedChars.addAndGet(-chars);
+            }
+        }
+        return normalized;
+    }
+
+    static String normalizeInternal(String sql) {
+        int length = sql.length();
+        StringBuilder sb = new StringBuilder(length);
+        boolean changed = false;
+        boolean afterIn = false;
+        // index in sb just after the opening parenthesis of the IN list being tracked
+        int inListStart = -1;
+        int inListDepth = 0;
+        int inListElementCount = 0;
+        boolean inListCollapsible = false;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                sb.append('?');
+                changed = true;
+                i = endOfQuoted(sql, i, '\'');
+                afterIn = false;
+                inListElementCount++;
+            } else if (c == '"' || c == '`') {
+                // quoted identifier
+                int end = endOfQuoted(sql, i, c);
+                sb.append(sql, i, end);
+                i = end;
+                afterIn = false;
+                inListCollapsible = false;
+            } else if (c == '-' && startsWith(sql, i + 1, '-')) {
+                int end = sql.indexOf('\n', i);
+                end = end == -1 ? length : end;
+                sb.append(sql, i, end);
+                i = end;
+            } else if (c == '/' && startsWith(sql, i + 1, '*')) {
+                int end = sql.indexOf("*/", i + 2);
+                end = end == -1 ? length : end + 2;
+                sb.append(sql, i, end);
+                i = end;
+            } else if (c == '$' && endOfDollarQuoteTag(sql, i) != -1) {
+                // postgres dollar-quoted string, e.g. $$it's$$ or $body$it's$body$
+                int tagEnd = endOfDollarQuoteTag(sql, i);
+                String tag = sql.substring(i, tagEnd);
+                int end = sql.indexOf(tag, tagEnd);
+                sb.append('?');
+                changed = true;
+                i = end == -1 ? length : end + tag.length();
+                afterIn = false;
+                inListElementCount++;
+            } else if (Character.isWhitespace(c)) {
+                sb.append(c);
+                i++;
+            } else if (isIdentifierStart(c)) {
+                int end = i + 1;
+                while (end < length && isIdentifierPart(sql.charAt(end))) {
+                    end++;
+                }
+                sb.append(sql, i, end);
+                afterIn = end - i == 2 && (c == 'i' || c == 'I')
+                        && (sql.charAt(i + 1) == 'n' || sql.charAt(i + 1) == 'N');
+                inListCollapsible = false;
+                i = end;
+            } else if (c >= '0' && c <= '9') {
+                sb.append('?');
+                changed = true;
+                i = endOfNumber(sql, i);
+                afterIn = false;
+                inListElementCount++;
+            } else if (c == '?') {
+                sb.append('?');
+                i++;
+                afterIn = false;
+                inListElementCount++;
+            } else if (c == '(') {
+                sb.append('(');
+                i++;
+                if (afterIn) {
+                    // if already tracking an IN list, it is not collapsible anyways since it
+                    // contains the identifier "in", so ok to track this nested IN list instead
+                    inListStart = sb.length();
+                    inListDepth = 0;
+                    inListElementCount = 0;
+                    inListCollapsible = true;
+                } else if (inListStart != -1) {
+                    inListDepth++;
+                    inListCollapsible = false;
+                }
+                afterIn = false;
+            } else if (c == ')') {
+                i++;
+                afterIn = false;
+                if (inListStart != -1 && inListDepth-- == 0) {
+                    if (inListCollapsible && inListElementCount > 1) {
+                        sb.setLength(inListStart);
+                        sb.append('?');
+                        changed = true;
+                    }
+                    inListStart = -1;
+                }
+                sb.append(')');
+            } else {
+                sb.append(c);
+                i++;
+                afterIn = false;
+                if (c != ',' && c != '-' && c != '+') {
+                    inListCollapsible = false;
+                }
+            }
+        }
+        return changed ? sb.toString() : sql;
+    }
+
+    private static boolean startsWith(String sql, int index, char c) {
+        return index < sql.length() && sql.charAt(index) == c;
+    }
+
+    // returns the index just after the closing quote, where a doubled quote is an escaped quote,
+    // and inside of string literals, a backslash escapes the next character (e.g. mysql 'a\'b')
+    private static int endOfQuoted(String sql, int start, char quote) {
+        int length = sql.length();
+        int i = start + 1;
+        while (i < length) {
+            if (quote == '\'' && sql.charAt(i) == '\\') {
+                i += 2;
+            } else if (sql.charAt(i) == quote) {
+                if (startsWith(sql, i + 1, quote)) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    // returns the index just after the opening tag of a dollar-quoted string, or -1 if there is no
+    // such tag at the start index (e.g. $1 positional parameters)
+    private static int endOfDollarQuoteTag(String sql, int start) {
+        int length = sql.length();
+        int i = start + 1;
+        if (i < length && (Character.isLetter(sql.charAt(i)) || sql.charAt(i) == '_')) {
+            i++;
+            while (i < length && (Character.isLetterOrDigit(sql.charAt(i))
+                    || sql.charAt(i) == '_')) {
+                i++;
+            }
+        }
+        if (i < length && sql.charAt(i) == '$') {
+            return i + 1;
+        }
+        return -1;
+    }
+
+    private static int endOfNumber(String sql, int start) {
+        int length = sql.length();
+        int i = start + 1;
+        if (sql.charAt(start) == '0' && i < length
+                && (sql.charAt(i) == 'x' || sql.charAt(i) == 'X')) {
+            i++;
+            while (i < length && Character.digit(sql.charAt(i), 16) != -1) {
+                i++;
+            }
+            return i;
+        }
+        while (i < length) {
+            char c = sql.charAt(i);
+            if ((c >= '0' && c <= '9') || c == '.') {
+                i++;
+            } else if ((c == 'e' || c == 'E') && i + 1 < length) {
+                char next = sql.charAt(i + 1);
+                if (next >= '0' && next <= '9') {
+                    i += 2;
+                } else if ((next == '+' || next == '-') && i + 2 < length
+                        && sql.charAt(i + 2) >= '0' && sql.charAt(i + 2) <= '9') {
+                    i += 3;
+                } else {
+                    return i;
+                }
+            } else {
+                return i;
+            }
+        }
+        return i;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$' || c == '@' || c == '#' || c == ':';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '@' || c == '#';
+    }
+}
@@ -60,6 +60,8 @@ public class StatementAspect {
             configService.getBooleanProperty("captureBindParameters");
     private static final BooleanProperty captureStatementClose =
             configService.getBooleanProperty("captureStatementClose");
+    private static final BooleanProperty normalizeQueryText =
+            configService.getBooleanProperty("normalizeQueryText");
 
     @Shim("java.sql.PreparedStatement")
     public interface PreparedStatement {}
@@ -104,9 +106,8 @@ public class StatementAspect {
     // ================= Parameter Binding =================
 
     @Pointcut(className = "java.sql.PreparedStatement",
-            methodName = "setArray|setBigDecimal"
-                    + "|setBoolean|setByte|setDate|setDouble|setFloat|setInt|setLong|setNString"
-                    + "|setRef|setRowId|setShort|setString|setTime|setTimestamp|setURL",
+            methodName = "setArray|setBigDecimal|setBoolean|setByte|setDate|setNString|setRef"
+                    + "|setRowId|setShort|setString|setTime|setTimestamp|setURL",
             methodParameterTypes = {"int", "*", ".."})
     public static class SetXAdvice {
         @IsEnabled
@@ -124,6 +125,80 @@ public class StatementAspect {
         }
     }
 
+    // setInt, setLong, setFloat and setDouble are captured separately from SetXAdvice so that the
+    // values are stored without boxing
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setInt",
+            methodParameterTypes = {"int", "int"})
+    public static class SetIntAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters.value();
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter int x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setIntParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setLong",
+            methodParameterTypes = {"int", "long"})
+    public static class SetLongAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters.value();
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter long x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setLongParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setFloat",
+            methodParameterTypes = {"int", "float"})
+    public static class SetFloatAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters.value();
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter float x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setFloatParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setDouble",
+            methodParameterTypes = {"int", "double"})
+    public static class SetDoubleAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters.value();
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirror preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter double x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setDoubleParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
     @Pointcut(className = "java.sql.PreparedStatement",
             methodName = "setAsciiStream|setBinaryStream|setBlob|setCharacterStream|setClob"
                     + "|setNCharacterStream|setNClob|setSQLXML|setUnicodeStream",
@@ -304,7 +379,7 @@ public class StatementAspect {
                 // this shouldn't happen since just checked hasGlowrootStatementMirror() above
                 return null;
             }
-            QueryEntry query = context.startQueryEntry(QUERY_TYPE, sql,
+            QueryEntry query = context.startQueryEntry(QUERY_TYPE, getQueryText(sql),
                     QueryMessageSupplier.create("jdbc execute: "), timerName);
             mirror.setLastQueryEntry(query);
             return query;
@@ -573,7 +648,7 @@ public class StatementAspect {
                     if (!first) {
                         sb.append(", ");
                     }
-                    sb.append(sql);
+                    sb.append(getQueryText(sql));
                     first = false;
                 }
                 concatenated = sb.toString();
@@ -637,4 +712,13 @@ public class StatementAspect {
             }
         }
     }
+
+    // only used for plain Statement sql, see QueryTextNormalizer
+    private static String getQueryText(String sql) {
+        if (normalizeQueryText.value()) {
+            return QueryTextNormalizer.normalize(sql);
+        } else {
+            return sql;
+        }
+    }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc.message;
+
+import java.util.Arrays;
+
+import org.glowroot.agent.plugin.api.checker.Nullable;
+import org.glowroot.agent.plugin.jdbc.message.BindParameterList.PrimitiveType;
+
+// columnar storage for the bind parameters of all rows of a batch (same layout as
+// BindParameterList), so that adding a row to the batch only copies values into a few shared
+// arrays instead of retaining a separate BindParameterList (and boxed values) per row
+public class BindParameterBatch {
+
+    // contains either the parameter value or the PrimitiveType of the value in primitiveValues
+    private @Nullable Object[] values;
+    // only created if there are primitive parameters
+    private long /*@Nullable*/ [] primitiveValues;
+    private int valueCount;
+
+    // index in the above arrays where each row ends
+    private int[] rowEnds;
+    private int rowCount;
+
+    public BindParameterBatch(int rowCapacity, int parametersPerRow) {
+        values = new Object[Math.max(rowCapacity * parametersPerRow, 1)];
+        rowEnds = new int[Math.max(rowCapacity, 1)];
+    }
+
+    public void addRow(BindParameterList row) {
+        int rowSize = row.size();
+        ensureCapacity(valueCount + rowSize);
+        for (int i = 0; i < rowSize; i++) {
+            Object value = row.getValue(i);
+            values[valueCount] = value;
+            if (value instanceof PrimitiveType) {
+                if (primitiveValues == null) {
+                    primitiveValues = new long[values.length];
+                }
+                primitiveValues[valueCount] = row.getPrimitiveValue(i);
+            }
+            valueCount++;
+        }
+        if (rowCount == rowEnds.length) {
+            rowEnds = Arrays.copyOf(rowEnds, rowCount + (rowCount >> 1) + 1);
+        }
+        rowEnds[rowCount++] = valueCount;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    void appendRowTo(StringBuilder sb, int row) {
+        int start = row == 0 ? 0 : rowEnds[row - 1];
+        int end = rowEnds[row];
+        sb.append(" [");
+        for (int i = start; i < end; i++) {
+            if (i != start) {
+                sb.append(", ");
+            }
+            BindParameterList.appendValue(sb, values[i],
+                    primitiveValues == null ? 0 : primitiveValues[i]);
+        }
+        sb.append("]");
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        int capacity = values.length;
+        if (minCapacity <= capacity) {
+            return;
+        }
+        // using same capacity increase formula as ArrayList
+        capacity = capacity + (capacity >> 1);
+        if (minCapacity > capacity) {
+            capacity = minCapacity;
+        }
+        values = Arrays.copyOf(values, capacity);
+        if (primitiveValues != null) {
+            primitiveValues = Arrays.copyOf(primitiveValues, capacity);
+        }
+    }
+}
@@ -16,52 +16,60 @@
 package org.glowroot.agent.plugin.jdbc.message;
 
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
 
 import org.glowroot.agent.plugin.api.checker.Nullable;
 
-// micro-optimized list for bind parameters
-public class BindParameterList implements Iterable</*@Nullable*/ Object> {
-
-    private @Nullable Object[] parameters;
+// micro-optimized columnar list for bind parameters
+//
+// primitive values are stored unboxed in a long array (using the raw bits for float and double)
+// with their type tag stored in the corresponding slot of the object array, so that binding
+// numeric parameters does not allocate, and boxing and rendering of the values is deferred until
+// the message is needed (which is only when the trace is stored)
+public class BindParameterList {
+
+    // contains either the parameter value or the PrimitiveType of the value in primitiveValues
+    private @Nullable Object[] values;
+    // only created if there are primitive parameters
+    private long /*@Nullable*/ [] primitiveValues;
     private int size;
 
     public static BindParameterList copyOf(BindParameterList bindParameterList) {
-        return new BindParameterList(bindParameterList.parameters, bindParameterList.size);
+        return new BindParameterList(bindParameterList);
     }
 
     public BindParameterList(int capacity) {
-        parameters = new Object[capacity];
+        values = new Object[capacity];
     }
 
-    private BindParameterList(@Nullable Object[] parameters, int size) {
-        if (parameters.length == size) {
-            this.parameters = parameters.clone();
-        } else {
-            // clone is faster even in this case, but worth the one time hit (for cached statements
-            // where this will be called over and over) to resize the array and use less memory
-            this.parameters = new Object[size];
-            System.arraycopy(parameters, 0, this.parameters, 0, size);
+    // clone is faster even when size is less than capacity, but worth the one time hit (for cached
+    // statements where this will be called over and over) to resize the arrays and use less memory
+    private BindParameterList(BindParameterList bindParameterList) {
+        size = bindParameterList.size;
+        values = Arrays.copyOf(bindParameterList.values, size);
+        if (bindParameterList.primitiveValues != null) {
+            primitiveValues = Arrays.copyOf(bindParameterList.primitiveValues, size);
         }
-        this.size = size;
     }
 
     public void set(int i, @Nullable Object parameter) {
-        int capacity = parameters.length;
-        if (i >= capacity) {
-            // using same capacity increase formula as ArrayList
-            capacity = capacity + (capacity >> 1);
-            if (i >= capacity) {
-                capacity = i + 1;
-            }
-            parameters = Arrays.copyOf(parameters, capacity);
-        }
-        parameters[i] = parameter;
-        int newSize = i + 1;
-        if (newSize > size) {
-            size = newSize;
-        }
+        ensureCapacity(i);
+        values[i] = parameter;
+    }
+
+    public void setInt(int i, int parameter) {
+        setPrimitive(i, PrimitiveType.INT, parameter);
+    }
+
+    public void setLong(int i, long parameter) {
+        setPrimitive(i, PrimitiveType.LONG, parameter);
+    }
+
+    public void setFloat(int i, float parameter) {
+        setPrimitive(i, PrimitiveType.FLOAT, Float.floatToRawIntBits(parameter));
+    }
+
+    public void setDouble(int i, double parameter) {
+        setPrimitive(i, PrimitiveType.DOUBLE, Double.doubleToRawLongBits(parameter));
     }
 
     public int size() {
@@ -73,36 +81,93 @@ public class BindParameterList implements Iterable</*@Nullable*/ Object> {
     }
 
     public void clear() {
-        Arrays.fill(parameters, null);
+        Arrays.fill(values, 0, size, null);
         size = 0;
     }
 
-    @Override
-    public Iterator</*@Nullable*/ Object> iterator() {
-        return new ParameterIterator();
+    @Nullable
+    Object getValue(int i) {
+        return values[i];
     }
 
-    private class ParameterIterator implements Iterator</*@Nullable*/ Object> {
+    long getPrimitiveValue(int i) {
+        return primitiveValues == null ? 0 : primitiveValues[i];
+    }
 
-        private int i;
+    void appendTo(StringBuilder sb) {
+        sb.append(" [");
+        for (int i = 0; i < size; i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            appendValue(sb, values[i], getPrimitiveValue(i));
+        }
+        sb.append("]");
+    }
 
-        @Override
-        public boolean hasNext() {
-            return i < size;
+    static void appendValue(StringBuilder sb, @Nullable Object value, long primitiveValue) {
+        if (value instanceof String) {
+            sb.append("\'");
+            sb.append((String) value);
+            sb.append("\'");
+        } else if (value == null) {
+            sb.append("NULL");
+        } else if (value instanceof PrimitiveType) {
+            appendPrimitiveValue(sb, (PrimitiveType) value, primitiveValue);
+        } else {
+            sb.append(String.valueOf(value));
         }
+    }
 
-        @Override
-        public @Nullable Object next() {
-            if (i < size) {
-                return parameters[i++];
-            } else {
-                throw new NoSuchElementException();
-            }
+    private static void appendPrimitiveValue(StringBuilder sb, PrimitiveType type,
+            long primitiveValue) {
+        switch (type) {
+            case INT:
+                sb.append((int) primitiveValue);
+                break;
+            case LONG:
+                sb.append(primitiveValue);
+                break;
+            case FLOAT:
+                sb.append(Float.intBitsToFloat((int) primitiveValue));
+                break;
+            case DOUBLE:
+                sb.append(Double.longBitsToDouble(primitiveValue));
+                break;
+            default:
+                throw new AssertionError("Unexpected primitive type: " + type);
         }
+    }
 
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
+    private void setPrimitive(int i, PrimitiveType type, long value) {
+        ensureCapacity(i);
+        if (primitiveValues == null) {
+            primitiveValues = new long[values.length];
+        }
+        primitiveValues[i] = value;
+        values[i] = type;
+    }
+
+    private void ensureCapacity(int i) {
+        int capacity = values.length;
+        if (i >= capacity) {
+            // using same capacity increase formula as ArrayList
+            capacity = capacity + (capacity >> 1);
+            if (i >= capacity) {
+                capacity = i + 1;
+            }
+            values = Arrays.copyOf(values, capacity);
+            if (primitiveValues != null) {
+                primitiveValues = Arrays.copyOf(primitiveValues, capacity);
+            }
         }
+        int newSize = i + 1;
+        if (newSize > size) {
+            size = newSize;
+        }
+    }
+
+    enum PrimitiveType {
+        INT, LONG, FLOAT, DOUBLE
     }
 }
@@ -33,30 +33,9 @@ public class PreparedStatementMessageSupplier extends QueryMessageSupplier {
         String suffix = "";
         if (parameters != null && !parameters.isEmpty()) {
             StringBuilder sb = new StringBuilder();
-            appendParameters(sb, parameters);
+            parameters.appendTo(sb);
             suffix = sb.toString();
         }
         return QueryMessage.create("jdbc execute: ", suffix);
     }
-
-    static void appendParameters(StringBuilder sb, BindParameterList parameters) {
-        sb.append(" [");
-        boolean first = true;
-        for (Object parameter : parameters) {
-            if (!first) {
-                sb.append(", ");
-            }
-            if (parameter instanceof String) {
-                sb.append("\'");
-                sb.append((String) parameter);
-                sb.append("\'");
-            } else if (parameter == null) {
-                sb.append("NULL");
-            } else {
-                sb.append(String.valueOf(parameter));
-            }
-            first = false;
-        }
-        sb.append("]");
-    }
 }
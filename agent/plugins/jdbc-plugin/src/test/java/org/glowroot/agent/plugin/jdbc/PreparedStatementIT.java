@@ -316,6 +316,28 @@ public class PreparedStatementIT {
         assertThat(j.hasNext()).isFalse();
     }
 
+    @Test
+    public void testPreparedStatementWithNormalizeQueryText() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "normalizeQueryText", true);
+
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementWithInList.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("select * from employee where name in (?, ?, ?)");
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execute: ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" ['john doe', 'x', 'jane doe'] => 2 rows");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testPreparedStatementWithoutBindParameters() throws Exception {
         // given
@@ -386,6 +408,37 @@ public class PreparedStatementIT {
         assertThat(j.hasNext()).isFalse();
     }
 
+    @Test
+    public void testPreparedStatementWithPrimitives() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureBindParameters", true);
+
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementWithPrimitives.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getActive()).isFalse();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getMessage()).isEmpty();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("select * from employee where id > ? and id < ?"
+                        + " and ? > 1.0e0 and ? > 1.0e0 and name <> ?");
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc execute: ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" [0, 100, 1.5, 2.5, 'x']");
+
+        // parameters changed after the first execution must not affect the first entry
+        entry = i.next();
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" [-1, 100, 1.5, 2.5, 'x']");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testPreparedStatementWithBinary() throws Exception {
         // given
@@ -674,6 +727,37 @@ public class PreparedStatementIT {
         }
     }
 
+    public static class ExecutePreparedStatementWithInList
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement =
+                    connection.prepareStatement("select * from employee where name in (?, ?, ?)");
+            try {
+                preparedStatement.setString(1, "john doe");
+                preparedStatement.setString(2, "x");
+                preparedStatement.setString(3, "jane doe");
+                preparedStatement.execute();
+                ResultSet rs = preparedStatement.getResultSet();
+                while (rs.next()) {
+                    rs.getString(1);
+                }
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
     public static class ExecutePreparedStatementQueryAndIterateOverResults
             implements AppUnderTest, TransactionMarker {
         private Connection connection;
@@ -910,6 +994,38 @@ public class PreparedStatementIT {
         }
     }
 
+    public static class ExecutePreparedStatementWithPrimitives
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement = connection.prepareStatement(
+                    "select * from employee where id > ? and id < ? and ? > 1.0e0 and ? > 1.0e0"
+                            + " and name <> ?");
+            try {
+                preparedStatement.setInt(1, 0);
+                preparedStatement.setLong(2, 100);
+                preparedStatement.setFloat(3, 1.5f);
+                preparedStatement.setDouble(4, 2.5);
+                preparedStatement.setString(5, "x");
+                preparedStatement.execute();
+                preparedStatement.setInt(1, -1);
+                preparedStatement.execute();
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
     public static class ExecutePreparedStatementWithBinary
             implements AppUnderTest, TransactionMarker {
         static {
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextNormalizerTest {
+
+    @Test
+    public void shouldReplaceLiterals() {
+        assertThat(normalize("select * from t where a = 'abc' and b = 12 and c = 1.5e-3"))
+                .isEqualTo("select * from t where a = ? and b = ? and c = ?");
+        assertThat(normalize("select * from t where a = 'it''s' and b = 0x1F and c = -2"))
+                .isEqualTo("select * from t where a = ? and b = ? and c = -?");
+    }
+
+    @Test
+    public void shouldReplaceLiteralsWithBackslashEscapes() {
+        assertThat(normalize("insert into t (a, b) values ('a\\'b', 5)"))
+                .isEqualTo("insert into t (a, b) values (?, ?)");
+        assertThat(normalize("select * from t where a = 'c:\\\\' and b = 5"))
+                .isEqualTo("select * from t where a = ? and b = ?");
+    }
+
+    @Test
+    public void shouldNotReplaceIdentifiers() {
+        assertThat(normalize("select employee0_.id as id1_0_ from employee employee0_"
+                + " where employee0_.id = ? and \"col 1\" = $1 and `x2` = :name2"))
+                        .isEqualTo("select employee0_.id as id1_0_ from employee employee0_"
+                                + " where employee0_.id = ? and \"col 1\" = $1 and `x2` = :name2");
+    }
+
+    @Test
+    public void shouldNotReplaceComments() {
+        assertThat(normalize("select /*+ index(t 1) */ * from t -- 'x' 1\nwhere a = 1"))
+                .isEqualTo("select /*+ index(t 1) */ * from t -- 'x' 1\nwhere a = ?");
+    }
+
+    @Test
+    public void shouldReplaceDollarQuotedStrings() {
+        assertThat(normalize("select $$it's 'quoted'$$, $tag$a $$ b$tag$ from t where a = $1"))
+                .isEqualTo("select ?, ? from t where a = $1");
+        assertThat(normalize("select * from t where a in ($$x$$, $$y$$)"))
+                .isEqualTo("select * from t where a in (?)");
+        assertThat(normalize("select v$session.x from t where a = $$unterminated"))
+                .isEqualTo("select v$session.x from t where a = ?");
+    }
+
+    @Test
+    public void shouldCollapseInLists() {
+        assertThat(normalize("select * from t where a in (1, 2, 3) and b IN ('x','y')"))
+                .isEqualTo("select * from t where a in (?) and b IN (?)");
+        assertThat(normalize("select * from t where a in (?, ?, ?) and b in (?)"))
+                .isEqualTo("select * from t where a in (?) and b in (?)");
+        assertThat(normalize("select * from t where a in (select b from u where c in (1, 2))"))
+                .isEqualTo("select * from t where a in (select b from u where c in (?))");
+        assertThat(normalize("select * from t where (a, b) in ((1, 2), (3, 4))"))
+                .isEqualTo("select * from t where (a, b) in ((?, ?), (?, ?))");
+        assertThat(normalize("select * from t where a in (f(1), 2)"))
+                .isEqualTo("select * from t where a in (f(?), ?)");
+    }
+
+    @Test
+    public void shouldReturnSameInstanceIfNothingToNormalize() {
+        String sql = "select * from t where a = ? and b in (?)";
+        assertThat(QueryTextNormalizer.normalizeInternal(sql)).isSameAs(sql);
+    }
+
+    private static String normalize(String sql) {
+        String normalized = QueryTextNormalizer.normalize(sql);
+        // second call is served from the cache
+        assertThat(QueryTextNormalizer.normalize(sql)).isEqualTo(normalized);
+        return normalized;
+    }
+}
@@ -40,6 +40,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 public class StatementIT {
 
+    private static final String PLUGIN_ID = "jdbc";
+
     private static Container container;
 
     @BeforeClass
@@ -150,6 +152,40 @@ public class StatementIT {
         assertThat(j.hasNext()).isFalse();
     }
 
+    @Test
+    public void testStatementWithNormalizedQueryText() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "normalizeQueryText", true);
+
+        // when
+        Trace trace = container.execute(ExecuteStatementsWithLiterals.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText())
+                        .isEqualTo("select * from employee where id in (?) and name <> ?");
+        entry = i.next();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText())
+                        .isEqualTo("select * from employee where id in (?) and name <> ?");
+
+        assertThat(i.hasNext()).isFalse();
+
+        Iterator<Aggregate.Query> j = trace.getQueryList().iterator();
+
+        Aggregate.Query query = j.next();
+        assertThat(query.getType()).isEqualTo("SQL");
+        assertThat(sharedQueryTexts.get(query.getSharedQueryTextIndex()).getFullText())
+                .isEqualTo("select * from employee where id in (?) and name <> ?");
+        assertThat(query.getExecutionCount()).isEqualTo(2);
+
+        assertThat(j.hasNext()).isFalse();
+    }
+
     @Test
     public void testNullStatement() throws Exception {
         // when
@@ -462,6 +498,29 @@ public class StatementIT {
         }
     }
 
+    public static class ExecuteStatementsWithLiterals implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("select * from employee where id in (1, 2) and name <> 'x'");
+                statement.execute("select * from employee where id in (3) and name <> 'it''s'");
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
     public static class ExecuteNullStatement implements AppUnderTest, TransactionMarker {
         private Connection delegatingConnection;
         @Override
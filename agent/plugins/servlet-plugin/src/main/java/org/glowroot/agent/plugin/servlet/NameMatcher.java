@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// case-insensitive matching of request parameter and header names against a list of wildcard
+// patterns (e.g. "*password*")
+//
+// the match result is cached per distinct name (typically the same small set of parameter and
+// header names show up on every request), so that in the common case matching a name is just a
+// hash lookup, with no lower casing and no pattern matching
+class NameMatcher {
+
+    // the number of distinct names is bounded since names can be supplied by the client
+    private static final int MAX_CACHED_NAMES = 1000;
+
+    private final boolean matchesAll;
+    // these are lower case
+    private final Set<String> exactNames;
+    // these are lower case patterns split on '*'
+    private final List<String[]> wildcardPatterns;
+
+    private final ConcurrentMap<String, Boolean> cache = new ConcurrentHashMap<String, Boolean>();
+
+    static NameMatcher create(List<String> patterns) {
+        boolean matchesAll = false;
+        Set<String> exactNames = new HashSet<String>();
+        List<String[]> wildcardPatterns = new ArrayList<String[]>();
+        for (String pattern : patterns) {
+            // converted to lower case for case-insensitive matching
+            String patternLowerCase = pattern.toLowerCase(Locale.ENGLISH);
+            if (patternLowerCase.equals("*")) {
+                matchesAll = true;
+            } else if (patternLowerCase.indexOf('*') == -1) {
+                exactNames.add(patternLowerCase);
+            } else {
+                wildcardPatterns.add(patternLowerCase.split("\\*", -1));
+            }
+        }
+        return new NameMatcher(matchesAll, exactNames, wildcardPatterns);
+    }
+
+    private NameMatcher(boolean matchesAll, Set<String> exactNames,
+            List<String[]> wildcardPatterns) {
+        this.matchesAll = matchesAll;
+        this.exactNames = exactNames;
+        this.wildcardPatterns = wildcardPatterns;
+    }
+
+    boolean isEmpty() {
+        return !matchesAll && exactNames.isEmpty() && wildcardPatterns.isEmpty();
+    }
+
+    boolean matches(String name) {
+        if (matchesAll) {
+            return true;
+        }
+        Boolean matches = cache.get(name);
+        if (matches != null) {
+            return matches;
+        }
+        matches = matchesInternal(name.toLowerCase(Locale.ENGLISH));
+        if (cache.size() < MAX_CACHED_NAMES) {
+            cache.put(name, matches);
+        }
+        return matches;
+    }
+
+    private boolean matchesInternal(String nameLowerCase) {
+        if (exactNames.contains(nameLowerCase)) {
+            return true;
+        }
+        for (String[] wildcardPattern : wildcardPatterns) {
+            if (matches(nameLowerCase, wildcardPattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // parts has at least two elements since the pattern contains at least one '*'
+    private static boolean matches(String name, String[] parts) {
+        String first = parts[0];
+        String last = parts[parts.length - 1];
+        if (name.length() < first.length() + last.length() || !name.startsWith(first)
+                || !name.endsWith(last)) {
+            return false;
+        }
+        int index = first.length();
+        int endIndex = name.length() - last.length();
+        for (int i = 1; i < parts.length - 1; i++) {
+            String part = parts[i];
+            int foundIndex = name.indexOf(part, index);
+            if (foundIndex == -1 || foundIndex + part.length() > endIndex) {
+                return false;
+            }
+            index = foundIndex + part.length();
+        }
+        return true;
+    }
+}
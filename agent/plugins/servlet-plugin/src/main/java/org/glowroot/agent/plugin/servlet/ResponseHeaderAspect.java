@@ -15,9 +15,7 @@
  */
 package org.glowroot.agent.plugin.servlet;
 
-import java.util.List;
 import java.util.Locale;
-import java.util.regex.Pattern;
 
 import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.checker.Nullable;
@@ -324,9 +322,6 @@ public class ResponseHeaderAspect {
     }
 
     private static boolean captureResponseHeader(String name) {
-        List<Pattern> capturePatterns = ServletPluginProperties.captureResponseHeaders();
-        // converted to lower case for case-insensitive matching (patterns are lower case)
-        String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-        return DetailCapture.matchesOneOf(keyLowerCase, capturePatterns);
+        return ServletPluginProperties.captureResponseHeaders().matches(name);
     }
 }
@@ -19,9 +19,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.checker.Nullable;
@@ -36,9 +34,12 @@ class ServletPluginProperties {
 
     private static final ConfigService configService = Agent.getConfigService("servlet");
 
-    private static List<Pattern> captureRequestParameters = Collections.emptyList();
-    private static List<Pattern> maskRequestParameters = Collections.emptyList();
-    private static List<Pattern> captureRequestHeaders = Collections.emptyList();
+    private static NameMatcher captureRequestParameters =
+            NameMatcher.create(Collections.<String>emptyList());
+    private static NameMatcher maskRequestParameters =
+            NameMatcher.create(Collections.<String>emptyList());
+    private static NameMatcher captureRequestHeaders =
+            NameMatcher.create(Collections.<String>emptyList());
 
     private static boolean someRequestHostAndPortDetail;
     private static boolean captureRequestRemoteAddress;
@@ -50,7 +51,8 @@ class ServletPluginProperties {
     private static boolean captureRequestServerHostname;
     private static boolean captureRequestServerPort;
 
-    private static List<Pattern> captureResponseHeaders = Collections.emptyList();
+    private static NameMatcher captureResponseHeaders =
+            NameMatcher.create(Collections.<String>emptyList());
     private static boolean captureResponseHeadersNonEmpty;
     private static boolean captureContentLengthResponseHeader;
     private static boolean captureContentTypeResponseHeader;
@@ -71,15 +73,15 @@ class ServletPluginProperties {
 
     private ServletPluginProperties() {}
 
-    static List<Pattern> captureRequestParameters() {
+    static NameMatcher captureRequestParameters() {
         return captureRequestParameters;
     }
 
-    static List<Pattern> maskRequestParameters() {
+    static NameMatcher maskRequestParameters() {
         return maskRequestParameters;
     }
 
-    static List<Pattern> captureRequestHeaders() {
+    static NameMatcher captureRequestHeaders() {
         return captureRequestHeaders;
     }
 
@@ -119,7 +121,7 @@ class ServletPluginProperties {
         return captureRequestServerPort;
     }
 
-    static List<Pattern> captureResponseHeaders() {
+    static NameMatcher captureResponseHeaders() {
         return captureResponseHeaders;
     }
 
@@ -215,9 +217,9 @@ class ServletPluginProperties {
         }
 
         private static void recalculateProperties() {
-            captureRequestParameters = buildPatternList("captureRequestParameters");
-            maskRequestParameters = buildPatternList("maskRequestParameters");
-            captureRequestHeaders = buildPatternList("captureRequestHeaders");
+            captureRequestParameters = buildNameMatcher("captureRequestParameters");
+            maskRequestParameters = buildNameMatcher("maskRequestParameters");
+            captureRequestHeaders = buildNameMatcher("captureRequestHeaders");
             captureRequestRemoteAddress =
                     configService.getBooleanProperty("captureRequestRemoteAddr").value();
             captureRequestRemoteHostname =
@@ -239,14 +241,12 @@ class ServletPluginProperties {
                             || captureRequestRemotePort || captureRequestLocalAddress
                             || captureRequestLocalHostname || captureRequestLocalPort
                             || captureRequestServerHostname || captureRequestServerPort;
-            captureResponseHeaders = buildPatternList("captureResponseHeaders");
+            captureResponseHeaders = buildNameMatcher("captureResponseHeaders");
             captureResponseHeadersNonEmpty = !captureResponseHeaders.isEmpty();
-            captureContentLengthResponseHeader =
-                    DetailCapture.matchesOneOf("content-length", captureResponseHeaders);
-            captureContentTypeResponseHeader =
-                    DetailCapture.matchesOneOf("content-type", captureResponseHeaders);
+            captureContentLengthResponseHeader = captureResponseHeaders.matches("content-length");
+            captureContentTypeResponseHeader = captureResponseHeaders.matches("content-type");
             captureContentLanguageResponseHeader =
-                    DetailCapture.matchesOneOf("content-language", captureResponseHeaders);
+                    captureResponseHeaders.matches("content-language");
             userAttributePath = buildSessionAttributePath(
                     configService.getStringProperty("sessionUserAttribute").value());
             captureSessionAttributePaths = buildSessionAttributePaths(configService
@@ -258,15 +258,9 @@ class ServletPluginProperties {
                     configService.getBooleanProperty("traceErrorOn4xxResponseCode").value();
         }
 
-        private static List<Pattern> buildPatternList(String propertyName) {
-            String captureRequestParametersText =
-                    configService.getStringProperty(propertyName).value();
-            List<Pattern> captureParameters = new ArrayList<Pattern>();
-            for (String parameter : Strings.split(captureRequestParametersText, ',')) {
-                // converted to lower case for case-insensitive matching
-                captureParameters.add(buildRegexPattern(parameter.toLowerCase(Locale.ENGLISH)));
-            }
-            return ImmutableList.copyOf(captureParameters);
+        private static NameMatcher buildNameMatcher(String propertyName) {
+            String patternsText = configService.getStringProperty(propertyName).value();
+            return NameMatcher.create(Strings.split(patternsText, ','));
         }
 
         private static List<SessionAttributePath> buildSessionAttributePaths(
@@ -303,13 +297,5 @@ class ServletPluginProperties {
             }
             return ImmutableSet.copyOf(names);
         }
-
-        private static Pattern buildRegexPattern(String wildcardPattern) {
-            // convert * into .* and quote the rest of the text using \Q...\E
-            String regex = "\\Q" + wildcardPattern.replace("*", "\\E.*\\Q") + "\\E";
-            // strip off unnecessary \\Q\\E in case * appeared at beginning or end of part
-            regex = regex.replace("\\Q\\E", "");
-            return Pattern.compile(regex);
-        }
     }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NameMatcherTest {
+
+    @Test
+    public void shouldMatchExact() {
+        NameMatcher matcher = NameMatcher.create(ImmutableList.of("Content-Type", "accept"));
+        assertThat(matcher.matches("content-type")).isTrue();
+        assertThat(matcher.matches("ACCEPT")).isTrue();
+        assertThat(matcher.matches("accept-language")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchWildcards() {
+        NameMatcher matcher = NameMatcher.create(ImmutableList.of("*password*", "x-*-id", "a*b*c"));
+        assertThat(matcher.matches("password")).isTrue();
+        assertThat(matcher.matches("xPasswordY")).isTrue();
+        assertThat(matcher.matches("passwor")).isFalse();
+        assertThat(matcher.matches("X-Request-Id")).isTrue();
+        assertThat(matcher.matches("x--id")).isTrue();
+        assertThat(matcher.matches("x-id")).isFalse();
+        assertThat(matcher.matches("abc")).isTrue();
+        assertThat(matcher.matches("axxbxxc")).isTrue();
+        assertThat(matcher.matches("acb")).isFalse();
+        assertThat(matcher.matches("abcb")).isFalse();
+        // second call is served from the cache
+        assertThat(matcher.matches("xPasswordY")).isTrue();
+        assertThat(matcher.matches("acb")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchAll() {
+        NameMatcher matcher = NameMatcher.create(ImmutableList.of("abc", "*"));
+        assertThat(matcher.isEmpty()).isFalse();
+        assertThat(matcher.matches("anything")).isTrue();
+    }
+
+    @Test
+    public void shouldMatchNothing() {
+        NameMatcher matcher = NameMatcher.create(ImmutableList.<String>of());
+        assertThat(matcher.isEmpty()).isTrue();
+        assertThat(matcher.matches("anything")).isFalse();
+    }
+}
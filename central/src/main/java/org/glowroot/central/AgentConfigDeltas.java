@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+
+// agent config deltas are at the granularity of the top-level agent config fields (see
+// AgentConfigUpdateRequest.base_config_version in DownstreamService.proto), since agent config
+// changes made through the UI are always within a single top-level field
+class AgentConfigDeltas {
+
+    private AgentConfigDeltas() {}
+
+    static List<Integer> getChangedFieldNumbers(AgentConfig base, AgentConfig agentConfig) {
+        List<Integer> fieldNumbers = new ArrayList<>();
+        for (FieldDescriptor field : AgentConfig.getDescriptor().getFields()) {
+            if (!base.getField(field).equals(agentConfig.getField(field))
+                    || !field.isRepeated() && base.hasField(field) != agentConfig.hasField(field)) {
+                fieldNumbers.add(field.getNumber());
+            }
+        }
+        return fieldNumbers;
+    }
+
+    static AgentConfig retainFields(AgentConfig agentConfig, List<Integer> fieldNumbers) {
+        AgentConfig.Builder builder = AgentConfig.newBuilder();
+        for (int fieldNumber : fieldNumbers) {
+            FieldDescriptor field = AgentConfig.getDescriptor().findFieldByNumber(fieldNumber);
+            if (field.isRepeated() || agentConfig.hasField(field)) {
+                builder.setField(field, agentConfig.getField(field));
+            }
+        }
+        return builder.build();
+    }
+}
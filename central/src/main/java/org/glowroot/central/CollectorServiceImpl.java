@@ -65,6 +65,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OldAggregateMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OldTraceMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.QueryTextRegistryEntry;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamCounts;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamHeader;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
@@ -94,6 +95,9 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private final Clock clock;
     private final String version;
 
+    private final GaugeNameDictionaries gaugeNameDictionaries = new GaugeNameDictionaries();
+    private final QueryTextRegistries queryTextRegistries = new QueryTextRegistries();
+
     private volatile long currentMinute;
     private final AtomicInteger nextDelay = new AtomicInteger();
 
@@ -346,6 +350,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         }
         responseObserver.onNext(AggregateResponseMessage.newBuilder()
                 .setNextDelayMillis(getNextDelayMillis())
+                .setQueryTextRegistrySupported(true)
                 .build());
         responseObserver.onCompleted();
     }
@@ -362,10 +367,30 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             responseObserver.onError(t);
             return;
         }
+        List<GaugeValue> gaugeValues;
+        if (request.getGaugeNameDictionaryId() == 0) {
+            gaugeValues = request.getGaugeValuesList();
+        } else {
+            try {
+                gaugeValues = gaugeNameDictionaries.decode(postV09AgentId, request);
+            } catch (Throwable t) {
+                logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
+                responseObserver.onError(t);
+                return;
+            }
+            if (gaugeValues == null) {
+                responseObserver.onNext(GaugeValueResponseMessage.newBuilder()
+                        .setCompactGaugeValuesSupported(true)
+                        .setResendGaugeNames(true)
+                        .build());
+                responseObserver.onCompleted();
+                return;
+            }
+        }
         long maxCaptureTime = 0;
         try {
-            gaugeValueDao.store(postV09AgentId, request.getGaugeValuesList());
-            for (GaugeValue gaugeValue : request.getGaugeValuesList()) {
+            gaugeValueDao.store(postV09AgentId, gaugeValues);
+            for (GaugeValue gaugeValue : gaugeValues) {
                 maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
             }
         } catch (Throwable t) {
@@ -406,6 +431,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         }
         responseObserver.onNext(GaugeValueResponseMessage.newBuilder()
                 .setResendInit(resendInit)
+                .setCompactGaugeValuesSupported(true)
                 .build());
         responseObserver.onCompleted();
     }
@@ -497,6 +523,11 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         private @MonotonicNonNull AggregateStreamHeader streamHeader;
         private List<Aggregate.SharedQueryText> sharedQueryTexts = new ArrayList<>();
         private Map<String, OldAggregatesByType.Builder> aggregatesByTypeMap = new HashMap<>();
+        // query text registry entries received in this stream, which are used instead of the
+        // (normalized) entries in the query text registry so that the full text is stored
+        private Map<Integer, Aggregate.SharedQueryText> queryTextRegistryEntries =
+                new HashMap<>();
+        private boolean missingQueryTextRegistryEntry;
 
         private AggregateStreamObserver(StreamObserver<AggregateResponseMessage> responseObserver) {
             this.responseObserver = responseObserver;
@@ -511,6 +542,16 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 case SHARED_QUERY_TEXT:
                     sharedQueryTexts.add(value.getSharedQueryText());
                     break;
+                case QUERY_TEXT_REGISTRY_ENTRY:
+                    QueryTextRegistryEntry entry = value.getQueryTextRegistryEntry();
+                    queryTextRegistries.put(checkNotNull(streamHeader).getAgentId(),
+                            streamHeader.getQueryTextRegistryId(), entry.getIndex(),
+                            entry.getSharedQueryText());
+                    queryTextRegistryEntries.put(entry.getIndex(), entry.getSharedQueryText());
+                    break;
+                case SHARED_QUERY_TEXT_REGISTRY_INDEX:
+                    addSharedQueryText(value.getSharedQueryTextRegistryIndex());
+                    break;
                 case OVERALL_AGGREGATE:
                     OverallAggregate overallAggregate = value.getOverallAggregate();
                     String transactionType = overallAggregate.getTransactionType();
@@ -550,6 +591,15 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         @Override
         public void onCompleted() {
             checkNotNull(streamHeader);
+            if (missingQueryTextRegistryEntry) {
+                responseObserver.onNext(AggregateResponseMessage.newBuilder()
+                        .setNextDelayMillis(getNextDelayMillis())
+                        .setQueryTextRegistrySupported(true)
+                        .setResendQueryTextRegistryEntries(true)
+                        .build());
+                responseObserver.onCompleted();
+                return;
+            }
             List<OldAggregatesByType> aggregatesByTypeList = new ArrayList<>();
             for (OldAggregatesByType.Builder aggregatesByType : aggregatesByTypeMap.values()) {
                 aggregatesByTypeList.add(aggregatesByType.build());
@@ -558,6 +608,24 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                     streamHeader.getCaptureTime(), sharedQueryTexts, aggregatesByTypeList,
                     responseObserver);
         }
+
+        private void addSharedQueryText(int queryTextRegistryIndex) {
+            Aggregate.SharedQueryText sharedQueryText =
+                    queryTextRegistryEntries.get(queryTextRegistryIndex);
+            if (sharedQueryText == null) {
+                AggregateStreamHeader streamHeader = checkNotNull(this.streamHeader);
+                sharedQueryText = queryTextRegistries.get(streamHeader.getAgentId(),
+                        streamHeader.getQueryTextRegistryId(), queryTextRegistryIndex);
+            }
+            if (sharedQueryText == null) {
+                missingQueryTextRegistryEntry = true;
+                // adding placeholder to keep the shared query text indexes aligned, though the
+                // aggregates will not be stored anyways
+                sharedQueryTexts.add(Aggregate.SharedQueryText.getDefaultInstance());
+            } else {
+                sharedQueryTexts.add(sharedQueryText);
+            }
+        }
     }
 
     private final class TraceStreamObserver implements StreamObserver<TraceStreamMessage> {
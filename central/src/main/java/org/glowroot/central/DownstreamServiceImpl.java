@@ -16,6 +16,7 @@
 package org.glowroot.central;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Exchanger;
@@ -25,8 +26,11 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.annotation.concurrent.GuardedBy;
+
 import com.google.common.base.Optional;
 import com.google.common.base.Stopwatch;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
@@ -53,11 +57,13 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc.DownstreamServiceImplBase;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentConfigUpdateRequest;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentConfigUpdateResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AuxThreadProfileRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AuxThreadProfileResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AvailableDiskSpaceRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AvailableDiskSpaceResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CancelRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Capabilities;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CapabilitiesRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CentralRequest;
@@ -113,12 +119,31 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
 
     private static final Logger logger = LoggerFactory.getLogger(DownstreamServiceImpl.class);
 
+    // heap histograms for large applications can have 60k+ classes, so only the largest classes are
+    // returned by the agent (the agent still returns the totals across all classes)
+    private static final int HEAP_HISTOGRAM_LIMIT = 10000;
+
     private final GrpcCommon grpcCommon;
 
     private final DistributedExecutionMap<String, ConnectedAgent> connectedAgents;
 
     private final ReadWriteLock shuttingDownLock = new ReentrantReadWriteLock(true);
 
+    // entries and profiles from the prior response for each active trace that is being viewed, so
+    // that refreshing an active trace only needs to transfer what has changed
+    private final Cache<String, LiveEntries> liveEntriesCache = CacheBuilder.newBuilder()
+            .expireAfterAccess(5, MINUTES)
+            .maximumSize(100)
+            .build();
+    private final Cache<String, LiveProfile> liveMainThreadProfileCache = CacheBuilder.newBuilder()
+            .expireAfterAccess(5, MINUTES)
+            .maximumSize(100)
+            .build();
+    private final Cache<String, LiveProfile> liveAuxThreadProfileCache = CacheBuilder.newBuilder()
+            .expireAfterAccess(5, MINUTES)
+            .maximumSize(100)
+            .build();
+
     DownstreamServiceImpl(GrpcCommon grpcCommon, ClusterManager clusterManager) {
         this.grpcCommon = grpcCommon;
         connectedAgents = clusterManager.createDistributedExecutionMap("connectedAgents");
@@ -134,14 +159,28 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
     }
 
     // returns true if agent was updated
-    boolean updateAgentConfigIfConnected(String agentId, AgentConfig agentConfig) throws Exception {
-        // no need to retry on shutting-down response
-        return connectedAgents.execute(agentId, new SendDownstreamFunction(
-                CentralRequest.newBuilder()
-                        .setAgentConfigUpdateRequest(AgentConfigUpdateRequest.newBuilder()
-                                .setAgentConfig(agentConfig))
-                        .build()))
-                .isPresent();
+    // returns true if the agent is connected and has acknowledged applying the agent config
+    boolean updateAgentConfigIfConnected(String agentId, AgentConfig agentConfig,
+            String configVersion) throws Exception {
+        // no need to retry on shutting-down response, since the agent config update will be retried
+        // by UpdateAgentConfigIfNeededService
+        java.util.Optional<AgentResult> optional = connectedAgents.execute(agentId,
+                new UpdateAgentConfigFunction(agentConfig, configVersion));
+        if (!optional.isPresent()) {
+            return false;
+        }
+        Optional<AgentResponse> value = optional.get().value();
+        if (!value.isPresent()) {
+            return false;
+        }
+        AgentResponse response = value.get();
+        if (response.getMessageCase() != AgentResponse.MessageCase.AGENT_CONFIG_UPDATE_RESPONSE) {
+            return false;
+        }
+        String appliedConfigVersion =
+                response.getAgentConfigUpdateResponse().getAppliedConfigVersion();
+        // agents prior to 0.10.13 do not send the applied config version
+        return appliedConfigVersion.isEmpty() || appliedConfigVersion.equals(configVersion);
     }
 
     boolean isAvailable(String agentId) throws Exception {
@@ -211,7 +250,8 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
 
     HeapHistogram heapHistogram(String agentId) throws Exception {
         AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
-                .setHeapHistogramRequest(HeapHistogramRequest.newBuilder())
+                .setHeapHistogramRequest(HeapHistogramRequest.newBuilder()
+                        .setLimit(HEAP_HISTOGRAM_LIMIT))
                 .build());
         HeapHistogramResponse response = responseWrapper.getHeapHistogramResponse();
         if (response.getUnavailableDueToRunningInJre()) {
@@ -343,22 +383,43 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
     }
 
+    // only the entries that have changed since the prior request for the same trace are sent by
+    // the agent (agents prior to 0.10.13 always send all of the entries)
     @Nullable
     Entries getEntries(String agentId, String traceId) throws Exception {
+        String cacheKey = getLiveTraceCacheKey(agentId, traceId);
+        LiveEntries priorEntries = liveEntriesCache.getIfPresent(cacheKey);
+        EntriesRequest.Builder request = EntriesRequest.newBuilder()
+                .setTraceId(traceId);
+        if (priorEntries != null) {
+            request.setStableEntryCount(priorEntries.stableEntryCount)
+                    .setStableEntryHash(priorEntries.stableEntryHash)
+                    .setSharedQueryTextCount(priorEntries.sharedQueryTexts.size());
+        }
         AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
-                .setEntriesRequest(EntriesRequest.newBuilder()
-                        .setTraceId(traceId))
+                .setEntriesRequest(request)
                 .build());
         EntriesResponse response = responseWrapper.getEntriesResponse();
-        List<Trace.Entry> entries = response.getEntryList();
-        if (entries.isEmpty()) {
+        List<Trace.Entry> entries = merge(priorEntries == null ? null : priorEntries.entries,
+                response.getFirstEntryIndex(), response.getEntryList());
+        if (entries == null) {
+            liveEntriesCache.invalidate(cacheKey);
+            return null;
+        }
+        List<Trace.SharedQueryText> sharedQueryTexts =
+                merge(priorEntries == null ? null : priorEntries.sharedQueryTexts,
+                        response.getFirstSharedQueryTextIndex(),
+                        response.getSharedQueryTextList());
+        if (entries.isEmpty() || sharedQueryTexts == null) {
+            liveEntriesCache.invalidate(cacheKey);
             return null;
-        } else {
-            return ImmutableEntries.builder()
-                    .addAllEntries(entries)
-                    .addAllSharedQueryTexts(response.getSharedQueryTextList())
-                    .build();
         }
+        liveEntriesCache.put(cacheKey, new LiveEntries(entries, sharedQueryTexts,
+                response.getStableEntryCount(), response.getStableEntryHash()));
+        return ImmutableEntries.builder()
+                .addAllEntries(entries)
+                .addAllSharedQueryTexts(sharedQueryTexts)
+                .build();
     }
 
     @Nullable
@@ -379,32 +440,38 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
     }
 
+    // the profile is not sent by the agent if it is unchanged since the prior request for the same
+    // trace (agents prior to 0.10.13 always send the profile)
     @Nullable
     Profile getMainThreadProfile(String agentId, String traceId) throws Exception {
+        String cacheKey = getLiveTraceCacheKey(agentId, traceId);
+        LiveProfile priorProfile = liveMainThreadProfileCache.getIfPresent(cacheKey);
         AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
                 .setMainThreadProfileRequest(MainThreadProfileRequest.newBuilder()
-                        .setTraceId(traceId))
+                        .setTraceId(traceId)
+                        .setSampleCount(priorProfile == null ? 0 : priorProfile.sampleCount))
                 .build());
         MainThreadProfileResponse response = responseWrapper.getMainThreadProfileResponse();
-        if (response.hasProfile()) {
-            return response.getProfile();
-        } else {
-            return null;
-        }
+        return getProfile(liveMainThreadProfileCache, cacheKey, priorProfile,
+                response.hasProfile() ? response.getProfile() : null, response.getUnchanged(),
+                response.getSampleCount());
     }
 
+    // the profile is not sent by the agent if it is unchanged since the prior request for the same
+    // trace (agents prior to 0.10.13 always send the profile)
     @Nullable
     Profile getAuxThreadProfile(String agentId, String traceId) throws Exception {
+        String cacheKey = getLiveTraceCacheKey(agentId, traceId);
+        LiveProfile priorProfile = liveAuxThreadProfileCache.getIfPresent(cacheKey);
         AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
                 .setAuxThreadProfileRequest(AuxThreadProfileRequest.newBuilder()
-                        .setTraceId(traceId))
+                        .setTraceId(traceId)
+                        .setSampleCount(priorProfile == null ? 0 : priorProfile.sampleCount))
                 .build());
         AuxThreadProfileResponse response = responseWrapper.getAuxThreadProfileResponse();
-        if (response.hasProfile()) {
-            return response.getProfile();
-        } else {
-            return null;
-        }
+        return getProfile(liveAuxThreadProfileCache, cacheKey, priorProfile,
+                response.hasProfile() ? response.getProfile() : null, response.getUnchanged(),
+                response.getSampleCount());
     }
 
     @Nullable
@@ -421,6 +488,44 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
     }
 
+    private static String getLiveTraceCacheKey(String agentId, String traceId) {
+        return agentId + ':' + traceId;
+    }
+
+    // returns null if the items prior to the first index are not available
+    private static <T> @Nullable List<T> merge(@Nullable List<T> priorItems, int firstIndex,
+            List<T> items) {
+        if (firstIndex == 0) {
+            return items;
+        }
+        if (priorItems == null || firstIndex > priorItems.size()) {
+            return null;
+        }
+        List<T> merged = new ArrayList<>(firstIndex + items.size());
+        merged.addAll(priorItems.subList(0, firstIndex));
+        merged.addAll(items);
+        return merged;
+    }
+
+    private static @Nullable Profile getProfile(Cache<String, LiveProfile> profileCache,
+            String cacheKey, @Nullable LiveProfile priorProfile, @Nullable Profile profile,
+            boolean unchanged, long sampleCount) {
+        if (unchanged && priorProfile != null) {
+            return priorProfile.profile;
+        }
+        if (profile == null) {
+            profileCache.invalidate(cacheKey);
+            return null;
+        }
+        if (sampleCount == 0) {
+            // agents prior to 0.10.13 do not send the sample count
+            profileCache.invalidate(cacheKey);
+        } else {
+            profileCache.put(cacheKey, new LiveProfile(profile, sampleCount));
+        }
+        return profile;
+    }
+
     private AgentResponse runOnCluster(String agentId, CentralRequest centralRequest)
             throws Exception {
         // retry up to 5 seconds on shutting-down response to give agent time to reconnect to
@@ -464,13 +569,24 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         private final AtomicLong nextRequestId = new AtomicLong(1);
 
         // expiration in the unlikely case that response is never returned from agent
-        private final com.google.common.cache.Cache<Long, ResponseHolder> responseHolders =
+        private final Cache<Long, ResponseHolder> responseHolders =
                 CacheBuilder.newBuilder()
                         .expireAfterWrite(1, HOURS)
                         .build();
 
         private volatile @MonotonicNonNull String agentId;
 
+        private volatile boolean cancelRequestSupported;
+        private volatile boolean agentConfigDeltaSupported;
+
+        // the agent config that the agent has acknowledged applying over this connection, which is
+        // the base for sending subsequent agent config updates as deltas
+        private final Object agentConfigLock = new Object();
+        @GuardedBy("agentConfigLock")
+        private @Nullable AgentConfig appliedAgentConfig;
+        @GuardedBy("agentConfigLock")
+        private String appliedConfigVersion = "";
+
         private final StreamObserver<CentralRequest> requestObserver;
 
         private ConnectedAgent(StreamObserver<CentralRequest> requestObserver) {
@@ -489,6 +605,8 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                             e.getMessage(), e);
                     return;
                 }
+                cancelRequestSupported = hello.getCancelRequestSupported();
+                agentConfigDeltaSupported = hello.getAgentConfigDeltaSupported();
                 connectedAgents.put(agentId, ConnectedAgent.this);
                 synchronized (requestObserver) {
                     requestObserver.onNext(CentralRequest.newBuilder()
@@ -505,14 +623,20 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             }
             long requestId = value.getRequestId();
             ResponseHolder responseHolder = responseHolders.getIfPresent(requestId);
-            responseHolders.invalidate(requestId);
             if (responseHolder == null) {
                 logger.error("no response holder for request id: {}", requestId);
                 return;
             }
+            if (value.getMoreChunks()) {
+                // chunks for a given request are received in order, on the same thread
+                responseHolder.mergeChunk(value);
+                return;
+            }
+            responseHolders.invalidate(requestId);
+            AgentResponse response = responseHolder.mergeLastChunk(value);
             try {
                 // this shouldn't timeout since it is the other side of the exchange that is waiting
-                responseHolder.response.exchange(value, 1, MINUTES);
+                responseHolder.response.exchange(response, 1, MINUTES);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 logger.error("{} - {}", getDisplayForLogging(agentId), e.getMessage(), e);
@@ -567,7 +691,67 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             try {
                 CentralRequest request = CentralRequest.newBuilder(requestWithoutRequestId)
                         .setRequestId(nextRequestId.getAndIncrement())
+                        .setChunkedResponseSupported(true)
+                        .build();
+                return sendDownstreamAndWait(request);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        private AgentResult updateAgentConfig(AgentConfig agentConfig, String configVersion) {
+            if (!agentConfigDeltaSupported) {
+                return sendDownstream(CentralRequest.newBuilder()
+                        .setAgentConfigUpdateRequest(AgentConfigUpdateRequest.newBuilder()
+                                .setAgentConfig(agentConfig))
+                        .build());
+            }
+            // agent config updates are sent one at a time so that each delta is against the agent
+            // config that the agent has most recently applied
+            synchronized (agentConfigLock) {
+                AgentConfigUpdateRequest fullRequest = AgentConfigUpdateRequest.newBuilder()
+                        .setAgentConfig(agentConfig)
+                        .setConfigVersion(configVersion)
                         .build();
+                AgentResult result;
+                if (appliedAgentConfig == null) {
+                    result = sendAgentConfigUpdate(fullRequest);
+                } else {
+                    List<Integer> deltaFieldNumbers = AgentConfigDeltas
+                            .getChangedFieldNumbers(appliedAgentConfig, agentConfig);
+                    result = sendAgentConfigUpdate(AgentConfigUpdateRequest.newBuilder()
+                            .setAgentConfig(
+                                    AgentConfigDeltas.retainFields(agentConfig, deltaFieldNumbers))
+                            .setConfigVersion(configVersion)
+                            .setBaseConfigVersion(appliedConfigVersion)
+                            .addAllDeltaFieldNumber(deltaFieldNumbers)
+                            .build());
+                    AgentConfigUpdateResponse response = getAgentConfigUpdateResponse(result);
+                    if (response != null && response.getBaseConfigVersionMismatch()) {
+                        result = sendAgentConfigUpdate(fullRequest);
+                    }
+                }
+                AgentConfigUpdateResponse response = getAgentConfigUpdateResponse(result);
+                if (response != null && response.getAppliedConfigVersion().equals(configVersion)) {
+                    appliedAgentConfig = agentConfig;
+                    appliedConfigVersion = configVersion;
+                } else {
+                    // the agent may have partially applied the agent config
+                    appliedAgentConfig = null;
+                    appliedConfigVersion = "";
+                }
+                return result;
+            }
+        }
+
+        private AgentResult sendAgentConfigUpdate(AgentConfigUpdateRequest request) {
+            return sendDownstream(CentralRequest.newBuilder()
+                    .setAgentConfigUpdateRequest(request)
+                    .build());
+        }
+
+        private AgentResult sendDownstreamAndWait(CentralRequest request) {
+            try {
                 ResponseHolder responseHolder = new ResponseHolder();
                 responseHolders.put(request.getRequestId(), responseHolder);
                 // synchronization required since individual StreamObservers are not thread-safe
@@ -602,11 +786,26 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                         .interrupted(true)
                         .build();
             } catch (TimeoutException e) {
+                responseHolders.invalidate(request.getRequestId());
+                cancelRequest(request.getRequestId());
                 return ImmutableAgentResult.builder()
                         .timeout(true)
                         .build();
-            } finally {
-                readLock.unlock();
+            }
+        }
+
+        // so that the agent does not spend resources on (and send) a response that will be ignored
+        private void cancelRequest(long requestId) {
+            if (!cancelRequestSupported) {
+                return;
+            }
+            CentralRequest request = CentralRequest.newBuilder()
+                    .setRequestId(nextRequestId.getAndIncrement())
+                    .setCancelRequest(CancelRequest.newBuilder()
+                            .setCancelledRequestId(requestId))
+                    .build();
+            synchronized (requestObserver) {
+                requestObserver.onNext(request);
             }
         }
 
@@ -642,7 +841,56 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
     }
 
     private static class ResponseHolder {
+
         private final Exchanger<AgentResponse> response = new Exchanger<>();
+
+        private AgentResponse. @Nullable Builder chunks;
+
+        private void mergeChunk(AgentResponse chunk) {
+            if (chunks == null) {
+                chunks = chunk.toBuilder();
+            } else {
+                chunks.mergeFrom(chunk);
+            }
+        }
+
+        private AgentResponse mergeLastChunk(AgentResponse chunk) {
+            if (chunks == null) {
+                return chunk;
+            }
+            AgentResponse merged = chunks.mergeFrom(chunk)
+                    .setMoreChunks(false)
+                    .build();
+            chunks = null;
+            return merged;
+        }
+    }
+
+    private static class LiveEntries {
+
+        private final List<Trace.Entry> entries;
+        private final List<Trace.SharedQueryText> sharedQueryTexts;
+        private final int stableEntryCount;
+        private final long stableEntryHash;
+
+        private LiveEntries(List<Trace.Entry> entries, List<Trace.SharedQueryText> sharedQueryTexts,
+                int stableEntryCount, long stableEntryHash) {
+            this.entries = entries;
+            this.sharedQueryTexts = sharedQueryTexts;
+            this.stableEntryCount = stableEntryCount;
+            this.stableEntryHash = stableEntryHash;
+        }
+    }
+
+    private static class LiveProfile {
+
+        private final Profile profile;
+        private final long sampleCount;
+
+        private LiveProfile(Profile profile, long sampleCount) {
+            this.profile = profile;
+            this.sampleCount = sampleCount;
+        }
     }
 
     @SuppressWarnings("serial")
@@ -662,6 +910,16 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
     }
 
+    private static @Nullable AgentConfigUpdateResponse getAgentConfigUpdateResponse(
+            AgentResult result) {
+        Optional<AgentResponse> value = result.value();
+        if (!value.isPresent() || value.get()
+                .getMessageCase() != AgentResponse.MessageCase.AGENT_CONFIG_UPDATE_RESPONSE) {
+            return null;
+        }
+        return value.get().getAgentConfigUpdateResponse();
+    }
+
     // using named class instead of lambda to avoid "Invalid lambda deserialization" when one node
     // is running with this class compiled by eclipse and one node is running with this class
     // compiled by javac, see https://bugs.eclipse.org/bugs/show_bug.cgi?id=516620
@@ -681,4 +939,23 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             return connectedAgent.sendDownstream(centralRequest);
         }
     }
+
+    private static class UpdateAgentConfigFunction
+            implements SerializableFunction<ConnectedAgent, AgentResult> {
+
+        private static final long serialVersionUID = 0L;
+
+        private final AgentConfig agentConfig;
+        private final String configVersion;
+
+        private UpdateAgentConfigFunction(AgentConfig agentConfig, String configVersion) {
+            this.agentConfig = agentConfig;
+            this.configVersion = configVersion;
+        }
+
+        @Override
+        public AgentResult apply(ConnectedAgent connectedAgent) {
+            return connectedAgent.updateAgentConfig(agentConfig, configVersion);
+        }
+    }
 }
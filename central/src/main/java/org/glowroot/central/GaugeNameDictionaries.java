@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// decodes gauge value messages that use the compact format (see GaugeValueMessage in
+// CollectorService.proto)
+//
+// gauge name dictionaries are only held in memory, so after central collector restart (or when
+// an agent's messages are routed to a different central collector node) the agent is asked to
+// resend its full dictionary
+class GaugeNameDictionaries {
+
+    private final Cache<String, Dictionary> dictionaries = CacheBuilder.newBuilder()
+            .expireAfterAccess(1, HOURS)
+            .build();
+
+    // returns null if the gauge name dictionary is missing names needed to decode the message
+    @Nullable
+    List<GaugeValue> decode(String agentId, GaugeValueMessage message) {
+        long dictionaryId = message.getGaugeNameDictionaryId();
+        int firstNewIndex = message.getFirstNewGaugeNameIndex();
+        Dictionary dictionary = dictionaries.getIfPresent(agentId);
+        if (dictionary == null || dictionary.id != dictionaryId) {
+            if (firstNewIndex != 0) {
+                return null;
+            }
+            dictionary = new Dictionary(dictionaryId);
+            dictionaries.put(agentId, dictionary);
+        }
+        String[] names = dictionary.update(firstNewIndex, message.getNewGaugeNameList());
+        if (names == null) {
+            return null;
+        }
+        int count = message.getGaugeNameIndexCount();
+        if (message.getCaptureTimeDeltaCount() != count || message.getValueCount() != count
+                || message.getWeightCount() != count) {
+            throw new IllegalArgumentException("Mismatched compact gauge value counts");
+        }
+        List<GaugeValue> gaugeValues = new ArrayList<>(count);
+        long captureTime = 0;
+        for (int i = 0; i < count; i++) {
+            int index = message.getGaugeNameIndex(i);
+            if (index >= names.length) {
+                return null;
+            }
+            captureTime += message.getCaptureTimeDelta(i);
+            gaugeValues.add(GaugeValue.newBuilder()
+                    .setGaugeName(names[index])
+                    .setCaptureTime(captureTime)
+                    .setValue(message.getValue(i))
+                    .setWeight(message.getWeight(i))
+                    .build());
+        }
+        return gaugeValues;
+    }
+
+    private static class Dictionary {
+
+        private final long id;
+
+        private String[] names = new String[0];
+
+        private Dictionary(long id) {
+            this.id = id;
+        }
+
+        // returns null if there is a gap between the known names and the new names
+        private synchronized String @Nullable [] update(int firstNewIndex,
+                List<String> newNames) {
+            if (firstNewIndex > names.length) {
+                return null;
+            }
+            int size = firstNewIndex + newNames.size();
+            if (size > names.length) {
+                // new names always extend the dictionary, since names at existing indexes never
+                // change for a given dictionary id
+                String[] updated = new String[size];
+                System.arraycopy(names, 0, updated, 0, firstNewIndex);
+                for (int i = 0; i < newNames.size(); i++) {
+                    updated[firstNewIndex + i] = newNames.get(i);
+                }
+                names = updated;
+            }
+            return names;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.Arrays;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.common.Constants;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// holds the query text registry entries that have been received from each agent (see
+// AggregateStreamHeader.query_text_registry_id in CollectorService.proto)
+//
+// query text registries are only held in memory, so after central collector restart (or when an
+// agent's messages are routed to a different central collector node) the agent is asked to resend
+// the query text registry entries that it references
+class QueryTextRegistries {
+
+    // this is just to protect against a misbehaving agent, since the agent limits the size of its
+    // query text registry (and starts a new registry when the limit is reached)
+    private static final int MAX_INDEX = 100000;
+
+    // evicted registry entries are not a problem since the agent is asked to resend any entries
+    // that are not available
+    private static final int MAX_CHARS = 10 * 1024 * 1024;
+
+    private final Cache<String, Registry> registries = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CHARS)
+            .<String, Registry>weigher((agentId, registry) -> registry.getTextLength())
+            .expireAfterAccess(1, HOURS)
+            .build();
+
+    void put(String agentId, long registryId, int index,
+            Aggregate.SharedQueryText sharedQueryText) {
+        if (index < 0 || index > MAX_INDEX) {
+            throw new IllegalArgumentException("Unexpected query text registry index: " + index);
+        }
+        synchronized (registries) {
+            Registry registry = registries.getIfPresent(agentId);
+            if (registry == null || registry.id != registryId) {
+                // the agent has started a new registry
+                registry = new Registry(registryId);
+            }
+            registry.put(index, normalize(sharedQueryText));
+            // (re-)putting the registry is needed so that the cache re-weighs it
+            registries.put(agentId, registry);
+        }
+    }
+
+    // returns null if the query text registry entry is not available
+    Aggregate.@Nullable SharedQueryText get(String agentId, long registryId, int index) {
+        Registry registry = registries.getIfPresent(agentId);
+        if (registry == null || registry.id != registryId) {
+            return null;
+        }
+        return registry.get(index);
+    }
+
+    // the full text only needs to be stored once (and is stored as part of storing the aggregates
+    // from the stream that contains the registry entry), after which the truncated text and sha1
+    // are sufficient
+    private static Aggregate.SharedQueryText normalize(Aggregate.SharedQueryText sharedQueryText) {
+        String fullText = sharedQueryText.getFullText();
+        if (fullText.length() <= Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+            return sharedQueryText;
+        }
+        return Aggregate.SharedQueryText.newBuilder()
+                .setTruncatedText(fullText.substring(0, Constants.AGGREGATE_QUERY_TEXT_TRUNCATE))
+                .setFullTextSha1(Hashing.sha1().hashString(fullText, UTF_8).toString())
+                .build();
+    }
+
+    private static class Registry {
+
+        private final long id;
+
+        private Aggregate.@Nullable SharedQueryText[] entries =
+                new Aggregate.SharedQueryText[0];
+
+        private int textLength;
+
+        private Registry(long id) {
+            this.id = id;
+        }
+
+        private synchronized void put(int index, Aggregate.SharedQueryText sharedQueryText) {
+            if (index >= entries.length) {
+                entries = Arrays.copyOf(entries, Math.max(index + 1, entries.length * 2));
+            }
+            Aggregate.SharedQueryText priorSharedQueryText = entries[index];
+            if (priorSharedQueryText != null) {
+                textLength -= getTextLength(priorSharedQueryText);
+            }
+            entries[index] = sharedQueryText;
+            textLength += getTextLength(sharedQueryText);
+        }
+
+        private synchronized int getTextLength() {
+            return textLength;
+        }
+
+        private synchronized Aggregate.@Nullable SharedQueryText get(int index) {
+            if (index < 0 || index >= entries.length) {
+                return null;
+            }
+            return entries[index];
+        }
+
+        private static int getTextLength(Aggregate.SharedQueryText sharedQueryText) {
+            return sharedQueryText.getFullText().length()
+                    + sharedQueryText.getTruncatedText().length()
+                    + sharedQueryText.getFullTextSha1().length();
+        }
+    }
+}
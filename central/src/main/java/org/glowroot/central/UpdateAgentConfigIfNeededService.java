@@ -15,8 +15,12 @@
  */
 package org.glowroot.central;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
@@ -37,12 +41,17 @@ class UpdateAgentConfigIfNeededService implements Runnable {
     private static final Logger logger =
             LoggerFactory.getLogger(UpdateAgentConfigIfNeededService.class);
 
+    // config updates are sent to multiple agents in parallel so that a config change that applies
+    // to many agents (e.g. across an agent rollup) is not serialized behind each agent's round trip
+    private static final int MAX_CONCURRENT_UPDATES = 32;
+
     private final ActiveAgentDao activeAgentDao;
     private final AgentConfigDao agentConfigDao;
     private final DownstreamServiceImpl downstreamService;
     private final Clock clock;
 
     private final ExecutorService executor;
+    private final ExecutorService updateExecutor;
 
     private volatile boolean closed;
 
@@ -53,6 +62,7 @@ class UpdateAgentConfigIfNeededService implements Runnable {
         this.downstreamService = downstreamService;
         this.clock = clock;
         executor = Executors.newSingleThreadExecutor();
+        updateExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_UPDATES);
         executor.execute(castInitialized(this));
     }
 
@@ -76,28 +86,55 @@ class UpdateAgentConfigIfNeededService implements Runnable {
         closed = true;
         // shutdownNow() is needed here to send interrupt to UpdateAgentConfigIfNeededService thread
         executor.shutdownNow();
+        updateExecutor.shutdownNow();
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException(
                     "Timed out waiting for update agent config thread to terminate");
         }
+        if (!updateExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException(
+                    "Timed out waiting for update agent config threads to terminate");
+        }
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer update agent config loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
     private void runInternal() throws Exception {
+        Map<String, AgentConfigUpdate> agentConfigUpdates = agentConfigDao.readAllForUpdate();
+        if (agentConfigUpdates.isEmpty()) {
+            return;
+        }
+        Map<String, Future<?>> futures = new LinkedHashMap<>();
         for (AgentRollup agentRollup : activeAgentDao.readRecentlyActiveAgentRollups(7)) {
-            updateAgentConfigIfNeededAndConnected(agentRollup);
+            updateAgentConfigIfNeededAndConnected(agentRollup, agentConfigUpdates, futures);
+        }
+        // failures are handled per agent, so that one failed agent does not prevent waiting on
+        // (and logging failures from) the others
+        for (Map.Entry<String, Future<?>> entry : futures.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (ExecutionException e) {
+                logger.error("{} - {}", getDisplayForLogging(entry.getKey()), e.getMessage(), e);
+            }
         }
     }
 
-    private void updateAgentConfigIfNeededAndConnected(AgentRollup agentRollup)
-            throws InterruptedException {
+    private void updateAgentConfigIfNeededAndConnected(AgentRollup agentRollup,
+            Map<String, AgentConfigUpdate> agentConfigUpdates, Map<String, Future<?>> futures) {
         if (agentRollup.children().isEmpty()) {
-            updateAgentConfigIfNeededAndConnected(agentRollup.id());
+            String agentId = agentRollup.id();
+            AgentConfigUpdate agentConfigUpdate = agentConfigUpdates.get(agentId);
+            if (agentConfigUpdate != null) {
+                futures.put(agentId, updateExecutor.submit(() -> {
+                    updateAgentConfigIfConnected(agentId, agentConfigUpdate);
+                    return null;
+                }));
+            }
         } else {
             for (AgentRollup childAgentRollup : agentRollup.children()) {
-                updateAgentConfigIfNeededAndConnected(childAgentRollup);
+                updateAgentConfigIfNeededAndConnected(childAgentRollup, agentConfigUpdates,
+                        futures);
             }
         }
     }
@@ -116,9 +153,15 @@ class UpdateAgentConfigIfNeededService implements Runnable {
         if (agentConfigUpdate == null) {
             return;
         }
+        updateAgentConfigIfConnected(agentId, agentConfigUpdate);
+    }
+
+    private void updateAgentConfigIfConnected(String agentId, AgentConfigUpdate agentConfigUpdate)
+            throws InterruptedException {
         try {
+            // the config update token identifies the config version that the agent acknowledges
             boolean updated = downstreamService.updateAgentConfigIfConnected(agentId,
-                    agentConfigUpdate.config());
+                    agentConfigUpdate.config(), agentConfigUpdate.configUpdateToken().toString());
             if (updated) {
                 agentConfigDao.markUpdated(agentId, agentConfigUpdate.configUpdateToken());
             }
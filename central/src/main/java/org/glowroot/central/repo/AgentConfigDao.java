@@ -63,6 +63,10 @@ public class AgentConfigDao {
     private final PreparedStatement updatePS;
     private final PreparedStatement markUpdatedPS;
 
+    private final PreparedStatement insertUpdatePS;
+    private final PreparedStatement readAllUpdatePS;
+    private final PreparedStatement deleteUpdatePS;
+
     private final Cache<String, Optional<AgentConfig>> agentConfigCache;
 
     AgentConfigDao(Session session, ClusterManager clusterManager) throws Exception {
@@ -74,6 +78,11 @@ public class AgentConfigDao {
         // secondary index is needed for Cassandra 2.x (to avoid error on readUpdatePS)
         session.execute(
                 "create index if not exists config_update_idx on agent_config (config_update)");
+        // this holds the ids of agents (and agent rollups) that have a pending config update, so
+        // that they can be found without scanning the agent_config table (see readAllForUpdate())
+        session.createTableWithLCS("create table if not exists agent_config_update"
+                + " (agent_rollup_id varchar, config_update_token uuid, primary key"
+                + " (agent_rollup_id))");
 
         insertPS = session.prepare("insert into agent_config (agent_rollup_id, config,"
                 + " config_update, config_update_token) values (?, ?, ?, ?)");
@@ -87,6 +96,13 @@ public class AgentConfigDao {
                 + " config_update_token = null where agent_rollup_id = ? if config_update_token"
                 + " = ?");
 
+        insertUpdatePS = session.prepare("insert into agent_config_update (agent_rollup_id,"
+                + " config_update_token) values (?, ?)");
+        readAllUpdatePS = session.prepare(
+                "select agent_rollup_id, config_update_token from agent_config_update");
+        deleteUpdatePS = session.prepare("delete from agent_config_update where agent_rollup_id"
+                + " = ? if config_update_token = ?");
+
         agentConfigCache =
                 clusterManager.createCache("agentConfigCache", new AgentConfigCacheLoader());
     }
@@ -196,11 +212,20 @@ public class AgentConfigDao {
 
             AgentConfig updatedAgentConfig = agentConfigUpdater.updateAgentConfig(currAgentConfig);
 
+            UUID configUpdateToken = UUIDs.random();
+            // the pending update is recorded before the config is updated, so that the update
+            // cannot be missed by readAllForUpdate() (a left over record from an update that was
+            // not applied is cleaned up by readAllForUpdate())
+            boundStatement = insertUpdatePS.bind();
+            boundStatement.setString(0, agentRollupId);
+            boundStatement.setUUID(1, configUpdateToken);
+            session.execute(boundStatement);
+
             boundStatement = updatePS.bind();
             int i = 0;
             boundStatement.setBytes(i++, ByteBuffer.wrap(updatedAgentConfig.toByteArray()));
             boundStatement.setBool(i++, true);
-            boundStatement.setUUID(i++, UUIDs.random());
+            boundStatement.setUUID(i++, configUpdateToken);
             boundStatement.setString(i++, agentRollupId);
             boundStatement.setBytes(i++, ByteBuffer.wrap(currValue.toByteArray()));
             results = session.execute(boundStatement);
@@ -252,6 +277,28 @@ public class AgentConfigDao {
                 .build();
     }
 
+    // this reads the pending config updates for all agents (and agent rollups) from the small
+    // agent_config_update table, which is much cheaper than calling readForUpdate() for each agent
+    // (or scanning the agent_config table), since config updates are rare
+    public Map<String, AgentConfigUpdate> readAllForUpdate() throws Exception {
+        ResultSet results = session.execute(readAllUpdatePS.bind());
+        Map<String, AgentConfigUpdate> agentConfigUpdates = new HashMap<>();
+        for (Row row : results) {
+            int i = 0;
+            String agentRollupId = checkNotNull(row.getString(i++));
+            UUID configUpdateToken = checkNotNull(row.getUUID(i++));
+            AgentConfigUpdate agentConfigUpdate = readForUpdate(agentRollupId);
+            if (agentConfigUpdate == null) {
+                // the update was already acknowledged (or was never applied, or the agent has
+                // been manually deleted)
+                deleteUpdate(agentRollupId, configUpdateToken);
+            } else {
+                agentConfigUpdates.put(agentRollupId, agentConfigUpdate);
+            }
+        }
+        return agentConfigUpdates;
+    }
+
     // does not apply to agent rollups
     public void markUpdated(String agentId, UUID configUpdateToken) throws Exception {
         BoundStatement boundStatement = markUpdatedPS.bind();
@@ -259,6 +306,15 @@ public class AgentConfigDao {
         boundStatement.setString(i++, agentId);
         boundStatement.setUUID(i++, configUpdateToken);
         session.execute(boundStatement);
+        deleteUpdate(agentId, configUpdateToken);
+    }
+
+    // conditional on the token, so that a newer pending update is not deleted
+    private void deleteUpdate(String agentRollupId, UUID configUpdateToken) throws Exception {
+        BoundStatement boundStatement = deleteUpdatePS.bind();
+        boundStatement.setString(0, agentRollupId);
+        boundStatement.setUUID(1, configUpdateToken);
+        session.execute(boundStatement);
     }
 
     private String readAgentRollupLastDisplayPart(String agentRollupId) throws Exception {
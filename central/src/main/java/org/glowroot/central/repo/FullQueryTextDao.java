@@ -23,6 +23,8 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.primitives.Ints;
@@ -51,6 +53,10 @@ class FullQueryTextDao {
 
     private static final Logger logger = LoggerFactory.getLogger(FullQueryTextDao.class);
 
+    // full query texts are typically requested repeatedly from the UI (e.g. when paging through
+    // the queries tab, or viewing the same trace entries again)
+    private static final int FULL_TEXT_CACHE_MAX_CHARS = 10 * 1024 * 1024;
+
     private final Session session;
     private final ConfigRepositoryImpl configRepository;
 
@@ -65,6 +71,18 @@ class FullQueryTextDao {
     private final RateLimiter<FullQueryTextKey> rateLimiter = new RateLimiter<>(100000);
     private final RateLimiter<String> rateLimiterForSha1 = new RateLimiter<>(10000);
 
+    // the rate limiter for sha1 is size limited, so this is used to avoid reading the existing
+    // full query text (and its TTL) for sha1s that have been evicted from the rate limiter
+    private final FullQueryTextSha1Filter sha1Filter = new FullQueryTextSha1Filter();
+
+    // keyed by sha1 alone since the full text is content-addressed, so a full text received from
+    // an agent is also found when it is later requested for any of that agent's rollups
+    private final Cache<String, String> fullTextCache = CacheBuilder.newBuilder()
+            .maximumWeight(FULL_TEXT_CACHE_MAX_CHARS)
+            .<String, String>weigher((fullTextSha1, fullText) -> fullText.length())
+            .expireAfterWrite(1, HOURS)
+            .build();
+
     FullQueryTextDao(Session session, ConfigRepositoryImpl configRepository) throws Exception {
         this.session = session;
         this.configRepository = configRepository;
@@ -96,11 +114,18 @@ class FullQueryTextDao {
 
     @Nullable
     String getFullText(String agentRollupId, String fullTextSha1) throws Exception {
-        String fullText = getFullTextUsingPS(agentRollupId, fullTextSha1, readCheckV2PS);
+        String fullText = fullTextCache.getIfPresent(fullTextSha1);
         if (fullText != null) {
             return fullText;
         }
-        return getFullTextUsingPS(agentRollupId, fullTextSha1, readCheckV1PS);
+        fullText = getFullTextUsingPS(agentRollupId, fullTextSha1, readCheckV2PS);
+        if (fullText == null) {
+            fullText = getFullTextUsingPS(agentRollupId, fullTextSha1, readCheckV1PS);
+        }
+        if (fullText != null) {
+            fullTextCache.put(fullTextSha1, fullText);
+        }
+        return fullText;
     }
 
     List<Future<?>> store(String agentId, String fullTextSha1, String fullText) throws Exception {
@@ -108,8 +133,9 @@ class FullQueryTextDao {
         if (!rateLimiter.tryAcquire(rateLimiterKey)) {
             return ImmutableList.of();
         }
-        Future<?> future = storeCheckInternal(rateLimiterKey);
-        if (!rateLimiterForSha1.tryAcquire(fullTextSha1)) {
+        CompletableFuture<?> future = storeCheckInternal(rateLimiterKey);
+        future.thenRun(() -> fullTextCache.put(fullTextSha1, fullText));
+        if (!rateLimiterForSha1.tryAcquire(fullTextSha1) || sha1Filter.mightContain(fullTextSha1)) {
             return ImmutableList.of(future);
         }
         CompletableFuture<?> future2;
@@ -129,7 +155,7 @@ class FullQueryTextDao {
             return ImmutableList.of();
         }
         Future<?> future = storeCheckInternal(rateLimiterKey);
-        if (!rateLimiterForSha1.tryAcquire(fullTextSha1)) {
+        if (!rateLimiterForSha1.tryAcquire(fullTextSha1) || sha1Filter.mightContain(fullTextSha1)) {
             return ImmutableList.of(future);
         }
         ListenableFuture<ResultSet> readFuture;
@@ -265,6 +291,7 @@ class FullQueryTextDao {
                 }
             }
         }, MoreExecutors.directExecutor());
+        chainedFuture.thenRun(() -> sha1Filter.put(fullTextSha1));
         return chainedFuture;
     }
 
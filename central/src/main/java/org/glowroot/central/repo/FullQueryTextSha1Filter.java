@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Ticker;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// bloom filter of the full query text sha1s whose full text has recently been confirmed to be
+// stored with the current TTL, so that storing the same full query text again (e.g. from another
+// agent, or after the sha1 has been evicted from the size limited rate limiter) does not need to
+// read the existing TTL first
+//
+// the bloom filter is replaced every 12 hours (or sooner if it reaches its expected number of
+// insertions) and both the current and the prior bloom filters are checked, so a sha1 is
+// remembered for at most 1 day, which is already accounted for in the full query text TTL
+//
+// a false positive means the full query text is not re-written, so the false positive probability
+// is kept very low
+class FullQueryTextSha1Filter {
+
+    private static final int EXPECTED_INSERTIONS = Integer
+            .getInteger("glowroot.internal.fullQueryTextSha1FilterExpectedInsertions", 1000000);
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.0000001;
+
+    private static final long GENERATION_NANOS = HOURS.toNanos(12);
+
+    private final int expectedInsertions;
+    private final Ticker ticker;
+
+    @GuardedBy("this")
+    private BloomFilter<CharSequence> current;
+    @GuardedBy("this")
+    private BloomFilter<CharSequence> prior;
+    @GuardedBy("this")
+    private int currentInsertions;
+    @GuardedBy("this")
+    private long currentStartTick;
+    @GuardedBy("this")
+    private long priorStartTick;
+
+    FullQueryTextSha1Filter() {
+        this(EXPECTED_INSERTIONS, Ticker.systemTicker());
+    }
+
+    FullQueryTextSha1Filter(int expectedInsertions, Ticker ticker) {
+        this.expectedInsertions = expectedInsertions;
+        this.ticker = ticker;
+        current = create();
+        prior = create();
+        currentStartTick = ticker.read();
+        priorStartTick = currentStartTick;
+    }
+
+    synchronized boolean mightContain(String fullTextSha1) {
+        rotateIfNeeded();
+        return current.mightContain(fullTextSha1) || prior.mightContain(fullTextSha1);
+    }
+
+    synchronized void put(String fullTextSha1) {
+        rotateIfNeeded();
+        if (current.put(fullTextSha1)) {
+            currentInsertions++;
+        }
+    }
+
+    @GuardedBy("this")
+    private void rotateIfNeeded() {
+        long currentTick = ticker.read();
+        if (currentTick - currentStartTick >= GENERATION_NANOS
+                || currentInsertions >= expectedInsertions) {
+            prior = current;
+            priorStartTick = currentStartTick;
+            current = create();
+            currentInsertions = 0;
+            currentStartTick = currentTick;
+        }
+        if (currentTick - priorStartTick >= 2 * GENERATION_NANOS) {
+            prior = create();
+            priorStartTick = currentStartTick;
+        }
+    }
+
+    private BloomFilter<CharSequence> create() {
+        return BloomFilter.create(Funnels.stringFunnel(UTF_8), expectedInsertions,
+                FALSE_POSITIVE_PROBABILITY);
+    }
+}
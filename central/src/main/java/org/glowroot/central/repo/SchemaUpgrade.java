@@ -103,7 +103,7 @@ public class SchemaUpgrade {
 
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    private static final int CURR_SCHEMA_VERSION = 81;
+    private static final int CURR_SCHEMA_VERSION = 82;
 
     private final Session session;
     private final Clock clock;
@@ -490,6 +490,10 @@ public class SchemaUpgrade {
             dropTableIfExists("agent");
             updateSchemaVersion(81);
         }
+        if (initialSchemaVersion < 82) {
+            populateAgentConfigUpdateTable();
+            updateSchemaVersion(82);
+        }
 
         // when adding new schema upgrade, make sure to update CURR_SCHEMA_VERSION above
         startupLogger.info("upgraded glowroot central schema from version {} to version {}",
@@ -2506,6 +2510,26 @@ public class SchemaUpgrade {
         logger.info("populating active_agent_rollup_" + rollupLevel + " table - complete");
     }
 
+    private void populateAgentConfigUpdateTable() throws Exception {
+        if (!tableExists("agent_config")) {
+            // must be upgrading all the way from a glowroot version prior to agent_config
+            return;
+        }
+        session.createTableWithLCS("create table if not exists agent_config_update"
+                + " (agent_rollup_id varchar, config_update_token uuid, primary key"
+                + " (agent_rollup_id))");
+        PreparedStatement insertPS = session.prepare("insert into agent_config_update"
+                + " (agent_rollup_id, config_update_token) values (?, ?)");
+        ResultSet results = session.execute("select agent_rollup_id, config_update_token from"
+                + " agent_config where config_update = true allow filtering");
+        for (Row row : results) {
+            BoundStatement boundStatement = insertPS.bind();
+            boundStatement.setString(0, row.getString(0));
+            boundStatement.setUUID(1, row.getUUID(1));
+            session.execute(boundStatement);
+        }
+    }
+
     private void addColumnIfNotExists(String tableName, String columnName, String cqlType)
             throws Exception {
         if (tableExists(tableName) && !columnExists(tableName, columnName)) {
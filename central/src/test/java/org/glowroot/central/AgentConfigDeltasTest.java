@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.GeneralConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.InstrumentationConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.UiConfig;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AgentConfigDeltasTest {
+
+    private static final AgentConfig BASE = AgentConfig.newBuilder()
+            .setAgentVersion("0.10.13")
+            .setGeneralConfig(GeneralConfig.newBuilder()
+                    .setDisplay("abc"))
+            .setUiConfig(UiConfig.newBuilder()
+                    .setDefaultTransactionType("Web"))
+            .addInstrumentationConfig(InstrumentationConfig.newBuilder()
+                    .setClassName("com.example.Foo"))
+            .build();
+
+    @Test
+    public void shouldFindNoChanges() {
+        assertThat(AgentConfigDeltas.getChangedFieldNumbers(BASE, BASE)).isEmpty();
+    }
+
+    @Test
+    public void shouldFindChangedFields() {
+        // given
+        AgentConfig agentConfig = BASE.toBuilder()
+                .clearGeneralConfig()
+                .addInstrumentationConfig(InstrumentationConfig.newBuilder()
+                        .setClassName("com.example.Bar"))
+                .build();
+
+        // when
+        List<Integer> fieldNumbers = AgentConfigDeltas.getChangedFieldNumbers(BASE, agentConfig);
+        AgentConfig delta = AgentConfigDeltas.retainFields(agentConfig, fieldNumbers);
+
+        // then
+        assertThat(fieldNumbers).containsExactly(AgentConfig.GENERAL_CONFIG_FIELD_NUMBER,
+                AgentConfig.INSTRUMENTATION_CONFIG_FIELD_NUMBER);
+        assertThat(delta.getAgentVersion()).isEmpty();
+        assertThat(delta.hasGeneralConfig()).isFalse();
+        assertThat(delta.hasUiConfig()).isFalse();
+        assertThat(delta.getInstrumentationConfigCount()).isEqualTo(2);
+    }
+}
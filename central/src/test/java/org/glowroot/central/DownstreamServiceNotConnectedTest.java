@@ -27,6 +27,7 @@ import org.glowroot.common.live.LiveJvmService.AgentNotConnectedException;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDumpRequest.MBeanDumpKind;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
 public class DownstreamServiceNotConnectedTest {
@@ -51,7 +52,8 @@ public class DownstreamServiceNotConnectedTest {
 
     @Test
     public void shouldNotThrowAgentNotConnectExceptionOnUpdateAgentConfig() throws Exception {
-        downstreamService.updateAgentConfigIfConnected("a", AgentConfig.getDefaultInstance());
+        assertThat(downstreamService.updateAgentConfigIfConnected("a",
+                AgentConfig.getDefaultInstance(), "dummy")).isFalse();
     }
 
     @Test
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeNameDictionariesTest {
+
+    @Test
+    public void shouldDecode() {
+        // given
+        GaugeNameDictionaries dictionaries = new GaugeNameDictionaries();
+        GaugeValueMessage message = GaugeValueMessage.newBuilder()
+                .setAgentId("xyz")
+                .setGaugeNameDictionaryId(123)
+                .addNewGaugeName("a")
+                .addNewGaugeName("b")
+                .addGaugeNameIndex(0).addCaptureTimeDelta(1000).addValue(1.5).addWeight(1)
+                .addGaugeNameIndex(1).addCaptureTimeDelta(0).addValue(2.5).addWeight(1)
+                .addGaugeNameIndex(0).addCaptureTimeDelta(5000).addValue(3.5).addWeight(2)
+                .build();
+
+        // when
+        List<GaugeValue> gaugeValues = dictionaries.decode("xyz", message);
+
+        // then
+        assertThat(gaugeValues).containsExactly(gaugeValue("a", 1000, 1.5, 1),
+                gaugeValue("b", 1000, 2.5, 1), gaugeValue("a", 6000, 3.5, 2));
+    }
+
+    @Test
+    public void shouldDecodeWithOverlappingNewNames() {
+        // given
+        GaugeNameDictionaries dictionaries = new GaugeNameDictionaries();
+        dictionaries.decode("xyz", GaugeValueMessage.newBuilder()
+                .setGaugeNameDictionaryId(123)
+                .addNewGaugeName("a")
+                .addNewGaugeName("b")
+                .build());
+        GaugeValueMessage message = GaugeValueMessage.newBuilder()
+                .setGaugeNameDictionaryId(123)
+                .setFirstNewGaugeNameIndex(1)
+                .addNewGaugeName("b")
+                .addNewGaugeName("c")
+                .addGaugeNameIndex(2).addCaptureTimeDelta(1000).addValue(1).addWeight(1)
+                .addGaugeNameIndex(0).addCaptureTimeDelta(0).addValue(2).addWeight(1)
+                .build();
+
+        // when
+        List<GaugeValue> gaugeValues = dictionaries.decode("xyz", message);
+
+        // then
+        assertThat(gaugeValues).containsExactly(gaugeValue("c", 1000, 1, 1),
+                gaugeValue("a", 1000, 2, 1));
+    }
+
+    @Test
+    public void shouldRequestResendForUnknownDictionary() {
+        // given
+        GaugeNameDictionaries dictionaries = new GaugeNameDictionaries();
+        GaugeValueMessage message = GaugeValueMessage.newBuilder()
+                .setGaugeNameDictionaryId(123)
+                .setFirstNewGaugeNameIndex(2)
+                .addNewGaugeName("c")
+                .addGaugeNameIndex(0).addCaptureTimeDelta(1000).addValue(1).addWeight(1)
+                .build();
+
+        // when
+        List<GaugeValue> gaugeValues = dictionaries.decode("xyz", message);
+
+        // then
+        assertThat(gaugeValues).isNull();
+    }
+
+    @Test
+    public void shouldRequestResendForUnknownIndex() {
+        // given
+        GaugeNameDictionaries dictionaries = new GaugeNameDictionaries();
+        GaugeValueMessage message = GaugeValueMessage.newBuilder()
+                .setGaugeNameDictionaryId(123)
+                .addNewGaugeName("a")
+                .addGaugeNameIndex(1).addCaptureTimeDelta(1000).addValue(1).addWeight(1)
+                .build();
+
+        // when
+        List<GaugeValue> gaugeValues = dictionaries.decode("xyz", message);
+
+        // then
+        assertThat(gaugeValues).isNull();
+    }
+
+    @Test
+    public void shouldReplaceDictionaryAfterAgentRestart() {
+        // given
+        GaugeNameDictionaries dictionaries = new GaugeNameDictionaries();
+        dictionaries.decode("xyz", GaugeValueMessage.newBuilder()
+                .setGaugeNameDictionaryId(123)
+                .addNewGaugeName("a")
+                .build());
+        GaugeValueMessage message = GaugeValueMessage.newBuilder()
+                .setGaugeNameDictionaryId(456)
+                .addNewGaugeName("b")
+                .addGaugeNameIndex(0).addCaptureTimeDelta(1000).addValue(1).addWeight(1)
+                .build();
+
+        // when
+        List<GaugeValue> gaugeValues = dictionaries.decode("xyz", message);
+
+        // then
+        assertThat(gaugeValues).containsExactly(gaugeValue("b", 1000, 1, 1));
+    }
+
+    private static GaugeValue gaugeValue(String gaugeName, long captureTime, double value,
+            long weight) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// compares bytes on the wire (both raw and gzipped, since the agent uses gzip compression for
+// grpc) and central collector cpu per message between the legacy and compact gauge value message
+// formats, for an agent with 150 gauges sending one message every 5 seconds
+public class GaugeValueMessagePerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(GaugeValueMessagePerformanceMain.class);
+
+    private static final int GAUGE_COUNT = 150;
+    private static final int ITERATIONS = 100000;
+
+    private GaugeValueMessagePerformanceMain() {}
+
+    public static void main(String[] args) throws Exception {
+        List<String> gaugeNames = new ArrayList<>();
+        for (int i = 0; i < GAUGE_COUNT; i++) {
+            gaugeNames.add("java.lang:type=GarbageCollector,name=G1 Young Generation"
+                    + ":CollectionTime" + i);
+        }
+        List<GaugeValue> gaugeValues = new ArrayList<>();
+        long captureTime = System.currentTimeMillis();
+        for (int i = 0; i < GAUGE_COUNT; i++) {
+            gaugeValues.add(GaugeValue.newBuilder()
+                    .setGaugeName(gaugeNames.get(i))
+                    .setCaptureTime(captureTime)
+                    .setValue(i * 1000.5)
+                    .setWeight(5000)
+                    .build());
+        }
+        byte[] legacy = GaugeValueMessage.newBuilder()
+                .setAgentId("xyz")
+                .setPostV09(true)
+                .addAllGaugeValues(gaugeValues)
+                .build()
+                .toByteArray();
+        // first compact message includes the full dictionary, subsequent messages do not
+        byte[] compactFirst = buildCompact(gaugeValues, gaugeNames).toByteArray();
+        byte[] compact = buildCompact(gaugeValues, new ArrayList<String>()).toByteArray();
+
+        logger.info("legacy: {} bytes, {} bytes gzipped", legacy.length, gzip(legacy).length);
+        logger.info("compact (first message): {} bytes, {} bytes gzipped", compactFirst.length,
+                gzip(compactFirst).length);
+        logger.info("compact: {} bytes, {} bytes gzipped", compact.length, gzip(compact).length);
+
+        GaugeNameDictionaries dictionaries = new GaugeNameDictionaries();
+        dictionaries.decode("xyz", GaugeValueMessage.parseFrom(compactFirst));
+        for (int i = 0; i < 5; i++) {
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            long count = 0;
+            for (int j = 0; j < ITERATIONS; j++) {
+                count += GaugeValueMessage.parseFrom(legacy).getGaugeValuesCount();
+            }
+            logger.info("legacy: {} nanos per message",
+                    stopwatch.elapsed(NANOSECONDS) / ITERATIONS);
+            stopwatch = Stopwatch.createStarted();
+            for (int j = 0; j < ITERATIONS; j++) {
+                List<GaugeValue> decoded =
+                        dictionaries.decode("xyz", GaugeValueMessage.parseFrom(compact));
+                count += decoded == null ? 0 : decoded.size();
+            }
+            logger.info("compact: {} nanos per message",
+                    stopwatch.elapsed(NANOSECONDS) / ITERATIONS);
+            if (count != 2L * ITERATIONS * GAUGE_COUNT) {
+                throw new IllegalStateException("Unexpected gauge value count: " + count);
+            }
+        }
+    }
+
+    private static GaugeValueMessage buildCompact(List<GaugeValue> gaugeValues,
+            List<String> newGaugeNames) {
+        GaugeValueMessage.Builder builder = GaugeValueMessage.newBuilder()
+                .setAgentId("xyz")
+                .setPostV09(true)
+                .setGaugeNameDictionaryId(123)
+                .setFirstNewGaugeNameIndex(newGaugeNames.isEmpty() ? GAUGE_COUNT : 0)
+                .addAllNewGaugeName(newGaugeNames);
+        long priorCaptureTime = 0;
+        for (int i = 0; i < gaugeValues.size(); i++) {
+            GaugeValue gaugeValue = gaugeValues.get(i);
+            builder.addGaugeNameIndex(i)
+                    .addCaptureTimeDelta(gaugeValue.getCaptureTime() - priorCaptureTime)
+                    .addValue(gaugeValue.getValue())
+                    .addWeight(gaugeValue.getWeight());
+            priorCaptureTime = gaugeValue.getCaptureTime();
+        }
+        return builder.build();
+    }
+
+    private static byte[] gzip(byte[] bytes) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(baos);
+        out.write(bytes);
+        out.close();
+        return baos.toByteArray();
+    }
+}
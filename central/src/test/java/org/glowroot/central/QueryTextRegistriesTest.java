@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import org.glowroot.common.Constants;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextRegistriesTest {
+
+    @Test
+    public void shouldGetEntry() {
+        // given
+        QueryTextRegistries registries = new QueryTextRegistries();
+        registries.put("xyz", 123, 0, fullText("select 1"));
+        registries.put("xyz", 123, 2, fullText("select 2"));
+
+        // when
+        Aggregate.SharedQueryText entry0 = registries.get("xyz", 123, 0);
+        Aggregate.SharedQueryText entry1 = registries.get("xyz", 123, 1);
+        Aggregate.SharedQueryText entry2 = registries.get("xyz", 123, 2);
+
+        // then
+        assertThat(entry0).isEqualTo(fullText("select 1"));
+        assertThat(entry1).isNull();
+        assertThat(entry2).isEqualTo(fullText("select 2"));
+    }
+
+    @Test
+    public void shouldNotGetEntryFromDifferentRegistry() {
+        // given
+        QueryTextRegistries registries = new QueryTextRegistries();
+        registries.put("xyz", 123, 0, fullText("select 1"));
+        registries.put("xyz", 456, 1, fullText("select 2"));
+
+        // when
+        Aggregate.SharedQueryText entry0 = registries.get("xyz", 456, 0);
+        Aggregate.SharedQueryText entry1 = registries.get("xyz", 456, 1);
+        Aggregate.SharedQueryText otherAgentEntry = registries.get("abc", 456, 1);
+
+        // then
+        assertThat(entry0).isNull();
+        assertThat(entry1).isEqualTo(fullText("select 2"));
+        assertThat(otherAgentEntry).isNull();
+    }
+
+    @Test
+    public void shouldTruncateLongText() {
+        // given
+        QueryTextRegistries registries = new QueryTextRegistries();
+        String longText = "select " + Strings.repeat("x, ", 100) + "y from z";
+        registries.put("xyz", 123, 0, fullText(longText));
+
+        // when
+        Aggregate.SharedQueryText entry = registries.get("xyz", 123, 0);
+
+        // then
+        assertThat(entry.getFullText()).isEmpty();
+        assertThat(entry.getTruncatedText())
+                .isEqualTo(longText.substring(0, Constants.AGGREGATE_QUERY_TEXT_TRUNCATE));
+        assertThat(entry.getFullTextSha1()).hasSize(40);
+    }
+
+    private static Aggregate.SharedQueryText fullText(String fullText) {
+        return Aggregate.SharedQueryText.newBuilder()
+                .setFullText(fullText)
+                .build();
+    }
+}
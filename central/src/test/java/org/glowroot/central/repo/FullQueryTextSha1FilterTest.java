@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FullQueryTextSha1FilterTest {
+
+    @Test
+    public void shouldRememberSha1ForAtMostOneDay() {
+        // given
+        FakeTicker ticker = new FakeTicker();
+        FullQueryTextSha1Filter filter = new FullQueryTextSha1Filter(1000, ticker);
+
+        // when
+        filter.put("abc");
+        ticker.nanos += HOURS.toNanos(13);
+        filter.put("def");
+        boolean containsAbcAfter13Hours = filter.mightContain("abc");
+        ticker.nanos += HOURS.toNanos(12);
+        boolean containsAbcAfter25Hours = filter.mightContain("abc");
+        boolean containsDefAfter12Hours = filter.mightContain("def");
+
+        // then
+        assertThat(containsAbcAfter13Hours).isTrue();
+        assertThat(containsAbcAfter25Hours).isFalse();
+        assertThat(containsDefAfter12Hours).isTrue();
+        assertThat(filter.mightContain("xyz")).isFalse();
+    }
+
+    @Test
+    public void shouldRotateWhenExpectedInsertionsReached() {
+        // given
+        FakeTicker ticker = new FakeTicker();
+        FullQueryTextSha1Filter filter = new FullQueryTextSha1Filter(10, ticker);
+
+        // when
+        for (int i = 0; i < 25; i++) {
+            filter.put("sha1-" + i);
+        }
+
+        // then
+        // the first generation has been discarded
+        assertThat(filter.mightContain("sha1-0")).isFalse();
+        assertThat(filter.mightContain("sha1-10")).isTrue();
+        assertThat(filter.mightContain("sha1-24")).isTrue();
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
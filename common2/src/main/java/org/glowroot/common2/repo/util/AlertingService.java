@@ -106,7 +106,8 @@ public class AlertingService {
         this.resolvingIncidentLockSet = resolvingIncidentLockSet;
         this.clock = clock;
         this.metricService =
-                new MetricService(aggregateRepository, gaugeValueRepository, rollupLevelService);
+                new MetricService(aggregateRepository, gaugeValueRepository, rollupLevelService,
+                        clock);
         pagerDutyRetryExecutor = Executors.newSingleThreadScheduledExecutor();
     }
 
@@ -19,34 +19,61 @@ import java.util.List;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
 
 import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.AggregateRepository;
 import org.glowroot.common2.repo.GaugeValueRepository;
 import org.glowroot.common2.repo.util.RollupLevelService.DataKind;
+import org.glowroot.common2.repo.util.SlidingMetricWindow.ValueReader;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 class MetricService {
 
     private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
 
+    // aggregates and gauge values with capture time within this amount of time from the current
+    // time may still be in-flight from the agent, so they are re-read on each alert check
+    private static final long SETTLE_MILLIS = MINUTES.toMillis(3);
+
+    // sliding windows are periodically re-read in full in order to pick up any data that arrives
+    // late (e.g. agent re-sending data after being disconnected from the central collector)
+    private static final long RESYNC_MILLIS = HOURS.toMillis(1);
+
     private final AggregateRepository aggregateRepository;
     private final GaugeValueRepository gaugeValueRepository;
     private final RollupLevelService rollupLevelService;
+    private final Clock clock;
+
+    private final Cache<MetricWindowKey, SlidingMetricWindow<PercentileAggregate>>
+            percentileWindows = newWindowCache();
+    private final Cache<MetricWindowKey, SlidingMetricWindow<OverviewAggregate>>
+            overviewWindows = newWindowCache();
+    private final Cache<MetricWindowKey, SlidingMetricWindow<ThroughputAggregate>>
+            throughputWindows = newWindowCache();
+    private final Cache<MetricWindowKey, SlidingMetricWindow<GaugeValue>> gaugeWindows =
+            newWindowCache();
 
     public MetricService(AggregateRepository aggregateRepository,
-            GaugeValueRepository gaugeValueRepository, RollupLevelService rollupLevelService) {
+            GaugeValueRepository gaugeValueRepository, RollupLevelService rollupLevelService,
+            Clock clock) {
         this.aggregateRepository = aggregateRepository;
         this.gaugeValueRepository = gaugeValueRepository;
         this.rollupLevelService = rollupLevelService;
+        this.clock = clock;
     }
 
     @Nullable
@@ -78,21 +105,32 @@ class MetricService {
         }
     }
 
-    private @Nullable Double getTransactionDurationPercentile(String agentRollupId,
-            String transactionType, @Nullable String transactionName, double percentile,
-            long startTime, long endTime) throws Exception {
-        int rollupLevel =
+    private @Nullable Double getTransactionDurationPercentile(final String agentRollupId,
+            final String transactionType, final @Nullable String transactionName,
+            double percentile, long startTime, long endTime) throws Exception {
+        final int rollupLevel =
                 rollupLevelService.getRollupLevelForView(startTime, endTime, DataKind.GENERAL);
         // startTime + 1 in order to not include the aggregate value at startTime
-        List<PercentileAggregate> aggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId,
-                        ImmutableTransactionQuery.builder()
-                                .transactionType(transactionType)
-                                .transactionName(transactionName)
-                                .from(startTime + 1)
-                                .to(endTime)
-                                .rollupLevel(rollupLevel)
-                                .build());
+        List<PercentileAggregate> aggregates = readThroughWindow(percentileWindows,
+                getWindowKey(agentRollupId, transactionType, transactionName, startTime, endTime),
+                rollupLevel, startTime, endTime, new ValueReader<PercentileAggregate>() {
+                    @Override
+                    public List<PercentileAggregate> read(long from, long to) throws Exception {
+                        return aggregateRepository.readPercentileAggregates(agentRollupId,
+                                ImmutableTransactionQuery.builder()
+                                        .transactionType(transactionType)
+                                        .transactionName(transactionName)
+                                        .from(from)
+                                        .to(to)
+                                        .rollupLevel(rollupLevel)
+                                        .build());
+                    }
+
+                    @Override
+                    public long getCaptureTime(PercentileAggregate value) {
+                        return value.captureTime();
+                    }
+                });
         if (aggregates.isEmpty()) {
             return null;
         }
@@ -164,13 +202,25 @@ class MetricService {
         return totalErrorCount;
     }
 
-    private @Nullable Double getGaugeValue(String agentRollupId, String gaugeName,
+    private @Nullable Double getGaugeValue(final String agentRollupId, final String gaugeName,
             long startTime, long endTime) throws Exception {
-        int rollupLevel = rollupLevelService.getGaugeRollupLevelForView(startTime, endTime,
+        final int rollupLevel = rollupLevelService.getGaugeRollupLevelForView(startTime, endTime,
                 agentRollupId.endsWith("::"));
         // startTime + 1 in order to not include the gauge value at startTime
-        List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentRollupId,
-                gaugeName, startTime + 1, endTime, rollupLevel);
+        List<GaugeValue> gaugeValues = readThroughWindow(gaugeWindows,
+                getWindowKey(agentRollupId, gaugeName, null, startTime, endTime), rollupLevel,
+                startTime, endTime, new ValueReader<GaugeValue>() {
+                    @Override
+                    public List<GaugeValue> read(long from, long to) throws Exception {
+                        return gaugeValueRepository.readGaugeValues(agentRollupId, gaugeName, from,
+                                to, rollupLevel);
+                    }
+
+                    @Override
+                    public long getCaptureTime(GaugeValue value) {
+                        return value.getCaptureTime();
+                    }
+                });
         if (gaugeValues.isEmpty()) {
             return null;
         }
@@ -186,35 +236,104 @@ class MetricService {
         return totalWeightedValue / totalWeight;
     }
 
-    private List<ThroughputAggregate> getThroughputAggregates(String agentRollupId,
-            String transactionType, @Nullable String transactionName, long startTime, long endTime)
-            throws Exception {
-        int rollupLevel =
+    private List<ThroughputAggregate> getThroughputAggregates(final String agentRollupId,
+            final String transactionType, final @Nullable String transactionName, long startTime,
+            long endTime) throws Exception {
+        final int rollupLevel =
                 rollupLevelService.getRollupLevelForView(startTime, endTime, DataKind.GENERAL);
         // startTime + 1 in order to not include the aggregate at startTime
-        return aggregateRepository.readThroughputAggregates(agentRollupId,
-                ImmutableTransactionQuery.builder()
-                        .transactionType(transactionType)
-                        .transactionName(transactionName)
-                        .from(startTime + 1)
-                        .to(endTime)
-                        .rollupLevel(rollupLevel)
-                        .build());
+        return readThroughWindow(throughputWindows,
+                getWindowKey(agentRollupId, transactionType, transactionName, startTime, endTime),
+                rollupLevel, startTime, endTime, new ValueReader<ThroughputAggregate>() {
+                    @Override
+                    public List<ThroughputAggregate> read(long from, long to) throws Exception {
+                        return aggregateRepository.readThroughputAggregates(agentRollupId,
+                                ImmutableTransactionQuery.builder()
+                                        .transactionType(transactionType)
+                                        .transactionName(transactionName)
+                                        .from(from)
+                                        .to(to)
+                                        .rollupLevel(rollupLevel)
+                                        .build());
+                    }
+
+                    @Override
+                    public long getCaptureTime(ThroughputAggregate value) {
+                        return value.captureTime();
+                    }
+                });
     }
 
-    private List<OverviewAggregate> getOverviewAggregates(String agentRollupId,
-            String transactionType, @Nullable String transactionName, long startTime, long endTime)
-            throws Exception {
-        int rollupLevel =
+    private List<OverviewAggregate> getOverviewAggregates(final String agentRollupId,
+            final String transactionType, final @Nullable String transactionName, long startTime,
+            long endTime) throws Exception {
+        final int rollupLevel =
                 rollupLevelService.getRollupLevelForView(startTime, endTime, DataKind.GENERAL);
         // startTime + 1 in order to not include the aggregate at startTime
-        return aggregateRepository.readOverviewAggregates(agentRollupId,
-                ImmutableTransactionQuery.builder()
-                        .transactionType(transactionType)
-                        .transactionName(transactionName)
-                        .from(startTime + 1)
-                        .to(endTime)
-                        .rollupLevel(rollupLevel)
-                        .build());
+        return readThroughWindow(overviewWindows,
+                getWindowKey(agentRollupId, transactionType, transactionName, startTime, endTime),
+                rollupLevel, startTime, endTime, new ValueReader<OverviewAggregate>() {
+                    @Override
+                    public List<OverviewAggregate> read(long from, long to) throws Exception {
+                        return aggregateRepository.readOverviewAggregates(agentRollupId,
+                                ImmutableTransactionQuery.builder()
+                                        .transactionType(transactionType)
+                                        .transactionName(transactionName)
+                                        .from(from)
+                                        .to(to)
+                                        .rollupLevel(rollupLevel)
+                                        .build());
+                    }
+
+                    @Override
+                    public long getCaptureTime(OverviewAggregate value) {
+                        return value.captureTime();
+                    }
+                });
+    }
+
+    private <T> List<T> readThroughWindow(Cache<MetricWindowKey, SlidingMetricWindow<T>> windows,
+            MetricWindowKey key, int rollupLevel, long startTime, long endTime,
+            ValueReader<T> reader) throws Exception {
+        if (rollupLevel != 0 || key.agentRollupId().endsWith("::")) {
+            // rollups are performed asynchronously (and can be revised when late data arrives), so
+            // it is not safe to treat them as settled, and this includes level 0 for agent rollups
+            // (as opposed to agents), which is itself rolled up from the child agents
+            return reader.read(startTime + 1, endTime);
+        }
+        long currentTime = clock.currentTimeMillis();
+        SlidingMetricWindow<T> window = windows.getIfPresent(key);
+        if (window == null || currentTime - window.getCreatedTime() > RESYNC_MILLIS) {
+            window = new SlidingMetricWindow<T>(currentTime);
+            windows.put(key, window);
+        }
+        return window.read(startTime, endTime, currentTime - SETTLE_MILLIS, reader);
+    }
+
+    private static MetricWindowKey getWindowKey(String agentRollupId, String name,
+            @Nullable String transactionName, long startTime, long endTime) {
+        return ImmutableMetricWindowKey.builder()
+                .agentRollupId(agentRollupId)
+                .name(name)
+                .transactionName(transactionName)
+                .timePeriodMillis(endTime - startTime)
+                .build();
+    }
+
+    private static <T> Cache<MetricWindowKey, SlidingMetricWindow<T>> newWindowCache() {
+        // windows for deleted (or modified) alerts will expire
+        return CacheBuilder.newBuilder()
+                .expireAfterAccess(1, HOURS)
+                .build();
+    }
+
+    @Value.Immutable
+    interface MetricWindowKey {
+        String agentRollupId();
+        // transaction type or gauge name
+        String name();
+        @Nullable
+        String transactionName();
+        long timePeriodMillis();
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import java.util.List;
+import java.util.NavigableMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+// holds the values of a single metric over an alert's time period, keyed by capture time, so that
+// repeated alert checks only need to read values that are new (or not yet settled) since the
+// previous check, instead of re-reading the full time period every time
+class SlidingMetricWindow<T> {
+
+    private final NavigableMap<Long, List<T>> values = Maps.newTreeMap();
+
+    private final long createdTime;
+
+    // values with capture time less than or equal to this are considered complete and are not
+    // re-read from the repository
+    private long settledThrough;
+
+    SlidingMetricWindow(long createdTime) {
+        this.createdTime = createdTime;
+    }
+
+    long getCreatedTime() {
+        return createdTime;
+    }
+
+    // startTime is exclusive, endTime is inclusive (matching the repository reads in MetricService)
+    //
+    // settledTime is the capture time up to which data is not expected to change anymore (e.g.
+    // aggregates and gauge values that may still be in-flight from the agent are not settled)
+    synchronized List<T> read(long startTime, long endTime, long settledTime,
+            ValueReader<T> reader) throws Exception {
+        values.headMap(startTime, true).clear();
+        long readFrom = Math.max(startTime, settledThrough);
+        if (readFrom < endTime) {
+            values.tailMap(readFrom, false).clear();
+            for (T value : reader.read(readFrom + 1, endTime)) {
+                long captureTime = reader.getCaptureTime(value);
+                List<T> list = values.get(captureTime);
+                if (list == null) {
+                    values.put(captureTime, ImmutableList.of(value));
+                } else {
+                    values.put(captureTime, ImmutableList.<T>builder()
+                            .addAll(list)
+                            .add(value)
+                            .build());
+                }
+            }
+            settledThrough = Math.max(settledThrough, Math.min(endTime, settledTime));
+        }
+        ImmutableList.Builder<T> result = ImmutableList.builder();
+        for (List<T> list : values.subMap(startTime, false, endTime, true).values()) {
+            result.addAll(list);
+        }
+        return result.build();
+    }
+
+    interface ValueReader<T> {
+
+        // from and to are both inclusive
+        List<T> read(long from, long to) throws Exception;
+
+        long getCaptureTime(T value);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.AggregateRepository;
+import org.glowroot.common2.repo.GaugeValueRepository;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MetricServiceTest {
+
+    private static final long START_TIME = MINUTES.toMillis(1000);
+
+    private static final MetricCondition METRIC_CONDITION = MetricCondition.newBuilder()
+            .setMetric("gauge:java.lang:type=Memory:HeapMemoryUsage.used")
+            .setTimePeriodSeconds(3600)
+            .build();
+
+    private List<GaugeValue> storedGaugeValues;
+    private MockClock clock;
+    private MetricService metricService;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        storedGaugeValues = Lists.newArrayList();
+        GaugeValueRepository gaugeValueRepository = mock(GaugeValueRepository.class);
+        when(gaugeValueRepository.readGaugeValues(anyString(), anyString(), anyLong(), anyLong(),
+                anyInt())).thenAnswer(new Answer<List<GaugeValue>>() {
+                    @Override
+                    public List<GaugeValue> answer(InvocationOnMock invocation) {
+                        long from = invocation.getArgument(2);
+                        long to = invocation.getArgument(3);
+                        List<GaugeValue> gaugeValues = Lists.newArrayList();
+                        for (GaugeValue gaugeValue : storedGaugeValues) {
+                            if (gaugeValue.getCaptureTime() >= from
+                                    && gaugeValue.getCaptureTime() <= to) {
+                                gaugeValues.add(gaugeValue);
+                            }
+                        }
+                        return gaugeValues;
+                    }
+                });
+        clock = new MockClock();
+        metricService = new MetricService(mock(AggregateRepository.class), gaugeValueRepository,
+                mock(RollupLevelService.class), clock);
+    }
+
+    @Test
+    public void shouldNotReadSettledAgentValuesAgain() throws Exception {
+        // given
+        storedGaugeValues.add(gaugeValue(START_TIME + MINUTES.toMillis(10), 1));
+        clock.currentTime = START_TIME + MINUTES.toMillis(60);
+        assertThat(getMetricValue("agent")).isEqualTo(1.0);
+        // when
+        storedGaugeValues.add(gaugeValue(START_TIME + MINUTES.toMillis(20), 3));
+        clock.currentTime += MINUTES.toMillis(1);
+        // then
+        // the late value is not picked up until the window is re-read in full
+        assertThat(getMetricValue("agent")).isEqualTo(1.0);
+    }
+
+    @Test
+    public void shouldReadLateAgentRollupValues() throws Exception {
+        // given
+        storedGaugeValues.add(gaugeValue(START_TIME + MINUTES.toMillis(10), 1));
+        clock.currentTime = START_TIME + MINUTES.toMillis(60);
+        assertThat(getMetricValue("rollup::")).isEqualTo(1.0);
+        // when
+        // agent rollup level 0 data is rolled up from the child agents asynchronously, so it can
+        // arrive after the settle point
+        storedGaugeValues.add(gaugeValue(START_TIME + MINUTES.toMillis(20), 3));
+        clock.currentTime += MINUTES.toMillis(1);
+        // then
+        assertThat(getMetricValue("rollup::")).isEqualTo(2.0);
+    }
+
+    private Number getMetricValue(String agentRollupId) throws Exception {
+        long endTime = clock.currentTime;
+        return metricService.getMetricValue(agentRollupId, METRIC_CONDITION,
+                endTime - MINUTES.toMillis(60), endTime);
+    }
+
+    private static GaugeValue gaugeValue(long captureTime, double value) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
+
+    private static class MockClock extends Clock {
+
+        private long currentTime;
+
+        @Override
+        public long currentTimeMillis() {
+            return currentTime;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.common2.repo.util.SlidingMetricWindow.ValueReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SlidingMetricWindowTest {
+
+    @Test
+    public void shouldOnlyReadNewValues() throws Exception {
+        // given
+        SlidingMetricWindow<Long> window = new SlidingMetricWindow<Long>(0);
+        RecordingReader reader = new RecordingReader(60000, 120000, 180000, 240000);
+        // when
+        List<Long> first = window.read(0, 180000, 180000, reader);
+        List<Long> second = window.read(60000, 240000, 240000, reader);
+        // then
+        assertThat(first).containsExactly(60000L, 120000L, 180000L);
+        assertThat(second).containsExactly(120000L, 180000L, 240000L);
+        assertThat(reader.reads).containsExactly("1-180000", "180001-240000");
+    }
+
+    @Test
+    public void shouldReReadUnsettledValues() throws Exception {
+        // given
+        SlidingMetricWindow<Long> window = new SlidingMetricWindow<Long>(0);
+        RecordingReader reader = new RecordingReader(60000, 120000);
+        // when
+        List<Long> first = window.read(0, 180000, 60000, reader);
+        reader.captureTimes.add(180000L);
+        List<Long> second = window.read(0, 180000, 180000, reader);
+        List<Long> third = window.read(0, 180000, 180000, reader);
+        // then
+        assertThat(first).containsExactly(60000L, 120000L);
+        assertThat(second).containsExactly(60000L, 120000L, 180000L);
+        assertThat(third).containsExactly(60000L, 120000L, 180000L);
+        assertThat(reader.reads).containsExactly("1-180000", "60001-180000");
+    }
+
+    @Test
+    public void shouldNotIncludeValuesAfterEndTime() throws Exception {
+        // given
+        SlidingMetricWindow<Long> window = new SlidingMetricWindow<Long>(0);
+        RecordingReader reader = new RecordingReader(60000, 120000, 180000);
+        // when
+        window.read(0, 180000, 180000, reader);
+        List<Long> values = window.read(0, 120000, 180000, reader);
+        // then
+        assertThat(values).containsExactly(60000L, 120000L);
+        assertThat(reader.reads).containsExactly("1-180000");
+    }
+
+    private static class RecordingReader implements ValueReader<Long> {
+
+        private final List<Long> captureTimes;
+        private final List<String> reads = Lists.newArrayList();
+
+        private RecordingReader(long... captureTimes) {
+            this.captureTimes = Lists.newArrayList();
+            for (long captureTime : captureTimes) {
+                this.captureTimes.add(captureTime);
+            }
+        }
+
+        @Override
+        public List<Long> read(long from, long to) {
+            reads.add(from + "-" + to);
+            ImmutableList.Builder<Long> values = ImmutableList.builder();
+            for (long captureTime : captureTimes) {
+                if (captureTime >= from && captureTime <= to) {
+                    values.add(captureTime);
+                }
+            }
+            return values.build();
+        }
+
+        @Override
+        public long getCaptureTime(Long value) {
+            return value;
+        }
+    }
+}
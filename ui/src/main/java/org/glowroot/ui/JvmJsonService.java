@@ -344,6 +344,12 @@ class JvmJsonService {
                 totalCount += classInfo.getCount();
             }
             jg.writeEndArray();
+            if (heapHistogram.getTotalBytes() != 0) {
+                // the agent may have omitted some of the smaller classes, see
+                // HeapHistogramRequest.limit (totals are not sent by agents prior to 0.10.13)
+                totalBytes = heapHistogram.getTotalBytes();
+                totalCount = heapHistogram.getTotalCount();
+            }
             jg.writeNumberField("totalBytes", totalBytes);
             jg.writeNumberField("totalCount", totalCount);
             jg.writeEndObject();